@@ -28,6 +28,7 @@ import org.geotools.data.FeatureReader;
 import org.geotools.feature.simple.SimpleFeatureBuilder;
 import org.neo4j.gis.spatial.Layer;
 import org.neo4j.gis.spatial.SpatialDatabaseRecord;
+import org.neo4j.gis.spatial.osm.OSMGeometryEncoder;
 import org.neo4j.graphdb.Transaction;
 import org.opengis.feature.simple.SimpleFeature;
 import org.opengis.feature.simple.SimpleFeatureType;
@@ -49,6 +50,7 @@ public class Neo4jSpatialFeatureReader implements FeatureReader<SimpleFeatureTyp
     private SimpleFeatureBuilder builder;
 	private Iterator<SpatialDatabaseRecord> results;
 	private String[] extraPropertyNames;
+	private OSMGeometryEncoder.AttributeReader attributeReader;
 	
 	/**
 	 * 
@@ -60,6 +62,10 @@ public class Neo4jSpatialFeatureReader implements FeatureReader<SimpleFeatureTyp
 		
 		this.layer = layer;
 		this.extraPropertyNames = layer.getExtraPropertyNames();		
+		if (layer.getGeometryEncoder() instanceof OSMGeometryEncoder) {
+			// resolve only the attributes this reader will copy into features
+			attributeReader = ((OSMGeometryEncoder) layer.getGeometryEncoder()).newAttributeReader(extraPropertyNames);
+		}
 		this.featureType = featureType;
 		this.builder = new SimpleFeatureBuilder(featureType);
 		this.results = results;
@@ -101,8 +107,13 @@ public class Neo4jSpatialFeatureReader implements FeatureReader<SimpleFeatureTyp
 
 			if (extraPropertyNames != null) {
 				for (int i = 0; i < extraPropertyNames.length; i++) {
-					if (record.hasProperty(extraPropertyNames[i])) {
-						builder.set(extraPropertyNames[i], record.getProperty(extraPropertyNames[i]));
+					String name = extraPropertyNames[i];
+					if (attributeReader != null && layer.getPropertyMappingManager().getPropertyMapper(name) == null) {
+						if (attributeReader.hasAttribute(record.getGeomNode(), name)) {
+							builder.set(name, attributeReader.getAttribute(record.getGeomNode(), name));
+						}
+					} else if (record.hasProperty(name)) {
+						builder.set(name, record.getProperty(name));
 					}
 				}
 			}
@@ -120,6 +131,7 @@ public class Neo4jSpatialFeatureReader implements FeatureReader<SimpleFeatureTyp
 		featureType = null;
 		builder = null;
 		results = null;
+		attributeReader = null;
 	}
 	
 	/**
@@ -19,6 +19,10 @@
  */
 package org.neo4j.gis.spatial;
 
+import java.util.AbstractList;
+import java.util.List;
+import java.util.Map;
+
 import org.neo4j.graphdb.Node;
 import org.neo4j.graphdb.Transaction;
 
@@ -90,6 +94,50 @@ public class EditableLayerImpl extends DefaultLayer implements EditableLayer {
 		return geomNode;
 	}
 
+	/**
+	 * Create a geometry node from properties already encoded by a copy of the
+	 * geometry encoder of this layer, without adding it to the index. Must be
+	 * called within a transaction. Used by bulk imports, which encode on
+	 * several threads, keep the ids of the new nodes and add them all to the
+	 * index at the end, with {@link #addGeometryNodes(long[], int)}.
+	 */
+	public Node addEncodedGeomNode(Map<String, Object> properties) {
+		Node geomNode = getDatabase().createNode();
+		for (Map.Entry<String, Object> property : properties.entrySet()) {
+			geomNode.setProperty(property.getKey(), property.getValue());
+		}
+		return geomNode;
+	}
+
+	/**
+	 * Add existing geometry nodes to the index. When the index is empty the
+	 * R-tree is bulk loaded, which is much faster than adding them one by one,
+	 * otherwise they are inserted one by one.
+	 */
+	public void addGeometryNodes(List<Node> geomNodes) {
+		index.add(geomNodes);
+	}
+
+	/**
+	 * Add the first count of the given geometry nodes to the index. Bulk
+	 * imports keep only the ids of the nodes they create, in transactions of
+	 * their own, and call this once when all of them are committed, so that
+	 * an empty R-tree is bulk loaded with every node of the import.
+	 */
+	public void addGeometryNodes(final long[] geomNodeIds, final int count) {
+		index.add(new AbstractList<Node>() {
+			@Override
+			public Node get(int i) {
+				return getDatabase().getNodeById(geomNodeIds[i]);
+			}
+
+			@Override
+			public int size() {
+				return count;
+			}
+		});
+	}
+
 	public String getSignature() {
 		return "Editable" + super.getSignature();
 	}
@@ -21,6 +21,8 @@ package org.neo4j.gis.spatial;
 
 import static org.neo4j.gis.spatial.utilities.TraverserFactory.createTraverserInBackwardsCompatibleWay;
 
+import java.util.Map;
+
 import org.neo4j.graphdb.Direction;
 import org.neo4j.graphdb.Node;
 import org.neo4j.graphdb.RelationshipType;
@@ -51,7 +53,14 @@ public class OrderedEditableLayer extends EditableLayerImpl {
 	}
 
 	protected Node addGeomNode(Geometry geom, String[] fieldsName, Object[] fields) {
-		Node geomNode = super.addGeomNode(geom, fieldsName, fields);
+		return linkInOrder(super.addGeomNode(geom, fieldsName, fields));
+	}
+
+	public Node addEncodedGeomNode(Map<String, Object> properties) {
+		return linkInOrder(super.addEncodedGeomNode(properties));
+	}
+
+	private Node linkInOrder(Node geomNode) {
 		if (previousGeomNode == null) {
 			TraversalDescription traversalDescription = getDatabase().traversalDescription()
 					.order( BranchOrderingPolicies.POSTORDER_BREADTH_FIRST )
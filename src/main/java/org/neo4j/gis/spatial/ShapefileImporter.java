@@ -21,10 +21,27 @@ package org.neo4j.gis.spatial;
 
 import java.io.File;
 import java.io.IOException;
+import java.net.URL;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 
 import org.geotools.data.PrjFileReader;
 import org.geotools.data.shapefile.files.ShpFileType;
@@ -34,10 +51,15 @@ import org.geotools.data.shapefile.dbf.DbaseFileReader;
 import org.geotools.data.shapefile.shp.JTSUtilities;
 import org.geotools.data.shapefile.shp.ShapefileReader;
 import org.geotools.data.shapefile.shp.ShapefileReader.Record;
+import org.neo4j.gis.spatial.encoders.Configurable;
 import org.neo4j.gis.spatial.rtree.Listener;
 import org.neo4j.gis.spatial.rtree.NullListener;
+import org.neo4j.gis.spatial.utilities.HilbertCurve;
+import org.neo4j.gis.spatial.utilities.ImportCheckpoint;
 import org.neo4j.graphdb.GraphDatabaseService;
 import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.NotFoundException;
+import org.neo4j.graphdb.PropertyContainer;
 import org.neo4j.graphdb.Transaction;
 import org.neo4j.graphdb.factory.GraphDatabaseFactory;
 import org.opengis.referencing.FactoryException;
@@ -55,6 +77,9 @@ public class ShapefileImporter implements Constants {
 	
 	private int commitInterval;
 	private boolean maintainGeometryOrder = false;
+	private boolean resumable = false;
+	private int hilbertBufferSize = 0;
+	private int importThreads = 0;
 
 	public ShapefileImporter(GraphDatabaseService database, Listener monitor, int commitInterval, boolean maintainGeometryOrder) {	
 		this.maintainGeometryOrder = maintainGeometryOrder;
@@ -131,24 +156,47 @@ public class ShapefileImporter implements Constants {
     }
 
     public List<Node> importFile(String dataset, EditableLayerImpl layer, Charset charset) throws IOException {
-        GeometryFactory geomFactory = layer.getGeometryFactory();
 		ArrayList<Node> added = new ArrayList<>();
+		importFile(dataset, layer, charset, added::add);
+		return added;
+	}
+
+	/**
+	 * Import the shapefile, passing each new geometry node to the callback
+	 * instead of collecting them all in a list.
+	 * 
+	 * @return the number of geometries added
+	 */
+	public int importFile(String dataset, String layerName, Charset charset, Consumer<Node> added) throws IOException {
+		Class<? extends Layer> layerClass = maintainGeometryOrder ? OrderedEditableLayer.class : EditableLayerImpl.class;
+		EditableLayerImpl layer = (EditableLayerImpl) spatialDatabase.getOrCreateLayer(layerName, WKBGeometryEncoder.class, layerClass);
+		return importFile(dataset, layer, charset, added);
+	}
+
+	/**
+	 * Import the shapefile, passing each new geometry node to the callback
+	 * instead of collecting them all in a list.
+	 * 
+	 * @return the number of geometries added
+	 */
+	public int importFile(String dataset, EditableLayerImpl layer, Charset charset, Consumer<Node> added) throws IOException {
+		if (importThreads > 0 && (resumable || hilbertBufferSize > 0)) {
+			throw new IllegalStateException("Pipelined imports cannot be resumable or Hilbert ordered");
+		}
+        GeometryFactory geomFactory = layer.getGeometryFactory();
+		int[] addedCount = new int[] { 0 };
+		Consumer<Node> counted = node -> {
+			addedCount[0]++;
+			added.accept(node);
+		};
 		
 		boolean strict = false;
-		boolean shpMemoryMapped = true;
 		
 		long startTime = System.currentTimeMillis();
 		
-		ShpFiles shpFiles = null;
-		try {
-			shpFiles = new ShpFiles(new File(dataset));
-		} catch (Exception e) {
-			try {
-				shpFiles = new ShpFiles(new File(dataset + ".shp"));
-			} catch (Exception e2) {
-				throw new IllegalArgumentException("Failed to access the shapefile at either '" + dataset + "' or '" + dataset + ".shp'", e);
-			}
-		}
+		ShpFiles shpFiles = openShapefile(dataset);
+		// zipped shapefiles are streamed from the archive, and cannot be memory mapped
+		boolean shpMemoryMapped = shpFiles.isLocal();
 		
 		ShapefileReader shpReader = new ShapefileReader(shpFiles, strict, shpMemoryMapped, geomFactory);
 		try {
@@ -185,12 +233,46 @@ public class ShapefileImporter implements Constants {
 				
 				monitor.begin(dbaseFileHeader.getNumRecords());
 				try {
+					if (importThreads > 0) {
+						importPipelined(shpReader, dbfReader, layer, fieldsName, counted);
+						return addedCount[0];
+					}
 					Record record;
 					Geometry geometry;
 					Object[] values;
                     ArrayList<Object> fields = new ArrayList<Object>();
 					int recordCounter = 0;
 					int filterCounter = 0;
+					String source = null;
+					ArrayList<PendingRecord> pending = hilbertBufferSize > 0 ? new ArrayList<PendingRecord>() : null;
+					Envelope bounds = new Envelope(shpReader.getHeader().minX(), shpReader.getHeader().maxX(),
+							shpReader.getHeader().minY(), shpReader.getHeader().maxY());
+					if (resumable) {
+						File shpFile = new File(dataset);
+						if (!shpFile.isFile()) {
+							shpFile = new File(dataset + ".shp");
+						}
+						// for a zipped shapefile this is the archive
+						source = ImportCheckpoint.fingerprint(shpFile);
+						long position;
+						tx = database.beginTx();
+						try {
+							position = ImportCheckpoint.getPosition(layer.getLayerNode(), source);
+							tx.success();
+						} finally {
+							tx.close();
+						}
+						if (position > 0) {
+							log("info | resuming import of " + source + " after " + position + " records");
+						}
+						// the records are read sequentially, but skipped without decoding
+						while (recordCounter < position && shpReader.hasNext() && dbfReader.hasNext()) {
+							shpReader.nextRecord();
+							dbfReader.skip();
+							recordCounter++;
+						}
+						monitor.worked(recordCounter);
+					}
 					while (shpReader.hasNext() && dbfReader.hasNext()) {
 						tx = database.beginTx();
 						try {
@@ -200,20 +282,23 @@ public class ShapefileImporter implements Constants {
 									record = shpReader.nextRecord();
 									recordCounter++;
 									committedSinceLastNotification++;
+									// always read the attributes, so they stay aligned with the shapes
+									values = dbfReader.readEntry();
 									try {
                                         fields.clear();
 										geometry = (Geometry) record.shape();
 										if (filterEnvelope == null || filterEnvelope.intersects(geometry.getEnvelopeInternal())) {
-											values = dbfReader.readEntry();
 											fields.add(recordCounter);
 											Collections.addAll(fields, values);
 											if (geometry.isEmpty()) {
 												log("warn | found empty geometry in record " + recordCounter);
+											} else if (pending != null) {
+												pending.add(new PendingRecord(geometry, fields.toArray(), bounds));
 											} else {
 												// TODO check geometry.isValid()
 												// ?
 												SpatialDatabaseRecord spatial_record = layer.add(geometry, fieldsName, fields.toArray(values));
-												added.add(spatial_record.getGeomNode());
+												counted.accept(spatial_record.getGeomNode());
 											}
 										} else {
 											filterCounter ++;
@@ -225,6 +310,9 @@ public class ShapefileImporter implements Constants {
 								}
 							}
 							monitor.worked(committedSinceLastNotification);
+							if (source != null && pending == null) {
+								ImportCheckpoint.setPosition(layer.getLayerNode(), source, recordCounter);
+							}
 							tx.success();
 
 							log("info | inserted geometries: " + (recordCounter-filterCounter));
@@ -236,6 +324,18 @@ public class ShapefileImporter implements Constants {
 						} finally {
 							tx.close();
 						}
+						if (pending != null && (pending.size() >= hilbertBufferSize || !(shpReader.hasNext() && dbfReader.hasNext()))) {
+							addInHilbertOrder(layer, fieldsName, pending, counted, source, recordCounter);
+						}
+					}
+					if (source != null) {
+						tx = database.beginTx();
+						try {
+							ImportCheckpoint.clear(layer.getLayerNode());
+							tx.success();
+						} finally {
+							tx.close();
+						}
 					}
 				} finally {
 					monitor.done();
@@ -249,12 +349,309 @@ public class ShapefileImporter implements Constants {
 
 		long stopTime = System.currentTimeMillis();
 		log("info | elapsed time in seconds: " + (1.0 * (stopTime - startTime) / 1000));
-		return added;
+		return addedCount[0];
 	}
 	
 	
 	// Private methods
+
+	/**
+	 * A record read from the shapefile, waiting to be added in Hilbert curve
+	 * order of its envelope centre.
+	 */
+	private static class PendingRecord {
+		private final Geometry geometry;
+		private final Object[] fields;
+		private final long hilbert;
+
+		PendingRecord(Geometry geometry, Object[] fields, Envelope bounds) {
+			this.geometry = geometry;
+			this.fields = fields;
+			Envelope envelope = geometry.getEnvelopeInternal();
+			this.hilbert = HilbertCurve.index((envelope.getMinX() + envelope.getMaxX()) / 2,
+					(envelope.getMinY() + envelope.getMaxY()) / 2, bounds.getMinX(), bounds.getMinY(), bounds.getMaxX(),
+					bounds.getMaxY());
+		}
+	}
+
+	/**
+	 * Add the buffered records sorted along the Hilbert curve, so that their
+	 * nodes and property records are created close together in the store.
+	 * Records keep their original ID. When resuming is enabled the whole run
+	 * is committed together with the checkpoint, since a partly written run is
+	 * not a prefix of the file.
+	 */
+	private void addInHilbertOrder(EditableLayerImpl layer, String[] fieldsName, ArrayList<PendingRecord> pending,
+			Consumer<Node> added, String source, int recordCounter) {
+		Collections.sort(pending, new Comparator<PendingRecord>() {
+			public int compare(PendingRecord a, PendingRecord b) {
+				return Long.compare(a.hilbert, b.hilbert);
+			}
+		});
+		int chunk = source == null ? commitInterval : pending.size();
+		for (int start = 0; start < pending.size(); start += chunk) {
+			Transaction tx = database.beginTx();
+			try {
+				int end = Math.min(pending.size(), start + chunk);
+				for (int i = start; i < end; i++) {
+					PendingRecord record = pending.get(i);
+					added.accept(layer.add(record.geometry, fieldsName, record.fields).getGeomNode());
+				}
+				if (source != null && end == pending.size()) {
+					ImportCheckpoint.setPosition(layer.getLayerNode(), source, recordCounter);
+				}
+				tx.success();
+			} finally {
+				tx.close();
+			}
+		}
+		pending.clear();
+	}
 	
+	/**
+	 * A batch of records on its way through the pipelined import. The reader
+	 * fills in the decoded shapes and attributes, and an encoder thread
+	 * replaces them by the properties of the geometry nodes to create.
+	 */
+	private static class RecordBatch {
+		private final ArrayList<Geometry> geometries = new ArrayList<Geometry>();
+		private final ArrayList<Object[]> fields = new ArrayList<Object[]>();
+		private final ArrayList<Map<String, Object>> encoded = new ArrayList<Map<String, Object>>();
+		private int read = 0;
+		private int filtered = 0;
+	}
+
+	private static final Future<RecordBatch> END_OF_BATCHES = CompletableFuture.completedFuture(null);
+
+	/**
+	 * Import the records with a pipeline of threads. The shapefile readers
+	 * share one buffer between records, so shapes and attributes are read in
+	 * file order on a reader thread. Batches of records are then filtered and
+	 * encoded by a pool of encoder threads, and the geometry nodes are
+	 * created on the calling thread, one transaction per batch, still in file
+	 * order. Only the ids of the new nodes are kept, and once the last batch
+	 * is committed they are all added to the index at once, which bulk loads
+	 * an empty R-tree.
+	 */
+	private void importPipelined(final ShapefileReader shpReader, final DbaseFileReader dbfReader,
+			final EditableLayerImpl layer, final String[] fieldsName, Consumer<Node> added) throws IOException {
+		final GeometryEncoder prototype = layer.getGeometryEncoder();
+		final ExecutorService encoders = Executors.newFixedThreadPool(importThreads);
+		final BlockingQueue<Future<RecordBatch>> batches = new ArrayBlockingQueue<Future<RecordBatch>>(importThreads * 4);
+		final AtomicBoolean cancelled = new AtomicBoolean(false);
+		Thread reader = new Thread(() -> {
+			Future<RecordBatch> last = END_OF_BATCHES;
+			int recordCounter = 0;
+			try {
+				while (!cancelled.get() && shpReader.hasNext() && dbfReader.hasNext()) {
+					final RecordBatch batch = new RecordBatch();
+					while (batch.read < commitInterval && shpReader.hasNext() && dbfReader.hasNext()) {
+						Record record = shpReader.nextRecord();
+						Object[] values = dbfReader.readEntry();
+						recordCounter++;
+						batch.read++;
+						try {
+							batch.geometries.add((Geometry) record.shape());
+							Object[] fields = new Object[values.length + 1];
+							fields[0] = recordCounter;
+							System.arraycopy(values, 0, fields, 1, values.length);
+							batch.fields.add(fields);
+						} catch (IllegalArgumentException e) {
+							// org.geotools.data.shapefile.shp.ShapefileReader.Record.shape() can throw this exception
+							log("warn | found invalid geometry: index=" + recordCounter, e);
+						}
+					}
+					batches.put(encoders.submit(() -> encodeBatch(prototype, layer, fieldsName, batch)));
+				}
+			} catch (InterruptedException e) {
+				return;
+			} catch (Throwable e) {
+				CompletableFuture<RecordBatch> failed = new CompletableFuture<RecordBatch>();
+				failed.completeExceptionally(e);
+				last = failed;
+			}
+			try {
+				batches.put(last);
+			} catch (InterruptedException e) {
+				// the import was cancelled
+			}
+		}, "shp-reader");
+		reader.setDaemon(true);
+		reader.start();
+
+		int recordCounter = 0;
+		int filterCounter = 0;
+		long[] geomNodeIds = new long[1024];
+		int geomNodeCount = 0;
+		try {
+			while (true) {
+				RecordBatch batch = batches.take().get();
+				if (batch == null) {
+					break;
+				}
+				ArrayList<Node> created = new ArrayList<Node>(batch.encoded.size());
+				try (Transaction tx = database.beginTx()) {
+					for (Map<String, Object> properties : batch.encoded) {
+						created.add(layer.addEncodedGeomNode(properties));
+					}
+					tx.success();
+				}
+				if (geomNodeCount + created.size() > geomNodeIds.length) {
+					geomNodeIds = Arrays.copyOf(geomNodeIds, Math.max(geomNodeIds.length * 2, geomNodeCount + created.size()));
+				}
+				for (Node node : created) {
+					geomNodeIds[geomNodeCount++] = node.getId();
+				}
+				created.forEach(added);
+				recordCounter += batch.read;
+				filterCounter += batch.filtered;
+				monitor.worked(batch.read);
+				log("info | inserted geometries: " + (recordCounter - filterCounter));
+			}
+		} catch (InterruptedException e) {
+			throw new SpatialDatabaseException("Interrupted while importing shapefile", e);
+		} catch (ExecutionException e) {
+			throw new SpatialDatabaseException("Failed to read or encode shapefile records", e.getCause());
+		} finally {
+			cancelled.set(true);
+			encoders.shutdownNow();
+			reader.interrupt();
+			batches.clear();
+			try {
+				reader.join(10000);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		layer.addGeometryNodes(geomNodeIds, geomNodeCount);
+		log("info | bulk loaded index with " + geomNodeCount + " geometries");
+		if (filterCounter > 0) {
+			log("info | ignored " + filterCounter + "/" + recordCounter + " geometries outside filter envelope: "
+					+ filterEnvelope);
+		}
+	}
+
+	/**
+	 * Filter and encode a batch of records on an encoder thread. Each batch
+	 * uses its own copy of the geometry encoder of the layer, since encoders
+	 * are not required to be thread safe. The record ID is the position of
+	 * the record in the file, as in the sequential import.
+	 */
+	private RecordBatch encodeBatch(GeometryEncoder prototype, EditableLayerImpl layer, String[] fieldsName,
+			RecordBatch batch) throws Exception {
+		GeometryEncoder encoder = prototype.getClass().newInstance();
+		if (prototype instanceof Configurable) {
+			((Configurable) encoder).setConfiguration(((Configurable) prototype).getConfiguration());
+		}
+		encoder.init(layer);
+		for (int i = 0; i < batch.geometries.size(); i++) {
+			Geometry geometry = batch.geometries.get(i);
+			Object[] fields = batch.fields.get(i);
+			if (filterEnvelope != null && !filterEnvelope.intersects(geometry.getEnvelopeInternal())) {
+				batch.filtered++;
+				continue;
+			}
+			if (geometry.isEmpty()) {
+				log("warn | found empty geometry in record " + fields[0]);
+				continue;
+			}
+			EncodedProperties properties = new EncodedProperties();
+			for (int f = 0; f < fieldsName.length && f < fields.length; f++) {
+				if (fieldsName[f] != null && fields[f] != null) {
+					properties.setProperty(fieldsName[f], fields[f]);
+				}
+			}
+			encoder.encodeGeometry(geometry, properties);
+			batch.encoded.add(properties.properties);
+		}
+		batch.geometries.clear();
+		batch.fields.clear();
+		return batch;
+	}
+
+	/**
+	 * Holds the properties written by a geometry encoder on an encoder
+	 * thread, until the writer copies them to a new node.
+	 */
+	private static class EncodedProperties implements PropertyContainer {
+		private final LinkedHashMap<String, Object> properties = new LinkedHashMap<String, Object>();
+
+		public GraphDatabaseService getGraphDatabase() {
+			return null;
+		}
+
+		public boolean hasProperty(String key) {
+			return properties.containsKey(key);
+		}
+
+		public Object getProperty(String key) {
+			if (!properties.containsKey(key)) {
+				throw new NotFoundException("No property '" + key + "'");
+			}
+			return properties.get(key);
+		}
+
+		public Object getProperty(String key, Object defaultValue) {
+			return properties.containsKey(key) ? properties.get(key) : defaultValue;
+		}
+
+		public void setProperty(String key, Object value) {
+			properties.put(key, value);
+		}
+
+		public Object removeProperty(String key) {
+			return properties.remove(key);
+		}
+
+		public Iterable<String> getPropertyKeys() {
+			return properties.keySet();
+		}
+
+		public Map<String, Object> getProperties(String... keys) {
+			LinkedHashMap<String, Object> result = new LinkedHashMap<String, Object>();
+			for (String key : keys) {
+				if (properties.containsKey(key)) {
+					result.put(key, properties.get(key));
+				}
+			}
+			return result;
+		}
+
+		public Map<String, Object> getAllProperties() {
+			return new LinkedHashMap<String, Object>(properties);
+		}
+	}
+
+	/**
+	 * Open the shapefile at the given path, with or without the .shp suffix.
+	 * A path to a .zip archive opens the first shapefile inside it, reading
+	 * it directly from the archive without extracting it to disk.
+	 */
+	private ShpFiles openShapefile(String dataset) throws IOException {
+		if (dataset.toLowerCase().endsWith(".zip")) {
+			File zip = new File(dataset);
+			try (ZipFile zipFile = new ZipFile(zip)) {
+				Enumeration<? extends ZipEntry> entries = zipFile.entries();
+				while (entries.hasMoreElements()) {
+					ZipEntry entry = entries.nextElement();
+					if (!entry.isDirectory() && entry.getName().toLowerCase().endsWith(".shp")) {
+						return new ShpFiles(new URL("jar:" + zip.toURI() + "!/" + entry.getName()));
+					}
+				}
+			}
+			throw new IllegalArgumentException("No shapefile found in the archive '" + dataset + "'");
+		}
+		try {
+			return new ShpFiles(new File(dataset));
+		} catch (Exception e) {
+			try {
+				return new ShpFiles(new File(dataset + ".shp"));
+			} catch (Exception e2) {
+				throw new IllegalArgumentException("Failed to access the shapefile at either '" + dataset + "' or '" + dataset + ".shp'", e);
+			}
+		}
+	}
+
 	private CoordinateReferenceSystem readCRS(ShpFiles shpFiles, ShapefileReader shpReader) {
 		try {
             PrjFileReader prjReader = new PrjFileReader(shpFiles.getReadChannel(ShpFileType.PRJ, shpReader));
@@ -292,4 +689,38 @@ public class ShapefileImporter implements Constants {
 	public void setFilterEnvelope(Envelope filterEnvelope) {
 		this.filterEnvelope = filterEnvelope;
 	}
+
+	/**
+	 * Buffer up to the given number of records and create their geometry
+	 * nodes in Hilbert curve order of the envelope centres, instead of file
+	 * order. Spatially adjacent features then share store pages, which helps
+	 * the page cache for regional queries. Each buffer is sorted on its own,
+	 * so larger buffers give better locality at the cost of memory. Zero, the
+	 * default, keeps file order.
+	 */
+	public void setHilbertOrder(int bufferSize) {
+		this.hilbertBufferSize = bufferSize;
+	}
+
+	/**
+	 * Record the number of records imported on the layer node with every
+	 * commit, and if the same shapefile is imported into the layer again after
+	 * a crash or restart, skip the records already imported. Only the nodes
+	 * added after resuming are returned.
+	 */
+	public void setResumable(boolean resumable) {
+		this.resumable = resumable;
+	}
+
+	/**
+	 * Import with a pipeline: a reader thread, the given number of threads
+	 * filtering and encoding the geometries, and the calling thread creating
+	 * the nodes in batches of the commit interval. All nodes are added to the
+	 * index at the end, which bulk loads an empty index. Zero, the default,
+	 * imports on the calling thread only. Cannot be combined with resumable or
+	 * Hilbert ordered imports.
+	 */
+	public void setImportThreads(int threads) {
+		this.importThreads = threads;
+	}
 }
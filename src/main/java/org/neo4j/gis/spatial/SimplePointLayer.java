@@ -55,12 +55,12 @@ public class SimplePointLayer extends EditableLayerImpl {
 	public List<GeoPipeFlow> findClosestPointsTo(Coordinate coordinate, int numberOfItemsToFind) {
 		return GeoPipeline
 			.startNearestNeighborLatLonSearch(this, coordinate, 2 * numberOfItemsToFind)
-			.sort("OrthodromicDistance").next(numberOfItemsToFind);
+			.sort("OrthodromicDistance", numberOfItemsToFind).toList();
 	}
 
 	public List<GeoPipeFlow> findClosestPointsTo(Coordinate coordinate) {
 		return GeoPipeline
 			.startNearestNeighborLatLonSearch(this, coordinate, 2 * LIMIT_RESULTS)
-			.sort("OrthodromicDistance").next(LIMIT_RESULTS);
+			.sort("OrthodromicDistance", LIMIT_RESULTS).toList();
 	}
 }
\ No newline at end of file
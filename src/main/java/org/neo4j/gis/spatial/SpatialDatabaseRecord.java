@@ -49,6 +49,10 @@ public class SpatialDatabaseRecord implements Constants, SpatialRecord {
 	public Node getGeomNode() {
 		return geomNode;
 	}
+
+	public Layer getLayer() {
+		return layer;
+	}
 	
 	/**
 	 * This method returns a simple integer representation of the geometry. Some
@@ -0,0 +1,670 @@
+/**
+ * Copyright (c) 2010-2013 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.gis.spatial;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+import org.json.simple.JSONValue;
+import org.json.simple.parser.ContentHandler;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+import org.neo4j.gis.spatial.rtree.Listener;
+import org.neo4j.gis.spatial.rtree.NullListener;
+import org.neo4j.gis.spatial.utilities.CompressedInput;
+import org.neo4j.gis.spatial.utilities.CompressedInput.CountingInputStream;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.LineString;
+import com.vividsolutions.jts.geom.LinearRing;
+import com.vividsolutions.jts.geom.Point;
+import com.vividsolutions.jts.geom.Polygon;
+import com.vividsolutions.jts.io.WKTReader;
+
+/**
+ * Imports features from GeoJSON and from CSV files with a WKT geometry
+ * column. Files are streamed: GeoJSON is read token by token, so only one
+ * feature at a time is held in memory, whether the file is a
+ * FeatureCollection or has one feature per line (newline delimited GeoJSON).
+ * Geometry nodes are created in transactions of the commit interval, and
+ * only their ids are kept until the whole file is read, when they are all
+ * added to the layer index at once, which bulk loads an empty index. Files
+ * may be compressed with gzip or bzip2.
+ */
+public class StreamingFeatureImporter implements Constants {
+
+	private static final Logger LOG = Logger.getLogger(StreamingFeatureImporter.class.getName());
+
+	/**
+	 * How far the format of a GeoJSON file is looked at before it is parsed.
+	 */
+	private static final int LOOKAHEAD = 1024 * 1024;
+
+	/**
+	 * Marks the 'features' array of a FeatureCollection on the parser stack.
+	 */
+	private static final Object FEATURES = new Object();
+
+	private final GraphDatabaseService database;
+	private final SpatialDatabaseService spatialDatabase;
+	private final Listener monitor;
+	private final int commitInterval;
+	private Charset charset = Charset.forName("UTF-8");
+	private char delimiter = ',';
+	private String wktColumn = "wkt";
+
+	public StreamingFeatureImporter(GraphDatabaseService database, Listener monitor, int commitInterval) {
+		if (commitInterval < 1) {
+			throw new IllegalArgumentException("commitInterval must be > 0");
+		}
+		this.database = database;
+		this.spatialDatabase = new SpatialDatabaseService(database);
+		this.monitor = monitor == null ? new NullListener() : monitor;
+		this.commitInterval = commitInterval;
+	}
+
+	public StreamingFeatureImporter(GraphDatabaseService database) {
+		this(database, null, 1000);
+	}
+
+	public void setCharset(Charset charset) {
+		this.charset = charset;
+	}
+
+	/**
+	 * Set the field delimiter of CSV files, by default a comma.
+	 */
+	public void setDelimiter(char delimiter) {
+		this.delimiter = delimiter;
+	}
+
+	/**
+	 * Set the name of the CSV column holding the geometry as WKT, by default
+	 * 'wkt'. The name is matched ignoring case.
+	 */
+	public void setWKTColumn(String wktColumn) {
+		this.wktColumn = wktColumn;
+	}
+
+	public int importGeoJSON(String path, String layerName) throws IOException {
+		return importGeoJSON(path, getOrCreateLayer(layerName), node -> {
+		});
+	}
+
+	/**
+	 * Import a GeoJSON file, passing each new geometry node to the callback.
+	 * 
+	 * @return the number of geometries added
+	 */
+	public int importGeoJSON(String path, EditableLayerImpl layer, Consumer<Node> added) throws IOException {
+		FeatureWriter writer = new FeatureWriter(layer, added, new File(path));
+		try {
+			FeatureHandler handler = new FeatureHandler(writer, layer.getGeometryFactory());
+			try (BufferedReader reader = writer.open()) {
+				JSONParser parser = new JSONParser();
+				if (isLineDelimited(reader)) {
+					String line;
+					while ((line = reader.readLine()) != null) {
+						if (line.trim().length() > 0) {
+							parser.parse(line, handler);
+						}
+					}
+				} else {
+					parser.parse(reader, handler);
+				}
+			} catch (ParseException e) {
+				throw new SpatialDatabaseException("Failed to parse GeoJSON file '" + path + "' at position "
+						+ e.getPosition() + ": " + e, e);
+			}
+			return writer.finish();
+		} finally {
+			writer.close();
+		}
+	}
+
+	public int importCSV(String path, String layerName) throws IOException {
+		return importCSV(path, getOrCreateLayer(layerName), node -> {
+		});
+	}
+
+	/**
+	 * Import a CSV file with a header row, passing each new geometry node to
+	 * the callback. The geometry is read from the WKT column, and all other
+	 * non-empty columns become properties. Integer and decimal values are
+	 * stored as numbers, except integers with leading zeros, like postal
+	 * codes.
+	 * 
+	 * @return the number of geometries added
+	 */
+	public int importCSV(String path, EditableLayerImpl layer, Consumer<Node> added) throws IOException {
+		FeatureWriter writer = new FeatureWriter(layer, added, new File(path));
+		try (BufferedReader reader = writer.open()) {
+			CSVReader csv = new CSVReader(reader, delimiter);
+			List<String> header = csv.readRecord();
+			if (header == null) {
+				throw new IllegalArgumentException("The CSV file '" + path + "' is empty");
+			}
+			int geometryColumn = -1;
+			for (int i = 0; i < header.size(); i++) {
+				if (header.get(i).trim().equalsIgnoreCase(wktColumn)) {
+					geometryColumn = i;
+				}
+			}
+			if (geometryColumn < 0) {
+				throw new IllegalArgumentException("No WKT column '" + wktColumn + "' in the header of '" + path + "': " + header);
+			}
+			WKTReader wktReader = new WKTReader(layer.getGeometryFactory());
+			LinkedHashMap<String, Object> properties = new LinkedHashMap<String, Object>();
+			List<String> record;
+			int row = 1;
+			while ((record = csv.readRecord()) != null) {
+				row++;
+				if (record.size() == 1 && record.get(0).isEmpty()) {
+					continue;
+				}
+				if (record.size() <= geometryColumn || record.get(geometryColumn).trim().isEmpty()) {
+					writer.skip("no geometry in row " + row);
+					continue;
+				}
+				Geometry geometry;
+				try {
+					geometry = wktReader.read(record.get(geometryColumn));
+				} catch (com.vividsolutions.jts.io.ParseException e) {
+					writer.skip("invalid WKT in row " + row + ": " + e.getMessage());
+					continue;
+				}
+				properties.clear();
+				for (int i = 0; i < record.size() && i < header.size(); i++) {
+					if (i != geometryColumn && record.get(i).length() > 0) {
+						properties.put(header.get(i).trim(), parseValue(record.get(i)));
+					}
+				}
+				writer.add(geometry, properties);
+			}
+			return writer.finish();
+		} finally {
+			writer.close();
+		}
+	}
+
+	private EditableLayerImpl getOrCreateLayer(String layerName) {
+		return (EditableLayerImpl) spatialDatabase.getOrCreateLayer(layerName, WKBGeometryEncoder.class,
+				EditableLayerImpl.class);
+	}
+
+	/**
+	 * Newline delimited GeoJSON has one complete JSON value on each line, so
+	 * its first value ends before the first line break. A FeatureCollection
+	 * is parsed as one document, whether or not it is minified onto a single
+	 * line, and so is a Feature or geometry spread over several lines. The
+	 * first value is scanned character by character without building it, and
+	 * the reader is reset to where it started.
+	 */
+	static boolean isLineDelimited(BufferedReader reader) throws IOException {
+		reader.mark(LOOKAHEAD);
+		try {
+			int depth = 0;
+			boolean inString = false;
+			boolean escaped = false;
+			StringBuilder string = null;
+			String key = null;
+			String valueKey = null;
+			String type = null;
+			for (int read = 0; read < LOOKAHEAD; read++) {
+				int c = reader.read();
+				if (c < 0) {
+					return false;
+				} else if (inString) {
+					if (escaped) {
+						escaped = false;
+					} else if (c == '\\') {
+						escaped = true;
+					} else if (c == '"') {
+						inString = false;
+						if (string != null && valueKey == null) {
+							// only the keys and values of the outermost object matter
+							key = string.toString();
+							if (key.equals("features")) {
+								return false;
+							}
+						} else if (string != null && valueKey.equals("type")) {
+							type = string.toString();
+							if (type.equals("FeatureCollection")) {
+								return false;
+							}
+						}
+						string = null;
+						continue;
+					}
+					if (string != null) {
+						string.append((char) c);
+					}
+				} else if (c == '"') {
+					inString = true;
+					string = depth == 1 ? new StringBuilder() : null;
+				} else if (c == '{' || c == '[') {
+					if (depth == 0 && c == '[') {
+						return false;
+					}
+					depth++;
+					valueKey = null;
+				} else if (c == '}' || c == ']') {
+					depth--;
+					if (depth == 0) {
+						return true;
+					}
+				} else if (c == ':' && depth == 1) {
+					valueKey = key;
+					key = null;
+				} else if (c == ',' && depth == 1) {
+					valueKey = null;
+				} else if (c == '\n' || c == '\r') {
+					if (depth > 0) {
+						return false;
+					}
+				} else if (depth == 0 && !Character.isWhitespace(c)) {
+					return false;
+				}
+			}
+			// a very long first line, which is a single feature if it has a type
+			return type != null;
+		} finally {
+			reader.reset();
+		}
+	}
+
+	private static final Pattern INTEGER = Pattern.compile("-?(0|[1-9][0-9]{0,17})");
+	private static final Pattern DECIMAL = Pattern.compile("-?(0|[1-9][0-9]*)(\\.[0-9]+)?([eE][-+]?[0-9]+)?");
+
+	static Object parseValue(String value) {
+		if (INTEGER.matcher(value).matches()) {
+			return Long.parseLong(value);
+		} else if (DECIMAL.matcher(value).matches()) {
+			return Double.parseDouble(value);
+		} else {
+			return value;
+		}
+	}
+
+	/**
+	 * Creates the geometry nodes in transactions of the commit interval, and
+	 * adds all of them to the index when the file is finished.
+	 */
+	private class FeatureWriter {
+		private final EditableLayerImpl layer;
+		private final Consumer<Node> added;
+		private final File file;
+		private final ArrayList<Node> batch = new ArrayList<Node>();
+		private long[] geomNodeIds = new long[1024];
+		private final LinkedHashSet<String> propertyNames = new LinkedHashSet<String>();
+		private CountingInputStream source;
+		private Transaction tx = null;
+		private int count = 0;
+		private int skipped = 0;
+		private int reportedKB = 0;
+
+		private FeatureWriter(EditableLayerImpl layer, Consumer<Node> added, File file) {
+			this.layer = layer;
+			this.added = added;
+			this.file = file;
+			monitor.begin((int) (file.length() / 1024));
+		}
+
+		private BufferedReader open() throws IOException {
+			source = new CountingInputStream(new FileInputStream(file));
+			Reader reader = new InputStreamReader(CompressedInput.open(source, file.getName()), charset);
+			return new BufferedReader(reader, 64 * 1024);
+		}
+
+		private void add(Geometry geometry, Map<String, Object> properties) {
+			if (tx == null) {
+				tx = database.beginTx();
+			}
+			String[] names = properties.keySet().toArray(new String[properties.size()]);
+			batch.add(layer.addGeomNode(geometry, names, properties.values().toArray()));
+			count++;
+			propertyNames.addAll(properties.keySet());
+			if (batch.size() >= commitInterval) {
+				commit();
+			}
+		}
+
+		private void skip(String reason) {
+			if (skipped++ < 10) {
+				LOG.warning("Skipping " + reason);
+			}
+		}
+
+		private void commit() {
+			if (tx != null) {
+				tx.success();
+				tx.close();
+				tx = null;
+			}
+			if (geomNodeIds.length < count) {
+				geomNodeIds = Arrays.copyOf(geomNodeIds, Math.max(geomNodeIds.length * 2, count));
+			}
+			int id = count - batch.size();
+			for (Node node : batch) {
+				geomNodeIds[id++] = node.getId();
+				added.accept(node);
+			}
+			batch.clear();
+			int kb = (int) (source.getCount() / 1024);
+			monitor.worked(kb - reportedKB);
+			reportedKB = kb;
+		}
+
+		private int finish() {
+			commit();
+			layer.addGeometryNodes(geomNodeIds, count);
+			try (Transaction tx = database.beginTx()) {
+				layer.mergeExtraPropertyNames(propertyNames.toArray(new String[propertyNames.size()]));
+				tx.success();
+			}
+			if (skipped > 0) {
+				LOG.warning("Skipped " + skipped + " features without a valid geometry");
+			}
+			return count;
+		}
+
+		private void close() {
+			if (tx != null) {
+				tx.close();
+				tx = null;
+			}
+			monitor.done();
+		}
+	}
+
+	/**
+	 * Builds one feature at a time from the JSON tokens. Objects in the
+	 * 'features' array of a top-level FeatureCollection are written as soon
+	 * as they end, instead of being added to the array, so the collection
+	 * itself is never held in memory. A top-level Feature or geometry, as
+	 * found on each line of newline delimited GeoJSON, is written when it
+	 * ends.
+	 */
+	private class FeatureHandler implements ContentHandler {
+		private final FeatureWriter writer;
+		private final GeometryFactory geometryFactory;
+		private final ArrayDeque<Object> stack = new ArrayDeque<Object>();
+		private final ArrayDeque<String> keys = new ArrayDeque<String>();
+		private final LinkedHashMap<String, Object> properties = new LinkedHashMap<String, Object>();
+
+		private FeatureHandler(FeatureWriter writer, GeometryFactory geometryFactory) {
+			this.writer = writer;
+			this.geometryFactory = geometryFactory;
+		}
+
+		public void startJSON() {
+			stack.clear();
+			keys.clear();
+		}
+
+		public void endJSON() {
+		}
+
+		public boolean startObject() {
+			stack.push(new LinkedHashMap<String, Object>());
+			return true;
+		}
+
+		@SuppressWarnings("unchecked")
+		public boolean endObject() {
+			Map<String, Object> object = (Map<String, Object>) stack.pop();
+			if (stack.isEmpty()) {
+				Object type = object.get("type");
+				if ("Feature".equals(type)) {
+					writeFeature(object);
+				} else if (type != null && !"FeatureCollection".equals(type)) {
+					LinkedHashMap<String, Object> feature = new LinkedHashMap<String, Object>();
+					feature.put("geometry", object);
+					writeFeature(feature);
+				}
+			} else if (stack.peek() == FEATURES) {
+				writeFeature(object);
+			} else {
+				addValue(object);
+			}
+			return true;
+		}
+
+		public boolean startObjectEntry(String key) {
+			keys.push(key);
+			return true;
+		}
+
+		public boolean endObjectEntry() {
+			keys.pop();
+			return true;
+		}
+
+		public boolean startArray() {
+			if (stack.size() == 1 && "features".equals(keys.peek())) {
+				stack.push(FEATURES);
+			} else {
+				stack.push(new ArrayList<Object>());
+			}
+			return true;
+		}
+
+		public boolean endArray() {
+			Object array = stack.pop();
+			if (array != FEATURES) {
+				addValue(array);
+			}
+			return true;
+		}
+
+		public boolean primitive(Object value) {
+			addValue(value);
+			return true;
+		}
+
+		@SuppressWarnings("unchecked")
+		private void addValue(Object value) {
+			Object container = stack.peek();
+			if (container instanceof Map) {
+				((Map<String, Object>) container).put(keys.peek(), value);
+			} else if (container instanceof List) {
+				((List<Object>) container).add(value);
+			}
+		}
+
+		@SuppressWarnings("unchecked")
+		private void writeFeature(Map<String, Object> feature) {
+			Geometry geometry;
+			try {
+				geometry = toGeometry((Map<String, Object>) feature.get("geometry"));
+			} catch (RuntimeException e) {
+				writer.skip("invalid geometry in feature " + feature.get("id") + ": " + e);
+				return;
+			}
+			if (geometry == null) {
+				writer.skip("feature " + feature.get("id") + " without geometry");
+				return;
+			}
+			properties.clear();
+			if (feature.get("properties") instanceof Map) {
+				for (Map.Entry<String, Object> property : ((Map<String, Object>) feature.get("properties")).entrySet()) {
+					Object value = property.getValue();
+					if (value instanceof Map || value instanceof List) {
+						// nested values cannot be node properties, so keep them as JSON
+						properties.put(property.getKey(), JSONValue.toJSONString(value));
+					} else if (value != null) {
+						properties.put(property.getKey(), value);
+					}
+				}
+			}
+			if (feature.get("id") != null && !properties.containsKey("id")) {
+				properties.put("id", feature.get("id"));
+			}
+			writer.add(geometry, properties);
+		}
+
+		@SuppressWarnings("unchecked")
+		private Geometry toGeometry(Map<String, Object> geometry) {
+			if (geometry == null) {
+				return null;
+			}
+			String type = (String) geometry.get("type");
+			List<Object> coordinates = (List<Object>) geometry.get("coordinates");
+			switch (type) {
+			case "Point":
+				return geometryFactory.createPoint(toCoordinate(coordinates));
+			case "LineString":
+				return geometryFactory.createLineString(toCoordinates(coordinates));
+			case "Polygon":
+				return toPolygon(coordinates);
+			case "MultiPoint":
+				Point[] points = new Point[coordinates.size()];
+				for (int i = 0; i < points.length; i++) {
+					points[i] = geometryFactory.createPoint(toCoordinate((List<Object>) coordinates.get(i)));
+				}
+				return geometryFactory.createMultiPoint(points);
+			case "MultiLineString":
+				LineString[] lines = new LineString[coordinates.size()];
+				for (int i = 0; i < lines.length; i++) {
+					lines[i] = geometryFactory.createLineString(toCoordinates((List<Object>) coordinates.get(i)));
+				}
+				return geometryFactory.createMultiLineString(lines);
+			case "MultiPolygon":
+				Polygon[] polygons = new Polygon[coordinates.size()];
+				for (int i = 0; i < polygons.length; i++) {
+					polygons[i] = toPolygon((List<Object>) coordinates.get(i));
+				}
+				return geometryFactory.createMultiPolygon(polygons);
+			case "GeometryCollection":
+				List<Object> members = (List<Object>) geometry.get("geometries");
+				Geometry[] geometries = new Geometry[members.size()];
+				for (int i = 0; i < geometries.length; i++) {
+					geometries[i] = toGeometry((Map<String, Object>) members.get(i));
+				}
+				return geometryFactory.createGeometryCollection(geometries);
+			default:
+				throw new IllegalArgumentException("Unknown GeoJSON geometry type: " + type);
+			}
+		}
+
+		@SuppressWarnings("unchecked")
+		private Polygon toPolygon(List<Object> rings) {
+			LinearRing shell = geometryFactory.createLinearRing(toCoordinates((List<Object>) rings.get(0)));
+			LinearRing[] holes = new LinearRing[rings.size() - 1];
+			for (int i = 0; i < holes.length; i++) {
+				holes[i] = geometryFactory.createLinearRing(toCoordinates((List<Object>) rings.get(i + 1)));
+			}
+			return geometryFactory.createPolygon(shell, holes);
+		}
+
+		@SuppressWarnings("unchecked")
+		private Coordinate[] toCoordinates(List<Object> positions) {
+			Coordinate[] coordinates = new Coordinate[positions.size()];
+			for (int i = 0; i < coordinates.length; i++) {
+				coordinates[i] = toCoordinate((List<Object>) positions.get(i));
+			}
+			return coordinates;
+		}
+
+		private Coordinate toCoordinate(List<Object> position) {
+			double x = ((Number) position.get(0)).doubleValue();
+			double y = ((Number) position.get(1)).doubleValue();
+			if (position.size() > 2) {
+				return new Coordinate(x, y, ((Number) position.get(2)).doubleValue());
+			}
+			return new Coordinate(x, y);
+		}
+	}
+
+	/**
+	 * Reads CSV records as defined by RFC 4180: fields may be quoted, quotes
+	 * in quoted fields are doubled, and quoted fields may span lines.
+	 */
+	static class CSVReader {
+		private final Reader reader;
+		private final char delimiter;
+		private int next;
+
+		CSVReader(Reader reader, char delimiter) throws IOException {
+			this.reader = reader;
+			this.delimiter = delimiter;
+			this.next = reader.read();
+		}
+
+		List<String> readRecord() throws IOException {
+			if (next < 0) {
+				return null;
+			}
+			ArrayList<String> record = new ArrayList<String>();
+			StringBuilder field = new StringBuilder();
+			boolean quoted = false;
+			while (next >= 0) {
+				char c = (char) next;
+				next = reader.read();
+				if (quoted) {
+					if (c == '"') {
+						if (next == '"') {
+							field.append('"');
+							next = reader.read();
+						} else {
+							quoted = false;
+						}
+					} else {
+						field.append(c);
+					}
+				} else if (c == '"') {
+					quoted = true;
+				} else if (c == delimiter) {
+					record.add(field.toString());
+					field.setLength(0);
+				} else if (c == '\n' || c == '\r') {
+					if (c == '\r' && next == '\n') {
+						next = reader.read();
+					}
+					break;
+				} else {
+					field.append(c);
+				}
+			}
+			record.add(field.toString());
+			return record;
+		}
+	}
+}
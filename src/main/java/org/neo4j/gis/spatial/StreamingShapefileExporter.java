@@ -0,0 +1,736 @@
+/**
+ * Copyright (c) 2010-2013 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.gis.spatial;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.geotools.data.neo4j.Neo4jFeatureBuilder;
+import org.geotools.data.shapefile.ShapeFileIndexer;
+import org.geotools.data.shapefile.dbf.DbaseFileHeader;
+import org.geotools.data.shapefile.dbf.DbaseFileWriter;
+import org.geotools.data.shapefile.files.ShpFiles;
+import org.geotools.data.shapefile.shp.JTSUtilities;
+import org.geotools.data.shapefile.shp.ShapeHandler;
+import org.geotools.data.shapefile.shp.ShapeType;
+import org.geotools.data.shapefile.shp.ShapefileHeader;
+import org.geotools.filter.text.cql2.CQLException;
+import org.geotools.filter.text.ecql.ECQL;
+import org.geotools.util.NullProgressListener;
+import org.neo4j.gis.spatial.attributes.PropertyMapper;
+import org.neo4j.gis.spatial.encoders.Configurable;
+import org.neo4j.gis.spatial.rtree.EnvelopeDecoder;
+import org.neo4j.gis.spatial.rtree.filter.SearchFilter;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.filter.Filter;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.LineString;
+import com.vividsolutions.jts.geom.MultiLineString;
+import com.vividsolutions.jts.geom.MultiPoint;
+import com.vividsolutions.jts.geom.MultiPolygon;
+import com.vividsolutions.jts.geom.Point;
+import com.vividsolutions.jts.geom.Polygon;
+
+/**
+ * Export a layer to a shapefile by streaming the records straight out of the
+ * layer index, instead of going through a GeoTools feature collection like
+ * the ShapefileExporter does. The index is walked depth first, so the records
+ * are written in R-tree leaf order, and records that are close in the file
+ * are also close in space. Geometries and attributes are read and encoded by
+ * a pool of worker threads, while the calling thread appends the encoded
+ * records to the .shp, .shx and .dbf files in order. A .qix spatial index is
+ * built from the finished shapefile.
+ * <p>
+ * The export can be limited to a bounding box or a CQL filter. Only the index
+ * nodes that intersect the bounding box, or the bounds of the CQL filter, are
+ * visited, so exporting a small region does not scan the whole layer.
+ * <p>
+ * The .dbf file has a NODE_ID column with the id of the geometry node,
+ * followed by one column for each extra property of the layer. The type and
+ * width of these columns depend on the values found, which are only known at
+ * the end, so the rows are spilled to a temporary file and the .dbf is
+ * written when the export is complete.
+ */
+public class StreamingShapefileExporter {
+	private static final int BATCH_SIZE = 1000;
+	private static final int FIELD_LENGTH = 254;
+	private static final byte[] NULL_SHAPE = new byte[4];
+
+	private GraphDatabaseService database;
+	private File exportDir;
+	private int exportThreads;
+	private Charset charset = Charset.forName("UTF-8");
+	private boolean createSpatialIndex = true;
+
+	public StreamingShapefileExporter(GraphDatabaseService database) {
+		this(database, Runtime.getRuntime().availableProcessors());
+	}
+
+	public StreamingShapefileExporter(GraphDatabaseService database, int exportThreads) {
+		this.database = database;
+		this.exportThreads = Math.max(1, exportThreads);
+	}
+
+	public void setExportDir(String dir) {
+		exportDir = (dir == null || dir.length() == 0) ? null : (new File(dir)).getAbsoluteFile();
+	}
+
+	public void setCharset(Charset charset) {
+		this.charset = charset;
+	}
+
+	/**
+	 * Set whether a .qix spatial index should be written next to the
+	 * shapefile. This is enabled by default.
+	 */
+	public void setCreateSpatialIndex(boolean createSpatialIndex) {
+		this.createSpatialIndex = createSpatialIndex;
+	}
+
+	public File exportLayer(String layerName) throws IOException {
+		String fileName = layerName.replace(" ", "-");
+		return exportLayer(layerName, fileName + ".shp");
+	}
+
+	public File exportLayer(String layerName, String fileName) throws IOException {
+		return exportLayer(layerName, new File(fileName));
+	}
+
+	public File exportLayer(String layerName, File file) throws IOException {
+		return export(layerName, file, null, null);
+	}
+
+	/**
+	 * Export only the geometries that intersect the given bounding box.
+	 */
+	public File exportLayer(String layerName, File file, Envelope bbox) throws IOException {
+		return export(layerName, file, bbox, null);
+	}
+
+	/**
+	 * Export only the geometries matching the CQL filter. The index search is
+	 * limited to the bounds of any BBOX or INTERSECTS clause in the filter,
+	 * and the complete filter is evaluated on the worker threads.
+	 */
+	public File exportLayer(String layerName, File file, String cql) throws IOException {
+		try {
+			return export(layerName, file, null, ECQL.toFilter(cql));
+		} catch (CQLException e) {
+			throw new SpatialDatabaseException("CQLException: " + e.getMessage());
+		}
+	}
+
+	private File checkFile(File file) {
+		if (!file.isAbsolute() && exportDir != null) {
+			file = new File(exportDir, file.getPath());
+		}
+		file = file.getAbsoluteFile();
+		if (!file.getName().toLowerCase().endsWith(".shp")) {
+			file = new File(file.getPath() + ".shp");
+		}
+		file.getParentFile().mkdirs();
+		if (file.exists()) {
+			System.out.println("Deleting previous file: " + file);
+			file.delete();
+		}
+		return file;
+	}
+
+	private static File sibling(File shpFile, String extension) {
+		String path = shpFile.getPath();
+		return new File(path.substring(0, path.length() - 4) + extension);
+	}
+
+	private File export(String layerName, File file, Envelope bbox, Filter filter) throws IOException {
+		file = checkFile(file);
+		long startTime = System.currentTimeMillis();
+		int count;
+		try (Transaction tx = database.beginTx()) {
+			Layer layer = new SpatialDatabaseService(database).getLayer(layerName);
+			if (layer == null) {
+				throw new SpatialDatabaseException("No such layer: " + layerName);
+			}
+			LayerExport export = new LayerExport(layer, bbox, filter);
+			count = writeRecords(export, file);
+			writeProjection(layer.getCoordinateReferenceSystem(), sibling(file, ".prj"));
+			tx.success();
+		}
+		try (Writer cpg = new OutputStreamWriter(new FileOutputStream(sibling(file, ".cpg")), "US-ASCII")) {
+			cpg.write(charset.name());
+		}
+		if (createSpatialIndex) {
+			createSpatialIndex(file);
+		}
+		System.out.println("Exported " + count + " geometries from layer '" + layerName + "' to " + file + " in "
+				+ (System.currentTimeMillis() - startTime) / 1000.0 + "s");
+		return file;
+	}
+
+	/**
+	 * Walk the layer index on the calling thread, hand out batches of
+	 * geometry node ids to the workers, and write the encoded batches in the
+	 * order they were submitted. At most two batches per worker are in flight
+	 * at any time, so memory use does not grow with the size of the layer.
+	 */
+	private int writeRecords(final LayerExport export, File file) throws IOException {
+		ExecutorService workers = Executors.newFixedThreadPool(exportThreads);
+		ArrayDeque<Future<RecordBatch>> pending = new ArrayDeque<Future<RecordBatch>>();
+		try (RecordWriter writer = new RecordWriter(file, export)) {
+			long[] ids = new long[BATCH_SIZE];
+			int size = 0;
+			for (Node node : export.layer.getIndex().searchIndex(export.indexFilter())) {
+				if (export.shapeType == null) {
+					export.initShapeType(node);
+				}
+				ids[size++] = node.getId();
+				if (size == ids.length) {
+					final long[] batch = ids;
+					pending.add(workers.submit(() -> encodeBatch(export, batch, batch.length)));
+					ids = new long[BATCH_SIZE];
+					size = 0;
+					while (pending.size() >= exportThreads * 2) {
+						writer.write(pending.poll().get());
+					}
+				}
+			}
+			if (size > 0) {
+				final long[] batch = ids;
+				final int batchSize = size;
+				pending.add(workers.submit(() -> encodeBatch(export, batch, batchSize)));
+			}
+			while (!pending.isEmpty()) {
+				writer.write(pending.poll().get());
+			}
+			return writer.records;
+		} catch (InterruptedException e) {
+			throw new SpatialDatabaseException("Interrupted while exporting shapefile", e);
+		} catch (ExecutionException e) {
+			throw new SpatialDatabaseException("Failed to encode shapefile records", e.getCause());
+		} finally {
+			workers.shutdownNow();
+		}
+	}
+
+	/**
+	 * Read, filter and encode a batch of geometries on a worker thread. Each
+	 * batch uses its own transaction and its own copy of the geometry
+	 * encoder, since encoders are not required to be thread safe.
+	 */
+	private RecordBatch encodeBatch(LayerExport export, long[] ids, int size) throws Exception {
+		GeometryEncoder encoder = export.layer.getGeometryEncoder().getClass().newInstance();
+		if (encoder instanceof Configurable) {
+			((Configurable) encoder).setConfiguration(((Configurable) export.layer.getGeometryEncoder())
+					.getConfiguration());
+		}
+		encoder.init(export.layer);
+		ShapeHandler handler = export.shapeType.getShapeHandler(export.layer.getGeometryFactory());
+		Neo4jFeatureBuilder featureBuilder = export.filter == null ? null : new Neo4jFeatureBuilder(
+				export.featureType, Arrays.asList(export.attributes));
+		RecordBatch batch = new RecordBatch(size);
+		try (Transaction tx = database.beginTx()) {
+			for (int i = 0; i < size; i++) {
+				Node node = database.getNodeById(ids[i]);
+				Geometry geometry = encoder.decodeGeometry(node);
+				if (export.window != null && (geometry == null || !geometry.intersects(export.window))) {
+					continue;
+				}
+				Object[] row = new Object[export.attributes.length + 1];
+				row[0] = ids[i];
+				HashMap<String, Object> properties = new HashMap<String, Object>();
+				for (int a = 0; a < export.attributes.length; a++) {
+					PropertyMapper mapper = export.mappers[a];
+					Object value = mapper == null ? encoder.getAttribute(node, export.attributes[a]) : mapper
+							.map(encoder.getAttribute(node, mapper.from()));
+					if (value != null) {
+						properties.put(export.attributes[a], value);
+					}
+					row[a + 1] = DbfColumn.toDbfValue(value);
+				}
+				if (featureBuilder != null
+						&& !export.filter.evaluate(featureBuilder.buildFeature(Long.toString(ids[i]), geometry,
+								properties))) {
+					continue;
+				}
+				batch.add(encodeShape(export.shapeType, handler, geometry), row);
+			}
+			tx.success();
+		}
+		return batch;
+	}
+
+	/**
+	 * Encode the contents of one .shp record: the shape type followed by the
+	 * shape itself. Geometries that do not fit the shape type of the file are
+	 * written as null shapes, to keep the .dbf rows aligned with the shapes.
+	 */
+	private static byte[] encodeShape(ShapeType shapeType, ShapeHandler handler, Geometry geometry) {
+		if (geometry == null || geometry.isEmpty() || !accepts(shapeType, geometry)) {
+			return NULL_SHAPE;
+		}
+		Geometry shape = JTSUtilities.convertToCollection(geometry, shapeType);
+		ByteBuffer buffer = ByteBuffer.allocate(handler.getLength(shape));
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+		buffer.putInt(shapeType.id);
+		handler.write(buffer, shape);
+		return buffer.array();
+	}
+
+	private static boolean accepts(ShapeType shapeType, Geometry geometry) {
+		if (shapeType == ShapeType.POINT) {
+			return geometry instanceof Point;
+		} else if (shapeType == ShapeType.MULTIPOINT) {
+			return geometry instanceof Point || geometry instanceof MultiPoint;
+		} else if (shapeType == ShapeType.ARC) {
+			return geometry instanceof LineString || geometry instanceof MultiLineString;
+		} else if (shapeType == ShapeType.POLYGON) {
+			return geometry instanceof Polygon || geometry instanceof MultiPolygon;
+		}
+		return false;
+	}
+
+	private static ShapeType getShapeType(Integer geometryType) {
+		switch (geometryType == null ? Constants.GTYPE_GEOMETRY : geometryType) {
+		case Constants.GTYPE_POINT:
+			return ShapeType.POINT;
+		case Constants.GTYPE_MULTIPOINT:
+			return ShapeType.MULTIPOINT;
+		case Constants.GTYPE_LINESTRING:
+		case Constants.GTYPE_MULTILINESTRING:
+			return ShapeType.ARC;
+		case Constants.GTYPE_POLYGON:
+		case Constants.GTYPE_MULTIPOLYGON:
+			return ShapeType.POLYGON;
+		default:
+			return null;
+		}
+	}
+
+	private static void writeProjection(CoordinateReferenceSystem crs, File prjFile) throws IOException {
+		if (crs != null) {
+			try (Writer prj = new OutputStreamWriter(new FileOutputStream(prjFile), "US-ASCII")) {
+				prj.write(crs.toWKT());
+			}
+		}
+	}
+
+	private static void createSpatialIndex(File shpFile) {
+		try {
+			ShapeFileIndexer indexer = new ShapeFileIndexer();
+			indexer.setShapeFileName(new ShpFiles(shpFile));
+			indexer.index(false, new NullProgressListener());
+		} catch (Exception e) {
+			System.err.println("Failed to create spatial index for " + shpFile + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * The state shared by the index walk and the workers for one export.
+	 */
+	private static class LayerExport {
+		private final Layer layer;
+		private final String[] attributes;
+		private final PropertyMapper[] mappers;
+		private final SimpleFeatureType featureType;
+		private final Geometry window;
+		private final Filter filter;
+		private final org.neo4j.gis.spatial.rtree.Envelope searchEnvelope;
+		private ShapeType shapeType;
+
+		private LayerExport(Layer layer, Envelope bbox, Filter filter) {
+			this.layer = layer;
+			this.attributes = layer.getExtraPropertyNames();
+			this.mappers = new PropertyMapper[attributes.length];
+			for (int i = 0; i < attributes.length; i++) {
+				mappers[i] = layer.getPropertyMappingManager().getPropertyMapper(attributes[i]);
+			}
+			this.featureType = Neo4jFeatureBuilder.getTypeFromLayer(layer);
+			this.window = bbox == null ? null : layer.getGeometryFactory().toGeometry(bbox);
+			this.filter = filter;
+			if (bbox != null) {
+				this.searchEnvelope = Utilities.fromJtsToNeo4j(bbox);
+			} else if (filter != null) {
+				this.searchEnvelope = Utilities.extractEnvelopeFromFilter(filter);
+			} else {
+				this.searchEnvelope = null;
+			}
+			this.shapeType = getShapeType(layer.getGeometryType());
+		}
+
+		/**
+		 * Layers of mixed or unknown geometry type take the shape type of the
+		 * first geometry found, since a shapefile has only one shape type.
+		 */
+		private void initShapeType(Node geomNode) {
+			Geometry geometry = layer.getGeometryEncoder().decodeGeometry(geomNode);
+			shapeType = getShapeType(SpatialDatabaseService.convertJtsClassToGeometryType(geometry.getClass()));
+			if (shapeType == null) {
+				throw new SpatialDatabaseException("Cannot export geometries of type " + geometry.getGeometryType()
+						+ " to a shapefile");
+			}
+		}
+
+		private SearchFilter indexFilter() {
+			final EnvelopeDecoder decoder = layer.getGeometryEncoder();
+			return new SearchFilter() {
+				@Override
+				public boolean needsToVisit(org.neo4j.gis.spatial.rtree.Envelope envelope) {
+					return searchEnvelope == null || searchEnvelope.intersects(envelope);
+				}
+
+				@Override
+				public boolean geometryMatches(Node geomNode) {
+					return searchEnvelope == null || searchEnvelope.intersects(decoder.decodeEnvelope(geomNode));
+				}
+			};
+		}
+	}
+
+	private static class RecordBatch {
+		private final ArrayList<byte[]> shapes;
+		private final ArrayList<Object[]> rows;
+
+		private RecordBatch(int size) {
+			this.shapes = new ArrayList<byte[]>(size);
+			this.rows = new ArrayList<Object[]>(size);
+		}
+
+		private void add(byte[] shape, Object[] row) {
+			shapes.add(shape);
+			rows.add(row);
+		}
+	}
+
+	/**
+	 * The type and width of a .dbf column, derived from the values written to
+	 * it, much like GeoTools derives them from the attribute class when
+	 * creating a shapefile. Integers get a numeric column as wide as the
+	 * longest value, other numbers a numeric column with decimals, booleans
+	 * a logical and dates a date column. Text, and columns with values of
+	 * more than one kind, get a character column as wide as the longest value.
+	 */
+	private static class DbfColumn {
+		private static final byte NULL = 0;
+		private static final byte INTEGER = 1;
+		private static final byte DECIMAL = 2;
+		private static final byte LOGICAL = 3;
+		private static final byte DATE = 4;
+		private static final byte TEXT = 5;
+
+		private final Charset charset;
+		private boolean integers = false;
+		private boolean decimals = false;
+		private boolean logicals = false;
+		private boolean dates = false;
+		private boolean texts = false;
+		private int length = 1;
+
+		private DbfColumn(Charset charset) {
+			this.charset = charset;
+		}
+
+		/**
+		 * Numbers, booleans and dates are kept as they are, other values are
+		 * written as text limited to the maximum column width.
+		 */
+		private static Object toDbfValue(Object value) {
+			if (value == null || value instanceof Number || value instanceof Boolean || value instanceof Date) {
+				return value;
+			}
+			String text = value.toString();
+			return text.length() > FIELD_LENGTH ? text.substring(0, FIELD_LENGTH) : text;
+		}
+
+		private static boolean isInteger(Object value) {
+			return value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte;
+		}
+
+		private void write(DataOutputStream out, Object value) throws IOException {
+			if (value == null) {
+				out.writeByte(NULL);
+				return;
+			}
+			if (isInteger(value)) {
+				integers = true;
+				out.writeByte(INTEGER);
+				out.writeLong(((Number) value).longValue());
+			} else if (value instanceof Number) {
+				decimals = true;
+				out.writeByte(DECIMAL);
+				out.writeDouble(((Number) value).doubleValue());
+			} else if (value instanceof Boolean) {
+				logicals = true;
+				out.writeByte(LOGICAL);
+				out.writeBoolean((Boolean) value);
+			} else if (value instanceof Date) {
+				dates = true;
+				out.writeByte(DATE);
+				out.writeLong(((Date) value).getTime());
+			} else {
+				texts = true;
+				out.writeByte(TEXT);
+				out.writeUTF(value.toString());
+			}
+			length = Math.max(length, Math.min(FIELD_LENGTH, value.toString().getBytes(charset).length));
+		}
+
+		private Object read(DataInputStream in) throws IOException {
+			Object value;
+			switch (in.readByte()) {
+			case INTEGER:
+				value = in.readLong();
+				break;
+			case DECIMAL:
+				value = in.readDouble();
+				break;
+			case LOGICAL:
+				value = in.readBoolean();
+				break;
+			case DATE:
+				value = new Date(in.readLong());
+				break;
+			case TEXT:
+				value = in.readUTF();
+				break;
+			default:
+				value = null;
+			}
+			if (getType() == 'C') {
+				return value == null ? "" : value.toString();
+			}
+			return value;
+		}
+
+		private char getType() {
+			int kinds = (integers || decimals ? 1 : 0) + (logicals ? 1 : 0) + (dates ? 1 : 0);
+			if (texts || kinds > 1) {
+				return 'C';
+			} else if (integers || decimals) {
+				return 'N';
+			} else if (logicals) {
+				return 'L';
+			} else if (dates) {
+				return 'D';
+			}
+			return 'C';
+		}
+
+		private void addTo(DbaseFileHeader header, String name) throws IOException {
+			char type = getType();
+			if (type == 'N' && decimals) {
+				header.addColumn(name, 'N', 33, 15);
+			} else if (type == 'L') {
+				header.addColumn(name, 'L', 1, 0);
+			} else if (type == 'D') {
+				header.addColumn(name, 'D', 8, 0);
+			} else {
+				header.addColumn(name, type, length, 0);
+			}
+		}
+	}
+
+	/**
+	 * Appends records to the .shp and .shx files, and the attributes to a
+	 * temporary file. The headers hold the number of records, the file length
+	 * and the bounds, and the .dbf header the column types, which are only
+	 * known at the end, so they are written when the writer is closed.
+	 */
+	private class RecordWriter implements AutoCloseable {
+		private final File dbfFile;
+		private final File rowsFile;
+		private final LayerExport export;
+		private final FileChannel shp;
+		private final FileChannel shx;
+		private final DataOutputStream rows;
+		private final DbfColumn[] columns;
+		private final Envelope bounds = new Envelope();
+		private int records = 0;
+		private long shpLength = 100;
+
+		private RecordWriter(File shpFile, LayerExport export) throws IOException {
+			this.dbfFile = sibling(shpFile, ".dbf");
+			this.rowsFile = File.createTempFile("dbf-rows", ".tmp", shpFile.getParentFile());
+			this.export = export;
+			this.shp = new RandomAccessFile(shpFile, "rw").getChannel();
+			this.shx = new RandomAccessFile(sibling(shpFile, ".shx"), "rw").getChannel();
+			shp.truncate(0);
+			shx.truncate(0);
+			writeFully(shp, ByteBuffer.allocate(100));
+			writeFully(shx, ByteBuffer.allocate(100));
+			this.rows = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(rowsFile)));
+			this.columns = new DbfColumn[export.attributes.length];
+			for (int i = 0; i < columns.length; i++) {
+				columns[i] = new DbfColumn(charset);
+			}
+		}
+
+		private void write(RecordBatch batch) throws IOException {
+			for (int i = 0; i < batch.shapes.size(); i++) {
+				byte[] shape = batch.shapes.get(i);
+				ByteBuffer record = ByteBuffer.allocate(8 + shape.length);
+				record.order(ByteOrder.BIG_ENDIAN);
+				record.putInt(++records);
+				record.putInt(shape.length / 2);
+				record.put(shape);
+				record.flip();
+				writeFully(shp, record);
+
+				ByteBuffer index = ByteBuffer.allocate(8);
+				index.order(ByteOrder.BIG_ENDIAN);
+				index.putInt((int) (shpLength / 2));
+				index.putInt(shape.length / 2);
+				index.flip();
+				writeFully(shx, index);
+				shpLength += 8 + shape.length;
+
+				if (shape.length > NULL_SHAPE.length) {
+					bounds.expandToInclude(readShapeBounds(shape));
+				}
+				Object[] row = batch.rows.get(i);
+				rows.writeLong((Long) row[0]);
+				for (int c = 0; c < columns.length; c++) {
+					columns[c].write(rows, row[c + 1]);
+				}
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			ShapeType shapeType = export.shapeType == null ? ShapeType.NULL : export.shapeType;
+			try {
+				writeHeader(shp, shapeType, (int) (shpLength / 2));
+				writeHeader(shx, shapeType, 50 + 4 * records);
+			} finally {
+				shp.close();
+				shx.close();
+				rows.close();
+			}
+			try {
+				writeDbf();
+			} finally {
+				rowsFile.delete();
+			}
+		}
+
+		private void writeDbf() throws IOException {
+			DbaseFileHeader header = new DbaseFileHeader();
+			header.addColumn("NODE_ID", 'N', 18, 0);
+			String[] names = columnNames(export.attributes);
+			for (int c = 0; c < columns.length; c++) {
+				columns[c].addTo(header, names[c]);
+			}
+			header.setNumRecords(records);
+			DbaseFileWriter dbf = new DbaseFileWriter(header, new FileOutputStream(dbfFile).getChannel(), charset);
+			try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(rowsFile)))) {
+				Object[] row = new Object[columns.length + 1];
+				for (int r = 0; r < records; r++) {
+					row[0] = in.readLong();
+					for (int c = 0; c < columns.length; c++) {
+						row[c + 1] = columns[c].read(in);
+					}
+					dbf.write(row);
+				}
+			} finally {
+				dbf.close();
+			}
+		}
+
+		private void writeHeader(FileChannel channel, ShapeType shapeType, int length) throws IOException {
+			ByteBuffer header = ByteBuffer.allocate(100);
+			if (bounds.isNull()) {
+				new ShapefileHeader().write(header, shapeType, records, length, 0, 0, 0, 0);
+			} else {
+				new ShapefileHeader().write(header, shapeType, records, length, bounds.getMinX(), bounds.getMinY(),
+						bounds.getMaxX(), bounds.getMaxY());
+			}
+			header.flip();
+			channel.position(0);
+			writeFully(channel, header);
+		}
+	}
+
+	/**
+	 * Points are stored as a single coordinate, all other shapes start with
+	 * their bounding box, just after the shape type.
+	 */
+	private static Envelope readShapeBounds(byte[] shape) {
+		ByteBuffer buffer = ByteBuffer.wrap(shape);
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+		if (buffer.getInt(0) == ShapeType.POINT.id) {
+			double x = buffer.getDouble(4);
+			double y = buffer.getDouble(12);
+			return new Envelope(x, x, y, y);
+		}
+		return new Envelope(buffer.getDouble(4), buffer.getDouble(20), buffer.getDouble(12), buffer.getDouble(28));
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+	}
+
+	/**
+	 * DBF column names are limited to ten characters, so long property names
+	 * are truncated, and numbered if that makes them clash.
+	 */
+	private static String[] columnNames(String[] names) {
+		String[] columns = new String[names.length];
+		HashSet<String> used = new HashSet<String>();
+		used.add("NODE_ID");
+		for (int i = 0; i < names.length; i++) {
+			String column = names[i].length() > 10 ? names[i].substring(0, 10) : names[i];
+			for (int suffix = 1; !used.add(column.toUpperCase()); suffix++) {
+				String number = Integer.toString(suffix);
+				column = names[i].substring(0, Math.min(names[i].length(), 10 - number.length())) + number;
+			}
+			columns[i] = column;
+		}
+		return columns;
+	}
+}
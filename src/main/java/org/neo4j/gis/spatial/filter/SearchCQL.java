@@ -19,6 +19,12 @@
  */
 package org.neo4j.gis.spatial.filter;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+import org.geotools.data.DataUtilities;
 import org.geotools.data.neo4j.Neo4jFeatureBuilder;
 import org.geotools.filter.text.cql2.CQLException;
 import org.geotools.filter.text.ecql.ECQL;
@@ -28,6 +34,7 @@ import org.neo4j.gis.spatial.Layer;
 import org.neo4j.gis.spatial.SpatialDatabaseException;
 import org.neo4j.gis.spatial.SpatialDatabaseRecord;
 import org.neo4j.gis.spatial.Utilities;
+import org.neo4j.gis.spatial.osm.OSMGeometryEncoder;
 import org.neo4j.graphdb.Node;
 import org.opengis.feature.simple.SimpleFeature;
 
@@ -41,23 +48,46 @@ public class SearchCQL implements SearchFilter {
 	private Layer layer;
 	private org.opengis.filter.Filter filter;
 	private Envelope filterEnvelope;
+	private List<String> filterAttributes;
+	private OSMGeometryEncoder.AttributeReader attributeReader;
 	
 	public SearchCQL(Layer layer, org.opengis.filter.Filter filter) {
 		this.layer = layer;
-		this.featureBuilder = new Neo4jFeatureBuilder(layer);
 		this.filter = filter;	
 	    this.filterEnvelope = Utilities.extractEnvelopeFromFilter(filter);		
+	    initFilterAttributes();
 	}
 	
 	public SearchCQL(Layer layer, String cql) {
 		this.layer = layer;
-		this.featureBuilder = new Neo4jFeatureBuilder(layer);
 		try {
 			this.filter = ECQL.toFilter(cql);
 		    this.filterEnvelope = Utilities.extractEnvelopeFromFilter(filter);					
 		} catch (CQLException e) {
 			throw new SpatialDatabaseException("CQLException: " + e.getMessage());
 		}
+		initFilterAttributes();
+	}
+
+	/**
+	 * Only the attributes referenced by the filter are read from each
+	 * candidate geometry, and for encoders that resolve attributes across
+	 * several nodes (like OSM) this search uses its own reader that follows
+	 * only the relationships these need.
+	 */
+	private void initFilterAttributes() {
+		List<String> layerAttributes = Arrays.asList(layer.getExtraPropertyNames());
+		filterAttributes = new ArrayList<String>();
+		for (String name : DataUtilities.attributeNames(filter)) {
+			if (layerAttributes.contains(name) && !filterAttributes.contains(name)) {
+				filterAttributes.add(name);
+			}
+		}
+		this.featureBuilder = new Neo4jFeatureBuilder(Neo4jFeatureBuilder.getTypeFromLayer(layer), filterAttributes);
+		if (layer.getGeometryEncoder() instanceof OSMGeometryEncoder) {
+			attributeReader = ((OSMGeometryEncoder) layer.getGeometryEncoder()).newAttributeReader(filterAttributes
+					.toArray(new String[filterAttributes.size()]));
+		}
 	}
 
 	@Override
@@ -67,8 +97,21 @@ public class SearchCQL implements SearchFilter {
 
 	@Override
 	public boolean geometryMatches(Node geomNode) {
-		SimpleFeature feature = featureBuilder.buildFeature(new SpatialDatabaseRecord(this.layer, geomNode));
+		SpatialDatabaseRecord record = new SpatialDatabaseRecord(this.layer, geomNode);
+		HashMap<String, Object> properties = new HashMap<String, Object>();
+		for (String name : filterAttributes) {
+			properties.put(name, getProperty(record, name));
+		}
+		SimpleFeature feature = featureBuilder.buildFeature(record.getId(), record.getGeometry(), properties);
 		return filter.evaluate(feature);
 	}
 
+	private Object getProperty(SpatialDatabaseRecord record, String name) {
+		if (attributeReader != null && layer.getPropertyMappingManager().getPropertyMapper(name) == null) {
+			return attributeReader.getAttribute(record.getGeomNode(), name);
+		} else {
+			return record.getProperty(name);
+		}
+	}
+
 }
\ No newline at end of file
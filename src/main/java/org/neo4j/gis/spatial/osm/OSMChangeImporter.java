@@ -0,0 +1,751 @@
+/**
+ * Copyright (c) 2010-2013 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.gis.spatial.osm;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.neo4j.gis.spatial.Constants;
+import org.neo4j.gis.spatial.SpatialDatabaseService;
+import org.neo4j.gis.spatial.rtree.Envelope;
+import org.neo4j.gis.spatial.rtree.Listener;
+import org.neo4j.gis.spatial.rtree.NullListener;
+import org.neo4j.gis.spatial.rtree.filter.AbstractSearchEnvelopeIntersection;
+import org.neo4j.gis.spatial.rtree.filter.SearchFilter;
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.RelationshipType;
+
+/**
+ * Applies OsmChange (.osc) files, as published in the minutely, hourly and
+ * daily replication diffs, to an OSM dataset previously loaded with the
+ * OSMImporter. Each create, modify and delete of a node, way or relation is
+ * applied to the existing graph model, and only the geometries affected by the
+ * changes are updated and re-indexed in the OSM layer.
+ * <p>
+ * New elements are written just like the OSMImporter writes them. Modified
+ * ways and relations are written as new elements which take over the
+ * memberships of the old ones, after which the old ones are deleted. Modified
+ * nodes are updated in place, since ways refer to them through their proxy
+ * nodes. Compact ways keep a copy of the node locations, which is rewritten.
+ * The geometries of all ways and relations using a modified node, way or
+ * relation are then recalculated (bbox, vertices and segment lengths), removed
+ * from the index and added again.
+ */
+public class OSMChangeImporter implements Constants {
+	private final String layerName;
+	private final Listener monitor;
+	private Charset charset = Charset.defaultCharset();
+	private boolean verboseLog = true;
+
+	private OSMImporter importer;
+	private OSMImporter.OSMWriter<Node> osmWriter;
+	private GraphDatabaseService database;
+	private OSMLayer layer;
+	private LinkedHashSet<Node> changed = new LinkedHashSet<Node>();
+	private int createCount = 0;
+	private int modifyCount = 0;
+	private int deleteCount = 0;
+	private int reIndexCount = 0;
+	private int deletedNodes = 0;
+	private int deletedWays = 0;
+	private int deletedRelations = 0;
+
+	public OSMChangeImporter(String layerName) {
+		this(layerName, null);
+	}
+
+	public OSMChangeImporter(String layerName, Listener monitor) {
+		this.layerName = layerName;
+		this.monitor = monitor == null ? new NullListener() : monitor;
+	}
+
+	public void setCharset(Charset charset) {
+		this.charset = charset;
+	}
+
+	/**
+	 * Report the applied changes and the ignored ones on the console, which
+	 * is the default.
+	 */
+	public void setVerbose(boolean verbose) {
+		this.verboseLog = verbose;
+	}
+
+	public int getCreateCount() {
+		return createCount;
+	}
+
+	public int getModifyCount() {
+		return modifyCount;
+	}
+
+	public int getDeleteCount() {
+		return deleteCount;
+	}
+
+	/**
+	 * @return the number of geometries updated in the index by the last
+	 *         applied change file
+	 */
+	public int getReIndexCount() {
+		return reIndexCount;
+	}
+
+	public void applyChanges(GraphDatabaseService database, String changeFile) throws IOException, XMLStreamException {
+		applyChanges(database, changeFile, 5000);
+	}
+
+	/**
+	 * Apply all changes in the OsmChange file to the dataset and layer named
+	 * by the layerName. Changes are applied in file order, so a way created
+	 * in the file can use nodes created earlier in the same file.
+	 */
+	public void applyChanges(GraphDatabaseService database, String changeFile, int txInterval) throws IOException,
+			XMLStreamException {
+		long startTime = System.currentTimeMillis();
+		this.database = database;
+		this.importer = new OSMImporter(layerName);
+		this.importer.setVerbose(verboseLog);
+		this.createCount = this.modifyCount = this.deleteCount = this.reIndexCount = 0;
+		this.deletedNodes = this.deletedWays = this.deletedRelations = 0;
+		this.changed.clear();
+		this.osmWriter = importer.createGraphWriter(database, txInterval);
+		OSMImporter.CountedFileReader reader = new OSMImporter.CountedFileReader(changeFile, charset);
+		XMLStreamReader parser = XMLInputFactory.newInstance().createXMLStreamReader(reader);
+		monitor.begin(100);
+		int progress = 0;
+		try {
+			this.layer = (OSMLayer) new SpatialDatabaseService(database).getOrCreateLayer(layerName,
+					OSMGeometryEncoder.class, OSMLayer.class);
+			String action = null;
+			String type = null;
+			Map<String, Object> properties = null;
+			LinkedHashMap<String, Object> tags = new LinkedHashMap<String, Object>();
+			ArrayList<Long> wayNodes = new ArrayList<Long>();
+			ArrayList<Map<String, Object>> members = new ArrayList<Map<String, Object>>();
+			int depth = 0;
+			while (parser.hasNext()) {
+				int event = parser.next();
+				if (event == XMLStreamConstants.START_ELEMENT) {
+					String name = parser.getLocalName();
+					if (depth == 1) {
+						action = name;
+					} else if (depth == 2) {
+						type = name;
+						properties = importer.toProperties(name, attributes(parser));
+						tags = new LinkedHashMap<String, Object>();
+						wayNodes = new ArrayList<Long>();
+						members = new ArrayList<Map<String, Object>>();
+					} else if (depth == 3) {
+						if (name.equals("tag")) {
+							tags.put(parser.getAttributeValue(null, "k"), parser.getAttributeValue(null, "v"));
+						} else if (name.equals("nd")) {
+							wayNodes.add(Long.parseLong(parser.getAttributeValue(null, "ref")));
+						} else if (name.equals("member")) {
+							members.add(importer.toProperties(null, attributes(parser)));
+						}
+					}
+					depth++;
+				} else if (event == XMLStreamConstants.END_ELEMENT) {
+					depth--;
+					if (depth == 2) {
+						applyChange(action, type, properties, tags, wayNodes, members);
+						if (reader.getPercentRead() > progress) {
+							monitor.worked(reader.getPercentRead() - progress);
+							progress = reader.getPercentRead();
+						}
+					}
+				}
+			}
+			reIndexChanged();
+			updateDatasetCounts();
+		} finally {
+			parser.close();
+			reader.close();
+			osmWriter.finish();
+			// attributes cached before the changes may be stale now
+			OSMGeometryEncoder.attributesModified();
+			monitor.done();
+		}
+		log("Applied " + changeFile + " in " + (System.currentTimeMillis() - startTime) / 1000.0
+				+ "s: created " + createCount + ", modified " + modifyCount + ", deleted " + deleteCount
+				+ ", re-indexed " + reIndexCount + " geometries");
+	}
+
+	private void log(String message) {
+		if (verboseLog) {
+			System.out.println(message);
+		}
+	}
+
+	private void error(String message) {
+		if (verboseLog) {
+			System.err.println(message);
+		}
+	}
+
+	private static String[] attributes(XMLStreamReader parser) {
+		String[] attributes = new String[parser.getAttributeCount() * 2];
+		for (int i = 0; i < parser.getAttributeCount(); i++) {
+			attributes[2 * i] = parser.getAttributeLocalName(i);
+			attributes[2 * i + 1] = parser.getAttributeValue(i);
+		}
+		return attributes;
+	}
+
+	private void applyChange(String action, String type, Map<String, Object> properties,
+			LinkedHashMap<String, Object> tags, ArrayList<Long> wayNodes, ArrayList<Map<String, Object>> members) {
+		Object id = properties.get(type + "_osm_id");
+		if (id == null || action == null) {
+			error("Ignoring invalid change: " + action + " " + type + " " + properties);
+			return;
+		}
+		Node existing = findElement(type, Long.parseLong(id.toString()));
+		if (action.equals("delete")) {
+			if (existing == null) {
+				error("Cannot delete missing " + type + " " + id);
+				return;
+			}
+			if (type.equals("node")) {
+				deleteNode(existing);
+			} else if (type.equals("way")) {
+				deleteWay(existing);
+			} else if (type.equals("relation")) {
+				deleteRelation(existing);
+			}
+			deleteCount++;
+			return;
+		}
+		// Creating an existing element or modifying a missing one happens when
+		// diffs overlap the original import, so we treat both as a modify or
+		// a create as appropriate
+		if (existing == null) {
+			createCount++;
+		} else {
+			modifyCount++;
+		}
+		if (type.equals("node")) {
+			if (existing == null) {
+				osmWriter.createOSMNode(properties);
+				osmWriter.addOSMNodeTags(false, tags);
+				changed.add(osmWriter.currentNode);
+			} else {
+				modifyNode(existing, properties, tags);
+			}
+		} else if (type.equals("way")) {
+			osmWriter.createOSMWay(properties, wayNodes, tags);
+			replace(existing, osmWriter.prev_way);
+		} else if (type.equals("relation")) {
+			osmWriter.createOSMRelation(properties, members, tags);
+			replace(existing, osmWriter.prev_relation);
+		}
+	}
+
+	private Node findElement(String type, long osmId) {
+		if (type.equals("way")) {
+			return osmWriter.getSingleNode(OSMImporter.INDEX_NAME_WAY, "way_osm_id", osmId);
+		} else {
+			return osmWriter.getSingleNode(type, type + "_osm_id", osmId);
+		}
+	}
+
+	/**
+	 * The new version of a way or relation takes over the memberships of the
+	 * old version, which is then deleted.
+	 */
+	private void replace(Node oldElement, Node newElement) {
+		changed.add(newElement);
+		if (oldElement != null) {
+			for (Relationship rel : oldElement.getRelationships(OSMRelation.MEMBER, Direction.INCOMING)) {
+				Relationship member = rel.getStartNode().createRelationshipTo(newElement, OSMRelation.MEMBER);
+				for (String key : rel.getPropertyKeys()) {
+					member.setProperty(key, rel.getProperty(key));
+				}
+			}
+			if (oldElement.hasProperty("way_osm_id")) {
+				deleteWay(oldElement);
+			} else {
+				deleteRelation(oldElement);
+			}
+		}
+	}
+
+	private void modifyNode(Node node, Map<String, Object> properties, LinkedHashMap<String, Object> tags) {
+		if (properties.containsKey("changeset")) {
+			Node changeset = osmWriter.getChangesetNode(properties);
+			for (Relationship rel : node.getRelationships(OSMRelation.CHANGESET, Direction.OUTGOING)) {
+				rel.delete();
+			}
+			if (changeset != null) {
+				node.createRelationshipTo(changeset, OSMRelation.CHANGESET);
+			}
+		}
+		long osmId = Long.parseLong(properties.get("node_osm_id").toString());
+		ArrayList<Node> compactWays = findCompactWays(node);
+		properties.put("node_osm_id", osmId);
+		node.removeProperty("visible");
+		for (String key : properties.keySet()) {
+			node.setProperty(key, properties.get(key));
+		}
+		deleteTags(node);
+		tags.remove("created_by"); // redundant information
+		Relationship geomRel = node.getSingleRelationship(OSMRelation.GEOM, Direction.OUTGOING);
+		if (tags.size() > 0 && geomRel == null) {
+			double lon = (Double) node.getProperty("lon");
+			double lat = (Double) node.getProperty("lat");
+			osmWriter.addNodeGeometry(node, GTYPE_POINT, new Envelope(lon, lon, lat, lat), 1);
+		} else if (tags.size() == 0 && geomRel != null) {
+			layer.removeWay(node);
+			Node geomNode = geomRel.getEndNode();
+			geomRel.delete();
+			geomNode.delete();
+		}
+		osmWriter.addNodeTags(node, tags, "node");
+		changed.add(node);
+		for (Relationship rel : node.getRelationships(OSMRelation.NODE, Direction.INCOMING)) {
+			Node way = findWay(rel.getStartNode());
+			if (way != null) {
+				changed.add(way);
+			}
+		}
+		double lon = (Double) node.getProperty("lon");
+		double lat = (Double) node.getProperty("lat");
+		for (Node way : compactWays) {
+			long[] ids = (long[]) way.getProperty(OSMGeometryEncoder.PROP_WAY_NODES);
+			double[] coordinates = (double[]) way.getProperty(OSMGeometryEncoder.PROP_WAY_COORDINATES);
+			for (int i = 0; i < ids.length; i++) {
+				if (ids[i] == osmId) {
+					coordinates[i * 2] = lon;
+					coordinates[i * 2 + 1] = lat;
+				}
+			}
+			way.setProperty(OSMGeometryEncoder.PROP_WAY_COORDINATES, coordinates);
+			changed.add(way);
+		}
+	}
+
+	private void deleteNode(Node node) {
+		// Ways should have been modified to no longer use the node, but diffs
+		// of partial extracts can be inconsistent, so we remove any remaining
+		// references
+		for (Node way : findCompactWays(node)) {
+			removeCompactVertex(way, (Long) node.getProperty("node_osm_id"));
+			changed.add(way);
+		}
+		for (Relationship rel : node.getRelationships(OSMRelation.NODE, Direction.INCOMING)) {
+			Node proxy = rel.getStartNode();
+			Node way = findWay(proxy);
+			removeProxy(proxy);
+			if (way != null) {
+				changed.add(way);
+			}
+		}
+		deleteElement(node, "node");
+		deletedNodes++;
+	}
+
+	private void deleteWay(Node way) {
+		for (Node proxy : getProxies(way)) {
+			for (Relationship rel : proxy.getRelationships()) {
+				rel.delete();
+			}
+			proxy.delete();
+		}
+		deleteElement(way, OSMImporter.INDEX_NAME_WAY);
+		deletedWays++;
+	}
+
+	private void deleteRelation(Node relation) {
+		deleteElement(relation, "relation");
+		deletedRelations++;
+	}
+
+	/**
+	 * Delete the element with its geometry and tags, removing it from the
+	 * index and from the chain of ways or relations of the dataset, and
+	 * marking the relations it was a member of as changed.
+	 */
+	private void deleteElement(Node element, String indexName) {
+		layer.removeWay(element);
+		for (Relationship rel : element.getRelationships(OSMRelation.GEOM, Direction.OUTGOING)) {
+			Node geomNode = rel.getEndNode();
+			rel.delete();
+			geomNode.delete();
+		}
+		deleteTags(element);
+		for (Relationship rel : element.getRelationships(OSMRelation.MEMBER, Direction.INCOMING)) {
+			changed.add(rel.getStartNode());
+		}
+		unlinkFromChain(element);
+		database.index().forNodes(indexName).remove(element);
+		for (Relationship rel : element.getRelationships()) {
+			rel.delete();
+		}
+		element.delete();
+		changed.remove(element);
+	}
+
+	private void deleteTags(Node element) {
+		for (Relationship rel : element.getRelationships(OSMRelation.TAGS, Direction.OUTGOING)) {
+			Node tagsNode = rel.getEndNode();
+			rel.delete();
+			// the tags node may be shared with other elements with the same tags
+			if (!tagsNode.hasRelationship(OSMRelation.TAGS, Direction.INCOMING)) {
+				tagsNode.delete();
+			}
+		}
+	}
+
+	/**
+	 * Ways and relations are linked from the dataset by WAYS or RELATIONS to
+	 * the first, and then by NEXT to the others, so removing one means
+	 * connecting its predecessor to its successor.
+	 */
+	private void unlinkFromChain(Node element) {
+		Relationship previous = element.getSingleRelationship(OSMRelation.NEXT, Direction.INCOMING);
+		if (previous == null) {
+			previous = element.getSingleRelationship(OSMRelation.WAYS, Direction.INCOMING);
+		}
+		if (previous == null) {
+			previous = element.getSingleRelationship(OSMRelation.RELATIONS, Direction.INCOMING);
+		}
+		Relationship next = element.getSingleRelationship(OSMRelation.NEXT, Direction.OUTGOING);
+		if (previous != null && next != null) {
+			previous.getStartNode().createRelationshipTo(next.getEndNode(), previous.getType());
+		}
+		if (element.equals(osmWriter.prev_way) || element.equals(osmWriter.prev_relation)) {
+			Node last = previous == null || previous.isType(OSMRelation.WAYS) || previous.isType(OSMRelation.RELATIONS)
+					? null : previous.getStartNode();
+			if (element.equals(osmWriter.prev_way)) {
+				osmWriter.prev_way = last;
+			} else {
+				osmWriter.prev_relation = last;
+			}
+		}
+	}
+
+	/**
+	 * Compact ways are only linked to the nodes at their endpoints and
+	 * intersections, so the ways using a node as an interior vertex are found
+	 * by searching the layer at the current location of the node and checking
+	 * the stored node ids of the ways found. Ways written by this change file
+	 * are not in the index yet, so they are checked as well.
+	 */
+	private ArrayList<Node> findCompactWays(Node node) {
+		long osmId = (Long) node.getProperty("node_osm_id");
+		double lon = (Double) node.getProperty("lon");
+		double lat = (Double) node.getProperty("lat");
+		LinkedHashSet<Node> candidates = new LinkedHashSet<Node>();
+		for (Relationship rel : node.getRelationships(OSMRelation.NODE, Direction.INCOMING)) {
+			candidates.add(rel.getStartNode());
+		}
+		SearchFilter atNode = new AbstractSearchEnvelopeIntersection(layer.getGeometryEncoder(), new Envelope(lon, lon, lat, lat)) {
+			@Override
+			protected boolean onEnvelopeIntersection(Node geomNode, Envelope geomEnvelope) {
+				return true;
+			}
+		};
+		for (Node geomNode : layer.getIndex().searchIndex(atNode)) {
+			candidates.add(OSMGeometryEncoder.getOSMNodeFromGeometryNode(geomNode));
+		}
+		candidates.addAll(changed);
+		ArrayList<Node> ways = new ArrayList<Node>();
+		for (Node way : candidates) {
+			if (OSMGeometryEncoder.isCompactWay(way)) {
+				for (long id : (long[]) way.getProperty(OSMGeometryEncoder.PROP_WAY_NODES)) {
+					if (id == osmId) {
+						ways.add(way);
+						break;
+					}
+				}
+			}
+		}
+		return ways;
+	}
+
+	/**
+	 * Remove all visits of a node from the arrays of a compact way, and shift
+	 * the vertex index of the remaining links to the nodes.
+	 */
+	private static void removeCompactVertex(Node way, long osmId) {
+		long[] ids = (long[]) way.getProperty(OSMGeometryEncoder.PROP_WAY_NODES);
+		double[] coordinates = (double[]) way.getProperty(OSMGeometryEncoder.PROP_WAY_COORDINATES);
+		int[] shifted = new int[ids.length];
+		int count = 0;
+		for (int i = 0; i < ids.length; i++) {
+			if (ids[i] == osmId) {
+				shifted[i] = -1;
+			} else {
+				shifted[i] = count;
+				ids[count] = ids[i];
+				coordinates[count * 2] = coordinates[i * 2];
+				coordinates[count * 2 + 1] = coordinates[i * 2 + 1];
+				count++;
+			}
+		}
+		for (Relationship rel : way.getRelationships(OSMRelation.NODE, Direction.OUTGOING)) {
+			int index = (Integer) rel.getProperty("index", -1);
+			if (index < 0 || index >= ids.length || shifted[index] < 0) {
+				rel.delete();
+			} else {
+				rel.setProperty("index", shifted[index]);
+			}
+		}
+		way.setProperty(OSMGeometryEncoder.PROP_WAY_NODES, Arrays.copyOf(ids, count));
+		way.setProperty(OSMGeometryEncoder.PROP_WAY_COORDINATES, Arrays.copyOf(coordinates, count * 2));
+	}
+
+	/**
+	 * The proxy nodes of a way, in order. Proxies are linked by NEXT, in
+	 * reverse direction for one-way roads in the BACKWARD direction, so we
+	 * follow the chain regardless of relationship direction. Compact ways have
+	 * no proxies.
+	 */
+	private static ArrayList<Node> getProxies(Node way) {
+		ArrayList<Node> proxies = new ArrayList<Node>();
+		if (OSMGeometryEncoder.isCompactWay(way)) {
+			return proxies;
+		}
+		Relationship first = way.getSingleRelationship(OSMRelation.FIRST_NODE, Direction.OUTGOING);
+		if (first != null) {
+			Node proxy = first.getEndNode();
+			Relationship from = null;
+			while (proxy != null) {
+				proxies.add(proxy);
+				Relationship next = otherNext(proxy, from);
+				from = next;
+				proxy = next == null ? null : next.getOtherNode(proxy);
+			}
+		}
+		return proxies;
+	}
+
+	private static Relationship otherNext(Node proxy, Relationship from) {
+		for (Relationship rel : proxy.getRelationships(OSMRelation.NEXT)) {
+			if (!rel.equals(from)) {
+				return rel;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Find the way of a proxy node by following the chain in both directions
+	 * until we reach the first proxy. Compact ways link to their nodes
+	 * directly.
+	 */
+	private static Node findWay(Node proxy) {
+		if (OSMGeometryEncoder.isCompactWay(proxy)) {
+			return proxy;
+		}
+		Relationship first = proxy.getSingleRelationship(OSMRelation.FIRST_NODE, Direction.INCOMING);
+		if (first != null) {
+			return first.getStartNode();
+		}
+		for (Relationship start : proxy.getRelationships(OSMRelation.NEXT)) {
+			Relationship from = start;
+			Node node = start.getOtherNode(proxy);
+			while (node != null) {
+				first = node.getSingleRelationship(OSMRelation.FIRST_NODE, Direction.INCOMING);
+				if (first != null) {
+					return first.getStartNode();
+				}
+				from = otherNext(node, from);
+				node = from == null ? null : from.getOtherNode(node);
+			}
+		}
+		return null;
+	}
+
+	private static void removeProxy(Node proxy) {
+		ArrayList<Relationship> next = new ArrayList<Relationship>();
+		for (Relationship rel : proxy.getRelationships(OSMRelation.NEXT)) {
+			next.add(rel);
+		}
+		Relationship first = proxy.getSingleRelationship(OSMRelation.FIRST_NODE, Direction.INCOMING);
+		if (first != null && next.size() > 0) {
+			first.getStartNode().createRelationshipTo(next.get(0).getOtherNode(proxy), OSMRelation.FIRST_NODE);
+		} else if (next.size() == 2) {
+			Relationship in = next.get(0).getEndNode().equals(proxy) ? next.get(0) : next.get(1);
+			Relationship out = in == next.get(0) ? next.get(1) : next.get(0);
+			in.getStartNode().createRelationshipTo(out.getEndNode(), OSMRelation.NEXT);
+		}
+		for (Relationship rel : proxy.getRelationships()) {
+			rel.delete();
+		}
+		proxy.delete();
+	}
+
+	/**
+	 * Recalculate the geometries of all changed elements, and of the
+	 * relations they are members of, and replace them in the index.
+	 */
+	private void reIndexChanged() {
+		ArrayDeque<Node> queue = new ArrayDeque<Node>(changed);
+		HashSet<Node> done = new HashSet<Node>();
+		while (!queue.isEmpty()) {
+			Node element = queue.poll();
+			if (!done.add(element)) {
+				continue;
+			}
+			layer.removeWay(element);
+			updateGeometry(element);
+			if (layer.addWay(element, true) != null) {
+				reIndexCount++;
+			}
+			for (Relationship rel : element.getRelationships(OSMRelation.MEMBER, Direction.INCOMING)) {
+				queue.add(rel.getStartNode());
+			}
+		}
+		changed.clear();
+	}
+
+	private void updateGeometry(Node element) {
+		Relationship geomRel = element.getSingleRelationship(OSMRelation.GEOM, Direction.OUTGOING);
+		if (element.hasProperty("node_osm_id")) {
+			if (geomRel != null) {
+				double lon = (Double) element.getProperty("lon");
+				double lat = (Double) element.getProperty("lat");
+				geomRel.getEndNode().setProperty(PROP_BBOX, new double[] { lon, lon, lat, lat });
+			}
+		} else if (element.hasProperty("way_osm_id")) {
+			updateWayGeometry(element, geomRel);
+		} else if (geomRel != null) {
+			updateRelationGeometry(element, geomRel.getEndNode());
+		}
+	}
+
+	private void updateWayGeometry(Node way, Relationship geomRel) {
+		if (OSMGeometryEncoder.isCompactWay(way)) {
+			updateCompactWayGeometry(way, geomRel);
+			return;
+		}
+		ArrayList<Node> proxies = getProxies(way);
+		Envelope bbox = new Envelope();
+		Node firstNode = null;
+		Node prevNode = null;
+		double[] prevLocation = null;
+		Relationship from = null;
+		for (Node proxy : proxies) {
+			Node node = proxy.getSingleRelationship(OSMRelation.NODE, Direction.OUTGOING).getEndNode();
+			double[] location = new double[] { (Double) node.getProperty("lon"), (Double) node.getProperty("lat") };
+			bbox.expandToInclude(location[0], location[1]);
+			if (prevLocation != null) {
+				from.setProperty("length", OSMImporter.distance(prevLocation[0], prevLocation[1], location[0], location[1]));
+			}
+			if (firstNode == null) {
+				firstNode = node;
+			}
+			from = otherNext(proxy, from);
+			prevNode = node;
+			prevLocation = location;
+		}
+		int gtype = proxies.size() < 2 ? GTYPE_POINT : (firstNode.equals(prevNode) ? GTYPE_POLYGON : GTYPE_LINESTRING);
+		setWayGeometry(way, geomRel, gtype, bbox, proxies.size());
+	}
+
+	/**
+	 * Compact ways do not store segment lengths, so only the geometry node
+	 * needs updating from the stored coordinates.
+	 */
+	private void updateCompactWayGeometry(Node way, Relationship geomRel) {
+		long[] ids = (long[]) way.getProperty(OSMGeometryEncoder.PROP_WAY_NODES);
+		double[] coordinates = (double[]) way.getProperty(OSMGeometryEncoder.PROP_WAY_COORDINATES);
+		Envelope bbox = new Envelope();
+		for (int i = 0; i < ids.length; i++) {
+			bbox.expandToInclude(coordinates[i * 2], coordinates[i * 2 + 1]);
+		}
+		int gtype = ids.length < 2 ? GTYPE_POINT : (ids[0] == ids[ids.length - 1] ? GTYPE_POLYGON : GTYPE_LINESTRING);
+		setWayGeometry(way, geomRel, gtype, bbox, ids.length);
+	}
+
+	private void setWayGeometry(Node way, Relationship geomRel, int gtype, Envelope bbox, int vertices) {
+		if (geomRel == null) {
+			osmWriter.addNodeGeometry(way, gtype, bbox, vertices);
+		} else if (vertices == 0) {
+			Node geomNode = geomRel.getEndNode();
+			geomRel.delete();
+			geomNode.delete();
+		} else {
+			Node geomNode = geomRel.getEndNode();
+			geomNode.setProperty("gtype", gtype);
+			geomNode.setProperty("vertices", vertices);
+			geomNode.setProperty(PROP_BBOX, new double[] { bbox.getMinX(), bbox.getMaxX(), bbox.getMinY(), bbox.getMaxY() });
+		}
+	}
+
+	private void updateRelationGeometry(Node relation, Node geomNode) {
+		Envelope bbox = new Envelope();
+		int vertices = 0;
+		for (Relationship rel : relation.getRelationships(OSMRelation.MEMBER, Direction.OUTGOING)) {
+			Node member = rel.getEndNode();
+			if (member.hasProperty("node_osm_id")) {
+				bbox.expandToInclude((Double) member.getProperty("lon"), (Double) member.getProperty("lat"));
+				vertices++;
+			} else {
+				Relationship memberGeom = member.getSingleRelationship(OSMRelation.GEOM, Direction.OUTGOING);
+				if (memberGeom != null) {
+					double[] memberBBox = (double[]) memberGeom.getEndNode().getProperty(PROP_BBOX);
+					bbox.expandToInclude(memberBBox[0], memberBBox[2]);
+					bbox.expandToInclude(memberBBox[1], memberBBox[3]);
+					vertices += (Integer) memberGeom.getEndNode().getProperty("vertices", 0);
+				}
+			}
+		}
+		if (bbox.isValid()) {
+			geomNode.setProperty("vertices", vertices);
+			geomNode.setProperty(PROP_BBOX, new double[] { bbox.getMinX(), bbox.getMaxX(), bbox.getMinY(), bbox.getMaxY() });
+		}
+		// the cached multipolygon is stale once any member has changed
+		((OSMGeometryEncoder) layer.getGeometryEncoder()).cacheAssembledGeometry(geomNode);
+	}
+
+	/**
+	 * The writer adds the counts of created elements when it finishes, so
+	 * here we only subtract the deleted ones.
+	 */
+	private void updateDatasetCounts() {
+		Node dataset = osmWriter.osm_dataset;
+		subtract(dataset, "nodeCount", deletedNodes);
+		subtract(dataset, "wayCount", deletedWays);
+		subtract(dataset, "relationCount", deletedRelations);
+	}
+
+	private static void subtract(Node dataset, String key, int count) {
+		if (count > 0) {
+			dataset.setProperty(key, Math.max(0, (Integer) dataset.getProperty(key, 0) - count));
+		}
+	}
+}
@@ -128,6 +128,15 @@ public class OSMDataset implements SpatialDataset, Iterable<OSMDataset.Way>, Ite
 		return td.traverse( datasetNode ).nodes();
 	}
 
+	public Iterable<Node> getAllRelationNodes() {
+		TraversalDescription td = datasetNode.getGraphDatabase().traversalDescription()
+				.depthFirst()
+				.relationships( OSMRelation.RELATIONS, Direction.OUTGOING )
+				.relationships( OSMRelation.NEXT, Direction.OUTGOING )
+				.evaluator( Evaluators.excludeStartPosition() );
+		return td.traverse( datasetNode ).nodes();
+	}
+
 	public Iterable<Node> getAllPointNodes() {
 		TraversalDescription td = datasetNode.getGraphDatabase().traversalDescription()
 				.depthFirst()
@@ -140,6 +149,9 @@ public class OSMDataset implements SpatialDataset, Iterable<OSMDataset.Way>, Ite
 	}
 
 	public Iterable<Node> getWayNodes(Node way) {
+		if (OSMGeometryEncoder.isCompactWay(way)) {
+			return OSMGeometryEncoder.getPointNodesFromCompactWay(way);
+		}
         TraversalDescription td = datasetNode.getGraphDatabase().traversalDescription()
                 .depthFirst()
                 .relationships( OSMRelation.NEXT, Direction.OUTGOING )
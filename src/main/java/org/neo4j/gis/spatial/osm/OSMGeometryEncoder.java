@@ -23,10 +23,15 @@ import static org.neo4j.gis.spatial.utilities.TraverserFactory.createTraverserIn
 
 import java.text.DateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.neo4j.gis.spatial.rtree.Envelope;
 import org.neo4j.gis.spatial.rtree.RTreeIndex;
@@ -39,18 +44,36 @@ import org.neo4j.graphdb.Node;
 import org.neo4j.graphdb.Path;
 import org.neo4j.graphdb.PropertyContainer;
 import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.index.Index;
 import org.neo4j.graphdb.traversal.TraversalDescription;
 
-import com.vividsolutions.jts.algorithm.ConvexHull;
 import com.vividsolutions.jts.geom.Coordinate;
 import com.vividsolutions.jts.geom.Geometry;
 import com.vividsolutions.jts.geom.GeometryFactory;
-import com.vividsolutions.jts.geom.LineString;
 import com.vividsolutions.jts.geom.LinearRing;
 import com.vividsolutions.jts.geom.Polygon;
+import com.vividsolutions.jts.io.ParseException;
+import com.vividsolutions.jts.io.WKBReader;
+import com.vividsolutions.jts.io.WKBWriter;
 
 public class OSMGeometryEncoder extends AbstractGeometryEncoder {
 
+	/**
+	 * Property of compact ways holding the OSM ids of the way nodes.
+	 */
+	public static final String PROP_WAY_NODES = "way_nodes";
+	/**
+	 * Property of compact ways holding the way node locations as
+	 * lon,lat,lon,lat,...
+	 */
+	public static final String PROP_WAY_COORDINATES = "way_coordinates";
+
+	/**
+	 * Property of relation geometry nodes caching the assembled multipolygon
+	 * as WKB, see {@link #cacheAssembledGeometry(Node)}.
+	 */
+	public static final String PROP_ASSEMBLED_GEOMETRY = "assembled_wkb";
+
 	private static int decodedCount = 0;
 	private static int overrunCount = 0;
 	private static int nodeId = 0;
@@ -181,6 +204,9 @@ public class OSMGeometryEncoder extends AbstractGeometryEncoder {
 	}
 
 	public Iterable<Node> getPointNodesFromWayNode(Node wayNode) {
+		if (isCompactWay(wayNode)) {
+			return getPointNodesFromCompactWay(wayNode);
+		}
 		final Node firstNode = wayNode.getSingleRelationship(OSMRelation.FIRST_NODE, Direction.OUTGOING).getEndNode();
 		final NodeProxyIterator iterator = new NodeProxyIterator(firstNode);
 		return new Iterable<Node>() {
@@ -191,6 +217,44 @@ public class OSMGeometryEncoder extends AbstractGeometryEncoder {
 		};
 	}
 
+	/**
+	 * Compact ways store their vertices as arrays on the way node instead of
+	 * as a chain of proxy nodes.
+	 */
+	public static boolean isCompactWay(Node wayNode) {
+		return wayNode.hasProperty(PROP_WAY_NODES);
+	}
+
+	/**
+	 * The OSM nodes of a compact way, in order. The way is only connected to
+	 * the nodes at its endpoints and intersections, so the other nodes are
+	 * found in the node index.
+	 */
+	public static List<Node> getPointNodesFromCompactWay(Node wayNode) {
+		long[] ids = (long[]) wayNode.getProperty(PROP_WAY_NODES);
+		Node[] nodes = new Node[ids.length];
+		for (Relationship rel : wayNode.getRelationships(OSMRelation.NODE, Direction.OUTGOING)) {
+			int index = (Integer) rel.getProperty("index", -1);
+			if (index >= 0 && index < nodes.length) {
+				nodes[index] = rel.getEndNode();
+			}
+		}
+		Index<Node> index = null;
+		ArrayList<Node> result = new ArrayList<Node>(ids.length);
+		for (int i = 0; i < ids.length; i++) {
+			if (nodes[i] == null) {
+				if (index == null) {
+					index = wayNode.getGraphDatabase().index().forNodes(OSMImporter.INDEX_NAME_NODE);
+				}
+				nodes[i] = index.get(OSMId.NODE.toString(), ids[i]).getSingle();
+			}
+			if (nodes[i] != null) {
+				result.add(nodes[i]);
+			}
+		}
+		return result;
+	}
+
 	public Geometry decodeGeometry(PropertyContainer container) {
 		Node geomNode = testIsNode(container);
 		try {
@@ -215,133 +279,77 @@ public class OSMGeometryEncoder extends AbstractGeometryEncoder {
 	private Geometry decodeGeometryFromRelation(Node osmNode, int gtype, GeometryFactory geomFactory) {
 		switch (gtype) {
 		case GTYPE_POLYGON:
-			LinearRing outer = null;
-			ArrayList<LinearRing> inner = new ArrayList<LinearRing>();
-			// ArrayList<LinearRing> rings = new ArrayList<LinearRing>();
-			for (Relationship rel : osmNode.getRelationships(OSMRelation.MEMBER, Direction.OUTGOING)) {
-				Node wayNode = rel.getEndNode();
-				String role = (String) rel.getProperty("role", null);
-				if (role != null) {
-					LinearRing ring = getOuterLinearRingFromGeometry(decodeGeometryFromWay(wayNode, GTYPE_POLYGON, -1, geomFactory));
-					if (role.equals("outer")) {
-						outer = ring;
-					} else if (role.equals("inner")) {
-						inner.add(ring);
-					}
-				}
-			}
-			if (outer != null) {
-				return geomFactory.createPolygon(outer, inner.toArray(new LinearRing[inner.size()]));
-			} else {
-				return null;
-			}
 		case GTYPE_MULTIPOLYGON:
-			ArrayList<Polygon> polygons = new ArrayList<Polygon>();
-			for (Relationship rel : osmNode.getRelationships(OSMRelation.MEMBER, Direction.OUTGOING)) {
-				Node member = rel.getEndNode();
-				Geometry geometry = null;
-				if (member.hasProperty("way_osm_id")) {
-					// decode simple polygons from ways
-					geometry = decodeGeometryFromWay(member, GTYPE_POLYGON, -1, geomFactory);
-				} else if (!member.hasProperty("node_osm_id")) {
-					// decode polygons with holes from relations
-					geometry = decodeGeometryFromRelation(member, GTYPE_POLYGON, geomFactory);
-				}
-				if (geometry != null && geometry instanceof Polygon) {
-					polygons.add((Polygon) geometry);
+			Node geomNode = getGeometryNodeFromOSMNode(osmNode);
+			if (geomNode != null && geomNode.hasProperty(PROP_ASSEMBLED_GEOMETRY)) {
+				try {
+					return new WKBReader(geomFactory).read((byte[]) geomNode.getProperty(PROP_ASSEMBLED_GEOMETRY));
+				} catch (ParseException e) {
+					System.err.println("Ignoring unreadable assembled geometry on " + geomNode + ": " + e.getMessage());
 				}
 			}
-			if (polygons.size() > 0) {
-				return geomFactory.createMultiPolygon(polygons.toArray(new Polygon[polygons.size()]));
-			} else {
-				return null;
-			}
+			return assembleMultipolygon(osmNode, geomFactory, new HashSet<Long>());
 		default:
 			return null;
 		}
 	}
 
 	/**
-	 * Since OSM users can construct any weird combinations of geometries, we
-	 * need general code to make the best guess. This method will find a
-	 * enclosing LinearRing around any geometry except Point and a straight
-	 * LineString, and return that. For sensible types, it returns a more
-	 * sensible result, for example a Polygon will produce its outer LinearRing.
-	 * 
-	 * @param geometry
-	 * @return enclosing LinearRing
+	 * Stitch the member ways of a polygon or multipolygon relation into rings
+	 * and assign the holes to their shells. Member relations are assembled
+	 * recursively, guarding against relations that contain themselves.
 	 */
-	private LinearRing getOuterLinearRingFromGeometry(Geometry geometry) {
-		if (geometry instanceof LineString) {
-			LineString line = (LineString) geometry;
-			if (line.getCoordinates().length < 3) {
-				return null;
-			} else {
-				Coordinate[] coords = line.getCoordinates();
-				if (!line.isClosed()) {
-					coords = closeCoords(coords);
-				}
-				LinearRing ring = geometry.getFactory().createLinearRing(coords);
-				if (ring.isValid()) {
-					return ring;
-				} else {
-					return getConvexHull(ring);
+	private Geometry assembleMultipolygon(Node relationNode, GeometryFactory geomFactory, HashSet<Long> visited) {
+		if (!visited.add(relationNode.getId())) {
+			return null;
+		}
+		OSMMultipolygonBuilder builder = new OSMMultipolygonBuilder(geomFactory);
+		for (Relationship rel : relationNode.getRelationships(OSMRelation.MEMBER, Direction.OUTGOING)) {
+			Node member = rel.getEndNode();
+			if (member.hasProperty("way_osm_id")) {
+				builder.addMember((String) rel.getProperty("role", null), getCoordinatesFromWay(member, -1));
+			} else if (!member.hasProperty("node_osm_id")) {
+				Geometry geometry = assembleMultipolygon(member, geomFactory, visited);
+				for (int i = 0; geometry != null && i < geometry.getNumGeometries(); i++) {
+					if (geometry.getGeometryN(i) instanceof Polygon) {
+						builder.addPolygon((Polygon) geometry.getGeometryN(i));
+					}
 				}
 			}
-		} else if (geometry instanceof LinearRing) {
-			return (LinearRing) geometry;
-		} else if (geometry instanceof Polygon) {
-			return (LinearRing) ((Polygon) geometry).getExteriorRing();
-		} else {
-			return getConvexHull(geometry);
 		}
+		return builder.build();
 	}
 
 	/**
-	 * Extend the array by copying the first point into the last position
+	 * Assemble the polygon geometry of a relation and store it as WKB on the
+	 * geometry node, so that later reads do not need to visit all member ways
+	 * again. Must be called within a write transaction, and again whenever
+	 * the members of the relation change.
 	 * 
-	 * @param coords
-	 * @return new array one point longer
+	 * @param geomNode
+	 *            geometry node of a polygon or multipolygon relation
+	 * @return the assembled geometry, or null if no rings could be built
 	 */
-	private Coordinate[] closeCoords(Coordinate[] coords) {
-		Coordinate[] nc = new Coordinate[coords.length + 1];
-		for (int i = 0; i < coords.length; i++) {
-			nc[i] = coords[i];
+	public Geometry cacheAssembledGeometry(Node geomNode) {
+		geomNode.removeProperty(PROP_ASSEMBLED_GEOMETRY);
+		int gtype = (Integer) geomNode.getProperty(PROP_TYPE, GTYPE_GEOMETRY);
+		if (gtype != GTYPE_POLYGON && gtype != GTYPE_MULTIPOLYGON) {
+			return null;
 		}
-		nc[coords.length] = coords[0];
-		coords = nc;
-		return coords;
-	}
-
-	/**
-	 * The convex hull is like an elastic band surrounding all points in the
-	 * geometry.
-	 * 
-	 * @param geometry
-	 * @return
-	 */
-	private LinearRing getConvexHull(Geometry geometry) {
-		return getOuterLinearRingFromGeometry((new ConvexHull(geometry)).getConvexHull());
+		Node osmNode = getOSMNodeFromGeometryNode(geomNode);
+		if (osmNode == null || osmNode.hasProperty("way_osm_id") || osmNode.hasProperty("node_osm_id")) {
+			return null;
+		}
+		Geometry geometry = assembleMultipolygon(osmNode, layer.getGeometryFactory(), new HashSet<Long>());
+		if (geometry != null) {
+			geomNode.setProperty(PROP_ASSEMBLED_GEOMETRY, new WKBWriter().write(geometry));
+		}
+		return geometry;
 	}
 
 	private Geometry decodeGeometryFromWay(Node wayNode, int gtype, int vertices, GeometryFactory geomFactory) {
-		ArrayList<Coordinate> coordinates = new ArrayList<Coordinate>();
-		boolean overrun = false;
-		for (Node node : getPointNodesFromWayNode(wayNode)) {
-			if (coordinates.size() >= vertices) {
-				// System.err.println("Exceeding expected number of way nodes: "
-				// + (index + 1) +
-				// " > " + vertices);
-				overrun = true;
-				overrunCount++;
-				break;
-			}
-			coordinates.add(new Coordinate((Double) node.getProperty("lon"), (Double) node.getProperty("lat")));
-		}
-		decodedCount++;
-		if (overrun) {
-			System.out.println("Overran expected number of way nodes: " + wayNode + " (" + overrunCount + "/" + decodedCount + ")");
-		}
+		Coordinate[] coordinateArray = getCoordinatesFromWay(wayNode, vertices);
+		List<Coordinate> coordinates = Arrays.asList(coordinateArray);
 		if (coordinates.size() != vertices) {
 			if (vertexMistmaches++ < 10) {
 				System.err.println("Mismatching vertices size for " + SpatialDatabaseService.convertGeometryTypeToName(gtype) + ":"
@@ -358,14 +366,48 @@ public class OSMGeometryEncoder extends AbstractGeometryEncoder {
 		default:
 			switch (gtype) {
 			case GTYPE_LINESTRING:
-				return geomFactory.createLineString(coordinates.toArray(new Coordinate[coordinates.size()]));
+				return geomFactory.createLineString(coordinateArray);
 			case GTYPE_POLYGON:
-				return geomFactory.createPolygon(
-						geomFactory.createLinearRing(coordinates.toArray(new Coordinate[coordinates.size()])), new LinearRing[0]);
+				return geomFactory.createPolygon(geomFactory.createLinearRing(coordinateArray), new LinearRing[0]);
 			default:
-				return geomFactory.createMultiPoint(coordinates.toArray(new Coordinate[coordinates.size()]));
+				return geomFactory.createMultiPoint(coordinateArray);
+			}
+		}
+	}
+
+	/**
+	 * Read the coordinates of a way from either way model.
+	 * 
+	 * @param vertices
+	 *            expected number of vertices for proxy chains, or -1 to read
+	 *            the whole chain without checking for overruns
+	 */
+	private Coordinate[] getCoordinatesFromWay(Node wayNode, int vertices) {
+		ArrayList<Coordinate> coordinates = new ArrayList<Coordinate>();
+		boolean overrun = false;
+		if (isCompactWay(wayNode)) {
+			double[] coords = (double[]) wayNode.getProperty(PROP_WAY_COORDINATES);
+			for (int i = 0; i + 1 < coords.length; i += 2) {
+				coordinates.add(new Coordinate(coords[i], coords[i + 1]));
+			}
+		} else {
+			for (Node node : getPointNodesFromWayNode(wayNode)) {
+				if (vertices >= 0 && coordinates.size() >= vertices) {
+					// System.err.println("Exceeding expected number of way nodes: "
+					// + (index + 1) +
+					// " > " + vertices);
+					overrun = true;
+					overrunCount++;
+					break;
+				}
+				coordinates.add(new Coordinate((Double) node.getProperty("lon"), (Double) node.getProperty("lat")));
 			}
 		}
+		decodedCount++;
+		if (overrun) {
+			System.out.println("Overran expected number of way nodes: " + wayNode + " (" + overrunCount + "/" + decodedCount + ")");
+		}
+		return coordinates.toArray(new Coordinate[coordinates.size()]);
 	}
 
 	@Override
@@ -460,55 +502,249 @@ public class OSMGeometryEncoder extends AbstractGeometryEncoder {
 		return dateTimeFormatter.format(new Date(System.currentTimeMillis()));
 	}
 
-	private Node lastGeom = null;
-	private CombinedAttributes lastAttr = null;
-	private long missingTags = 0;
-
-	private class CombinedAttributes {
-		private Node node;
-		private PropertyContainer properties;
-		private HashMap<String, Object> extra = new HashMap<String, Object>();
-
-		CombinedAttributes(Node geomNode) {
-			try {
-				node = geomNode.getSingleRelationship(OSMRelation.GEOM, Direction.INCOMING).getStartNode();
-				properties = node.getSingleRelationship(OSMRelation.TAGS, Direction.OUTGOING).getEndNode();
-				Node changeset = node.getSingleRelationship(OSMRelation.CHANGESET, Direction.OUTGOING).getEndNode();
-				if (changeset != null) {
-					extra.put("changeset", changeset.getProperty("changeset", null));
-					Node user = changeset.getSingleRelationship(OSMRelation.USER, Direction.OUTGOING).getEndNode();
-					if (user != null) {
-						extra.put("user", user.getProperty("name", null));
-						extra.put("user_id", user.getProperty("uid", null));
-					}
-				}
-			} catch (NullPointerException e) {
-				if (missingTags++ < 10) {
-                    System.err.println("Geometry has no related tags node: " + geomNode);
-				} else if (missingTags % 100 == 0) {
-					System.err.println("Geometries without tags found " + missingTags + " times");
-				}
-				properties = new NullProperties();
-			}
+	private static final int DEFAULT_ATTRIBUTE_CACHE_SIZE = 1000;
+	private static final String[] CHANGESET_ATTRIBUTES = new String[] { "changeset", "user", "user_id" };
+
+	/**
+	 * Counts in-place modifications of OSM data, so that attribute caches of
+	 * all encoders and readers can tell that their entries may be stale.
+	 */
+	private static final AtomicLong attributeModifications = new AtomicLong();
+
+	private int attributeCacheSize = DEFAULT_ATTRIBUTE_CACHE_SIZE;
+	private AttributeReader attributes = new AttributeReader(null, attributeCacheSize);
+	private final AtomicLong missingTags = new AtomicLong();
+
+	/**
+	 * A simple access-ordered map that drops the least recently used entry
+	 * once the maximum size is exceeded.
+	 */
+	private static class LRUCache<K, V> extends LinkedHashMap<K, V> {
+		private static final long serialVersionUID = 3213521425349155932L;
+		private int maxSize;
+
+		LRUCache(int maxSize) {
+			super(16, 0.75f, true);
+			this.maxSize = maxSize;
 		}
 
-		public boolean hasProperty(String key) {
-			return extra.containsKey(key) || node.hasProperty(key) || properties.hasProperty(key);
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+			return size() > maxSize;
 		}
+	}
 
-		public Object getProperty(String key) {
-			return extra.containsKey(key) ? extra.get(key) : node.hasProperty(key) ? node.getProperty(key, null) : properties
-					.getProperty(key, null);
+	/**
+	 * Create a reader for the attributes of this layer that resolves the
+	 * given attributes when a geometry is first seen. Only the relationships
+	 * needed for these attributes (TAGS for tags, CHANGESET and USER for
+	 * changeset, user and user_id) are followed, and the values are kept in
+	 * the cache of the reader. Attributes outside the projection are still
+	 * resolved, but lazily and only on request. The reader is meant for one
+	 * query or feature reader, and does not share its projection or cache
+	 * with other readers or with getAttribute(Node, String).
+	 * 
+	 * @param names attributes the query needs, or null for all
+	 */
+	public AttributeReader newAttributeReader(String... names) {
+		return new AttributeReader(names, attributeCacheSize);
+	}
+
+	/**
+	 * Set the number of geometries for which resolved attributes are kept, and
+	 * the number of changesets for which user information is kept. Setting
+	 * this to 1 reproduces the old behaviour of caching only the last
+	 * geometry. Applies to getAttribute(Node, String) and to readers created
+	 * afterwards.
+	 * 
+	 * @param size maximum number of cached entries
+	 */
+	public void setAttributeCacheSize(int size) {
+		if (size < 1) {
+			throw new IllegalArgumentException("Attribute cache size must be >= 1");
 		}
+		attributeCacheSize = size;
+		attributes = new AttributeReader(null, size);
+	}
 
+	/**
+	 * Forget all attributes cached for getAttribute(Node, String).
+	 */
+	public void clearAttributeCache() {
+		attributes.clear();
 	}
 
-	private CombinedAttributes getProperties(Node geomNode) {
-		if (geomNode != lastGeom) {
-			lastGeom = geomNode;
-			lastAttr = new CombinedAttributes(geomNode);
+	/**
+	 * Tell all attribute caches that OSM data has been modified in place, for
+	 * example by the OSMChangeImporter. Each cache is cleared the next time it
+	 * is used.
+	 */
+	public static void attributesModified() {
+		attributeModifications.incrementAndGet();
+	}
+
+	private static boolean isChangesetAttribute(String key) {
+		for (String name : CHANGESET_ATTRIBUTES) {
+			if (name.equals(key)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Resolves the attributes of OSM geometries and keeps them in bounded LRU
+	 * caches, keyed by geometry node and by changeset. The methods are
+	 * synchronized, since the cache is reordered on every read.
+	 */
+	public class AttributeReader {
+		private final HashSet<String> projection;
+		private final LRUCache<Long, CombinedAttributes> attributeCache;
+		private final LRUCache<Long, HashMap<String, Object>> changesetCache;
+		private long modifications;
+
+		private AttributeReader(String[] names, int cacheSize) {
+			this.projection = names == null ? null : new HashSet<String>(Arrays.asList(names));
+			this.attributeCache = new LRUCache<Long, CombinedAttributes>(cacheSize);
+			this.changesetCache = new LRUCache<Long, HashMap<String, Object>>(cacheSize);
+			this.modifications = attributeModifications.get();
+		}
+
+		public synchronized boolean hasAttribute(Node geomNode, String name) {
+			return getProperties(geomNode).hasProperty(name);
+		}
+
+		public synchronized Object getAttribute(Node geomNode, String name) {
+			return getProperties(geomNode).getProperty(name);
+		}
+
+		public synchronized void clear() {
+			attributeCache.clear();
+			changesetCache.clear();
+		}
+
+		private CombinedAttributes getProperties(Node geomNode) {
+			long current = attributeModifications.get();
+			if (current != modifications) {
+				clear();
+				modifications = current;
+			}
+			CombinedAttributes attributes = attributeCache.get(geomNode.getId());
+			if (attributes == null) {
+				attributes = new CombinedAttributes(geomNode);
+				attributeCache.put(geomNode.getId(), attributes);
+			}
+			return attributes;
+		}
+
+		/**
+		 * The attributes of an OSM geometry are spread over the OSM node or
+		 * way, its TAGS node and the CHANGESET and USER nodes. This class only
+		 * follows the relationships needed for the attributes actually asked
+		 * for.
+		 */
+		private class CombinedAttributes {
+			private Node geomNode;
+			private Node node;
+			private PropertyContainer properties;
+			private HashMap<String, Object> extra;
+			private HashMap<String, Object> projected;
+
+			CombinedAttributes(Node geomNode) {
+				this.geomNode = geomNode;
+				Relationship geomRel = geomNode.getSingleRelationship(OSMRelation.GEOM, Direction.INCOMING);
+				if (geomRel == null) {
+					warnMissingTags();
+					properties = new NullProperties();
+					extra = new HashMap<String, Object>();
+				} else {
+					node = geomRel.getStartNode();
+				}
+				if (projection != null) {
+					projected = new HashMap<String, Object>();
+					for (String key : projection) {
+						Object value = resolveProperty(key);
+						if (value != null) {
+							projected.put(key, value);
+						}
+					}
+				}
+			}
+
+			private PropertyContainer getTags() {
+				if (properties == null) {
+					Relationship tagsRel = node.getSingleRelationship(OSMRelation.TAGS, Direction.OUTGOING);
+					if (tagsRel == null) {
+						warnMissingTags();
+						properties = new NullProperties();
+					} else {
+						properties = tagsRel.getEndNode();
+					}
+				}
+				return properties;
+			}
+
+			private void warnMissingTags() {
+				long missing = missingTags.incrementAndGet();
+				if (missing <= 10) {
+					System.err.println("Geometry has no related tags node: " + geomNode);
+				} else if (missing % 100 == 0) {
+					System.err.println("Geometries without tags found " + missing + " times");
+				}
+			}
+
+			private HashMap<String, Object> getExtra() {
+				if (extra == null) {
+					Relationship changesetRel = node.getSingleRelationship(OSMRelation.CHANGESET, Direction.OUTGOING);
+					if (changesetRel == null) {
+						extra = new HashMap<String, Object>();
+					} else {
+						Node changeset = changesetRel.getEndNode();
+						extra = changesetCache.get(changeset.getId());
+						if (extra == null) {
+							extra = new HashMap<String, Object>();
+							extra.put("changeset", changeset.getProperty("changeset", null));
+							Relationship userRel = changeset.getSingleRelationship(OSMRelation.USER, Direction.OUTGOING);
+							if (userRel != null) {
+								Node user = userRel.getEndNode();
+								extra.put("user", user.getProperty("name", null));
+								extra.put("user_id", user.getProperty("uid", null));
+							}
+							changesetCache.put(changeset.getId(), extra);
+						}
+					}
+				}
+				return extra;
+			}
+
+			private Object resolveProperty(String key) {
+				if (isChangesetAttribute(key)) {
+					return getExtra().get(key);
+				} else if (node != null && node.hasProperty(key)) {
+					return node.getProperty(key, null);
+				} else {
+					return getTags().getProperty(key, null);
+				}
+			}
+
+			public boolean hasProperty(String key) {
+				if (projected != null && projection.contains(key)) {
+					return projected.containsKey(key);
+				} else if (isChangesetAttribute(key)) {
+					return getExtra().containsKey(key);
+				} else {
+					return (node != null && node.hasProperty(key)) || getTags().hasProperty(key);
+				}
+			}
+
+			public Object getProperty(String key) {
+				if (projected != null && projection.contains(key)) {
+					return projected.get(key);
+				} else {
+					return resolveProperty(key);
+				}
+			}
 		}
-		return lastAttr;
 	}
 
 	/**
@@ -522,7 +758,7 @@ public class OSMGeometryEncoder extends AbstractGeometryEncoder {
 	 * @return
 	 */
 	public boolean hasAttribute(Node geomNode, String name) {
-		return getProperties(geomNode).hasProperty(name);
+		return attributes.hasAttribute(geomNode, name);
 	}
 
 	/**
@@ -537,7 +773,7 @@ public class OSMGeometryEncoder extends AbstractGeometryEncoder {
 	 * @return attribute, or null
 	 */
 	public Object getAttribute(Node geomNode, String name) {
-		return getProperties(geomNode).getProperty(name);
+		return attributes.getAttribute(geomNode, name);
 	}
 
 	public enum OSMId {
@@ -0,0 +1,542 @@
+/**
+ * Copyright (c) 2010-2013 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.gis.spatial.osm;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.neo4j.gis.spatial.SpatialDatabaseException;
+import org.neo4j.gis.spatial.rtree.Listener;
+import org.neo4j.gis.spatial.utilities.CompressedInput;
+import org.neo4j.gis.spatial.utilities.CompressedInput.CountingInputStream;
+
+import com.vividsolutions.jts.geom.Envelope;
+
+/**
+ * Runs the XML import of an OSM file as a pipeline of stages, each on its own
+ * thread, connected by bounded queues:
+ * <ul>
+ * <li>reader - reads the file in large chunks</li>
+ * <li>parser - runs the StAX parser and collects the raw attributes, tags,
+ * node references and members of each element</li>
+ * <li>transformer - converts attributes to property maps, builds the tag
+ * maps, applies the filter envelope and computes the locations and segment
+ * lengths of ways from the nodes seen so far</li>
+ * <li>writer - the calling thread, which passes the elements to the sink in
+ * file order</li>
+ * </ul>
+ * Elements travel between stages in batches, so the queues are not contended
+ * per element. Since all stages before the writer are bounded, the import runs
+ * at the speed of the slowest stage, which should be the writer. The number
+ * of elements processed by each stage, its rate and the depth of its input
+ * queue are reported to the listener about once a second.
+ */
+class OSMImportPipeline {
+
+	/**
+	 * Receives the elements of the file in order. This is the PBF handler
+	 * with an additional way callback carrying the precomputed geometry, and
+	 * a bounds callback, since XML files declare the bounds after the header.
+	 */
+	interface Sink extends OSMPBFReader.Handler {
+		void bounds(Map<String, Object> bboxProperties);
+
+		void way(Map<String, Object> wayProperties, ArrayList<Long> wayNodes, LinkedHashMap<String, Object> tags,
+				WayGeometry geometry);
+	}
+
+	/**
+	 * Locations and segment lengths of the nodes of a way, as far as they are
+	 * known to the transformer. For each node reference i, lons[i] and lats[i]
+	 * are NaN if the node was not imported. A node that is known and
+	 * different from the previous known node has lengths[i] set to the
+	 * distance from the node at index lengthFrom[i], otherwise lengthFrom[i]
+	 * is -1.
+	 */
+	static class WayGeometry {
+		final double[] lons;
+		final double[] lats;
+		final double[] lengths;
+		final int[] lengthFrom;
+
+		WayGeometry(int size) {
+			lons = new double[size];
+			lats = new double[size];
+			lengths = new double[size];
+			lengthFrom = new int[size];
+		}
+	}
+
+	private static final int HEADER = 0;
+	private static final int BOUNDS = 1;
+	private static final int NODE = 2;
+	private static final int WAY = 3;
+	private static final int RELATION = 4;
+
+	private static class Element {
+		private final int type;
+		private final String[] attributes;
+		private ArrayList<String> tags = new ArrayList<String>();
+		private long[] nodes;
+		private int nodeCount = 0;
+		private ArrayList<String[]> members;
+
+		private Map<String, Object> properties;
+		private LinkedHashMap<String, Object> tagMap;
+		private ArrayList<Long> wayNodes;
+		private ArrayList<Map<String, Object>> memberProperties;
+		private WayGeometry geometry;
+
+		private Element(int type, String[] attributes) {
+			this.type = type;
+			this.attributes = attributes;
+			if (type == WAY) {
+				nodes = new long[16];
+			} else if (type == RELATION) {
+				members = new ArrayList<String[]>();
+			}
+		}
+
+		private void addNode(long ref) {
+			if (nodeCount == nodes.length) {
+				nodes = Arrays.copyOf(nodes, nodeCount * 2);
+			}
+			nodes[nodeCount++] = ref;
+		}
+	}
+
+	private static final byte[] END_OF_FILE = new byte[0];
+	private static final ArrayList<Element> END_OF_ELEMENTS = new ArrayList<Element>();
+
+	private final OSMImporter importer;
+	private final File file;
+	private final Charset charset;
+	private final Envelope filterEnvelope;
+	private final File spillDirectory;
+	private int chunkSize = 64 * 1024;
+	private int batchSize = 1000;
+	private int queueSize = 16;
+
+	private final BlockingQueue<byte[]> chunks;
+	private final BlockingQueue<ArrayList<Element>> parsed;
+	private final BlockingQueue<ArrayList<Element>> transformed;
+	private final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+	private volatile boolean cancelled = false;
+
+	private final AtomicLong bytesRead = new AtomicLong();
+	private final AtomicLong bytesParsed = new AtomicLong();
+	private final AtomicLong compressedBytesRead = new AtomicLong();
+	private final AtomicLong elementsParsed = new AtomicLong();
+	private final AtomicLong elementsTransformed = new AtomicLong();
+	private long elementsWritten = 0;
+
+	OSMImportPipeline(OSMImporter importer, String path, Charset charset, Envelope filterEnvelope,
+			File spillDirectory) {
+		this.importer = importer;
+		this.file = new File(path);
+		this.charset = charset;
+		this.filterEnvelope = filterEnvelope;
+		this.spillDirectory = spillDirectory;
+		this.chunks = new ArrayBlockingQueue<byte[]>(queueSize);
+		this.parsed = new ArrayBlockingQueue<ArrayList<Element>>(queueSize);
+		this.transformed = new ArrayBlockingQueue<ArrayList<Element>>(queueSize);
+	}
+
+	public int getPercentRead() {
+		long length = file.length();
+		// for compressed files we can only measure how far the reader got
+		long position = CompressedInput.isCompressed(file.getName()) ? compressedBytesRead.get() : bytesParsed.get();
+		return length > 0 ? (int) (100.0 * position / length) : 0;
+	}
+
+	/**
+	 * Run the pipeline, passing all elements to the sink on the calling
+	 * thread. Any failure in one of the stages stops the other stages and is
+	 * rethrown here.
+	 */
+	public void run(Sink sink, Listener monitor) throws IOException, XMLStreamException {
+		Thread[] stages = new Thread[] { new Thread(this::read, "osm-reader"),
+				new Thread(this::parse, "osm-parser"), new Thread(this::transform, "osm-transformer") };
+		for (Thread stage : stages) {
+			stage.setDaemon(true);
+			stage.start();
+		}
+		long startTime = System.currentTimeMillis();
+		long reportTime = startTime;
+		try {
+			while (true) {
+				ArrayList<Element> batch = take(transformed);
+				if (batch == END_OF_ELEMENTS) {
+					break;
+				}
+				for (Element element : batch) {
+					write(element, sink);
+				}
+				elementsWritten += batch.size();
+				long now = System.currentTimeMillis();
+				if (now - reportTime > 1000) {
+					reportProgress(monitor, now - startTime);
+					reportTime = now;
+				}
+			}
+			reportProgress(monitor, System.currentTimeMillis() - startTime);
+		} catch (CancelledException e) {
+			// one of the stages failed, rethrown below
+		} catch (RuntimeException e) {
+			failure.compareAndSet(null, e);
+			throw e;
+		} finally {
+			cancelled = true;
+			for (Thread stage : stages) {
+				try {
+					stage.join(10000);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
+		rethrow();
+	}
+
+	public String toString() {
+		return "OSMImportPipeline[" + file + ", batches of " + batchSize + ", queues of " + queueSize + "]";
+	}
+
+	private void reportProgress(Listener monitor, long elapsed) {
+		double seconds = Math.max(elapsed, 1) / 1000.0;
+		monitor.stageProgress("read (KB)", bytesRead.get() / 1024, bytesRead.get() / 1024 / seconds, 0);
+		monitor.stageProgress("parse", elementsParsed.get(), elementsParsed.get() / seconds, chunks.size());
+		monitor.stageProgress("transform", elementsTransformed.get(), elementsTransformed.get() / seconds,
+				parsed.size());
+		monitor.stageProgress("write", elementsWritten, elementsWritten / seconds, transformed.size());
+	}
+
+	private void write(Element element, Sink sink) {
+		switch (element.type) {
+		case HEADER:
+			sink.header(element.properties, null);
+			break;
+		case BOUNDS:
+			sink.bounds(element.properties);
+			break;
+		case NODE:
+			sink.node(element.properties, element.tagMap);
+			break;
+		case WAY:
+			sink.way(element.properties, element.wayNodes, element.tagMap, element.geometry);
+			break;
+		case RELATION:
+			sink.relation(element.properties, element.memberProperties, element.tagMap);
+			break;
+		}
+	}
+
+	private void read() {
+		try (CountingInputStream counted = new CountingInputStream(new FileInputStream(file));
+				InputStream in = CompressedInput.decompress(counted, file.getName())) {
+			while (!cancelled) {
+				byte[] buffer = new byte[chunkSize];
+				int count = in.read(buffer);
+				if (count < 0) {
+					break;
+				}
+				bytesRead.addAndGet(count);
+				compressedBytesRead.set(counted.getCount());
+				put(chunks, count == buffer.length ? buffer : Arrays.copyOf(buffer, count));
+			}
+			put(chunks, END_OF_FILE);
+		} catch (Throwable e) {
+			fail(e);
+		}
+	}
+
+	private void parse() {
+		try {
+			XMLInputFactory factory = XMLInputFactory.newInstance();
+			XMLStreamReader parser = factory.createXMLStreamReader(new InputStreamReader(new ChunkInputStream(), charset));
+			try {
+				ArrayList<Element> batch = new ArrayList<Element>(batchSize);
+				Element current = null;
+				int depth = 0;
+				while (!cancelled && parser.hasNext()) {
+					int event = parser.next();
+					if (event == XMLStreamConstants.START_ELEMENT) {
+						String name = parser.getLocalName();
+						if (depth == 0) {
+							batch.add(new Element(HEADER, attributes(parser)));
+						} else if (depth == 1) {
+							if (name.equals("node")) {
+								current = new Element(NODE, attributes(parser));
+							} else if (name.equals("way")) {
+								current = new Element(WAY, attributes(parser));
+							} else if (name.equals("relation")) {
+								current = new Element(RELATION, attributes(parser));
+							} else if (name.equals("bounds")) {
+								batch.add(new Element(BOUNDS, attributes(parser)));
+							}
+						} else if (depth == 2 && current != null) {
+							if (name.equals("tag")) {
+								current.tags.add(parser.getAttributeValue(null, "k"));
+								current.tags.add(parser.getAttributeValue(null, "v"));
+							} else if (name.equals("nd") && current.type == WAY) {
+								current.addNode(Long.parseLong(parser.getAttributeValue(null, "ref")));
+							} else if (name.equals("member") && current.type == RELATION) {
+								current.members.add(attributes(parser));
+							}
+						}
+						depth++;
+					} else if (event == XMLStreamConstants.END_ELEMENT) {
+						depth--;
+						if (depth == 1 && current != null) {
+							batch.add(current);
+							current = null;
+							if (batch.size() >= batchSize) {
+								elementsParsed.addAndGet(batch.size());
+								put(parsed, batch);
+								batch = new ArrayList<Element>(batchSize);
+							}
+						}
+					}
+				}
+				elementsParsed.addAndGet(batch.size());
+				put(parsed, batch);
+				put(parsed, END_OF_ELEMENTS);
+			} finally {
+				parser.close();
+			}
+		} catch (Throwable e) {
+			fail(e);
+		}
+	}
+
+	private static String[] attributes(XMLStreamReader parser) {
+		String[] attributes = new String[parser.getAttributeCount() * 2];
+		for (int i = 0; i < parser.getAttributeCount(); i++) {
+			attributes[2 * i] = parser.getAttributeLocalName(i);
+			attributes[2 * i + 1] = parser.getAttributeValue(i);
+		}
+		return attributes;
+	}
+
+	private void transform() {
+		try (OSMNodeIdMap locations = new OSMNodeIdMap(spillDirectory)) {
+			while (!cancelled) {
+				ArrayList<Element> batch = take(parsed);
+				if (batch == END_OF_ELEMENTS) {
+					break;
+				}
+				ArrayList<Element> output = new ArrayList<Element>(batch.size());
+				for (Element element : batch) {
+					if (transform(element, locations)) {
+						output.add(element);
+					}
+				}
+				elementsTransformed.addAndGet(batch.size());
+				put(transformed, output);
+			}
+			put(transformed, END_OF_ELEMENTS);
+		} catch (Throwable e) {
+			fail(e);
+		}
+	}
+
+	private boolean transform(Element element, OSMNodeIdMap locations) {
+		switch (element.type) {
+		case HEADER:
+			element.properties = importer.toProperties(null, element.attributes);
+			return true;
+		case BOUNDS:
+			element.properties = importer.toProperties(OSMImporter.PROP_BBOX, element.attributes);
+			return true;
+		case NODE:
+			element.properties = importer.toProperties("node", element.attributes);
+			double lon = (Double) element.properties.get("lon");
+			double lat = (Double) element.properties.get("lat");
+			if (filterEnvelope != null && !filterEnvelope.contains(lon, lat)) {
+				return false;
+			}
+			locations.put(Long.parseLong(element.properties.get("node_osm_id").toString()), -1, lon, lat);
+			break;
+		case WAY:
+			element.properties = importer.toProperties("way", element.attributes);
+			element.wayNodes = new ArrayList<Long>(element.nodeCount);
+			element.geometry = new WayGeometry(element.nodeCount);
+			long prevId = 0;
+			int prevIndex = -1;
+			for (int i = 0; i < element.nodeCount; i++) {
+				long ref = element.nodes[i];
+				element.wayNodes.add(ref);
+				long index = locations.find(ref);
+				WayGeometry geometry = element.geometry;
+				geometry.lengthFrom[i] = -1;
+				if (index < 0) {
+					geometry.lons[i] = Double.NaN;
+					geometry.lats[i] = Double.NaN;
+					continue;
+				}
+				geometry.lons[i] = locations.getLon(index);
+				geometry.lats[i] = locations.getLat(index);
+				if (prevIndex >= 0 && prevId == ref) {
+					continue;
+				}
+				if (prevIndex >= 0) {
+					geometry.lengths[i] = OSMImporter.distance(geometry.lons[prevIndex], geometry.lats[prevIndex],
+							geometry.lons[i], geometry.lats[i]);
+					geometry.lengthFrom[i] = prevIndex;
+				}
+				prevId = ref;
+				prevIndex = i;
+			}
+			element.nodes = null;
+			break;
+		case RELATION:
+			element.properties = importer.toProperties("relation", element.attributes);
+			element.memberProperties = new ArrayList<Map<String, Object>>(element.members.size());
+			for (String[] member : element.members) {
+				element.memberProperties.add(importer.toProperties(null, member));
+			}
+			element.members = null;
+			break;
+		}
+		element.tagMap = new LinkedHashMap<String, Object>();
+		for (int i = 0; i < element.tags.size(); i += 2) {
+			element.tagMap.put(importer.intern(element.tags.get(i)), importer.intern(element.tags.get(i + 1)));
+		}
+		element.tags = null;
+		return true;
+	}
+
+	/**
+	 * Feeds the chunks from the reader stage to the XML parser.
+	 */
+	private class ChunkInputStream extends InputStream {
+		private byte[] chunk = null;
+		private int position = 0;
+
+		private boolean nextChunk() {
+			if (chunk == END_OF_FILE) {
+				return false;
+			}
+			while (chunk == null || position >= chunk.length) {
+				chunk = take(chunks);
+				position = 0;
+				if (chunk == END_OF_FILE) {
+					return false;
+				}
+				bytesParsed.addAndGet(chunk.length);
+			}
+			return true;
+		}
+
+		@Override
+		public int read() {
+			return nextChunk() ? chunk[position++] & 0xff : -1;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int length) {
+			if (length == 0) {
+				return 0;
+			}
+			if (!nextChunk()) {
+				return -1;
+			}
+			int count = Math.min(length, chunk.length - position);
+			System.arraycopy(chunk, position, buffer, offset, count);
+			position += count;
+			return count;
+		}
+	}
+
+	private <E> void put(BlockingQueue<E> queue, E item) {
+		try {
+			while (!queue.offer(item, 100, TimeUnit.MILLISECONDS)) {
+				checkCancelled();
+			}
+		} catch (InterruptedException e) {
+			throw new SpatialDatabaseException("Interrupted while passing data between import stages", e);
+		}
+	}
+
+	private <E> E take(BlockingQueue<E> queue) {
+		try {
+			E item;
+			while ((item = queue.poll(100, TimeUnit.MILLISECONDS)) == null) {
+				checkCancelled();
+			}
+			return item;
+		} catch (InterruptedException e) {
+			throw new SpatialDatabaseException("Interrupted while passing data between import stages", e);
+		}
+	}
+
+	private void checkCancelled() {
+		if (cancelled) {
+			throw new CancelledException();
+		}
+	}
+
+	private void fail(Throwable e) {
+		if (!(e instanceof CancelledException)) {
+			failure.compareAndSet(null, e);
+		}
+		cancelled = true;
+	}
+
+	private void rethrow() throws IOException, XMLStreamException {
+		Throwable e = failure.get();
+		if (e == null) {
+			return;
+		}
+		if (e instanceof IOException) {
+			throw (IOException) e;
+		} else if (e instanceof XMLStreamException) {
+			throw (XMLStreamException) e;
+		} else if (e instanceof RuntimeException) {
+			throw (RuntimeException) e;
+		} else if (e instanceof Error) {
+			throw (Error) e;
+		} else {
+			throw new SpatialDatabaseException("OSM import stage failed", e);
+		}
+	}
+
+	private static class CancelledException extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+	}
+}
@@ -24,7 +24,6 @@ import static org.neo4j.helpers.collection.MapUtil.map;
 
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.PrintStream;
@@ -33,23 +32,36 @@ import java.text.DateFormat;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import javax.xml.stream.XMLStreamException;
 import javax.xml.stream.XMLStreamReader;
 
 import org.apache.commons.collections.MapUtils;
+import org.neo4j.collection.primitive.Primitive;
+import org.neo4j.collection.primitive.PrimitiveLongLongMap;
 import org.geotools.referencing.datum.DefaultEllipsoid;
+import org.neo4j.gis.spatial.utilities.CompressedInput;
+import org.neo4j.gis.spatial.utilities.HilbertCurve;
+import org.neo4j.gis.spatial.utilities.ImportCheckpoint;
 import org.neo4j.gis.spatial.utilities.ReferenceNodes;
 import org.neo4j.gis.spatial.rtree.Envelope;
 import org.neo4j.gis.spatial.rtree.Listener;
 import org.neo4j.gis.spatial.rtree.NullListener;
 import org.neo4j.gis.spatial.Constants;
+import org.neo4j.gis.spatial.SpatialDatabaseException;
 import org.neo4j.gis.spatial.SpatialDatabaseService;
 import org.neo4j.graphdb.*;
 import org.neo4j.graphdb.factory.GraphDatabaseFactory;
@@ -76,6 +88,17 @@ public class OSMImporter implements Constants
     private com.vividsolutions.jts.geom.Envelope filterEnvelope = null;
 
     private Charset charset = Charset.defaultCharset();
+    private boolean useNodeIdMap = false;
+    private int pbfThreads = Runtime.getRuntime().availableProcessors();
+    private File nodeIdMapDirectory = null;
+    private boolean pipelined = false;
+    private boolean compactWays = false;
+    private int sharedTagsSize = 0;
+    private boolean resumable = false;
+    private int hilbertBufferSize = 0;
+    private ConcurrentHashMap<String, String> internedStrings = null;
+    private static final int MAX_INTERNED_STRINGS = 100000;
+    private int reIndexThreads = Runtime.getRuntime().availableProcessors();
 
     private static class TagStats
     {
@@ -223,6 +246,21 @@ public class OSMImporter implements Constants
         this.filterEnvelope = filterEnvelope;
     }
 
+    /**
+     * Create a writer on the OSM dataset of this importer, for applying
+     * changes to an existing import. The writer has an open transaction
+     * until finish() is called.
+     */
+    OSMWriter<Node> createGraphWriter( GraphDatabaseService database,
+            int txInterval )
+    {
+        OSMWriter<Node> osmWriter = OSMWriter.fromGraphDatabase( database,
+                stats, this, txInterval, false );
+        osmWriter.getOrCreateOSMDataset( layerName );
+        osm_dataset = osmWriter.getDatasetId();
+        return osmWriter;
+    }
+
     public long reIndex( GraphDatabaseService database )
     {
         return reIndex( database, 10000, true, false );
@@ -263,13 +301,17 @@ public class OSMImporter implements Constants
                 .relationships(OSMRelation.FIRST_NODE, Direction.OUTGOING)
                 .relationships(OSMRelation.NEXT, Direction.OUTGOING);
 
-        Transaction tx = database.beginTx();
         boolean useWays = false;
         int count = 0;
-        try
+        try ( Transaction tx = database.beginTx() )
         {
             layer.setExtraPropertyNames( stats.getTagStats( "all" ).getTags() );
-            if ( useWays )
+            tx.success();
+        }
+        if ( useWays )
+        {
+            Transaction tx = database.beginTx();
+            try
             {
                 beginProgressMonitor( dataset.getWayCount() );
                 for ( Node way : findWays.traverse(database.getNodeById( osm_dataset )).nodes() )
@@ -293,34 +335,18 @@ public class OSMImporter implements Constants
                         tx = database.beginTx();
                     }
                 } // TODO ask charset to user?
+                tx.success();
             }
-            else
+            finally
             {
-                beginProgressMonitor( dataset.getChangesetCount() );
-                for ( Node changeset : dataset.getAllChangesetNodes() )
-                {
-                    updateProgressMonitor( count );
-                    incrLogContext();
-                    for ( Relationship rel : changeset.getRelationships(
-                            OSMRelation.CHANGESET, Direction.INCOMING ) )
-                    {
-                        stats.addGeomStats( layer.addWay( rel.getStartNode(),
-                                true ) );
-                    }
-                    if ( ++count % commitInterval == 0 )
-                    {
-                        tx.success();
-                        tx.close();
-                        tx = database.beginTx();
-                    }
-                } // TODO ask charset to user?
+                endProgressMonitor();
+                tx.close();
             }
-            tx.success();
         }
-        finally
+        else
         {
-            endProgressMonitor();
-            tx.close();
+            cacheRelationGeometries( database, layer, dataset, commitInterval );
+            count = reIndexChangesets( database, layer, dataset, commitInterval );
         }
 
         if (verboseLog) {
@@ -332,6 +358,223 @@ public class OSMImporter implements Constants
         return count;
     }
 
+    /**
+     * Set the number of threads used to collect and verify the geometries
+     * when re-indexing. Defaults to the number of processors.
+     */
+    public void setReIndexThreads( int threads )
+    {
+        this.reIndexThreads = threads;
+    }
+
+    /**
+     * Re-index all geometries of the dataset in two phases. First the
+     * geometry nodes of all elements of the changesets are collected, and
+     * their geometries decoded to verify them, by several threads, each
+     * working through batches of changesets in read-only transactions.
+     * Then the whole R-tree is built in one bulk load of the layer index.
+     * The throughput of both phases is reported to the listener.
+     * 
+     * @return the number of changesets processed
+     */
+    private int reIndexChangesets( final GraphDatabaseService database,
+            final OSMLayer layer, OSMDataset dataset, int batchSize )
+    {
+        final ArrayList<Long> changesets = new ArrayList<Long>();
+        try ( Transaction tx = database.beginTx() )
+        {
+            for ( Node changeset : dataset.getAllChangesetNodes() )
+            {
+                changesets.add( changeset.getId() );
+            }
+            tx.success();
+        }
+        final int changesetsPerTask = Math.max( 1,
+                Math.min( batchSize, changesets.size() / ( reIndexThreads * 4 ) + 1 ) );
+        ExecutorService executor = Executors.newFixedThreadPool( reIndexThreads );
+        ArrayList<Future<ArrayList<Node>>> tasks = new ArrayList<Future<ArrayList<Node>>>();
+        for ( int start = 0; start < changesets.size(); start += changesetsPerTask )
+        {
+            final List<Long> batch = changesets.subList( start,
+                    Math.min( start + changesetsPerTask, changesets.size() ) );
+            tasks.add( executor.submit( () -> collectGeometryNodes( database, layer, batch ) ) );
+        }
+        executor.shutdown();
+
+        ArrayList<Node> geomNodes = new ArrayList<Node>();
+        long startTime = System.currentTimeMillis();
+        beginProgressMonitor( changesets.size() );
+        try
+        {
+            int count = 0;
+            for ( Future<ArrayList<Node>> task : tasks )
+            {
+                geomNodes.addAll( task.get() );
+                count = Math.min( count + changesetsPerTask, changesets.size() );
+                updateProgressMonitor( count );
+                reportStage( "collect geometries", geomNodes.size(), startTime );
+            }
+        }
+        catch ( InterruptedException e )
+        {
+            executor.shutdownNow();
+            throw new SpatialDatabaseException( "Interrupted while re-indexing", e );
+        }
+        catch ( ExecutionException e )
+        {
+            executor.shutdownNow();
+            throw new SpatialDatabaseException( "Failed to collect geometries for re-indexing", e.getCause() );
+        }
+        finally
+        {
+            endProgressMonitor();
+        }
+        reportStage( "collect geometries", geomNodes.size(), startTime );
+        log( "Collected " + geomNodes.size() + " geometries in "
+             + ( System.currentTimeMillis() - startTime ) / 1000.0 + "s" );
+
+        startTime = System.currentTimeMillis();
+        try ( Transaction tx = database.beginTx() )
+        {
+            for ( Node geomNode : geomNodes )
+            {
+                stats.addGeomStats( geomNode );
+            }
+            tx.success();
+        }
+        layer.addGeometryNodes( geomNodes );
+        reportStage( "bulk load", geomNodes.size(), startTime );
+        log( "Bulk loaded " + geomNodes.size() + " geometries in "
+             + ( System.currentTimeMillis() - startTime ) / 1000.0 + "s" );
+        return changesets.size();
+    }
+
+    /**
+     * Assemble the polygons of all multipolygon relations from their member
+     * ways, and cache them on the relation geometry nodes, so that decoding
+     * them later does not need to stitch the member rings again.
+     * 
+     * @return the number of relation geometries assembled
+     */
+    private int cacheRelationGeometries( GraphDatabaseService database,
+            OSMLayer layer, OSMDataset dataset, int commitInterval )
+    {
+        ArrayList<Long> geomNodes = new ArrayList<Long>();
+        try ( Transaction tx = database.beginTx() )
+        {
+            for ( Node relation : dataset.getAllRelationNodes() )
+            {
+                Relationship geomRel = relation.getSingleRelationship(
+                        OSMRelation.GEOM, Direction.OUTGOING );
+                if ( geomRel != null )
+                {
+                    geomNodes.add( geomRel.getEndNode().getId() );
+                }
+            }
+            tx.success();
+        }
+        OSMGeometryEncoder encoder = (OSMGeometryEncoder) layer.getGeometryEncoder();
+        long startTime = System.currentTimeMillis();
+        int count = 0;
+        Transaction tx = database.beginTx();
+        try
+        {
+            for ( int i = 0; i < geomNodes.size(); i++ )
+            {
+                if ( encoder.cacheAssembledGeometry( database.getNodeById( geomNodes.get( i ) ) ) != null )
+                {
+                    count++;
+                }
+                if ( ( i + 1 ) % commitInterval == 0 )
+                {
+                    tx.success();
+                    tx.close();
+                    tx = database.beginTx();
+                }
+            }
+            tx.success();
+        }
+        finally
+        {
+            tx.close();
+        }
+        reportStage( "assemble multipolygons", count, startTime );
+        return count;
+    }
+
+    /**
+     * Find the geometry nodes of all elements of the changesets, verifying
+     * each geometry by decoding it. This runs on the re-index threads, so it
+     * uses its own geometry encoder, since the encoder is not thread safe.
+     */
+    private ArrayList<Node> collectGeometryNodes( GraphDatabaseService database,
+            OSMLayer layer, List<Long> changesets )
+    {
+        ArrayList<Node> geomNodes = new ArrayList<Node>();
+        OSMGeometryEncoder encoder = new OSMGeometryEncoder();
+        encoder.init( layer );
+        try ( Transaction tx = database.beginTx() )
+        {
+            for ( long changesetId : changesets )
+            {
+                Node changeset = database.getNodeById( changesetId );
+                for ( Relationship rel : changeset.getRelationships(
+                        OSMRelation.CHANGESET, Direction.INCOMING ) )
+                {
+                    Relationship geomRel = rel.getStartNode().getSingleRelationship(
+                            OSMRelation.GEOM, Direction.OUTGOING );
+                    if ( geomRel != null )
+                    {
+                        Node geomNode = geomRel.getEndNode();
+                        try
+                        {
+                            encoder.decodeGeometry( geomNode );
+                            geomNodes.add( geomNode );
+                        }
+                        catch ( Exception e )
+                        {
+                            error( "Failed geometry test on node " + geomNode
+                                   + " for " + rel.getStartNode() + ": "
+                                   + e.getMessage() );
+                        }
+                    }
+                }
+            }
+            tx.success();
+        }
+        return geomNodes;
+    }
+
+    private void reportStage( String stage, long processed, long startTime )
+    {
+        double seconds = Math.max( 1, System.currentTimeMillis() - startTime ) / 1000.0;
+        monitor.stageProgress( stage, processed, processed / seconds, 0 );
+    }
+
+    private static class PendingGeometry<T> implements
+            Comparable<PendingGeometry<T>>
+    {
+        private final T node;
+        private final int gtype;
+        private final Envelope bbox;
+        private final int vertices;
+        private long hilbert;
+
+        private PendingGeometry( T node, int gtype, Envelope bbox, int vertices )
+        {
+            this.node = node;
+            this.gtype = gtype;
+            this.bbox = bbox;
+            this.vertices = vertices;
+        }
+
+        @Override
+        public int compareTo( PendingGeometry<T> other )
+        {
+            return Long.compare( hilbert, other.hilbert );
+        }
+    }
+
     private static class GeometryMetaData
     {
         private Envelope bbox = new Envelope();
@@ -393,11 +636,35 @@ public class OSMImporter implements Constants
         }
     }
 
-    private static abstract class OSMWriter<T>
+    static abstract class OSMWriter<T>
     {
         protected StatsManager statsManager;
         protected OSMImporter osmImporter;
         protected T osm_dataset;
+        protected OSMNodeIdMap nodeIdMap = null;
+        /**
+         * For compact ways, the graph id of the first way that used each OSM
+         * node as an interior vertex, or SHARED_VERTEX once the node has been
+         * connected to its ways. This holds an entry for every vertex of the
+         * import, so it is kept in a primitive map.
+         */
+        protected PrimitiveLongLongMap sharedVertices = Primitive.longLongMap();
+        private static final long SHARED_VERTEX = -1;
+        /**
+         * The tags nodes of recently seen tag sets, if elements with identical
+         * tags share one tags node.
+         */
+        protected Map<Map<String, Object>, T> sharedTags = null;
+        /**
+         * Number of nodes, ways and relations written, and the number that
+         * were already written before a restart and are skipped.
+         */
+        protected long completedElements = 0;
+        protected long resumeElements = 0;
+        protected boolean completed = false;
+        private boolean skippingNode = false;
+        protected ArrayList<PendingGeometry<T>> pendingGeometries = null;
+        private int hilbertBufferSize = 0;
 
         private OSMWriter( StatsManager statsManager, OSMImporter osmImporter )
         {
@@ -430,12 +697,105 @@ public class OSMImporter implements Constants
         protected abstract void addNodeTags( T node,
                 LinkedHashMap<String, Object> tags, String type );
 
-        protected abstract void addNodeGeometry( T node, int gtype,
+        /**
+         * Create the geometry node of an OSM element, or buffer it if
+         * geometries are created in Hilbert curve order.
+         */
+        protected void addNodeGeometry( T node, int gtype, Envelope bbox,
+                int vertices )
+        {
+            if ( pendingGeometries != null && node != null && bbox.isValid()
+                 && vertices > 0 )
+            {
+                pendingGeometries.add( new PendingGeometry<T>( node, gtype,
+                        new Envelope( bbox ), vertices ) );
+                if ( pendingGeometries.size() >= hilbertBufferSize )
+                {
+                    flushGeometries();
+                }
+            }
+            else
+            {
+                createGeometryNode( node, gtype, bbox, vertices );
+            }
+        }
+
+        protected abstract void createGeometryNode( T node, int gtype,
                 Envelope bbox, int vertices );
 
+        /**
+         * Buffer the geometry nodes of up to bufferSize elements and create
+         * them sorted along a Hilbert curve over their envelope centres, so
+         * that geometries close in space are also close in the node and
+         * property stores.
+         */
+        protected void useHilbertOrder( int bufferSize )
+        {
+            hilbertBufferSize = bufferSize;
+            pendingGeometries = new ArrayList<PendingGeometry<T>>( bufferSize );
+        }
+
+        /**
+         * Create the buffered geometry nodes. This must happen before
+         * anything reads them, like the relations reading the geometries of
+         * their members, and before a checkpoint.
+         */
+        protected void flushGeometries()
+        {
+            if ( pendingGeometries == null || pendingGeometries.isEmpty() )
+            {
+                return;
+            }
+            Envelope extent = new Envelope();
+            for ( PendingGeometry<T> geometry : pendingGeometries )
+            {
+                extent.expandToInclude( geometry.bbox );
+            }
+            for ( PendingGeometry<T> geometry : pendingGeometries )
+            {
+                geometry.hilbert = HilbertCurve.index(
+                        ( geometry.bbox.getMinX() + geometry.bbox.getMaxX() ) / 2,
+                        ( geometry.bbox.getMinY() + geometry.bbox.getMaxY() ) / 2,
+                        extent.getMinX(), extent.getMinY(), extent.getMaxX(),
+                        extent.getMaxY() );
+            }
+            Collections.sort( pendingGeometries );
+            for ( PendingGeometry<T> geometry : pendingGeometries )
+            {
+                createGeometryNode( geometry.node, geometry.gtype,
+                        geometry.bbox, geometry.vertices );
+            }
+            pendingGeometries.clear();
+        }
+
         protected abstract T addNode( String name,
                 Map<String, Object> properties, String indexKey );
 
+        protected abstract void setNodeProperty( T node, String key,
+                Object value );
+
+        /**
+         * Let elements with identical tags share one tags node. The tags
+         * nodes of the given number of most recently used tag sets are
+         * remembered, so common sets like highway=residential or
+         * building=yes are only stored once per cache lifetime.
+         */
+        protected void useSharedTags( final int size )
+        {
+            sharedTags = new LinkedHashMap<Map<String, Object>, T>( 16, 0.75f,
+                    true )
+            {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(
+                        Map.Entry<Map<String, Object>, T> eldest )
+                {
+                    return size() > size;
+                }
+            };
+        }
+
         protected abstract void createRelationship( T from, T to,
                 RelationshipType relType, LinkedHashMap<String, Object> relProps );
 
@@ -445,6 +805,42 @@ public class OSMImporter implements Constants
             createRelationship( from, to, relType, null );
         }
 
+        /**
+         * Write a checkpoint of the import progress with every commit, and if
+         * the dataset already has a checkpoint for the same source file,
+         * continue from there. Only the graph database writer supports this,
+         * since the batch inserter cannot recover from a crash.
+         */
+        protected void resumeFrom( String source )
+        {
+            throw new SpatialDatabaseException(
+                    "Resumable imports need a transactional writer, not "
+                            + this );
+        }
+
+        /**
+         * Elements already imported before a restart are read again, but not
+         * written. They still count towards the checkpoint position.
+         */
+        private boolean skipElement()
+        {
+            if ( completedElements < resumeElements )
+            {
+                completedElements++;
+                return true;
+            }
+            return false;
+        }
+
+        /**
+         * Called when a node, way or relation has been completely written,
+         * which is the only safe point to commit a checkpoint.
+         */
+        protected void endElement()
+        {
+            completedElements++;
+        }
+
         protected HashMap<String, Integer> stats = new HashMap<String, Integer>();
         protected HashMap<String, LogCounter> nodeFindStats = new HashMap<String, LogCounter>();
         protected long logTime = 0;
@@ -624,6 +1020,10 @@ public class OSMImporter implements Constants
          */
         protected void addOSMBBox( Map<String, Object> bboxProperties )
         {
+            if ( resumeElements > 0 )
+            {
+                return;
+            }
             T bbox = addNode( PROP_BBOX, bboxProperties, null );
             createRelationship( osm_dataset, bbox, OSMRelation.BBOX );
         }
@@ -638,16 +1038,48 @@ public class OSMImporter implements Constants
          */
         protected void createOSMNode( Map<String, Object> nodeProps )
         {
+            if ( skipElement() )
+            {
+                skippingNode = true;
+                if ( nodeIdMap != null )
+                {
+                    // the map is not persistent, so we need to refill it
+                    T node = getSingleNode( INDEX_NAME_NODE, "node_osm_id",
+                            nodeProps.get( "node_osm_id" ) );
+                    if ( node != null )
+                    {
+                        // not parsed yet, since addNode was not called
+                        nodeIdMap.put( Long.parseLong( nodeProps.get( "node_osm_id" ).toString() ),
+                                getNodeId( node ),
+                                (Double) nodeProps.get( "lon" ),
+                                (Double) nodeProps.get( "lat" ) );
+                    }
+                }
+                return;
+            }
             T changesetNode = getChangesetNode( nodeProps );
             currentNode = addNode( "node", nodeProps, "node_osm_id" );
             createRelationship( currentNode, changesetNode,
                     OSMRelation.CHANGESET );
+            if ( nodeIdMap != null )
+            {
+                nodeIdMap.put( (Long) nodeProps.get( "node_osm_id" ),
+                        getNodeId( currentNode ),
+                        (Double) nodeProps.get( "lon" ),
+                        (Double) nodeProps.get( "lat" ) );
+            }
             nodeCount++;
         }
 
-        private void addOSMNodeTags( boolean allPoints,
+        void addOSMNodeTags( boolean allPoints,
                 LinkedHashMap<String, Object> currentNodeTags )
         {
+            if ( skippingNode )
+            {
+                skippingNode = false;
+                currentNodeTags.clear();
+                return;
+            }
             currentNodeTags.remove( "created_by" ); // redundant information
             // Nodes with tags get added to the index as point geometries
             if ( allPoints || currentNodeTags.size() > 0 )
@@ -662,6 +1094,7 @@ public class OSMImporter implements Constants
                 poiCount++;
             }
             addNodeTags( currentNode, currentNodeTags, "node" );
+            endElement();
         }
 
         protected void debugNodeWithId( T node, String idName, long[] idValues )
@@ -680,6 +1113,27 @@ public class OSMImporter implements Constants
         protected void createOSMWay( Map<String, Object> wayProperties,
                 ArrayList<Long> wayNodes, LinkedHashMap<String, Object> wayTags )
         {
+            createOSMWay( wayProperties, wayNodes, wayTags, null );
+        }
+
+        /**
+         * Create the way, its proxy nodes and the geometry node. If the import
+         * pipeline already found the node locations and segment lengths they
+         * are taken from the geometry, otherwise they are read from the
+         * nodes.
+         */
+        protected void createOSMWay( Map<String, Object> wayProperties,
+                ArrayList<Long> wayNodes, LinkedHashMap<String, Object> wayTags,
+                OSMImportPipeline.WayGeometry wayGeometry )
+        {
+            if ( skipElement() )
+            {
+                if ( osmImporter.compactWays )
+                {
+                    restoreWayVertices( wayProperties );
+                }
+                return;
+            }
             RoadDirection direction = getRoadDirection( wayTags );
             String name = (String) wayTags.get( "name" );
             int geometry = GTYPE_LINESTRING;
@@ -711,18 +1165,73 @@ public class OSMImporter implements Constants
             prev_way = way;
             addNodeTags( way, wayTags, "way" );
             Envelope bbox = new Envelope();
+            int vertices = wayNodes.size();
+            boolean closed;
+            if ( osmImporter.compactWays )
+            {
+                long[] ids = createWayVertices( way, wayNodes, wayGeometry,
+                        changesetNode, bbox );
+                vertices = ids.length;
+                closed = vertices > 1 && ids[0] == ids[vertices - 1];
+            }
+            else
+            {
+                closed = createWayProxies( way, wayNodes, wayGeometry,
+                        changesetNode, direction, bbox );
+            }
+            if ( closed )
+            {
+                geometry = GTYPE_POLYGON;
+            }
+            if ( wayNodes.size() < 2 )
+            {
+                geometry = GTYPE_POINT;
+            }
+            addNodeGeometry( way, geometry, bbox, vertices );
+            this.wayCount++;
+            endElement();
+        }
+
+        /**
+         * Create the proxy node chain of a way, with a NODE relationship from
+         * each proxy to the shared OSM node and the segment length on the NEXT
+         * relationships. Returns true if the way is closed.
+         */
+        private boolean createWayProxies( T way, ArrayList<Long> wayNodes,
+                OSMImportPipeline.WayGeometry wayGeometry, T changesetNode,
+                RoadDirection direction, Envelope bbox )
+        {
             T firstNode = null;
             T prevNode = null;
             T prevProxy = null;
-            Map<String, Object> prevProps = null;
+            double[] prevLoc = null;
             LinkedHashMap<String, Object> relProps = new LinkedHashMap<String, Object>();
             HashMap<String, Object> directionProps = new HashMap<String, Object>();
             directionProps.put( "oneway", true );
-            for ( long nd_ref : wayNodes )
+            int prevIndex = -1;
+            for ( int i = 0; i < wayNodes.size(); i++ )
             {
+                long nd_ref = wayNodes.get( i );
                 // long pointNode =
                 // batchIndexService.getSingleNode("node_osm_id", nd_ref);
-                T pointNode = getOSMNode( nd_ref, changesetNode );
+                T pointNode = null;
+                double[] location = null;
+                if ( nodeIdMap != null )
+                {
+                    long index = nodeIdMap.find( nd_ref );
+                    if ( index >= 0 )
+                    {
+                        pointNode = getNodeById( nodeIdMap.getGraphId( index ) );
+                        location = new double[] { nodeIdMap.getLon( index ),
+                                nodeIdMap.getLat( index ) };
+                    }
+                }
+                if ( pointNode == null )
+                {
+                    // the map only knows the nodes of this import, not those
+                    // of earlier imports into the same database
+                    pointNode = getOSMNode( nd_ref, changesetNode );
+                }
                 if ( pointNode == null )
                 {
                     /*
@@ -743,10 +1252,18 @@ public class OSMImporter implements Constants
                 }
                 createRelationship( proxyNode, pointNode, OSMRelation.NODE,
                         null );
-                Map<String, Object> nodeProps = getNodeProperties( pointNode );
-                double[] location = new double[] {
-                        (Double) nodeProps.get( "lon" ),
-                        (Double) nodeProps.get( "lat" ) };
+                if ( location == null && wayGeometry != null
+                     && !Double.isNaN( wayGeometry.lons[i] ) )
+                {
+                    location = new double[] { wayGeometry.lons[i],
+                            wayGeometry.lats[i] };
+                }
+                if ( location == null )
+                {
+                    Map<String, Object> nodeProps = getNodeProperties( pointNode );
+                    location = new double[] { (Double) nodeProps.get( "lon" ),
+                            (Double) nodeProps.get( "lat" ) };
+                }
                 bbox.expandToInclude( location[0], location[1] );
                 if ( prevProxy == null )
                 {
@@ -755,12 +1272,17 @@ public class OSMImporter implements Constants
                 else
                 {
                     relProps.clear();
-                    double[] prevLoc = new double[] {
-                            (Double) prevProps.get( "lon" ),
-                            (Double) prevProps.get( "lat" ) };
-
-                    double length = distance( prevLoc[0], prevLoc[1],
-                            location[0], location[1] );
+                    double length;
+                    if ( wayGeometry != null
+                         && wayGeometry.lengthFrom[i] == prevIndex )
+                    {
+                        length = wayGeometry.lengths[i];
+                    }
+                    else
+                    {
+                        length = distance( prevLoc[0], prevLoc[1],
+                                location[0], location[1] );
+                    }
                     relProps.put( "length", length );
 
                     // We default to bi-directional (and don't store direction
@@ -781,28 +1303,183 @@ public class OSMImporter implements Constants
                 }
                 prevNode = pointNode;
                 prevProxy = proxyNode;
-                prevProps = nodeProps;
+                prevLoc = location;
+                prevIndex = i;
+            }
+            return firstNode != null && prevNode == firstNode;
+        }
+
+        /**
+         * Store the vertices of a way as packed arrays on the way node: the
+         * OSM ids in PROP_WAY_NODES and the locations in
+         * PROP_WAY_COORDINATES. No proxy nodes are created. The way is only
+         * connected to the shared OSM nodes with NODE relationships at its
+         * endpoints and where it meets another way (or itself), since those
+         * are the only points routing needs. The relationships carry the
+         * index of the vertex in the arrays. An interior vertex only becomes
+         * an intersection when a later way uses the same node, so we remember
+         * the first way that used each node and connect it then. Returns the
+         * packed OSM ids.
+         */
+        private long[] createWayVertices( T way, ArrayList<Long> wayNodes,
+                OSMImportPipeline.WayGeometry wayGeometry, T changesetNode,
+                Envelope bbox )
+        {
+            ArrayList<T> pointNodes = new ArrayList<T>( wayNodes.size() );
+            long[] ids = new long[wayNodes.size()];
+            double[] coordinates = new double[wayNodes.size() * 2];
+            int count = 0;
+            T prevNode = null;
+            for ( int i = 0; i < wayNodes.size(); i++ )
+            {
+                long nd_ref = wayNodes.get( i );
+                T pointNode = null;
+                double[] location = null;
+                if ( nodeIdMap != null )
+                {
+                    long index = nodeIdMap.find( nd_ref );
+                    if ( index >= 0 )
+                    {
+                        pointNode = getNodeById( nodeIdMap.getGraphId( index ) );
+                        location = new double[] { nodeIdMap.getLon( index ),
+                                nodeIdMap.getLat( index ) };
+                    }
+                }
+                if ( pointNode == null )
+                {
+                    // the map only knows the nodes of this import, not those
+                    // of earlier imports into the same database
+                    pointNode = getOSMNode( nd_ref, changesetNode );
+                }
+                if ( pointNode == null )
+                {
+                    missingNode( nd_ref );
+                    continue;
+                }
+                if ( prevNode != null && prevNode.equals( pointNode ) )
+                {
+                    continue;
+                }
+                if ( location == null && wayGeometry != null
+                     && !Double.isNaN( wayGeometry.lons[i] ) )
+                {
+                    location = new double[] { wayGeometry.lons[i],
+                            wayGeometry.lats[i] };
+                }
+                if ( location == null )
+                {
+                    Map<String, Object> nodeProps = getNodeProperties( pointNode );
+                    location = new double[] { (Double) nodeProps.get( "lon" ),
+                            (Double) nodeProps.get( "lat" ) };
+                }
+                bbox.expandToInclude( location[0], location[1] );
+                pointNodes.add( pointNode );
+                ids[count] = nd_ref;
+                coordinates[count * 2] = location[0];
+                coordinates[count * 2 + 1] = location[1];
+                count++;
+                prevNode = pointNode;
+            }
+            ids = Arrays.copyOf( ids, count );
+            setNodeProperty( way, OSMGeometryEncoder.PROP_WAY_NODES, ids );
+            setNodeProperty( way, OSMGeometryEncoder.PROP_WAY_COORDINATES,
+                    Arrays.copyOf( coordinates, count * 2 ) );
+            long wayId = getNodeId( way );
+            for ( int i = 0; i < count; i++ )
+            {
+                if ( !sharedVertices.containsKey( ids[i] ) )
+                {
+                    if ( i == 0 || i == count - 1 )
+                    {
+                        linkWayVertex( way, i, pointNodes.get( i ) );
+                        sharedVertices.put( ids[i], SHARED_VERTEX );
+                    }
+                    else
+                    {
+                        sharedVertices.put( ids[i], wayId );
+                    }
+                    continue;
+                }
+                long owner = sharedVertices.get( ids[i] );
+                if ( owner == wayId )
+                {
+                    // the way crosses itself, so connect the earlier visits
+                    for ( int j = 0; j < i; j++ )
+                    {
+                        if ( ids[j] == ids[i] )
+                        {
+                            linkWayVertex( way, j, pointNodes.get( i ) );
+                        }
+                    }
+                    sharedVertices.put( ids[i], SHARED_VERTEX );
+                }
+                else if ( owner != SHARED_VERTEX )
+                {
+                    T other = getNodeById( owner );
+                    long[] otherIds = (long[]) getNodeProperties( other ).get(
+                            OSMGeometryEncoder.PROP_WAY_NODES );
+                    for ( int j = 0; j < otherIds.length; j++ )
+                    {
+                        if ( otherIds[j] == ids[i] )
+                        {
+                            linkWayVertex( other, j, pointNodes.get( i ) );
+                        }
+                    }
+                    sharedVertices.put( ids[i], SHARED_VERTEX );
+                }
+                linkWayVertex( way, i, pointNodes.get( i ) );
             }
-            // if (prevNode > 0) {
-            // batchGraphDb.createRelationship(way, prevNode,
-            // OSMRelation.LAST_NODE, null);
-            // }
-            if ( firstNode != null && prevNode == firstNode )
+            return ids;
+        }
+
+        /**
+         * The shared vertex map is only kept in memory, so when resuming an
+         * import we add the vertices of the compact ways written before the
+         * restart again. Their intersections are already connected.
+         */
+        private void restoreWayVertices( Map<String, Object> wayProperties )
+        {
+            T way = getSingleNode( INDEX_NAME_WAY, "way_osm_id",
+                    wayProperties.get( "way_osm_id" ) );
+            if ( way == null )
             {
-                geometry = GTYPE_POLYGON;
+                return;
             }
-            if ( wayNodes.size() < 2 )
+            long[] ids = (long[]) getNodeProperties( way ).get(
+                    OSMGeometryEncoder.PROP_WAY_NODES );
+            long wayId = getNodeId( way );
+            for ( int i = 0; ids != null && i < ids.length; i++ )
             {
-                geometry = GTYPE_POINT;
+                boolean seen = sharedVertices.containsKey( ids[i] );
+                if ( i == 0 || i == ids.length - 1
+                     || ( seen && sharedVertices.get( ids[i] ) != wayId ) )
+                {
+                    sharedVertices.put( ids[i], SHARED_VERTEX );
+                }
+                else if ( !seen )
+                {
+                    sharedVertices.put( ids[i], wayId );
+                }
             }
-            addNodeGeometry( way, geometry, bbox, wayNodes.size() );
-            this.wayCount++;
         }
 
-        private void createOSMRelation( Map<String, Object> relationProperties,
+        private void linkWayVertex( T way, int index, T pointNode )
+        {
+            LinkedHashMap<String, Object> relProps = new LinkedHashMap<String, Object>();
+            relProps.put( "index", index );
+            createRelationship( way, pointNode, OSMRelation.NODE, relProps );
+        }
+
+        void createOSMRelation( Map<String, Object> relationProperties,
                 ArrayList<Map<String, Object>> relationMembers,
                 LinkedHashMap<String, Object> relationTags )
         {
+            if ( skipElement() )
+            {
+                return;
+            }
+            // the relation geometry is built from the member geometries
+            flushGeometries();
             String name = (String) relationTags.get( "name" );
             if ( name != null )
             {
@@ -909,6 +1586,7 @@ public class OSMImporter implements Constants
                         metaGeom.getBBox(), metaGeom.getVertices() );
             }
             this.relationCount++;
+            endElement();
         }
 
         /**
@@ -927,6 +1605,10 @@ public class OSMImporter implements Constants
 
         protected abstract T getOSMNode( long osmId, T changesetNode );
 
+        protected abstract long getNodeId( T node );
+
+        protected abstract T getNodeById( long id );
+
         protected abstract void updateGeometryMetaDataFromMember( T member,
                 GeometryMetaData metaGeom, Map<String, Object> nodeProps );
 
@@ -954,6 +1636,7 @@ public class OSMImporter implements Constants
         private int checkCount = 0;
         private int txInterval;
         private boolean relatxedTxFlush = false;
+        private String checkpointSource = null;
 
         private OSMGraphWriter( GraphDatabaseService graphDb,
                 StatsManager statsManager, OSMImporter osmImporter,
@@ -974,17 +1657,81 @@ public class OSMImporter implements Constants
         {
             if ( tx != null )
             {
-                tx.success();
-                tx.close();
+                // forget the transaction first, a failed commit has closed it
+                Transaction committing = tx;
                 tx = null;
                 checkCount = 0;
+                committing.success();
+                committing.close();
             }
         }
 
         private void checkTx()
         {
-            if ( checkCount++ > txInterval || tx == null )
+            // With checkpoints we only commit between elements, see endElement
+            if ( checkCount++ > txInterval && checkpointSource == null
+                 || tx == null )
+            {
+                successTx();
+                tx = graphDb.beginTx();
+            }
+        }
+
+        @Override
+        protected void resumeFrom( String source )
+        {
+            checkpointSource = source;
+            checkTx();
+            try
             {
+                resumeElements = ImportCheckpoint.getPosition( osm_dataset,
+                        source );
+            }
+            catch ( SpatialDatabaseException e )
+            {
+                tx.failure();
+                tx.close();
+                tx = null;
+                throw e;
+            }
+            if ( resumeElements > 0 )
+            {
+                int[] counts = (int[]) osm_dataset.getProperty(
+                        "checkpoint_counts" );
+                nodeCount = counts[0];
+                poiCount = counts[1];
+                wayCount = counts[2];
+                relationCount = counts[3];
+                changesetCount = counts[4];
+                userCount = counts[5];
+                long wayId = (Long) osm_dataset.getProperty(
+                        "checkpoint_prev_way", -1L );
+                prev_way = wayId < 0 ? null : graphDb.getNodeById( wayId );
+                long relationId = (Long) osm_dataset.getProperty(
+                        "checkpoint_prev_relation", -1L );
+                prev_relation = relationId < 0 ? null
+                        : graphDb.getNodeById( relationId );
+                osmImporter.log( "Resuming import of " + source + " after "
+                                 + resumeElements + " elements" );
+            }
+        }
+
+        @Override
+        protected void endElement()
+        {
+            super.endElement();
+            if ( checkpointSource != null && checkCount > txInterval )
+            {
+                flushGeometries();
+                ImportCheckpoint.setPosition( osm_dataset, checkpointSource,
+                        completedElements );
+                osm_dataset.setProperty( "checkpoint_counts", new int[] {
+                        nodeCount, poiCount, wayCount, relationCount,
+                        changesetCount, userCount } );
+                osm_dataset.setProperty( "checkpoint_prev_way",
+                        prev_way == null ? -1L : prev_way.getId() );
+                osm_dataset.setProperty( "checkpoint_prev_relation",
+                        prev_relation == null ? -1L : prev_relation.getId() );
                 successTx();
                 tx = graphDb.beginTx();
             }
@@ -1067,15 +1814,24 @@ public class OSMImporter implements Constants
             if ( node != null && tags.size() > 0 )
             {
                 statsManager.addToTagStats( type, tags.keySet() );
-                Node tagsNode = graphDb.createNode();
-                addProperties( tagsNode, tags );
+                Node tagsNode = sharedTags == null ? null : sharedTags.get( tags );
+                if ( tagsNode == null )
+                {
+                    tagsNode = graphDb.createNode();
+                    addProperties( tagsNode, tags );
+                    if ( sharedTags != null )
+                    {
+                        sharedTags.put( new HashMap<String, Object>( tags ),
+                                tagsNode );
+                    }
+                }
                 node.createRelationshipTo( tagsNode, OSMRelation.TAGS );
                 tags.clear();
             }
         }
 
         @Override
-        protected void addNodeGeometry( Node node, int gtype, Envelope bbox,
+        protected void createGeometryNode( Node node, int gtype, Envelope bbox,
                 int vertices )
         {
             if ( node != null && bbox.isValid() && vertices > 0 )
@@ -1108,6 +1864,12 @@ public class OSMImporter implements Constants
             return node;
         }
 
+        @Override
+        protected void setNodeProperty( Node node, String key, Object value )
+        {
+            node.setProperty( key, value );
+        }
+
         protected Node addNodeWithCheck( String name,
                 Map<String, Object> properties, String indexKey )
         {
@@ -1206,6 +1968,18 @@ public class OSMImporter implements Constants
             }
         }
 
+        @Override
+        protected long getNodeId( Node node )
+        {
+            return node.getId();
+        }
+
+        @Override
+        protected Node getNodeById( long id )
+        {
+            return graphDb.getNodeById( id );
+        }
+
         @Override
         protected void updateGeometryMetaDataFromMember( Node member,
                 GeometryMetaData metaGeom, Map<String, Object> nodeProps )
@@ -1221,6 +1995,23 @@ public class OSMImporter implements Constants
         @Override
         protected void finish()
         {
+            if ( checkpointSource != null )
+            {
+                if ( !completed )
+                {
+                    // Keep only what the last checkpoint covers, so the import
+                    // can be resumed
+                    if ( tx != null )
+                    {
+                        tx.failure();
+                        tx.close();
+                        tx = null;
+                    }
+                    return;
+                }
+                ImportCheckpoint.clear( osm_dataset );
+            }
+            flushGeometries();
             osm_dataset.setProperty( "relationCount",
                     (Integer) osm_dataset.getProperty( "relationCount", 0 )
                             + relationCount );
@@ -1448,7 +2239,15 @@ public class OSMImporter implements Constants
             if ( node != null && node > 0 && tags.size() > 0 )
             {
                 statsManager.addToTagStats( type, tags.keySet() );
-                long id = batchInserter.createNode( tags );
+                Long id = sharedTags == null ? null : sharedTags.get( tags );
+                if ( id == null )
+                {
+                    id = batchInserter.createNode( tags );
+                    if ( sharedTags != null )
+                    {
+                        sharedTags.put( new HashMap<String, Object>( tags ), id );
+                    }
+                }
                 batchInserter.createRelationship( node, id, OSMRelation.TAGS,
                         null );
                 tags.clear();
@@ -1456,7 +2255,7 @@ public class OSMImporter implements Constants
         }
 
         @Override
-        protected void addNodeGeometry( Long node, int gtype, Envelope bbox,
+        protected void createGeometryNode( Long node, int gtype, Envelope bbox,
                 int vertices )
         {
             if ( node > 0 && bbox.isValid() && vertices > 0 )
@@ -1499,6 +2298,12 @@ public class OSMImporter implements Constants
             return id;
         }
 
+        @Override
+        protected void setNodeProperty( Long node, String key, Object value )
+        {
+            batchInserter.setNodeProperty( node, key, value );
+        }
+
         protected Long addNodeWithCheck( String name,
                 Map<String, Object> properties, String indexKey )
         {
@@ -1605,6 +2410,18 @@ public class OSMImporter implements Constants
             }
         }
 
+        @Override
+        protected long getNodeId( Long node )
+        {
+            return node;
+        }
+
+        @Override
+        protected Long getNodeById( long id )
+        {
+            return id;
+        }
+
         @Override
         protected void updateGeometryMetaDataFromMember( Long member,
                 GeometryMetaData metaGeom, Map<String, Object> nodeProps )
@@ -1623,6 +2440,7 @@ public class OSMImporter implements Constants
         @Override
         protected void finish()
         {
+            flushGeometries();
             HashMap<String, Object> dsProps = new HashMap<String, Object>(
                     batchInserter.getNodeProperties( osm_dataset ) );
             updateDSCounts( dsProps, "relationCount", relationCount );
@@ -1766,22 +2584,35 @@ public class OSMImporter implements Constants
                 dataset, allPoints, charset );
     }
 
+    /**
+     * Reader over an OSM file, which may be compressed with gzip or bzip2.
+     * Compressed files are decompressed on a separate thread while they are
+     * parsed, and progress is measured in bytes consumed from the file, so
+     * it is reported correctly for both compressed and plain files.
+     */
     public static class CountedFileReader extends InputStreamReader
     {
         private long length = 0;
         private long charsRead = 0;
+        private final CompressedInput.CountingInputStream source;
 
         public CountedFileReader( String path, Charset charset )
-                                                                throws FileNotFoundException
+                                                                throws IOException
         {
-            super( new FileInputStream( path ), charset );
-            this.length = ( new File( path ) ).length();
+            this( new File( path ), charset );
         }
 
         public CountedFileReader( File file, Charset charset )
-                                                              throws FileNotFoundException
+                                                              throws IOException
+        {
+            this( new CompressedInput.CountingInputStream( new FileInputStream( file ) ), file, charset );
+        }
+
+        private CountedFileReader( CompressedInput.CountingInputStream source, File file, Charset charset )
+                throws IOException
         {
-            super( new FileInputStream( file ), charset );
+            super( CompressedInput.open( source, file.getName() ), charset );
+            this.source = source;
             this.length = file.length();
         }
 
@@ -1797,7 +2628,7 @@ public class OSMImporter implements Constants
 
         public double getProgress()
         {
-            return length > 0 ? (double) charsRead / (double) length : 0;
+            return length > 0 ? (double) source.getCount() / (double) length : 0;
         }
 
         public int getPercentRead()
@@ -1850,6 +2681,141 @@ public class OSMImporter implements Constants
         this.charset = charset;
     }
 
+    /**
+     * Set the number of threads used to decompress and decode blocks when
+     * importing OSM PBF files. Defaults to the number of processors.
+     */
+    public void setPBFThreads( int threads )
+    {
+        this.pbfThreads = threads;
+    }
+
+    /**
+     * Resolve the node references of ways through a memory-mapped map from
+     * OSM node id to graph node id and location, instead of searching the
+     * nodes of the current changeset and the legacy node_osm_id index. This
+     * is much faster for large imports, at the cost of 32 bytes of disk (and
+     * page cache) per OSM node during the import. Nodes that are not in the
+     * map, like those of an earlier import, are still looked up the old way.
+     * 
+     * @param spillDirectory directory for the mapped file, or null to use the
+     *            system temporary directory
+     */
+    public void setNodeIdMap( File spillDirectory )
+    {
+        this.useNodeIdMap = true;
+        this.nodeIdMapDirectory = spillDirectory;
+    }
+
+    /**
+     * Import OSM XML files through a pipeline of reader, parser, transformer
+     * and writer threads connected by bounded queues, instead of doing all
+     * the work on the calling thread. The calling thread only writes to the
+     * graph, so the import is limited by the store rather than by the XML
+     * parser. The throughput and queue depth of each stage are reported to
+     * the listener. The node locations needed for way lengths are kept in a
+     * temporary file in the node id map directory (see setNodeIdMap).
+     */
+    public void setPipelined( boolean pipelined )
+    {
+        this.pipelined = pipelined;
+    }
+
+    /**
+     * Store way vertices as packed arrays of OSM node ids and coordinates on
+     * the way node, instead of as a chain of proxy nodes with one NODE and one
+     * NEXT relationship per vertex. Ways are only connected to the shared OSM
+     * nodes at their endpoints and intersections, which is what routing
+     * needs, so this cuts the number of nodes and relationships written for
+     * the ways to a fraction. The OSMGeometryEncoder and
+     * OSMDataset.getWayNodes read both models. Segment lengths are not
+     * stored. The OSMChangeImporter finds the compact ways of a changed node
+     * by searching the layer at the node location, and ways written by a
+     * change file use proxy nodes. Keeping track of shared nodes costs one
+     * primitive map entry per distinct way node during the import.
+     */
+    public void setCompactWays( boolean compactWays )
+    {
+        this.compactWays = compactWays;
+    }
+
+    /**
+     * Let OSM elements with identical tags share a single tags node instead
+     * of each getting their own. Most tag sets repeat many times
+     * (highway=residential, building=yes), so this saves a large part of the
+     * nodes and property records written for tags. The tags nodes of the
+     * given number of most recently seen tag sets are remembered. Tag keys
+     * and values are also interned while parsing, so repeated strings are
+     * only kept once. Elements still have a single TAGS relationship, so
+     * attribute lookups are unchanged. Passing 0 turns sharing off.
+     * 
+     * @param cacheSize number of distinct tag sets to remember
+     */
+    public void setSharedTags( int cacheSize )
+    {
+        this.sharedTagsSize = cacheSize;
+        this.internedStrings = cacheSize > 0 ? new ConcurrentHashMap<String, String>()
+                : null;
+    }
+
+    /**
+     * Return the canonical copy of a tag key or value if tag sharing is on.
+     * Once the pool is full new strings are returned unchanged, which keeps
+     * the most common strings since they are seen first.
+     */
+    String intern( String value )
+    {
+        if ( internedStrings == null || value == null )
+        {
+            return value;
+        }
+        String interned = internedStrings.get( value );
+        if ( interned == null )
+        {
+            if ( internedStrings.size() >= MAX_INTERNED_STRINGS )
+            {
+                return value;
+            }
+            interned = internedStrings.putIfAbsent( value, value );
+            if ( interned == null )
+            {
+                interned = value;
+            }
+        }
+        return interned;
+    }
+
+    /**
+     * Record the progress of the import on the dataset node with every
+     * commit, and resume from that checkpoint if the same file is imported
+     * again after a crash or restart. The checkpoint includes a fingerprint of
+     * the file, the number of elements written, the dataset counters and the
+     * last way and relation, which continue the dataset chains. The file is
+     * parsed again from the start, but elements already written are skipped.
+     * Commits then only happen between elements, and if the import fails the
+     * work since the last checkpoint is rolled back. This needs a
+     * GraphDatabaseService, not a BatchInserter.
+     */
+    public void setResumable( boolean resumable )
+    {
+        this.resumable = resumable;
+    }
+
+    /**
+     * Create the geometry nodes of up to bufferSize elements at a time in
+     * Hilbert curve order of their envelope centres, instead of file order.
+     * The OSM nodes, ways and relations themselves are still created in file
+     * order, since ways and relations refer back to them, but the geometry
+     * nodes the R-tree points at, with their bounding boxes, then lie close
+     * together in the store for neighbouring features. Buffers are also
+     * flushed before relations and at each checkpoint. Zero, the default,
+     * keeps file order.
+     */
+    public void setHilbertOrder( int bufferSize )
+    {
+        this.hilbertBufferSize = bufferSize;
+    }
+
     public void importFile( OSMWriter<?> osmWriter, String dataset,
             boolean allPoints, Charset charset ) throws IOException,
             XMLStreamException
@@ -1857,6 +2823,34 @@ public class OSMImporter implements Constants
         log( "Importing with osm-writer: " + osmWriter );
         osmWriter.getOrCreateOSMDataset( layerName );
         osm_dataset = osmWriter.getDatasetId();
+        if ( useNodeIdMap )
+        {
+            osmWriter.nodeIdMap = new OSMNodeIdMap( nodeIdMapDirectory );
+            log( "Using node id map: " + osmWriter.nodeIdMap );
+        }
+        if ( sharedTagsSize > 0 )
+        {
+            osmWriter.useSharedTags( sharedTagsSize );
+        }
+        if ( hilbertBufferSize > 0 )
+        {
+            osmWriter.useHilbertOrder( hilbertBufferSize );
+        }
+        if ( resumable )
+        {
+            osmWriter.resumeFrom( ImportCheckpoint.fingerprint( new File(
+                    dataset ) ) );
+        }
+        if ( OSMPBFReader.isPBF( dataset ) )
+        {
+            importPBFFile( osmWriter, dataset, allPoints );
+            return;
+        }
+        if ( pipelined )
+        {
+            importPipelined( osmWriter, dataset, allPoints, charset );
+            return;
+        }
 
         long startTime = System.currentTimeMillis();
         long[] times = new long[] { 0L, 0L, 0L, 0L };
@@ -1884,6 +2878,7 @@ public class OSMImporter implements Constants
                 int event = parser.next();
                 if ( event == javax.xml.stream.XMLStreamConstants.END_DOCUMENT )
                 {
+                    osmWriter.completed = true;
                     break;
                 }
                 switch ( event )
@@ -1931,14 +2926,14 @@ public class OSMImporter implements Constants
                     }
                     else if ( tagPath.equals( "[osm, way, nd]" ) )
                     {
-                        Map<String, Object> properties = extractProperties( parser );
-                        wayNodes.add( Long.parseLong( properties.get( "ref" ).toString() ) );
+                        wayNodes.add( Long.parseLong( parser.getAttributeValue(
+                                null, "ref" ) ) );
                     }
                     else if ( tagPath.endsWith( "tag]" ) )
                     {
-                        Map<String, Object> properties = extractProperties( parser );
-                        currentNodeTags.put( properties.get( "k" ).toString(),
-                                properties.get( "v" ).toString() );
+                        currentNodeTags.put(
+                                intern( parser.getAttributeValue( null, "k" ) ),
+                                intern( parser.getAttributeValue( null, "v" ) ) );
                     }
                     else if ( tagPath.equals( "[osm, relation]" ) )
                     {
@@ -2012,6 +3007,11 @@ public class OSMImporter implements Constants
             parser.close();
             osmWriter.finish();
             this.osm_dataset = osmWriter.getDatasetId();
+            if ( osmWriter.nodeIdMap != null )
+            {
+                osmWriter.nodeIdMap.close();
+                osmWriter.nodeIdMap = null;
+            }
         }
         if (verboseLog) {
             describeTimes(startTime, times);
@@ -2026,6 +3026,201 @@ public class OSMImporter implements Constants
         }
     }
 
+    /**
+     * Import an OSM PBF file. Blocks are decoded in parallel by the
+     * OSMPBFReader, but passed to the writer in file order, through the same
+     * OSMWriter methods the XML import uses.
+     */
+    private void importPBFFile( final OSMWriter<?> osmWriter, String dataset,
+            final boolean allPoints ) throws IOException
+    {
+        long startTime = System.currentTimeMillis();
+        final long[] times = new long[] { 0L, 0L, 0L, 0L };
+        final OSMPBFReader reader = new OSMPBFReader( dataset, pbfThreads );
+        log( "Importing with reader: " + reader );
+        beginProgressMonitor( 100 );
+        setLogContext( dataset );
+        try
+        {
+            reader.read( new WriterSink( osmWriter, allPoints, times )
+            {
+                @Override
+                protected int getPercentRead()
+                {
+                    return reader.getPercentRead();
+                }
+            } );
+            osmWriter.completed = true;
+        }
+        finally
+        {
+            endProgressMonitor();
+            reader.close();
+            osmWriter.finish();
+            this.osm_dataset = osmWriter.getDatasetId();
+            if ( osmWriter.nodeIdMap != null )
+            {
+                osmWriter.nodeIdMap.close();
+                osmWriter.nodeIdMap = null;
+            }
+        }
+        if ( verboseLog )
+        {
+            describeTimes( startTime, times );
+            osmWriter.describeMissing();
+            osmWriter.describeLoaded();
+            stats.dumpGeomStats();
+            stats.printTagStats();
+        }
+    }
+
+    /**
+     * Import an OSM XML file through the OSMImportPipeline. Only the writing
+     * happens on this thread.
+     */
+    private void importPipelined( final OSMWriter<?> osmWriter,
+            String dataset, boolean allPoints, Charset charset )
+            throws IOException, XMLStreamException
+    {
+        long startTime = System.currentTimeMillis();
+        long[] times = new long[] { 0L, 0L, 0L, 0L };
+        final OSMImportPipeline pipeline = new OSMImportPipeline( this,
+                dataset, charset, filterEnvelope, nodeIdMapDirectory );
+        log( "Importing with pipeline: " + pipeline );
+        beginProgressMonitor( 100 );
+        setLogContext( dataset );
+        try
+        {
+            pipeline.run( new WriterSink( osmWriter, allPoints, times )
+            {
+                @Override
+                protected int getPercentRead()
+                {
+                    return pipeline.getPercentRead();
+                }
+            }, monitor );
+            osmWriter.completed = true;
+        }
+        finally
+        {
+            endProgressMonitor();
+            osmWriter.finish();
+            this.osm_dataset = osmWriter.getDatasetId();
+            if ( osmWriter.nodeIdMap != null )
+            {
+                osmWriter.nodeIdMap.close();
+                osmWriter.nodeIdMap = null;
+            }
+        }
+        if ( verboseLog )
+        {
+            describeTimes( startTime, times );
+            osmWriter.describeMissing();
+            osmWriter.describeLoaded();
+            stats.dumpGeomStats();
+            stats.printTagStats();
+        }
+    }
+
+    /**
+     * Passes the elements decoded by the PBF reader or the import pipeline to
+     * the OSMWriter, in file order, on the calling thread. Nodes are
+     * filtered by the PBF reader here, but already filtered by the pipeline.
+     */
+    private abstract class WriterSink implements OSMImportPipeline.Sink
+    {
+        private final OSMWriter<?> osmWriter;
+        private final boolean allPoints;
+        private final long[] times;
+        private boolean startedWays = false;
+        private boolean startedRelations = false;
+
+        private WriterSink( OSMWriter<?> osmWriter, boolean allPoints,
+                long[] times )
+        {
+            this.osmWriter = osmWriter;
+            this.allPoints = allPoints;
+            this.times = times;
+        }
+
+        protected abstract int getPercentRead();
+
+        @Override
+        public void header( Map<String, Object> datasetProperties,
+                Map<String, Object> bboxProperties )
+        {
+            osmWriter.setDatasetProperties( datasetProperties );
+            if ( bboxProperties != null )
+            {
+                osmWriter.addOSMBBox( bboxProperties );
+            }
+        }
+
+        @Override
+        public void bounds( Map<String, Object> bboxProperties )
+        {
+            osmWriter.addOSMBBox( bboxProperties );
+        }
+
+        @Override
+        public void node( Map<String, Object> nodeProperties,
+                LinkedHashMap<String, Object> tags )
+        {
+            updateProgressMonitor( getPercentRead() );
+            incrLogContext();
+            if ( filterEnvelope == null
+                 || filterEnvelope.contains(
+                         (Double) nodeProperties.get( "lon" ),
+                         (Double) nodeProperties.get( "lat" ) ) )
+            {
+                osmWriter.createOSMNode( nodeProperties );
+                osmWriter.addOSMNodeTags( allPoints, tags );
+            }
+        }
+
+        @Override
+        public void way( Map<String, Object> wayProperties,
+                ArrayList<Long> wayNodes, LinkedHashMap<String, Object> tags )
+        {
+            way( wayProperties, wayNodes, tags, null );
+        }
+
+        @Override
+        public void way( Map<String, Object> wayProperties,
+                ArrayList<Long> wayNodes, LinkedHashMap<String, Object> tags,
+                OSMImportPipeline.WayGeometry geometry )
+        {
+            updateProgressMonitor( getPercentRead() );
+            incrLogContext();
+            if ( !startedWays )
+            {
+                startedWays = true;
+                times[0] = System.currentTimeMillis();
+                osmWriter.optimize();
+                times[1] = System.currentTimeMillis();
+            }
+            osmWriter.createOSMWay( wayProperties, wayNodes, tags, geometry );
+        }
+
+        @Override
+        public void relation( Map<String, Object> relationProperties,
+                ArrayList<Map<String, Object>> relationMembers,
+                LinkedHashMap<String, Object> tags )
+        {
+            updateProgressMonitor( getPercentRead() );
+            incrLogContext();
+            if ( !startedRelations )
+            {
+                startedRelations = true;
+                times[2] = System.currentTimeMillis();
+                osmWriter.optimize();
+                times[3] = System.currentTimeMillis();
+            }
+            osmWriter.createOSMRelation( relationProperties,
+                    relationMembers, tags );
+        }
+    }
+
     private void describeTimes( long startTime, long[] times )
     {
         long endTime = System.currentTimeMillis();
@@ -2050,6 +3245,21 @@ public class OSMImporter implements Constants
 
     private Map<String, Object> extractProperties( String name,
             XMLStreamReader parser )
+    {
+        String[] attributes = new String[parser.getAttributeCount() * 2];
+        for ( int i = 0; i < parser.getAttributeCount(); i++ )
+        {
+            attributes[2 * i] = parser.getAttributeLocalName( i );
+            attributes[2 * i + 1] = parser.getAttributeValue( i );
+        }
+        return toProperties( name, attributes );
+    }
+
+    /**
+     * Convert the attributes of an XML element, given as alternating names
+     * and values, to the properties stored in the graph.
+     */
+    Map<String, Object> toProperties( String name, String[] attributes )
     {
         // <node id="269682538" lat="56.0420950" lon="12.9693483" user="sanna"
         // uid="31450" visible="true" version="1" changeset="133823"
@@ -2059,10 +3269,10 @@ public class OSMImporter implements Constants
         // <relation id="77965" user="Grillo" uid="13957" visible="true"
         // version="24" changeset="5465617" timestamp="2010-08-11T19:25:46Z">
         LinkedHashMap<String, Object> properties = new LinkedHashMap<String, Object>();
-        for ( int i = 0; i < parser.getAttributeCount(); i++ )
+        for ( int i = 0; i < attributes.length; i += 2 )
         {
-            String prop = parser.getAttributeLocalName( i );
-            String value = parser.getAttributeValue( i );
+            String prop = attributes[i];
+            String value = attributes[i + 1];
             if ( name != null && prop.equals( "id" ) )
             {
                 prop = name + "_osm_id";
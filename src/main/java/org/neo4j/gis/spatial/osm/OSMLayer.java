@@ -21,6 +21,7 @@ package org.neo4j.gis.spatial.osm;
 
 import java.io.File;
 import java.util.HashMap;
+import java.util.List;
 
 import org.geotools.referencing.crs.DefaultGeographicCRS;
 import org.json.simple.JSONObject;
@@ -119,6 +120,31 @@ public class OSMLayer extends DynamicLayer {
 		}
 	}
 
+	/**
+	 * Add many geometry nodes to the index at once, using the bulk load of
+	 * the RTreeIndex. Used by the OSMImporter when re-indexing the whole
+	 * dataset.
+	 */
+	public void addGeometryNodes(List<Node> geomNodes) {
+		index.add(geomNodes);
+	}
+
+	/**
+	 * Remove the geometry of the way (or node or relation) from the index,
+	 * without deleting the geometry node. Used when applying changes, before
+	 * the geometry is updated and added again with addWay.
+	 */
+	public Node removeWay(Node way) {
+		Relationship geomRel = way.getSingleRelationship(OSMRelation.GEOM, Direction.OUTGOING);
+		if (geomRel != null) {
+			Node geomNode = geomRel.getEndNode();
+			index.remove(geomNode.getId(), false, false);
+			return geomNode;
+		} else {
+			return null;
+		}
+	}
+
 	/**
      * Provides a method for iterating over all nodes that represent geometries in this layer.
      * This is similar to the getAllNodes() methods from GraphDatabaseService but will only return
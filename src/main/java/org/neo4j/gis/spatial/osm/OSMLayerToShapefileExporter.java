@@ -23,8 +23,8 @@ import java.io.File;
 import java.util.HashMap;
 
 import org.neo4j.gis.spatial.Constants;
-import org.neo4j.gis.spatial.ShapefileExporter;
 import org.neo4j.gis.spatial.SpatialDatabaseService;
+import org.neo4j.gis.spatial.StreamingShapefileExporter;
 import org.neo4j.graphdb.GraphDatabaseService;
 import org.neo4j.graphdb.factory.GraphDatabaseFactory;
 
@@ -48,7 +48,7 @@ public class OSMLayerToShapefileExporter {
 			SpatialDatabaseService spatial = new SpatialDatabaseService(db);
 			OSMLayer layer = (OSMLayer) spatial.getLayer(args[2]);
 			if (layer != null) {
-				ShapefileExporter exporter = new ShapefileExporter(db);
+				StreamingShapefileExporter exporter = new StreamingShapefileExporter(db);
 				exporter.setExportDir(args[1]+File.separator+layer.getName());
 				for (int i = 3; i < args.length; i++) {
 					String[] fields = args[i].split("[\\.\\-]");
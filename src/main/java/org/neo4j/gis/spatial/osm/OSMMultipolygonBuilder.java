@@ -0,0 +1,234 @@
+/**
+ * Copyright (c) 2010-2013 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.gis.spatial.osm;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import com.vividsolutions.jts.algorithm.CGAlgorithms;
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.LinearRing;
+import com.vividsolutions.jts.geom.Polygon;
+import com.vividsolutions.jts.index.strtree.STRtree;
+
+/**
+ * Assembles the polygons of an OSM multipolygon (or boundary) relation from
+ * the lines of its member ways. In OSM a ring is frequently split over many
+ * ways, so the member lines are first stitched together by their shared
+ * endpoints, and each inner ring is then assigned to the smallest outer ring
+ * containing it, using an STRtree over the outer ring envelopes so that
+ * relations with many members do not need a quadratic containment test.
+ */
+public class OSMMultipolygonBuilder {
+
+	private final GeometryFactory geometryFactory;
+	private final ArrayList<Coordinate[]> outerLines = new ArrayList<Coordinate[]>();
+	private final ArrayList<Coordinate[]> innerLines = new ArrayList<Coordinate[]>();
+	private final ArrayList<Polygon> polygons = new ArrayList<Polygon>();
+	private int unclosedRings = 0;
+
+	public OSMMultipolygonBuilder(GeometryFactory geometryFactory) {
+		this.geometryFactory = geometryFactory;
+	}
+
+	/**
+	 * Add the coordinates of a member way. Members with role 'inner' become
+	 * holes, all others are treated as outer boundaries, which is how most OSM
+	 * consumers interpret missing or unknown roles.
+	 */
+	public void addMember(String role, Coordinate[] coordinates) {
+		if (coordinates == null || coordinates.length < 2) {
+			return;
+		}
+		if ("inner".equals(role)) {
+			innerLines.add(coordinates);
+		} else {
+			outerLines.add(coordinates);
+		}
+	}
+
+	/**
+	 * Add an already assembled polygon, for example from a nested relation.
+	 */
+	public void addPolygon(Polygon polygon) {
+		if (polygon != null) {
+			polygons.add(polygon);
+		}
+	}
+
+	/**
+	 * @return the number of rings that could not be closed by stitching, and
+	 *         were closed by joining their ends instead
+	 */
+	public int getUnclosedRings() {
+		return unclosedRings;
+	}
+
+	/**
+	 * @return a Polygon if there is only one outer ring, a MultiPolygon if
+	 *         there are several, or null if no ring could be built
+	 */
+	public Geometry build() {
+		List<LinearRing> shells = stitchRings(outerLines);
+		List<LinearRing> holes = stitchRings(innerLines);
+
+		STRtree index = new STRtree();
+		ArrayList<ArrayList<LinearRing>> shellHoles = new ArrayList<ArrayList<LinearRing>>(shells.size());
+		for (int i = 0; i < shells.size(); i++) {
+			index.insert(shells.get(i).getEnvelopeInternal(), i);
+			shellHoles.add(new ArrayList<LinearRing>());
+		}
+		for (LinearRing hole : holes) {
+			int shell = findContainingShell(index, shells, hole);
+			if (shell >= 0) {
+				shellHoles.get(shell).add(hole);
+			}
+		}
+
+		ArrayList<Polygon> result = new ArrayList<Polygon>(polygons);
+		for (int i = 0; i < shells.size(); i++) {
+			ArrayList<LinearRing> inner = shellHoles.get(i);
+			result.add(geometryFactory.createPolygon(shells.get(i), inner.toArray(new LinearRing[inner.size()])));
+		}
+		switch (result.size()) {
+		case 0:
+			return null;
+		case 1:
+			return result.get(0);
+		default:
+			return geometryFactory.createMultiPolygon(result.toArray(new Polygon[result.size()]));
+		}
+	}
+
+	/**
+	 * Find the smallest shell containing the hole. Holes that are not inside
+	 * any shell are broken data, and are dropped.
+	 */
+	@SuppressWarnings("unchecked")
+	private int findContainingShell(STRtree index, List<LinearRing> shells, LinearRing hole) {
+		int found = -1;
+		double foundArea = Double.MAX_VALUE;
+		Coordinate test = hole.getCoordinateN(0);
+		for (Integer candidate : (List<Integer>) index.query(hole.getEnvelopeInternal())) {
+			LinearRing shell = shells.get(candidate);
+			if (shell.getEnvelopeInternal().contains(hole.getEnvelopeInternal())
+					&& CGAlgorithms.isPointInRing(test, shell.getCoordinates())) {
+				double area = Math.abs(CGAlgorithms.signedArea(shell.getCoordinates()));
+				if (area < foundArea) {
+					found = candidate;
+					foundArea = area;
+				}
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * Join lines end to end into closed rings. Lines are matched by their
+	 * endpoints in either direction, reversing them where required. Chains
+	 * that cannot be closed are closed by joining their ends, and chains too
+	 * short to form a ring are dropped.
+	 */
+	private List<LinearRing> stitchRings(List<Coordinate[]> lines) {
+		ArrayList<LinearRing> rings = new ArrayList<LinearRing>();
+		HashMap<Coordinate, ArrayList<Integer>> endpoints = new HashMap<Coordinate, ArrayList<Integer>>();
+		boolean[] used = new boolean[lines.size()];
+		for (int i = 0; i < lines.size(); i++) {
+			Coordinate[] line = lines.get(i);
+			if (isClosed(line)) {
+				used[i] = true;
+				addRing(rings, line);
+			} else {
+				addEndpoint(endpoints, line[0], i);
+				addEndpoint(endpoints, line[line.length - 1], i);
+			}
+		}
+		for (int i = 0; i < lines.size(); i++) {
+			if (used[i]) {
+				continue;
+			}
+			used[i] = true;
+			ArrayList<Coordinate> chain = new ArrayList<Coordinate>();
+			appendLine(chain, lines.get(i), false);
+			while (!chain.get(0).equals2D(chain.get(chain.size() - 1))) {
+				Coordinate end = chain.get(chain.size() - 1);
+				int next = findUnused(endpoints.get(end), used);
+				if (next < 0) {
+					break;
+				}
+				used[next] = true;
+				Coordinate[] line = lines.get(next);
+				appendLine(chain, line, !line[0].equals2D(end));
+			}
+			if (!chain.get(0).equals2D(chain.get(chain.size() - 1))) {
+				unclosedRings++;
+				chain.add(chain.get(0));
+			}
+			addRing(rings, chain.toArray(new Coordinate[chain.size()]));
+		}
+		return rings;
+	}
+
+	private void addRing(List<LinearRing> rings, Coordinate[] coordinates) {
+		if (coordinates.length >= 4) {
+			rings.add(geometryFactory.createLinearRing(coordinates));
+		}
+	}
+
+	private static boolean isClosed(Coordinate[] line) {
+		return line.length > 2 && line[0].equals2D(line[line.length - 1]);
+	}
+
+	private static void addEndpoint(HashMap<Coordinate, ArrayList<Integer>> endpoints, Coordinate coordinate, int line) {
+		ArrayList<Integer> lines = endpoints.get(coordinate);
+		if (lines == null) {
+			lines = new ArrayList<Integer>(2);
+			endpoints.put(coordinate, lines);
+		}
+		lines.add(line);
+	}
+
+	private static int findUnused(List<Integer> candidates, boolean[] used) {
+		if (candidates != null) {
+			for (int candidate : candidates) {
+				if (!used[candidate]) {
+					return candidate;
+				}
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Append the line to the chain, skipping the first coordinate when it
+	 * repeats the current end of the chain.
+	 */
+	private static void appendLine(List<Coordinate> chain, Coordinate[] line, boolean reverse) {
+		for (int i = 0; i < line.length; i++) {
+			Coordinate coordinate = reverse ? line[line.length - 1 - i] : line[i];
+			if (chain.isEmpty() || !chain.get(chain.size() - 1).equals2D(coordinate)) {
+				chain.add(coordinate);
+			}
+		}
+	}
+}
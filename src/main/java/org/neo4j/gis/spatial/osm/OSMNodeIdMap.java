@@ -0,0 +1,267 @@
+/**
+ * Copyright (c) 2010-2013 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.gis.spatial.osm;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+
+/**
+ * A memory-mapped map from OSM node id to the graph node id and location of
+ * that node. During import the OSM nodes are written first and the ways
+ * reference them by OSM id, so keeping this mapping outside the heap lets way
+ * assembly run on primitive array lookups instead of changeset traversals and
+ * legacy index queries.
+ * <p>
+ * Entries are stored as fixed size records (osm id, graph id, lon, lat) in a
+ * file in the spill directory, mapped in segments as the file grows. OSM
+ * files are normally sorted by node id, in which case lookups are a binary
+ * search over the records. If ids arrive out of order, the records added
+ * since the last lookup are sorted in place before the next lookup and
+ * merged with the records that were already sorted.
+ */
+public class OSMNodeIdMap implements Closeable {
+	private static final int RECORD_SIZE = 32;
+	private static final int SEGMENT_BITS = 20;
+	private static final int SEGMENT_RECORDS = 1 << SEGMENT_BITS;
+	private static final long SEGMENT_MASK = SEGMENT_RECORDS - 1;
+
+	private File file;
+	private RandomAccessFile storage;
+	private FileChannel channel;
+	private ArrayList<MappedByteBuffer> segments = new ArrayList<MappedByteBuffer>();
+	private long size = 0;
+	private long lastOsmId = Long.MIN_VALUE;
+	private boolean sorted = true;
+	private long sortedSize = 0;
+
+	/**
+	 * Create a new node id map spilling to a temporary file in the given
+	 * directory. If the directory is null, the system temporary directory is
+	 * used.
+	 * 
+	 * @param spillDirectory directory for the mapped file, or null
+	 */
+	public OSMNodeIdMap(File spillDirectory) throws IOException {
+		if (spillDirectory != null && !spillDirectory.exists()) {
+			spillDirectory.mkdirs();
+		}
+		this.file = File.createTempFile("osm-node-ids", ".map", spillDirectory);
+		this.file.deleteOnExit();
+		this.storage = new RandomAccessFile(file, "rw");
+		this.channel = storage.getChannel();
+	}
+
+	public long size() {
+		return size;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public void put(long osmId, long graphId, double lon, double lat) {
+		if (sorted && osmId < lastOsmId) {
+			sorted = false;
+			sortedSize = size;
+		}
+		lastOsmId = osmId;
+		MappedByteBuffer segment = segmentFor(size);
+		int offset = offsetOf(size);
+		segment.putLong(offset, osmId);
+		segment.putLong(offset + 8, graphId);
+		segment.putDouble(offset + 16, lon);
+		segment.putDouble(offset + 24, lat);
+		size++;
+	}
+
+	/**
+	 * Find the record for the given OSM node id.
+	 * 
+	 * @param osmId
+	 * @return index of the record, or -1 if the node is not known
+	 */
+	public long find(long osmId) {
+		if (!sorted) {
+			sort();
+		}
+		long low = 0;
+		long high = size - 1;
+		while (low <= high) {
+			long mid = (low + high) >>> 1;
+			long midId = getOsmId(mid);
+			if (midId < osmId) {
+				low = mid + 1;
+			} else if (midId > osmId) {
+				high = mid - 1;
+			} else {
+				return mid;
+			}
+		}
+		return -1;
+	}
+
+	public long getOsmId(long index) {
+		return segments.get(segmentOf(index)).getLong(offsetOf(index));
+	}
+
+	public long getGraphId(long index) {
+		return segments.get(segmentOf(index)).getLong(offsetOf(index) + 8);
+	}
+
+	public double getLon(long index) {
+		return segments.get(segmentOf(index)).getDouble(offsetOf(index) + 16);
+	}
+
+	public double getLat(long index) {
+		return segments.get(segmentOf(index)).getDouble(offsetOf(index) + 24);
+	}
+
+	@Override
+	public void close() throws IOException {
+		segments.clear();
+		channel.close();
+		storage.close();
+		file.delete();
+	}
+
+	public String toString() {
+		return "OSMNodeIdMap[" + file + "]: " + size + " nodes";
+	}
+
+	private static int segmentOf(long index) {
+		return (int) (index >>> SEGMENT_BITS);
+	}
+
+	private static int offsetOf(long index) {
+		return (int) (index & SEGMENT_MASK) * RECORD_SIZE;
+	}
+
+	private MappedByteBuffer segmentFor(long index) {
+		int segment = segmentOf(index);
+		while (segments.size() <= segment) {
+			long position = (long) segments.size() * SEGMENT_RECORDS * RECORD_SIZE;
+			try {
+				segments.add(channel.map(FileChannel.MapMode.READ_WRITE, position, (long) SEGMENT_RECORDS * RECORD_SIZE));
+			} catch (IOException e) {
+				throw new OSMGeometryEncoder.OSMGraphException("Failed to extend node id map " + file + ": " + e.getMessage(), e);
+			}
+		}
+		return segments.get(segment);
+	}
+
+	/**
+	 * Sort the records added since the map was last sorted, and merge them
+	 * with the sorted records before them. Only the unsorted tail is sorted,
+	 * so occasional out of order ids cost time in proportion to the records
+	 * they move, not to the whole map.
+	 */
+	private void sort() {
+		heapSort(sortedSize, size);
+		merge(sortedSize);
+		sorted = true;
+		lastOsmId = getOsmId(size - 1);
+	}
+
+	/**
+	 * In-place heap sort of the records from start (inclusive) to end
+	 * (exclusive) by OSM id. This needs no extra memory, which matters since
+	 * the map can be far larger than the heap.
+	 */
+	private void heapSort(long start, long end) {
+		long count = end - start;
+		for (long i = count / 2 - 1; i >= 0; i--) {
+			siftDown(start, i, count);
+		}
+		for (long last = count - 1; last > 0; last--) {
+			swap(start, start + last);
+			siftDown(start, 0, last);
+		}
+	}
+
+	private void siftDown(long start, long root, long count) {
+		while (true) {
+			long child = 2 * root + 1;
+			if (child >= count) {
+				return;
+			}
+			if (child + 1 < count && getOsmId(start + child + 1) > getOsmId(start + child)) {
+				child++;
+			}
+			if (getOsmId(start + root) >= getOsmId(start + child)) {
+				return;
+			}
+			swap(start + root, start + child);
+			root = child;
+		}
+	}
+
+	/**
+	 * Merge the sorted records before middle with the sorted records from
+	 * middle to the end. The tail is copied to scratch space past the end of
+	 * the map, and the two runs are merged from the back, so records before
+	 * the smallest id of the tail are not touched.
+	 */
+	private void merge(long middle) {
+		long tail = size - middle;
+		if (middle == 0 || getOsmId(middle - 1) <= getOsmId(middle)) {
+			return;
+		}
+		for (long j = 0; j < tail; j++) {
+			copy(middle + j, size + j);
+		}
+		long i = middle - 1;
+		long j = tail - 1;
+		long target = size - 1;
+		while (j >= 0) {
+			if (i >= 0 && getOsmId(i) > getOsmId(size + j)) {
+				copy(i--, target--);
+			} else {
+				copy(size + j--, target--);
+			}
+		}
+	}
+
+	private void copy(long from, long to) {
+		MappedByteBuffer source = segments.get(segmentOf(from));
+		MappedByteBuffer target = segmentFor(to);
+		int sourceOffset = offsetOf(from);
+		int targetOffset = offsetOf(to);
+		for (int field = 0; field < RECORD_SIZE; field += 8) {
+			target.putLong(targetOffset + field, source.getLong(sourceOffset + field));
+		}
+	}
+
+	private void swap(long a, long b) {
+		MappedByteBuffer segmentA = segments.get(segmentOf(a));
+		MappedByteBuffer segmentB = segments.get(segmentOf(b));
+		int offsetA = offsetOf(a);
+		int offsetB = offsetOf(b);
+		for (int field = 0; field < RECORD_SIZE; field += 8) {
+			long value = segmentA.getLong(offsetA + field);
+			segmentA.putLong(offsetA + field, segmentB.getLong(offsetB + field));
+			segmentB.putLong(offsetB + field, value);
+		}
+	}
+}
@@ -0,0 +1,918 @@
+/**
+ * Copyright (c) 2010-2013 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.gis.spatial.osm;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import org.neo4j.gis.spatial.Constants;
+
+/**
+ * Reader for the OSM PBF format (*.osm.pbf). The file is a sequence of
+ * length-prefixed blobs, each containing either the header block or a zlib
+ * compressed primitive block of nodes, ways and relations. Blobs are read
+ * sequentially, but decompressed and decoded on a pool of worker threads.
+ * The decoded blocks are handed to the {@link Handler} in file order, so the
+ * result is the same as reading the file on a single thread.
+ * <p>
+ * The elements are presented with the same property maps as the XML reader
+ * in OSMImporter produces, so the same OSMWriter code can store them.
+ * <p>
+ * The protocol buffer decoding is done by hand, to avoid a dependency on
+ * generated protobuf classes. See
+ * http://wiki.openstreetmap.org/wiki/PBF_Format for the format.
+ */
+public class OSMPBFReader implements Closeable {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final int MAX_HEADER_SIZE = 64 * 1024;
+	private static final int MAX_BLOB_SIZE = 32 * 1024 * 1024;
+	private static final String[] MEMBER_TYPES = new String[] { "node", "way", "relation" };
+
+	/**
+	 * Callbacks for the decoded elements, called on the thread calling
+	 * {@link OSMPBFReader#read(Handler)} and in file order.
+	 */
+	public interface Handler {
+		void header(Map<String, Object> datasetProperties, Map<String, Object> bboxProperties);
+
+		void node(Map<String, Object> nodeProperties, LinkedHashMap<String, Object> tags);
+
+		void way(Map<String, Object> wayProperties, ArrayList<Long> wayNodes, LinkedHashMap<String, Object> tags);
+
+		void relation(Map<String, Object> relationProperties, ArrayList<Map<String, Object>> relationMembers,
+				LinkedHashMap<String, Object> tags);
+	}
+
+	private File file;
+	private DataInputStream input;
+	private long length;
+	private long bytesRead = 0;
+	private int threads;
+
+	public OSMPBFReader(File file, int threads) throws IOException {
+		this.file = file;
+		this.length = file.length();
+		this.threads = Math.max(1, threads);
+		this.input = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+	}
+
+	public OSMPBFReader(String path, int threads) throws IOException {
+		this(new File(path), threads);
+	}
+
+	public long getBytesRead() {
+		return bytesRead;
+	}
+
+	public long getLength() {
+		return length;
+	}
+
+	public int getPercentRead() {
+		return length > 0 ? (int) (100.0 * bytesRead / length) : 0;
+	}
+
+	@Override
+	public void close() throws IOException {
+		input.close();
+	}
+
+	public String toString() {
+		return "OSMPBFReader[" + file + "]:threads[" + threads + "]";
+	}
+
+	/**
+	 * Read the entire file, passing all elements to the handler. At most
+	 * twice as many blocks as there are threads are decoded ahead of the
+	 * handler, which limits the memory used when the handler is the slower
+	 * side.
+	 */
+	public void read(Handler handler) throws IOException {
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		ArrayDeque<Future<List<Element>>> pending = new ArrayDeque<Future<List<Element>>>();
+		try {
+			while (true) {
+				final RawBlob blob = readBlob();
+				if (blob == null) {
+					break;
+				}
+				if (blob.type.equals("OSMHeader")) {
+					drain(pending, handler, 0);
+					decodeHeader(blob.decompress(), handler);
+				} else if (blob.type.equals("OSMData")) {
+					pending.add(executor.submit(new Callable<List<Element>>() {
+						@Override
+						public List<Element> call() throws Exception {
+							return decodePrimitiveBlock(blob.decompress());
+						}
+					}));
+					drain(pending, handler, threads * 2);
+				}
+				// Unknown blob types must be skipped according to the spec
+			}
+			drain(pending, handler, 0);
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	private void drain(ArrayDeque<Future<List<Element>>> pending, Handler handler, int keep) throws IOException {
+		while (pending.size() > keep) {
+			try {
+				for (Element element : pending.poll().get()) {
+					element.apply(handler);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while decoding " + file, e);
+			} catch (ExecutionException e) {
+				throw new IOException("Failed to decode block in " + file + ": " + e.getCause().getMessage(), e.getCause());
+			}
+		}
+	}
+
+	private static class RawBlob {
+		private String type;
+		private byte[] data;
+
+		RawBlob(String type, byte[] data) {
+			this.type = type;
+			this.data = data;
+		}
+
+		/**
+		 * Blob message: 1 raw, 2 raw_size, 3 zlib_data. Other compressions
+		 * (lzma, lz4, zstd) are optional in the spec and not supported here.
+		 */
+		byte[] decompress() throws IOException {
+			ProtobufReader blob = new ProtobufReader(data);
+			byte[] raw = null;
+			byte[] zlib = null;
+			int rawSize = 0;
+			while (blob.next()) {
+				switch (blob.field()) {
+				case 1:
+					raw = blob.readBytes();
+					break;
+				case 2:
+					rawSize = (int) blob.readVarint();
+					break;
+				case 3:
+					zlib = blob.readBytes();
+					break;
+				case 4:
+				case 5:
+				case 6:
+				case 7:
+					throw new IOException("Unsupported PBF blob compression (field " + blob.field() + ")");
+				default:
+					blob.skip();
+				}
+			}
+			if (raw != null) {
+				return raw;
+			} else if (zlib != null) {
+				Inflater inflater = new Inflater();
+				try {
+					inflater.setInput(zlib);
+					byte[] result = new byte[rawSize];
+					int size = 0;
+					while (size < rawSize && !inflater.finished()) {
+						int inflated = inflater.inflate(result, size, rawSize - size);
+						if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+							break;
+						}
+						size += inflated;
+					}
+					if (size != rawSize) {
+						throw new IOException("Corrupt PBF blob: expected " + rawSize + " bytes but inflated " + size);
+					}
+					return result;
+				} catch (DataFormatException e) {
+					throw new IOException("Corrupt PBF blob: " + e.getMessage(), e);
+				} finally {
+					inflater.end();
+				}
+			} else {
+				return new byte[0];
+			}
+		}
+	}
+
+	/**
+	 * Read the next BlobHeader (1 type, 2 indexdata, 3 datasize) and its Blob.
+	 * 
+	 * @return the blob, or null at the end of the file
+	 */
+	private RawBlob readBlob() throws IOException {
+		int headerSize;
+		try {
+			headerSize = input.readInt();
+		} catch (EOFException e) {
+			return null;
+		}
+		if (headerSize < 0 || headerSize > MAX_HEADER_SIZE) {
+			throw new IOException("Invalid PBF blob header size " + headerSize + " in " + file);
+		}
+		byte[] header = new byte[headerSize];
+		input.readFully(header);
+		String type = null;
+		int dataSize = 0;
+		ProtobufReader reader = new ProtobufReader(header);
+		while (reader.next()) {
+			switch (reader.field()) {
+			case 1:
+				type = reader.readString();
+				break;
+			case 3:
+				dataSize = (int) reader.readVarint();
+				break;
+			default:
+				reader.skip();
+			}
+		}
+		if (type == null || dataSize < 0 || dataSize > MAX_BLOB_SIZE) {
+			throw new IOException("Invalid PBF blob header in " + file + ": type=" + type + ", size=" + dataSize);
+		}
+		byte[] data = new byte[dataSize];
+		input.readFully(data);
+		bytesRead += 4 + headerSize + dataSize;
+		return new RawBlob(type, data);
+	}
+
+	/**
+	 * HeaderBlock: 1 bbox, 4 required_features, 5 optional_features, 16
+	 * writingprogram, 17 source. The bbox is presented like the XML bounds
+	 * element, and the rest like the attributes of the XML osm element.
+	 */
+	private void decodeHeader(byte[] data, Handler handler) throws IOException {
+		LinkedHashMap<String, Object> datasetProperties = new LinkedHashMap<String, Object>();
+		LinkedHashMap<String, Object> bboxProperties = null;
+		ProtobufReader reader = new ProtobufReader(data);
+		while (reader.next()) {
+			switch (reader.field()) {
+			case 1:
+				bboxProperties = decodeHeaderBBox(reader.readMessage());
+				break;
+			case 4:
+				String feature = reader.readString();
+				if (!feature.equals("OsmSchema-V0.6") && !feature.equals("DenseNodes")) {
+					throw new IOException("Unsupported PBF feature required by " + file + ": " + feature);
+				}
+				break;
+			case 16:
+				datasetProperties.put("generator", reader.readString());
+				break;
+			case 17:
+				datasetProperties.put("source", reader.readString());
+				break;
+			default:
+				reader.skip();
+			}
+		}
+		datasetProperties.put("version", "0.6");
+		handler.header(datasetProperties, bboxProperties);
+	}
+
+	/**
+	 * HeaderBBox: 1 left, 2 right, 3 top, 4 bottom, all sint64 nanodegrees
+	 */
+	private static LinkedHashMap<String, Object> decodeHeaderBBox(ProtobufReader reader) {
+		long[] bbox = new long[5];
+		while (reader.next()) {
+			if (reader.field() >= 1 && reader.field() <= 4) {
+				bbox[reader.field()] = reader.readSignedVarint();
+			} else {
+				reader.skip();
+			}
+		}
+		LinkedHashMap<String, Object> properties = new LinkedHashMap<String, Object>();
+		properties.put("minlat", Double.toString(bbox[4] / 1e9));
+		properties.put("minlon", Double.toString(bbox[1] / 1e9));
+		properties.put("maxlat", Double.toString(bbox[3] / 1e9));
+		properties.put("maxlon", Double.toString(bbox[2] / 1e9));
+		properties.put("name", Constants.PROP_BBOX);
+		return properties;
+	}
+
+	/**
+	 * A decoded element, waiting to be passed to the handler in file order.
+	 */
+	private static abstract class Element {
+		protected LinkedHashMap<String, Object> properties = new LinkedHashMap<String, Object>();
+		protected LinkedHashMap<String, Object> tags = new LinkedHashMap<String, Object>();
+
+		abstract void apply(Handler handler);
+	}
+
+	private static class NodeElement extends Element {
+		void apply(Handler handler) {
+			handler.node(properties, tags);
+		}
+	}
+
+	private static class WayElement extends Element {
+		private ArrayList<Long> wayNodes = new ArrayList<Long>();
+
+		void apply(Handler handler) {
+			handler.way(properties, wayNodes, tags);
+		}
+	}
+
+	private static class RelationElement extends Element {
+		private ArrayList<Map<String, Object>> members = new ArrayList<Map<String, Object>>();
+
+		void apply(Handler handler) {
+			handler.relation(properties, members, tags);
+		}
+	}
+
+	/**
+	 * State shared by all groups in one PrimitiveBlock.
+	 */
+	private static class BlockContext {
+		private String[] strings = new String[0];
+		private long granularity = 100;
+		private long latOffset = 0;
+		private long lonOffset = 0;
+		private long dateGranularity = 1000;
+
+		double lat(long lat) {
+			return (latOffset + granularity * lat) / 1e9;
+		}
+
+		double lon(long lon) {
+			return (lonOffset + granularity * lon) / 1e9;
+		}
+
+		String string(long index) {
+			return index >= 0 && index < strings.length ? strings[(int) index] : "";
+		}
+	}
+
+	/**
+	 * PrimitiveBlock: 1 stringtable, 2 primitivegroup, 17 granularity, 18
+	 * date_granularity, 19 lat_offset, 20 lon_offset. The groups reference
+	 * the string table and offsets, which can come after them in the
+	 * message, so the groups are decoded in a second pass.
+	 */
+	private static List<Element> decodePrimitiveBlock(byte[] data) throws IOException {
+		BlockContext context = new BlockContext();
+		ArrayList<ProtobufReader> groups = new ArrayList<ProtobufReader>();
+		ProtobufReader reader = new ProtobufReader(data);
+		while (reader.next()) {
+			switch (reader.field()) {
+			case 1:
+				ArrayList<String> strings = new ArrayList<String>();
+				ProtobufReader table = reader.readMessage();
+				while (table.next()) {
+					if (table.field() == 1) {
+						strings.add(table.readString());
+					} else {
+						table.skip();
+					}
+				}
+				context.strings = strings.toArray(new String[strings.size()]);
+				break;
+			case 2:
+				groups.add(reader.readMessage());
+				break;
+			case 17:
+				context.granularity = reader.readVarint();
+				break;
+			case 18:
+				context.dateGranularity = reader.readVarint();
+				break;
+			case 19:
+				context.latOffset = reader.readVarint();
+				break;
+			case 20:
+				context.lonOffset = reader.readVarint();
+				break;
+			default:
+				reader.skip();
+			}
+		}
+		ArrayList<Element> elements = new ArrayList<Element>();
+		for (ProtobufReader group : groups) {
+			// PrimitiveGroup: 1 nodes, 2 dense, 3 ways, 4 relations, 5 changesets
+			while (group.next()) {
+				switch (group.field()) {
+				case 1:
+					elements.add(decodeNode(group.readMessage(), context));
+					break;
+				case 2:
+					decodeDenseNodes(group.readMessage(), context, elements);
+					break;
+				case 3:
+					elements.add(decodeWay(group.readMessage(), context));
+					break;
+				case 4:
+					elements.add(decodeRelation(group.readMessage(), context));
+					break;
+				default:
+					group.skip();
+				}
+			}
+		}
+		return elements;
+	}
+
+	private static void putId(Element element, String name, long id) {
+		element.properties.put(name + "_osm_id", Long.toString(id));
+	}
+
+	private static void putTags(Element element, long[] keys, long[] values, BlockContext context) {
+		for (int i = 0; i < keys.length && i < values.length; i++) {
+			element.tags.put(context.string(keys[i]), context.string(values[i]));
+		}
+	}
+
+	/**
+	 * Info: 1 version, 2 timestamp, 3 changeset, 4 uid, 5 user_sid, 6 visible
+	 */
+	private static void decodeInfo(ProtobufReader reader, Element element, BlockContext context) {
+		int version = -1;
+		long timestamp = -1;
+		long changeset = -1;
+		long uid = -1;
+		long userSid = -1;
+		boolean visible = true;
+		while (reader.next()) {
+			switch (reader.field()) {
+			case 1:
+				version = (int) reader.readVarint();
+				break;
+			case 2:
+				timestamp = reader.readVarint();
+				break;
+			case 3:
+				changeset = reader.readVarint();
+				break;
+			case 4:
+				uid = reader.readVarint();
+				break;
+			case 5:
+				userSid = reader.readVarint();
+				break;
+			case 6:
+				visible = reader.readVarint() != 0;
+				break;
+			default:
+				reader.skip();
+			}
+		}
+		putInfo(element, context, version, timestamp, changeset, uid, userSid, visible);
+	}
+
+	/**
+	 * Add the common attributes in the same order and form as the XML reader
+	 */
+	private static void putInfo(Element element, BlockContext context, int version, long timestamp, long changeset,
+			long uid, long userSid, boolean visible) {
+		if (userSid >= 0) {
+			element.properties.put("user", context.string(userSid));
+		}
+		if (uid >= 0) {
+			element.properties.put("uid", Long.toString(uid));
+		}
+		if (!visible) {
+			element.properties.put("visible", false);
+		}
+		if (version >= 0) {
+			element.properties.put("version", Integer.toString(version));
+		}
+		if (changeset >= 0) {
+			element.properties.put("changeset", Long.toString(changeset));
+		}
+		if (timestamp >= 0) {
+			element.properties.put("timestamp", timestamp * context.dateGranularity);
+		}
+	}
+
+	/**
+	 * Node: 1 id, 2 keys, 3 vals, 4 info, 8 lat, 9 lon
+	 */
+	private static Element decodeNode(ProtobufReader reader, BlockContext context) {
+		NodeElement node = new NodeElement();
+		long[] keys = new long[0];
+		long[] values = new long[0];
+		long id = 0;
+		long lat = 0;
+		long lon = 0;
+		ProtobufReader info = null;
+		while (reader.next()) {
+			switch (reader.field()) {
+			case 1:
+				id = reader.readSignedVarint();
+				break;
+			case 2:
+				keys = reader.readPackedVarints(keys, false, false);
+				break;
+			case 3:
+				values = reader.readPackedVarints(values, false, false);
+				break;
+			case 4:
+				info = reader.readMessage();
+				break;
+			case 8:
+				lat = reader.readSignedVarint();
+				break;
+			case 9:
+				lon = reader.readSignedVarint();
+				break;
+			default:
+				reader.skip();
+			}
+		}
+		putId(node, "node", id);
+		node.properties.put("lat", context.lat(lat));
+		node.properties.put("lon", context.lon(lon));
+		if (info != null) {
+			decodeInfo(info, node, context);
+		}
+		putTags(node, keys, values, context);
+		return node;
+	}
+
+	/**
+	 * DenseNodes: 1 id (delta), 5 denseinfo, 8 lat (delta), 9 lon (delta), 10
+	 * keys_vals (key/value string ids for each node, terminated by 0).
+	 * DenseInfo: 1 version, 2 timestamp (delta), 3 changeset (delta), 4 uid
+	 * (delta), 5 user_sid (delta), 6 visible.
+	 */
+	private static void decodeDenseNodes(ProtobufReader reader, BlockContext context, List<Element> elements) {
+		long[] ids = new long[0];
+		long[] lats = new long[0];
+		long[] lons = new long[0];
+		long[] keysVals = new long[0];
+		long[] versions = null;
+		long[] timestamps = null;
+		long[] changesets = null;
+		long[] uids = null;
+		long[] userSids = null;
+		long[] visibles = null;
+		while (reader.next()) {
+			switch (reader.field()) {
+			case 1:
+				ids = reader.readPackedVarints(ids, true, true);
+				break;
+			case 5:
+				ProtobufReader info = reader.readMessage();
+				while (info.next()) {
+					switch (info.field()) {
+					case 1:
+						versions = info.readPackedVarints(versions, false, false);
+						break;
+					case 2:
+						timestamps = info.readPackedVarints(timestamps, true, true);
+						break;
+					case 3:
+						changesets = info.readPackedVarints(changesets, true, true);
+						break;
+					case 4:
+						uids = info.readPackedVarints(uids, true, true);
+						break;
+					case 5:
+						userSids = info.readPackedVarints(userSids, true, true);
+						break;
+					case 6:
+						visibles = info.readPackedVarints(visibles, false, false);
+						break;
+					default:
+						info.skip();
+					}
+				}
+				break;
+			case 8:
+				lats = reader.readPackedVarints(lats, true, true);
+				break;
+			case 9:
+				lons = reader.readPackedVarints(lons, true, true);
+				break;
+			case 10:
+				keysVals = reader.readPackedVarints(keysVals, false, false);
+				break;
+			default:
+				reader.skip();
+			}
+		}
+		int kv = 0;
+		for (int i = 0; i < ids.length; i++) {
+			NodeElement node = new NodeElement();
+			putId(node, "node", ids[i]);
+			node.properties.put("lat", context.lat(lats[i]));
+			node.properties.put("lon", context.lon(lons[i]));
+			if (versions != null) {
+				putInfo(node, context, (int) valueAt(versions, i, -1), valueAt(timestamps, i, -1),
+						valueAt(changesets, i, -1), valueAt(uids, i, -1), valueAt(userSids, i, -1),
+						valueAt(visibles, i, 1) != 0);
+			}
+			while (kv < keysVals.length && keysVals[kv] != 0) {
+				String key = context.string(keysVals[kv++]);
+				String value = kv < keysVals.length ? context.string(keysVals[kv++]) : "";
+				node.tags.put(key, value);
+			}
+			kv++;
+			elements.add(node);
+		}
+	}
+
+	private static long valueAt(long[] values, int index, long defaultValue) {
+		return values != null && index < values.length ? values[index] : defaultValue;
+	}
+
+	/**
+	 * Way: 1 id, 2 keys, 3 vals, 4 info, 8 refs (delta)
+	 */
+	private static Element decodeWay(ProtobufReader reader, BlockContext context) {
+		WayElement way = new WayElement();
+		long[] keys = new long[0];
+		long[] values = new long[0];
+		long[] refs = new long[0];
+		long id = 0;
+		ProtobufReader info = null;
+		while (reader.next()) {
+			switch (reader.field()) {
+			case 1:
+				id = reader.readVarint();
+				break;
+			case 2:
+				keys = reader.readPackedVarints(keys, false, false);
+				break;
+			case 3:
+				values = reader.readPackedVarints(values, false, false);
+				break;
+			case 4:
+				info = reader.readMessage();
+				break;
+			case 8:
+				refs = reader.readPackedVarints(refs, true, true);
+				break;
+			default:
+				reader.skip();
+			}
+		}
+		putId(way, "way", id);
+		if (info != null) {
+			decodeInfo(info, way, context);
+		}
+		putTags(way, keys, values, context);
+		way.wayNodes.ensureCapacity(refs.length);
+		for (long ref : refs) {
+			way.wayNodes.add(ref);
+		}
+		return way;
+	}
+
+	/**
+	 * Relation: 1 id, 2 keys, 3 vals, 4 info, 8 roles_sid, 9 memids (delta),
+	 * 10 types
+	 */
+	private static Element decodeRelation(ProtobufReader reader, BlockContext context) {
+		RelationElement relation = new RelationElement();
+		long[] keys = new long[0];
+		long[] values = new long[0];
+		long[] roles = new long[0];
+		long[] memberIds = new long[0];
+		long[] types = new long[0];
+		long id = 0;
+		ProtobufReader info = null;
+		while (reader.next()) {
+			switch (reader.field()) {
+			case 1:
+				id = reader.readVarint();
+				break;
+			case 2:
+				keys = reader.readPackedVarints(keys, false, false);
+				break;
+			case 3:
+				values = reader.readPackedVarints(values, false, false);
+				break;
+			case 4:
+				info = reader.readMessage();
+				break;
+			case 8:
+				roles = reader.readPackedVarints(roles, false, false);
+				break;
+			case 9:
+				memberIds = reader.readPackedVarints(memberIds, true, true);
+				break;
+			case 10:
+				types = reader.readPackedVarints(types, false, false);
+				break;
+			default:
+				reader.skip();
+			}
+		}
+		putId(relation, "relation", id);
+		if (info != null) {
+			decodeInfo(info, relation, context);
+		}
+		putTags(relation, keys, values, context);
+		for (int i = 0; i < memberIds.length; i++) {
+			LinkedHashMap<String, Object> member = new LinkedHashMap<String, Object>();
+			int type = (int) valueAt(types, i, 0);
+			member.put("type", type >= 0 && type < MEMBER_TYPES.length ? MEMBER_TYPES[type] : null);
+			member.put("ref", Long.toString(memberIds[i]));
+			member.put("role", context.string(valueAt(roles, i, 0)));
+			relation.members.add(member);
+		}
+		return relation;
+	}
+
+	/**
+	 * Minimal protocol buffer wire format reader over a byte array. Call
+	 * next() to move to the next field, then one of the read methods (or
+	 * skip) to consume its value.
+	 */
+	private static class ProtobufReader {
+		private byte[] data;
+		private int position;
+		private int limit;
+		private int field;
+		private int wireType;
+
+		ProtobufReader(byte[] data) {
+			this(data, 0, data.length);
+		}
+
+		ProtobufReader(byte[] data, int offset, int length) {
+			this.data = data;
+			this.position = offset;
+			this.limit = offset + length;
+		}
+
+		boolean next() {
+			if (position >= limit) {
+				return false;
+			}
+			long key = readVarint();
+			field = (int) (key >>> 3);
+			wireType = (int) (key & 7);
+			return true;
+		}
+
+		int field() {
+			return field;
+		}
+
+		long readVarint() {
+			long result = 0;
+			int shift = 0;
+			while (shift < 64) {
+				byte b = data[position++];
+				result |= (long) (b & 0x7F) << shift;
+				if ((b & 0x80) == 0) {
+					return result;
+				}
+				shift += 7;
+			}
+			throw new IllegalStateException("Malformed varint at " + position);
+		}
+
+		long readSignedVarint() {
+			long value = readVarint();
+			return (value >>> 1) ^ -(value & 1);
+		}
+
+		private int readLength() {
+			int length = (int) readVarint();
+			if (length < 0 || position + length > limit) {
+				throw new IllegalStateException("Truncated field " + field + " at " + position);
+			}
+			return length;
+		}
+
+		byte[] readBytes() {
+			int length = readLength();
+			byte[] result = new byte[length];
+			System.arraycopy(data, position, result, 0, length);
+			position += length;
+			return result;
+		}
+
+		String readString() {
+			int length = readLength();
+			String result = new String(data, position, length, UTF8);
+			position += length;
+			return result;
+		}
+
+		ProtobufReader readMessage() {
+			int length = readLength();
+			ProtobufReader message = new ProtobufReader(data, position, length);
+			position += length;
+			return message;
+		}
+
+		/**
+		 * Read a repeated varint field, which may be packed or not, appending
+		 * to any values already read for this field.
+		 * 
+		 * @param previous values already read for this field, or null
+		 * @param signed zig-zag decode the values
+		 * @param delta values are deltas from the previous value
+		 */
+		long[] readPackedVarints(long[] previous, boolean signed, boolean delta) {
+			int count = previous == null ? 0 : previous.length;
+			long[] values = previous == null ? new long[0] : previous;
+			if (wireType == 2) {
+				int length = readLength();
+				int end = position + length;
+				// each varint is at least one byte, so this is an upper bound
+				values = grow(values, count + length);
+				while (position < end) {
+					values[count] = readDeltaVarint(values, count, signed, delta);
+					count++;
+				}
+			} else {
+				values = grow(values, count + 1);
+				values[count] = readDeltaVarint(values, count, signed, delta);
+				count++;
+			}
+			if (count < values.length) {
+				long[] trimmed = new long[count];
+				System.arraycopy(values, 0, trimmed, 0, count);
+				values = trimmed;
+			}
+			return values;
+		}
+
+		private long readDeltaVarint(long[] values, int count, boolean signed, boolean delta) {
+			long value = signed ? readSignedVarint() : readVarint();
+			return delta && count > 0 ? value + values[count - 1] : value;
+		}
+
+		private static long[] grow(long[] values, int size) {
+			if (values.length >= size) {
+				return values;
+			}
+			long[] grown = new long[size];
+			System.arraycopy(values, 0, grown, 0, values.length);
+			return grown;
+		}
+
+		void skip() {
+			switch (wireType) {
+			case 0:
+				readVarint();
+				break;
+			case 1:
+				position += 8;
+				break;
+			case 2:
+				position += readLength();
+				break;
+			case 5:
+				position += 4;
+				break;
+			default:
+				throw new IllegalStateException("Unsupported wire type " + wireType + " for field " + field);
+			}
+		}
+	}
+
+	/**
+	 * Convenience for testing if a file looks like it is in PBF format, based
+	 * on the file name.
+	 */
+	public static boolean isPBF(String path) {
+		return path.toLowerCase().endsWith(".pbf");
+	}
+}
@@ -19,6 +19,7 @@
  */
 package org.neo4j.gis.spatial.pipes;
 
+import com.vividsolutions.jts.geom.Envelope;
 
 /**
  * Abstract pipe for GeoPipelines that filter items.
@@ -37,6 +38,32 @@ public abstract class AbstractFilterGeoPipe extends AbstractGeoPipe {
 		}
 	}
 
+	/**
+	 * Returns an envelope that the envelope of every item passing this filter
+	 * must intersect, or null if the filter doesn't depend on item location.
+	 * GeoPipeline uses it to narrow the index search when this filter directly
+	 * follows the start of the pipeline.
+	 */
+	public Envelope getSearchWindow() {
+		return null;
+	}
+
+	/**
+	 * Returns the name of the only item property this filter tests, or null.
+	 * When the property is copied from the database record, GeoPipeline
+	 * evaluates the filter during the index search, before decoding geometries.
+	 */
+	public String getPropertyKey() {
+		return null;
+	}
+
+	/**
+	 * Tests a value of the property named by {@link #getPropertyKey()}.
+	 */
+	public boolean acceptsPropertyValue(Object value) {
+		return true;
+	}
+
 	/**
 	 * Subclasses should override this method
 	 */
@@ -59,6 +59,14 @@ public abstract class AbstractGeoPipe extends AbstractPipe<GeoPipeFlow, GeoPipeF
 		return flow;
 	}
 
+	/**
+	 * @return true if this pipe can be run on several threads by GeoPipeline.parallel()
+	 * @see StatelessGeoPipe
+	 */
+	public boolean isStateless() {
+		return this instanceof StatelessGeoPipe;
+	}
+
 	/**
 	 * Puts pipe geometry output in the given GeoPipeFlow.
 	 * 
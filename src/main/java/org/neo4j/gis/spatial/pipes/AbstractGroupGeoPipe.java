@@ -39,6 +39,7 @@ public abstract class AbstractGroupGeoPipe extends AbstractGeoPipe {
 			} catch (NoSuchElementException e) {
 		    }
 			
+			groupingComplete();
 			groupIterator = groups.iterator();			
 		} 
 		
@@ -51,4 +52,12 @@ public abstract class AbstractGroupGeoPipe extends AbstractGeoPipe {
 	protected void group(GeoPipeFlow flow) {
 		groups.add(flow);
 	}
+
+	/**
+	 * Called once every item has been grouped, before the first group is
+	 * emitted. Subclasses that build the group geometries at the end, rather
+	 * than for every item, can override this.
+	 */
+	protected void groupingComplete() {
+	}
 }
\ No newline at end of file
@@ -26,10 +26,12 @@ import java.util.Map;
 
 import org.neo4j.gis.spatial.SpatialDatabaseRecord;
 import org.neo4j.gis.spatial.SpatialRecord;
+import org.neo4j.gis.spatial.Utilities;
 
 import com.vividsolutions.jts.geom.Envelope;
 import com.vividsolutions.jts.geom.Geometry;
 import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.NotFoundException;
 
 
 public class GeoPipeFlow implements SpatialRecord {
@@ -38,6 +40,8 @@ public class GeoPipeFlow implements SpatialRecord {
 	private List<SpatialDatabaseRecord> records = new ArrayList<SpatialDatabaseRecord>();
 	private Geometry geometry;
 	private Envelope geometryEnvelope;
+	// true until the geometry of the first record is decoded or replaced
+	private boolean recordGeometry = false;
 	private Map<String,Object> properties = new HashMap<String,Object>();
 	
 	private GeoPipeFlow(String id) {
@@ -47,7 +51,7 @@ public class GeoPipeFlow implements SpatialRecord {
 	public GeoPipeFlow(SpatialDatabaseRecord record) {
 		this.id = Long.toString(record.getNodeId());
 		this.records.add(record);
-		this.geometry = record.getGeometry();
+		this.recordGeometry = true;
 	}
 	
 	public SpatialDatabaseRecord getRecord() {
@@ -72,22 +76,61 @@ public class GeoPipeFlow implements SpatialRecord {
 		return id;
 	}
 	
+	/**
+	 * The geometry of a flow created from a record is decoded the first time
+	 * it's needed, so pipelines that only read properties or nodes don't pay
+	 * for decoding. Decoding reads the geometry node, so this first call must
+	 * be made in a transaction.
+	 * 
+	 * @see #decode()
+	 */
 	@Override
 	public Geometry getGeometry() {
+		if (recordGeometry) {
+			geometry = getRecord().getGeometry();
+			recordGeometry = false;
+		}
 		return geometry;
 	}
 	
+	/**
+	 * Decodes the geometry now, if it hasn't been decoded yet. Flows must be
+	 * decoded before they leave the transaction or the thread that read them,
+	 * so that the geometry can still be read afterwards.
+	 */
+	public void decode() {
+		getGeometry();
+	}
+	
+	/**
+	 * While the geometry of a record hasn't been decoded, its envelope is
+	 * read from the bounding box stored by the layer encoder.
+	 */
 	public Envelope getEnvelope() {
+		if (geometryEnvelope == null && recordGeometry) {
+			geometryEnvelope = decodeRecordEnvelope();
+		}
 		if (geometryEnvelope == null) {
-			geometryEnvelope = geometry.getEnvelopeInternal();
+			geometryEnvelope = getGeometry().getEnvelopeInternal();
 		}
 		
 		return geometryEnvelope;
 	}
 	
+	private Envelope decodeRecordEnvelope() {
+		SpatialDatabaseRecord record = getRecord();
+		try {
+			return Utilities.fromNeo4jToJts(record.getLayer().getGeometryEncoder().decodeEnvelope(record.getGeomNode()));
+		} catch (NotFoundException e) {
+			// no bounding box stored
+			return null;
+		}
+	}
+	
 	public void setGeometry(Geometry geometry) {
 		this.geometry = geometry;
 		this.geometryEnvelope = null;
+		this.recordGeometry = false;
 	}
 	
 	public Map<String,Object> getProperties() {
@@ -118,6 +161,8 @@ public class GeoPipeFlow implements SpatialRecord {
 		GeoPipeFlow clone = new GeoPipeFlow(id + "-" + idSuffix);
 		clone.records.addAll(records);
 		clone.geometry = geometry;
+		clone.geometryEnvelope = geometryEnvelope;
+		clone.recordGeometry = recordGeometry;
 		clone.getProperties().putAll(getProperties());
 		return clone;
 	}
@@ -20,6 +20,7 @@
 package org.neo4j.gis.spatial.pipes;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
@@ -77,10 +78,12 @@ import org.neo4j.gis.spatial.pipes.processing.Dimension;
 import org.neo4j.gis.spatial.pipes.processing.Distance;
 import org.neo4j.gis.spatial.pipes.processing.EndPoint;
 import org.neo4j.gis.spatial.pipes.processing.ExtractGeometries;
+import org.neo4j.gis.spatial.pipes.processing.ExternalSort;
 import org.neo4j.gis.spatial.pipes.processing.ExtractPoints;
 import org.neo4j.gis.spatial.pipes.processing.GML;
 import org.neo4j.gis.spatial.pipes.processing.GeoJSON;
 import org.neo4j.gis.spatial.pipes.processing.GeometryType;
+import org.neo4j.gis.spatial.pipes.processing.GroupBy;
 import org.neo4j.gis.spatial.pipes.processing.InteriorPoint;
 import org.neo4j.gis.spatial.pipes.processing.IntersectAll;
 import org.neo4j.gis.spatial.pipes.processing.Intersection;
@@ -100,6 +103,10 @@ import org.neo4j.gis.spatial.pipes.processing.SymDifference;
 import org.neo4j.gis.spatial.pipes.processing.Union;
 import org.neo4j.gis.spatial.pipes.processing.UnionAll;
 import org.neo4j.gis.spatial.pipes.processing.WellKnownText;
+import org.neo4j.gis.spatial.pipes.writers.AbstractGeoPipeWriter;
+import org.neo4j.gis.spatial.pipes.writers.GeoJSONWriter;
+import org.neo4j.gis.spatial.pipes.writers.KeyholeMarkupLanguageWriter;
+import org.neo4j.gis.spatial.pipes.writers.WellKnownTextWriter;
 import org.neo4j.graphdb.Node;
 import org.opengis.feature.simple.SimpleFeature;
 import org.opengis.feature.simple.SimpleFeatureType;
@@ -113,6 +120,12 @@ import com.vividsolutions.jts.geom.util.AffineTransformation;
 public class GeoPipeline extends Pipeline<GeoPipeFlow,GeoPipeFlow> {
 
 	protected Layer layer;
+	protected SearchFilter searchFilter;
+	private IndexSearchPlan plan;
+	private ProfilingSearchFilter indexProfile;
+	private boolean planned = false;
+	private int parallelThreads = 0;
+	private boolean parallelOrdered = true;
 	
 	protected GeoPipeline(Layer layer) {
         this.layer = layer;
@@ -191,7 +204,9 @@ public class GeoPipeline extends Pipeline<GeoPipeFlow,GeoPipeFlow> {
      * @return geoPipeline
      */
     public static GeoPipeline start(Layer layer, SearchFilter searchFilter) {
-    	return start(layer, layer.getIndex().search(searchFilter));
+    	GeoPipeline pipeline = start(layer, layer.getIndex().search(searchFilter));
+    	pipeline.searchFilter = searchFilter;
+    	return pipeline;
     }
 
     /**
@@ -212,7 +227,7 @@ public class GeoPipeline extends Pipeline<GeoPipeFlow,GeoPipeFlow> {
      * @return geoPipeline
      */
     public static GeoPipeline startIntersectWindowSearch(Layer layer, Envelope searchWindow) {
-    	return start(layer, layer.getIndex().search(new SearchIntersectWindow(layer, searchWindow)));
+    	return start(layer, new SearchIntersectWindow(layer, searchWindow));
     }
     
     /**
@@ -424,6 +439,192 @@ public class GeoPipeline extends Pipeline<GeoPipeFlow,GeoPipeFlow> {
     	return (GeoPipeline) add(geoPipe);
     }
 
+    /**
+     * Adds a pipe at the end of this pipeline. In parallel mode, stateless
+     * pipes are appended to a parallel run at the end of the pipeline, or
+     * start a new one.
+     */
+    @Override
+    public void addPipe(final Pipe pipe) {
+    	if (parallelThreads > 0 && pipe instanceof AbstractGeoPipe && ((AbstractGeoPipe) pipe).isStateless()) {
+    		Pipe last = pipes.isEmpty() ? null : pipes.get(pipes.size() - 1);
+    		if (!(last instanceof ParallelGeoPipe)) {
+    			last = new ParallelGeoPipe(layer.getSpatialDatabase().getDatabase(), parallelThreads, parallelOrdered);
+    			super.addPipe(last);
+    		}
+    		((ParallelGeoPipe) last).addPipe((AbstractGeoPipe) pipe);
+    	} else {
+    		super.addPipe(pipe);
+    	}
+    }
+
+    /**
+     * Before the first item is read, folds the filters directly following the
+     * start of the pipeline into the index search.
+     * 
+     * @see IndexSearchPlan
+     */
+    @Override
+    public boolean hasNext() {
+    	plan();
+    	return super.hasNext();
+    }
+
+    @Override
+    public GeoPipeFlow next() {
+    	plan();
+    	return super.next();
+    }
+
+    private void plan() {
+    	if (planned) {
+    		return;
+    	}
+    	planned = true;
+    	if (searchFilter == null) {
+    		return;
+    	}
+    	
+    	plan = new IndexSearchPlan(layer, searchFilter, pipes.subList(1, pipes.size()));
+    	boolean profiling = getProfilingPipes() != null;
+    	if (plan.isRewritten() || profiling) {
+    		SearchFilter filter = plan.isRewritten() ? plan : searchFilter;
+    		List<Pipe> rewritten = new ArrayList<Pipe>();
+    		if (profiling) {
+    			indexProfile = new ProfilingSearchFilter(filter);
+    			rewritten.add(createStartPipe(indexProfile.countDecoding(layer.getIndex().search(indexProfile))));
+    		} else {
+    			rewritten.add(createStartPipe(layer.getIndex().search(filter)));
+    		}
+    		rewritten.addAll(plan.getPipes());
+    		pipes.clear();
+    		pipes.addAll(rewritten);
+    		setPipes(pipes);
+    	}
+    }
+
+    /**
+     * Profiles this pipeline while it runs: each pipe is wrapped to measure the
+     * items it receives and emits, the time spent and the bytes allocated, and
+     * when the pipeline was started from a SearchFilter, the index search is
+     * counted too. Call this before reading the first item.
+     * 
+     * @see #getProfile()
+     */
+    public GeoPipeline profile() {
+    	setProfiling(true);
+    	return this;
+    }
+
+    /**
+     * @return what this profiled pipeline did so far
+     * @see #profile()
+     */
+    public GeoPipelineProfile getProfile() {
+    	List<ProfilingPipe> profiled = getProfilingPipes();
+    	if (profiled == null) {
+    		throw new IllegalStateException("Pipeline isn't profiled, call profile() before running it");
+    	}
+    	
+    	List<GeoPipelineProfile.Stage> stages = new ArrayList<GeoPipelineProfile.Stage>();
+    	long falsePositives = 0;
+    	for (int i = 0; i < profiled.size(); i++) {
+    		ProfilingPipe stage = profiled.get(i);
+    		ProfilingPipe upstream = i == 0 ? null : profiled.get(i - 1);
+    		long itemsIn;
+    		String name;
+    		if (upstream != null) {
+    			itemsIn = upstream.getCount();
+    			name = stage.toString();
+    		} else if (indexProfile != null) {
+    			itemsIn = indexProfile.getLeavesTested();
+    			name = "IndexSearch";
+    		} else {
+    			itemsIn = stage.getCount();
+    			name = "Records";
+    		}
+    		long nanos = stage.getNanos() - (upstream == null ? 0 : upstream.getNanos());
+    		long allocatedBytes = stage.getAllocatedBytes() < 0 ? -1
+    				: stage.getAllocatedBytes() - (upstream == null ? 0 : upstream.getAllocatedBytes());
+    		stages.add(new GeoPipelineProfile.Stage(name, itemsIn, stage.getCount(), Math.max(0, nanos), Math.max(-1, allocatedBytes)));
+    		
+    		if (plan != null && plan.getWindowFilters().contains(stage.getPipe())) {
+    			falsePositives += itemsIn - stage.getCount();
+    		}
+    	}
+    	
+    	if (indexProfile == null) {
+    		return new GeoPipelineProfile(stages, 0, 0, 0, falsePositives);
+    	}
+    	return new GeoPipelineProfile(stages, indexProfile.getIndexNodesVisited(), indexProfile.getLeavesTested(),
+    			indexProfile.getGeometriesDecoded(), falsePositives);
+    }
+
+    /**
+     * Describes how this pipeline will be run: the index search with the
+     * filters folded into it, followed by the remaining pipes.
+     */
+    public String explain() {
+    	if (pipes.isEmpty()) {
+    		return "Empty";
+    	}
+    	
+    	IndexSearchPlan explained = plan;
+    	List<Pipe> following = pipes.subList(1, pipes.size());
+    	if (!planned && searchFilter != null) {
+    		explained = new IndexSearchPlan(layer, searchFilter, following);
+    		following = explained.getPipes();
+    	}
+    	
+    	StringBuilder text = new StringBuilder();
+    	text.append(explained != null ? explained.toString() : "Records");
+    	for (Pipe pipe : following) {
+    		text.append("\n  -> ").append(pipe);
+    	}
+    	return text.toString();
+    }
+
+    /**
+     * Runs stateless pipes, like buffer, simplify or area calculations, on a
+     * pool of worker threads, keeping the upstream order of the items.
+     * 
+     * @see #parallel(int, boolean)
+     */
+    public GeoPipeline parallel(int threads) {
+    	return parallel(threads, true);
+    }
+
+    /**
+     * Runs stateless pipes on a pool of worker threads. This applies to the
+     * pipes already in the pipeline and to any added later. Each run of
+     * consecutive stateless pipes is processed in batches by the workers,
+     * while stateful pipes, like sort, range and the grouping pipes, still
+     * run on the calling thread and act as barriers between parallel runs.
+     * 
+     * @param threads number of worker threads for each parallel run
+     * @param ordered whether items must be emitted in upstream order
+     * @see ParallelGeoPipe
+     */
+    public GeoPipeline parallel(int threads, boolean ordered) {
+    	if (threads < 1) {
+    		throw new IllegalArgumentException("At least one thread is needed, not " + threads);
+    	}
+    	this.parallelThreads = threads;
+    	this.parallelOrdered = ordered;
+    	List<Pipe> existing = new ArrayList<Pipe>(pipes);
+    	pipes.clear();
+    	for (Pipe pipe : existing) {
+    		if (pipe instanceof ParallelGeoPipe) {
+    			for (AbstractGeoPipe inner : ((ParallelGeoPipe) pipe).getPipes()) {
+    				addPipe(inner);
+    			}
+    		} else {
+    			addPipe(pipe);
+    		}
+    	}
+    	return this;
+    }
+
     /**
 	 * @see CopyDatabaseRecordProperties
      */
@@ -480,6 +681,48 @@ public class GeoPipeline extends Pipeline<GeoPipeFlow,GeoPipeFlow> {
     	return addPipe(new Sort(property, comparator));
     }    
     
+    /**
+     * Sorts and emits only the first limit items, holding no more than limit
+     * items in memory.
+     * 
+     * @see Sort
+     */
+    public GeoPipeline sort(String property, int limit) {
+    	return addPipe(new Sort(property, true, limit));
+    }
+    
+    /**
+     * @see Sort
+     */
+    public GeoPipeline sort(String property, boolean asc, int limit) {
+    	return addPipe(new Sort(property, asc, limit));
+    }
+    
+    /**
+     * Sorts without holding the items in memory, spilling sorted runs of
+     * node ids and sort keys to disk. Items are decoded again when emitted.
+     * 
+     * @see ExternalSort
+     */
+    public GeoPipeline externalSort(String property) {
+    	return addPipe(new ExternalSort(property, true));
+    }
+    
+    /**
+     * @see ExternalSort
+     */
+    public GeoPipeline externalSort(String property, boolean asc) {
+    	return addPipe(new ExternalSort(property, asc));
+    }
+    
+    /**
+     * @param bufferSize the number of sort keys held in memory before a sorted run is written to disk
+     * @see ExternalSort
+     */
+    public GeoPipeline externalSort(String property, boolean asc, int bufferSize) {
+    	return addPipe(new ExternalSort(property, asc, bufferSize));
+    }
+    
     /**
      * @see Boundary
      */
@@ -564,6 +807,14 @@ public class GeoPipeline extends Pipeline<GeoPipeFlow,GeoPipeFlow> {
     	return addPipe(new UnionAll());
     }
     
+    /**
+     * @param threads number of threads to unite the geometries with
+     * @see UnionAll
+     */
+    public GeoPipeline unionAll(int threads) {
+    	return addPipe(new UnionAll(threads));
+    }
+    
     /**
      * @see Intersection
      */
@@ -872,6 +1123,24 @@ public class GeoPipeline extends Pipeline<GeoPipeFlow,GeoPipeFlow> {
     	return addPipe(new DensityIslands(density));
     }
 
+    /**
+     * @see GroupBy
+     */
+    public GeoPipeline groupBy(String property, GroupBy.Aggregation... aggregations) {
+    	return addPipe(new GroupBy(property, aggregations));
+    }
+
+    /**
+     * @param maxGroupsInMemory number of groups kept in memory before items of
+     *            further groups are spilled to disk
+     * @see GroupBy
+     */
+    public GeoPipeline groupBy(String property, int maxGroupsInMemory, GroupBy.Aggregation... aggregations) {
+    	GroupBy groupBy = new GroupBy(property, aggregations);
+    	groupBy.setMaxGroupsInMemory(maxGroupsInMemory);
+    	return addPipe(groupBy);
+    }
+
     /**
      * @see ExtractPoints
      */
@@ -1019,12 +1288,77 @@ public class GeoPipeline extends Pipeline<GeoPipeFlow,GeoPipeFlow> {
 
     }
 
+    /**
+     * Writes the pipeline content to the given stream as a GeoJSON FeatureCollection,
+     * with the item geometries and properties. This will empty the pipeline.
+     * 
+     * @return the number of items written
+     */
+    public int writeGeoJSON(OutputStream out) throws IOException {
+    	return writeGeoJSON(out, AbstractGeoPipeWriter.FULL_PRECISION);
+    }
+
+    /**
+     * @param precision number of decimals of the coordinates, or -1 for full precision
+     * @see #writeGeoJSON(OutputStream)
+     */
+    public int writeGeoJSON(OutputStream out, int precision) throws IOException {
+    	return new GeoJSONWriter(out, precision).write(this);
+    }
+
+    /**
+     * Writes the geometries of the pipeline content to the given stream as
+     * Well Known Text, one per line. This will empty the pipeline.
+     * 
+     * @return the number of items written
+     */
+    public int writeWKT(OutputStream out) throws IOException {
+    	return writeWKT(out, AbstractGeoPipeWriter.FULL_PRECISION);
+    }
+
+    /**
+     * @param precision number of decimals of the coordinates, or -1 for full precision
+     * @see #writeWKT(OutputStream)
+     */
+    public int writeWKT(OutputStream out, int precision) throws IOException {
+    	return new WellKnownTextWriter(out, precision).write(this);
+    }
+
+    /**
+     * Writes the pipeline content to the given stream as a KML document, with
+     * a Placemark for each item. This will empty the pipeline.
+     * 
+     * @return the number of items written
+     */
+    public int writeKML(OutputStream out) throws IOException {
+    	return writeKML(out, AbstractGeoPipeWriter.FULL_PRECISION);
+    }
+
+    /**
+     * @param precision number of decimals of the coordinates, or -1 for full precision
+     * @see #writeKML(OutputStream)
+     */
+    public int writeKML(OutputStream out, int precision) throws IOException {
+    	return new KeyholeMarkupLanguageWriter(out, precision).write(this);
+    }
+
     public <T> GeoPipeline add(final Pipe<?, T> pipe) {
         this.addPipe(pipe);
         return (GeoPipeline) this;
     }
 
+    /**
+     * Emits the items from position low to position high, both inclusive.
+     * When the range directly follows a sort, the sort is told that it only
+     * needs to produce the first high + 1 items.
+     */
     public GeoPipeline range(final int low, final int high) {
+        if (high != -1 && !pipes.isEmpty() && pipes.get(pipes.size() - 1) instanceof Sort) {
+            Sort sort = (Sort) pipes.get(pipes.size() - 1);
+            if (sort.getLimit() < 0 || sort.getLimit() > high + 1) {
+                sort.setLimit(high + 1);
+            }
+        }
         return this.add(new RangeFilterPipe<GeoPipeFlow>(low, high));
     }
 }
\ No newline at end of file
@@ -0,0 +1,147 @@
+/**
+ * Copyright (c) 2010-2013 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.gis.spatial.pipes;
+
+import java.util.List;
+
+
+/**
+ * What a profiled GeoPipeline did: for each stage, the items it received
+ * and emitted, the time spent and the bytes allocated, and for the index
+ * search its traversal counts.
+ * 
+ * Time and allocations are measured on the thread iterating the pipeline,
+ * so work done by parallel workers shows up as time only.
+ * 
+ * @see GeoPipeline#profile()
+ */
+public class GeoPipelineProfile {
+
+	public static class Stage {
+		private final String name;
+		private final long itemsIn;
+		private final long itemsOut;
+		private final long nanos;
+		private final long allocatedBytes;
+		
+		Stage(String name, long itemsIn, long itemsOut, long nanos, long allocatedBytes) {
+			this.name = name;
+			this.itemsIn = itemsIn;
+			this.itemsOut = itemsOut;
+			this.nanos = nanos;
+			this.allocatedBytes = allocatedBytes;
+		}
+		
+		public String getName() {
+			return name;
+		}
+		
+		public long getItemsIn() {
+			return itemsIn;
+		}
+		
+		public long getItemsOut() {
+			return itemsOut;
+		}
+		
+		/**
+		 * @return the nanoseconds spent in this stage only
+		 */
+		public long getNanos() {
+			return nanos;
+		}
+		
+		/**
+		 * @return the bytes allocated in this stage only, or -1 if the JVM can't measure it
+		 */
+		public long getAllocatedBytes() {
+			return allocatedBytes;
+		}
+		
+		@Override
+		public String toString() {
+			return String.format("%s: %d in, %d out, %.3f ms, %s", name, itemsIn, itemsOut, nanos / 1000000.0,
+					allocatedBytes < 0 ? "allocations unknown" : allocatedBytes + " bytes");
+		}
+	}
+	
+	private final List<Stage> stages;
+	private final long indexNodesVisited;
+	private final long leavesTested;
+	private final long geometriesDecoded;
+	private final long falsePositives;
+	
+	GeoPipelineProfile(List<Stage> stages, long indexNodesVisited, long leavesTested, long geometriesDecoded, long falsePositives) {
+		this.stages = stages;
+		this.indexNodesVisited = indexNodesVisited;
+		this.leavesTested = leavesTested;
+		this.geometriesDecoded = geometriesDecoded;
+		this.falsePositives = falsePositives;
+	}
+	
+	/**
+	 * @return the stages in pipeline order, starting with the index search
+	 */
+	public List<Stage> getStages() {
+		return stages;
+	}
+
+	/**
+	 * @return the index nodes whose envelope was tested by the search filter
+	 */
+	public long getIndexNodesVisited() {
+		return indexNodesVisited;
+	}
+	
+	/**
+	 * @return the geometry nodes tested by the search filter
+	 */
+	public long getLeavesTested() {
+		return leavesTested;
+	}
+	
+	/**
+	 * @return the geometries of search results decoded by the pipeline
+	 */
+	public long getGeometriesDecoded() {
+		return geometriesDecoded;
+	}
+	
+	/**
+	 * @return the search results dropped by the exact test of the spatial
+	 * filters folded into the index search
+	 */
+	public long getFalsePositives() {
+		return falsePositives;
+	}
+	
+	@Override
+	public String toString() {
+		StringBuilder text = new StringBuilder();
+		text.append("Index: ").append(indexNodesVisited).append(" nodes visited, ")
+			.append(leavesTested).append(" leaves tested, ")
+			.append(geometriesDecoded).append(" geometries decoded, ")
+			.append(falsePositives).append(" false positives");
+		for (Stage stage : stages) {
+			text.append("\n  ").append(stage);
+		}
+		return text.toString();
+	}
+}
@@ -0,0 +1,207 @@
+/**
+ * Copyright (c) 2010-2013 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.gis.spatial.pipes;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.neo4j.gis.spatial.Layer;
+import org.neo4j.gis.spatial.SpatialDatabaseRecord;
+import org.neo4j.gis.spatial.Utilities;
+import org.neo4j.gis.spatial.pipes.impl.Pipe;
+import org.neo4j.gis.spatial.pipes.processing.CopyDatabaseRecordProperties;
+import org.neo4j.gis.spatial.rtree.filter.SearchFilter;
+import org.neo4j.graphdb.Node;
+
+import com.vividsolutions.jts.geom.Envelope;
+
+
+/**
+ * The index search a GeoPipeline starts with, after the filters that directly
+ * follow the start of the pipeline have been folded into it.
+ * 
+ * Every spatial filter contributes its window, and index nodes and geometries
+ * whose bounding box misses any of these windows are skipped without decoding.
+ * The windows are kept apart rather than intersected, since an item can cross
+ * two windows that don't overlap each other. Property filters testing
+ * properties copied from the database record are evaluated on the geometry
+ * node, before the geometry is decoded, and removed from the pipeline.
+ * Spatial filters stay in the pipeline to do the exact geometry test.
+ * 
+ * The planner only looks at the leading run of filters and record property
+ * copies, since these don't change the geometry or the copied properties of
+ * the items.
+ */
+public class IndexSearchPlan implements SearchFilter {
+
+	private final Layer layer;
+	private final SearchFilter searchFilter;
+	private final List<org.neo4j.gis.spatial.rtree.Envelope> indexWindows = new ArrayList<org.neo4j.gis.spatial.rtree.Envelope>();
+	private final List<AbstractFilterGeoPipe> windowFilters = new ArrayList<AbstractFilterGeoPipe>();
+	private final List<AbstractFilterGeoPipe> propertyFilters = new ArrayList<AbstractFilterGeoPipe>();
+	private final List<Pipe> pipes = new ArrayList<Pipe>();
+	private Set<String> copiedKeys = new HashSet<String>();
+	private boolean copiesAll = false;
+	
+	/**
+	 * @param layer the layer searched
+	 * @param searchFilter the filter the pipeline was started with
+	 * @param pipes the pipes following the start pipe
+	 */
+	public IndexSearchPlan(Layer layer, SearchFilter searchFilter, List<Pipe> pipes) {
+		this.layer = layer;
+		this.searchFilter = searchFilter;
+		
+		boolean leading = true;
+		for (Pipe pipe : pipes) {
+			if (leading && pipe instanceof CopyDatabaseRecordProperties) {
+				String[] keys = ((CopyDatabaseRecordProperties) pipe).getKeys();
+				if (keys == null) {
+					copiesAll = true;
+				} else {
+					copiedKeys.addAll(Arrays.asList(keys));
+				}
+			} else if (leading && pipe instanceof AbstractFilterGeoPipe) {
+				AbstractFilterGeoPipe filter = (AbstractFilterGeoPipe) pipe;
+				String key = filter.getPropertyKey();
+				if (key != null && (copiesAll || copiedKeys.contains(key))) {
+					propertyFilters.add(filter);
+					continue;
+				}
+				
+				Envelope filterWindow = filter.getSearchWindow();
+				if (filterWindow != null) {
+					indexWindows.add(Utilities.fromJtsToNeo4j(filterWindow));
+					windowFilters.add(filter);
+				}
+			} else {
+				leading = false;
+			}
+			this.pipes.add(pipe);
+		}
+	}
+
+	/**
+	 * @return true if any filter has been folded into the index search
+	 */
+	public boolean isRewritten() {
+		return !indexWindows.isEmpty() || !propertyFilters.isEmpty();
+	}
+	
+	/**
+	 * @return the pipes that still have to follow the index search
+	 */
+	public List<Pipe> getPipes() {
+		return pipes;
+	}
+	
+	/**
+	 * @return the windows every item envelope must intersect, one for each folded spatial filter
+	 */
+	public List<Envelope> getWindows() {
+		List<Envelope> windows = new ArrayList<Envelope>();
+		for (org.neo4j.gis.spatial.rtree.Envelope indexWindow : indexWindows) {
+			windows.add(Utilities.fromNeo4jToJts(indexWindow));
+		}
+		return windows;
+	}
+	
+	/**
+	 * @return the spatial filters whose window narrows the index search
+	 */
+	public List<AbstractFilterGeoPipe> getWindowFilters() {
+		return windowFilters;
+	}
+	
+	/**
+	 * @return the property filters evaluated during the index search
+	 */
+	public List<AbstractFilterGeoPipe> getPropertyFilters() {
+		return propertyFilters;
+	}
+	
+	@Override
+	public boolean needsToVisit(org.neo4j.gis.spatial.rtree.Envelope envelope) {
+		if (!intersectsWindows(envelope)) {
+			return false;
+		}
+		return searchFilter.needsToVisit(envelope);
+	}
+
+	@Override
+	public boolean geometryMatches(Node geomNode) {
+		if (!indexWindows.isEmpty() && !intersectsWindows(layer.getGeometryEncoder().decodeEnvelope(geomNode))) {
+			return false;
+		}
+		
+		if (!propertyFilters.isEmpty()) {
+			SpatialDatabaseRecord record = new SpatialDatabaseRecord(layer, geomNode);
+			for (AbstractFilterGeoPipe filter : propertyFilters) {
+				if (!filter.acceptsPropertyValue(getCopiedProperty(record, filter.getPropertyKey()))) {
+					return false;
+				}
+			}
+		}
+		
+		return searchFilter.geometryMatches(geomNode);
+	}
+	
+	private boolean intersectsWindows(org.neo4j.gis.spatial.rtree.Envelope envelope) {
+		for (org.neo4j.gis.spatial.rtree.Envelope indexWindow : indexWindows) {
+			if (!indexWindow.intersects(envelope)) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Reads a property the way CopyDatabaseRecordProperties would have copied it.
+	 */
+	private Object getCopiedProperty(SpatialDatabaseRecord record, String key) {
+		if (copiedKeys.contains(key) || Arrays.asList(record.getPropertyNames()).contains(key)) {
+			return record.getProperty(key);
+		} else {
+			return null;
+		}
+	}
+	
+	/**
+	 * Describes the index search and the filters folded into it.
+	 */
+	@Override
+	public String toString() {
+		StringBuilder text = new StringBuilder();
+		text.append("IndexSearch (layer: ").append(layer.getName());
+		text.append(", filter: ").append(searchFilter.getClass().getSimpleName());
+		if (!indexWindows.isEmpty()) {
+			text.append(", windows: ").append(getWindows());
+			text.append(" from ").append(windowFilters);
+		}
+		if (!propertyFilters.isEmpty()) {
+			text.append(", before decoding: ").append(propertyFilters);
+		}
+		text.append(")");
+		return text.toString();
+	}
+}
@@ -0,0 +1,235 @@
+/**
+ * Copyright (c) 2010-2013 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.gis.spatial.pipes;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.neo4j.gis.spatial.SpatialDatabaseException;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Transaction;
+
+/**
+ * Runs a sequence of stateless pipes on a pool of worker threads. Items are
+ * read from upstream on the calling thread in batches, and each batch is
+ * passed through all the wrapped pipes by one worker, in its own read
+ * transaction. At most two batches per thread are in flight, so a slow
+ * consumer does not make the whole upstream pile up in memory.
+ * <p>
+ * When ordered, batches are emitted in upstream order. Otherwise batches are
+ * emitted as soon as they are done, which keeps all threads busy when the
+ * cost per item varies a lot.
+ * <p>
+ * Created by GeoPipeline.parallel(), which wraps each run of consecutive
+ * stateless pipes in one of these. Stateful pipes, like sorts and groups,
+ * are left on the calling thread and act as barriers between parallel runs.
+ * <p>
+ * The worker transactions are closed before the flows are handed back to the
+ * calling thread, so the workers decode the geometry of every flow they
+ * emit. Flows can then be read on any thread, also outside a transaction.
+ * <p>
+ * The worker threads are shut down once the upstream is exhausted. When the
+ * consumer stops early, for example after a range or when a procedure
+ * stream is closed, the batches in flight are finished and their
+ * transactions closed, and the idle workers then time out on their own.
+ */
+public class ParallelGeoPipe extends AbstractGeoPipe implements StatelessGeoPipe {
+
+	public static final int BATCH_SIZE = 100;
+	public static final long IDLE_TIMEOUT_MILLIS = 1000;
+
+	private final GraphDatabaseService database;
+	private final int threads;
+	private final boolean ordered;
+	private final List<AbstractGeoPipe> pipes = new ArrayList<AbstractGeoPipe>();
+
+	private ExecutorService workers;
+	private CompletionService<List<GeoPipeFlow>> completion;
+	private ArrayDeque<Future<List<GeoPipeFlow>>> pending;
+	private int inFlight;
+	private boolean exhausted;
+	private Iterator<GeoPipeFlow> current;
+
+	public ParallelGeoPipe(GraphDatabaseService database, int threads, boolean ordered) {
+		if (threads < 1) {
+			throw new IllegalArgumentException("At least one thread is needed, not " + threads);
+		}
+		this.database = database;
+		this.threads = threads;
+		this.ordered = ordered;
+	}
+
+	public void addPipe(AbstractGeoPipe pipe) {
+		if (!pipe.isStateless()) {
+			throw new IllegalArgumentException("Only stateless pipes can run in parallel: " + pipe);
+		}
+		pipes.add(pipe);
+	}
+
+	public List<AbstractGeoPipe> getPipes() {
+		return pipes;
+	}
+
+	@Override
+	protected GeoPipeFlow processNextStart() {
+		while (true) {
+			if (current != null && current.hasNext()) {
+				return current.next();
+			}
+			if (workers == null) {
+				start();
+			}
+			submitBatches();
+			if (inFlight == 0) {
+				stop();
+				throw new NoSuchElementException();
+			}
+			current = takeBatch().iterator();
+		}
+	}
+
+	/**
+	 * Flows are also passed through all the wrapped pipes when this pipe is
+	 * itself used inside another parallel pipe.
+	 */
+	@Override
+	protected GeoPipeFlow process(GeoPipeFlow flow) {
+		for (AbstractGeoPipe pipe : pipes) {
+			flow = pipe.process(flow);
+			if (flow == null) {
+				break;
+			}
+		}
+		return flow;
+	}
+
+	private void start() {
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, IDLE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS,
+				new LinkedBlockingQueue<Runnable>(), runnable -> {
+					Thread thread = new Thread(runnable, "geopipe-worker");
+					thread.setDaemon(true);
+					return thread;
+				});
+		// nothing else stops the workers of a pipeline that is not read to the end
+		pool.allowCoreThreadTimeOut(true);
+		workers = pool;
+		completion = new ExecutorCompletionService<List<GeoPipeFlow>>(workers);
+		pending = new ArrayDeque<Future<List<GeoPipeFlow>>>();
+		inFlight = 0;
+		exhausted = false;
+	}
+
+	private void stop() {
+		if (workers != null) {
+			workers.shutdownNow();
+			workers = null;
+		}
+		completion = null;
+		pending = null;
+		inFlight = 0;
+	}
+
+	private void submitBatches() {
+		while (!exhausted && inFlight < threads * 2) {
+			final List<GeoPipeFlow> batch = new ArrayList<GeoPipeFlow>(BATCH_SIZE);
+			try {
+				while (batch.size() < BATCH_SIZE) {
+					batch.add((GeoPipeFlow) starts.next());
+				}
+			} catch (NoSuchElementException e) {
+				exhausted = true;
+			}
+			if (!batch.isEmpty()) {
+				Callable<List<GeoPipeFlow>> task = () -> processBatch(batch);
+				if (ordered) {
+					pending.add(workers.submit(task));
+				} else {
+					completion.submit(task);
+				}
+				inFlight++;
+			}
+		}
+	}
+
+	private List<GeoPipeFlow> takeBatch() {
+		try {
+			Future<List<GeoPipeFlow>> batch = ordered ? pending.poll() : completion.take();
+			inFlight--;
+			return batch.get();
+		} catch (InterruptedException e) {
+			stop();
+			Thread.currentThread().interrupt();
+			throw new SpatialDatabaseException("Interrupted while waiting for parallel pipes", e);
+		} catch (ExecutionException e) {
+			stop();
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new SpatialDatabaseException("Failed to process items in parallel", e.getCause());
+		}
+	}
+
+	private List<GeoPipeFlow> processBatch(List<GeoPipeFlow> batch) {
+		List<GeoPipeFlow> results = new ArrayList<GeoPipeFlow>(batch.size());
+		if (database == null) {
+			processBatch(batch, results);
+		} else {
+			try (Transaction tx = database.beginTx()) {
+				processBatch(batch, results);
+				tx.success();
+			}
+		}
+		return results;
+	}
+
+	private void processBatch(List<GeoPipeFlow> batch, List<GeoPipeFlow> results) {
+		for (GeoPipeFlow flow : batch) {
+			flow = process(flow);
+			if (flow != null) {
+				flow.decode();
+				results.add(flow);
+			}
+		}
+	}
+
+	@Override
+	public void reset() {
+		stop();
+		current = null;
+		super.reset();
+	}
+
+	@Override
+	public String toString() {
+		return getClass().getSimpleName() + pipes;
+	}
+}
@@ -0,0 +1,102 @@
+/**
+ * Copyright (c) 2010-2013 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.gis.spatial.pipes;
+
+import java.util.Iterator;
+
+import org.neo4j.gis.spatial.SpatialDatabaseRecord;
+import org.neo4j.gis.spatial.rtree.Envelope;
+import org.neo4j.gis.spatial.rtree.filter.SearchFilter;
+import org.neo4j.graphdb.Node;
+
+import com.vividsolutions.jts.geom.Geometry;
+
+
+/**
+ * Wraps the SearchFilter of a profiled GeoPipeline to count the index nodes
+ * visited and the geometry nodes tested, and the records returned by the
+ * search to count the geometries decoded by the pipeline.
+ */
+class ProfilingSearchFilter implements SearchFilter {
+
+	private final SearchFilter filter;
+	private long indexNodesVisited = 0;
+	private long leavesTested = 0;
+	private long geometriesDecoded = 0;
+	
+	ProfilingSearchFilter(SearchFilter filter) {
+		this.filter = filter;
+	}
+	
+	@Override
+	public boolean needsToVisit(Envelope envelope) {
+		indexNodesVisited++;
+		return filter.needsToVisit(envelope);
+	}
+
+	@Override
+	public boolean geometryMatches(Node geomNode) {
+		leavesTested++;
+		return filter.geometryMatches(geomNode);
+	}
+	
+	Iterator<SpatialDatabaseRecord> countDecoding(final Iterator<SpatialDatabaseRecord> records) {
+		return new Iterator<SpatialDatabaseRecord>() {
+			@Override
+			public boolean hasNext() {
+				return records.hasNext();
+			}
+
+			@Override
+			public SpatialDatabaseRecord next() {
+				SpatialDatabaseRecord record = records.next();
+				return new SpatialDatabaseRecord(record.getLayer(), record.getGeomNode()) {
+					private boolean decoded = false;
+					
+					@Override
+					public Geometry getGeometry() {
+						if (!decoded) {
+							decoded = true;
+							geometriesDecoded++;
+						}
+						return super.getGeometry();
+					}
+				};
+			}
+
+			@Override
+			public void remove() {
+				records.remove();
+			}
+		};
+	}
+	
+	long getIndexNodesVisited() {
+		return indexNodesVisited;
+	}
+	
+	long getLeavesTested() {
+		return leavesTested;
+	}
+	
+	long getGeometriesDecoded() {
+		return geometriesDecoded;
+	}
+}
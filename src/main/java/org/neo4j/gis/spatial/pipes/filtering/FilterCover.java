@@ -39,6 +39,11 @@ public class FilterCover extends AbstractFilterGeoPipe {
 		this.otherEnvelope = other.getEnvelopeInternal();
 	}
 
+	@Override
+	public Envelope getSearchWindow() {
+		return otherEnvelope;
+	}
+
 	@Override
 	protected boolean validate(GeoPipeFlow flow) {
 		// check if every point of the other geometry is a point of this geometry
@@ -22,6 +22,7 @@ package org.neo4j.gis.spatial.pipes.filtering;
 import org.neo4j.gis.spatial.pipes.AbstractFilterGeoPipe;
 import org.neo4j.gis.spatial.pipes.GeoPipeFlow;
 
+import com.vividsolutions.jts.geom.Envelope;
 import com.vividsolutions.jts.geom.Geometry;
 
 
@@ -42,6 +43,11 @@ public class FilterEqualTopo extends AbstractFilterGeoPipe {
 		this.other = other;
 	}
 	
+	@Override
+	public Envelope getSearchWindow() {
+		return other.getEnvelopeInternal();
+	}
+
 	@Override
 	protected boolean validate(GeoPipeFlow flow) {
 		return other.equalsTopo(flow.getGeometry());
@@ -22,6 +22,7 @@ package org.neo4j.gis.spatial.pipes.filtering;
 import org.neo4j.gis.spatial.pipes.AbstractFilterGeoPipe;
 import org.neo4j.gis.spatial.pipes.GeoPipeFlow;
 
+import com.vividsolutions.jts.geom.Envelope;
 import com.vividsolutions.jts.geom.Geometry;
 
 
@@ -36,6 +37,11 @@ public class FilterIntersect extends AbstractFilterGeoPipe {
 		this.geometry = geometry;
 	}	
 	
+	@Override
+	public Envelope getSearchWindow() {
+		return geometry.getEnvelopeInternal();
+	}
+
 	@Override
 	protected boolean validate(GeoPipeFlow flow) {
 		return geometry.intersects(flow.getGeometry());
@@ -44,6 +44,11 @@ public class FilterIntersectWindow extends AbstractFilterGeoPipe {
 		this.envelopeGeom = geomFactory.toGeometry(envelope);
 	}	
 	
+	@Override
+	public Envelope getSearchWindow() {
+		return envelope;
+	}
+
 	@Override
 	protected boolean validate(GeoPipeFlow flow) {
 		return envelope.intersects(flow.getEnvelope()) 
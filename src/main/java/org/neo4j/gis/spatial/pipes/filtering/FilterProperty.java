@@ -42,9 +42,18 @@ public class FilterProperty extends AbstractFilterGeoPipe {
 		this.comparison = comparison;
 	}
 
+	@Override
+	public String getPropertyKey() {
+		return key;
+	}
+
 	@Override
 	protected boolean validate(GeoPipeFlow flow) {
-        final Object leftObject = flow.getProperties().get(key);
+		return acceptsPropertyValue(flow.getProperties().get(key));
+	}
+
+	@Override
+	public boolean acceptsPropertyValue(Object leftObject) {
         switch (comparison) {
             case EQUAL:
                 if (null == leftObject)
@@ -74,4 +83,9 @@ public class FilterProperty extends AbstractFilterGeoPipe {
                 throw new IllegalArgumentException("Invalid state as no valid filter was provided");
         }
     }
-}
\ No newline at end of file
+
+	@Override
+	public String toString() {
+		return getClass().getSimpleName() + " (" + key + " " + comparison + " " + value + ")";
+	}
+}
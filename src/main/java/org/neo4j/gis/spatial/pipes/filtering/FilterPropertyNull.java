@@ -33,8 +33,18 @@ public class FilterPropertyNull extends AbstractFilterGeoPipe {
 		this.property = property;
 	}
 
+	@Override
+	public String getPropertyKey() {
+		return property;
+	}
+
+	@Override
+	public boolean acceptsPropertyValue(Object value) {
+		return value == null;
+	}
+
 	@Override
 	protected boolean validate(GeoPipeFlow flow) {
-		return flow.getProperties().get(property) == null;
+		return acceptsPropertyValue(flow.getProperties().get(property));
 	}
 }
\ No newline at end of file
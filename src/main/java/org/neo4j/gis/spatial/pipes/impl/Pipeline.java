@@ -19,6 +19,7 @@ public class Pipeline<S, E> implements Pipe<S, E> {
     protected Pipe<?, E> endPipe;
     protected List<Pipe> pipes;
     protected Iterator<S> starts;
+    protected List<ProfilingPipe> profilingPipes;
 
     public Pipeline() {
         this.pipes = new ArrayList<Pipe>();
@@ -53,12 +54,42 @@ public class Pipeline<S, E> implements Pipe<S, E> {
      */
     protected void setPipes(final List<Pipe> pipes) {
         this.startPipe = (Pipe<S, ?>) pipes.get(0);
-        this.endPipe = (Pipe<?, E>) pipes.get(pipes.size() - 1);
-        for (int i = 1; i < pipes.size(); i++) {
-            pipes.get(i).setStarts((Iterator) pipes.get(i - 1));
+        if (this.profilingPipes != null) {
+            this.profilingPipes = new ArrayList<ProfilingPipe>();
+            for (Pipe pipe : pipes) {
+                this.profilingPipes.add(new ProfilingPipe(pipe));
+            }
+            this.endPipe = (Pipe<?, E>) this.profilingPipes.get(pipes.size() - 1);
+            for (int i = 1; i < pipes.size(); i++) {
+                pipes.get(i).setStarts((Iterator) this.profilingPipes.get(i - 1));
+            }
+        } else {
+            this.endPipe = (Pipe<?, E>) pipes.get(pipes.size() - 1);
+            for (int i = 1; i < pipes.size(); i++) {
+                pipes.get(i).setStarts((Iterator) pipes.get(i - 1));
+            }
         }
     }
 
+    /**
+     * When profiling, each pipe of the pipeline is wrapped in a ProfilingPipe that measures what it emits.
+     *
+     * @param profiling whether to profile the pipes
+     */
+    public void setProfiling(final boolean profiling) {
+        this.profilingPipes = profiling ? new ArrayList<ProfilingPipe>() : null;
+        if (!this.pipes.isEmpty()) {
+            this.setPipes(this.pipes);
+        }
+    }
+
+    /**
+     * @return the wrappers of the pipes, in pipeline order, or null if the pipeline isn't profiled
+     */
+    public List<ProfilingPipe> getProfilingPipes() {
+        return this.profilingPipes;
+    }
+
     /**
      * Useful for constructing the pipeline chain without making use of the constructor.
      *
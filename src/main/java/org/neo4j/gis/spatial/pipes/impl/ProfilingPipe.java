@@ -0,0 +1,124 @@
+package org.neo4j.gis.spatial.pipes.impl;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Wraps a pipe to count the objects it emits and to measure the time spent, and the bytes allocated
+ * by the calling thread, in its hasNext() and next(). The measures include the upstream pipes.
+ */
+public class ProfilingPipe<S, E> implements Pipe<S, E> {
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+    private static final boolean ALLOCATION_MEASURABLE = isAllocationMeasurable();
+
+    private final Pipe<S, E> pipe;
+    private long count = 0;
+    private long nanos = 0;
+    private long allocatedBytes = 0;
+
+    public ProfilingPipe(final Pipe<S, E> pipe) {
+        this.pipe = pipe;
+    }
+
+    public Pipe<S, E> getPipe() {
+        return this.pipe;
+    }
+
+    /**
+     * @return the number of objects emitted
+     */
+    public long getCount() {
+        return this.count;
+    }
+
+    /**
+     * @return the nanoseconds spent in this pipe and its upstream pipes
+     */
+    public long getNanos() {
+        return this.nanos;
+    }
+
+    /**
+     * @return the bytes allocated by this pipe and its upstream pipes, or -1 if the JVM can't measure it
+     */
+    public long getAllocatedBytes() {
+        return ALLOCATION_MEASURABLE ? this.allocatedBytes : -1;
+    }
+
+    public boolean hasNext() {
+        final long startBytes = allocatedBytes();
+        final long start = System.nanoTime();
+        try {
+            return this.pipe.hasNext();
+        } finally {
+            this.nanos += System.nanoTime() - start;
+            this.allocatedBytes += allocatedBytes() - startBytes;
+        }
+    }
+
+    public E next() {
+        final long startBytes = allocatedBytes();
+        final long start = System.nanoTime();
+        try {
+            final E end = this.pipe.next();
+            this.count++;
+            return end;
+        } finally {
+            this.nanos += System.nanoTime() - start;
+            this.allocatedBytes += allocatedBytes() - startBytes;
+        }
+    }
+
+    public void setStarts(final Iterator<S> starts) {
+        this.pipe.setStarts(starts);
+    }
+
+    public void setStarts(final Iterable<S> starts) {
+        this.pipe.setStarts(starts);
+    }
+
+    public List getPath() {
+        return this.pipe.getPath();
+    }
+
+    public void reset() {
+        this.pipe.reset();
+        this.count = 0;
+        this.nanos = 0;
+        this.allocatedBytes = 0;
+    }
+
+    public void remove() {
+        this.pipe.remove();
+    }
+
+    public Iterator<E> iterator() {
+        return this;
+    }
+
+    public String toString() {
+        return this.pipe.toString();
+    }
+
+    private static long allocatedBytes() {
+        if (!ALLOCATION_MEASURABLE) {
+            return 0;
+        }
+        return ((com.sun.management.ThreadMXBean) THREADS).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private static boolean isAllocationMeasurable() {
+        try {
+            if (THREADS instanceof com.sun.management.ThreadMXBean) {
+                com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) THREADS;
+                return threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled();
+            }
+        } catch (NoClassDefFoundError e) {
+            // not a HotSpot compatible JVM
+        }
+        return false;
+    }
+}
@@ -41,7 +41,9 @@ public class OSMGeoPipeline extends GeoPipeline {
     }
     
     public static OSMGeoPipeline startOsm(Layer layer, SearchFilter searchFilter) {
-    	return startOsm(layer, layer.getIndex().search(searchFilter));    	
+    	OSMGeoPipeline pipeline = startOsm(layer, layer.getIndex().search(searchFilter));
+    	pipeline.searchFilter = searchFilter;
+    	return pipeline;
     }
 
     public static OSMGeoPipeline startOsm(Layer layer) {
@@ -20,13 +20,14 @@
 package org.neo4j.gis.spatial.pipes.processing;
 
 import org.neo4j.gis.spatial.pipes.AbstractGeoPipe;
+import org.neo4j.gis.spatial.pipes.StatelessGeoPipe;
 import org.neo4j.gis.spatial.pipes.GeoPipeFlow;
 
 
 /**
  * Calculates geometry area for each item in the pipeline.
  */
-public class Area extends AbstractGeoPipe {
+public class Area extends AbstractGeoPipe implements StatelessGeoPipe {
 
 	public Area() {
 	}		
@@ -20,13 +20,14 @@
 package org.neo4j.gis.spatial.pipes.processing;
 
 import org.neo4j.gis.spatial.pipes.AbstractGeoPipe;
+import org.neo4j.gis.spatial.pipes.StatelessGeoPipe;
 import org.neo4j.gis.spatial.pipes.GeoPipeFlow;
 
 /**
  * Applies a buffer to geometries.
  * Item geometry is replaced by pipe output unless an alternative property name is given in the constructor.
  */
-public class Buffer extends AbstractGeoPipe {
+public class Buffer extends AbstractGeoPipe implements StatelessGeoPipe {
 	
 	private double distance;
 
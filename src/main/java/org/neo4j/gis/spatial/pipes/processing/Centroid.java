@@ -20,6 +20,7 @@
 package org.neo4j.gis.spatial.pipes.processing;
 
 import org.neo4j.gis.spatial.pipes.AbstractGeoPipe;
+import org.neo4j.gis.spatial.pipes.StatelessGeoPipe;
 import org.neo4j.gis.spatial.pipes.GeoPipeFlow;
 
 
@@ -27,7 +28,7 @@ import org.neo4j.gis.spatial.pipes.GeoPipeFlow;
  * Calculates geometry centroid.
  * Item geometry is replaced by pipe output unless an alternative property name is given in the constructor.
  */
-public class Centroid extends AbstractGeoPipe {
+public class Centroid extends AbstractGeoPipe implements StatelessGeoPipe {
 	
 	public Centroid() {
 	}		
@@ -20,13 +20,14 @@
 package org.neo4j.gis.spatial.pipes.processing;
 
 import org.neo4j.gis.spatial.pipes.AbstractGeoPipe;
+import org.neo4j.gis.spatial.pipes.StatelessGeoPipe;
 import org.neo4j.gis.spatial.pipes.GeoPipeFlow;
 
 /**
  * Calculates geometry convex hull.
  * Item geometry is replaced by pipe output unless an alternative property name is given in the constructor.
  */
-public class ConvexHull extends AbstractGeoPipe {
+public class ConvexHull extends AbstractGeoPipe implements StatelessGeoPipe {
 	
 	public ConvexHull() {
 	}		
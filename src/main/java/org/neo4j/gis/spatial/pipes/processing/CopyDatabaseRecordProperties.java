@@ -44,6 +44,13 @@ public class CopyDatabaseRecordProperties extends AbstractGeoPipe {
 	
 	public CopyDatabaseRecordProperties() {
 	}
+
+	/**
+	 * @return the names of the copied properties, or null if all are copied
+	 */
+	public String[] getKeys() {
+		return keys;
+	}
 	
 	
 	@Override	
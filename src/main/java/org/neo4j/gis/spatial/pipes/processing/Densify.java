@@ -20,6 +20,7 @@
 package org.neo4j.gis.spatial.pipes.processing;
 
 import org.neo4j.gis.spatial.pipes.AbstractGeoPipe;
+import org.neo4j.gis.spatial.pipes.StatelessGeoPipe;
 import org.neo4j.gis.spatial.pipes.GeoPipeFlow;
 
 import com.vividsolutions.jts.densify.Densifier;
@@ -29,7 +30,7 @@ import com.vividsolutions.jts.densify.Densifier;
  * The densified geometry contains no line segment which is longer than the given distance tolerance.
  * Item geometry is replaced by pipe output unless an alternative property name is given in the constructor.
  */
-public class Densify extends AbstractGeoPipe {
+public class Densify extends AbstractGeoPipe implements StatelessGeoPipe {
 
 	private double distanceTolerance;
 
@@ -19,13 +19,35 @@
  */
 package org.neo4j.gis.spatial.pipes.processing;
 
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+
 import org.neo4j.gis.spatial.pipes.AbstractGroupGeoPipe;
 import org.neo4j.gis.spatial.pipes.GeoPipeFlow;
+import org.neo4j.gis.spatial.utilities.CascadedUnion;
 
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.index.strtree.STRtree;
 
+/**
+ * Groups items into islands of geometries that are within the given density
+ * distance of each other, directly or through other geometries of the
+ * island. The geometry of each island is the union of the geometries of its
+ * items.
+ * <p>
+ * All items are collected first and their envelopes are loaded into an
+ * STR-tree. Each item only measures the distance to the items whose envelopes
+ * are within the density distance of its own, and close pairs are joined in
+ * a union-find structure. An item that bridges two islands therefore merges
+ * them, and the result does not depend on the order of the items. Islands
+ * are emitted in the order of their first item.
+ */
 public class DensityIslands extends AbstractGroupGeoPipe {
 
 	private double density;
+	private List<GeoPipeFlow> flows = new ArrayList<GeoPipeFlow>();
 
 	/**
 	 * 
@@ -37,20 +59,79 @@ public class DensityIslands extends AbstractGroupGeoPipe {
 
 	@Override
 	protected void group(GeoPipeFlow pipeFlow) {
-		boolean islandFound = false;
-		for (int i = 0; i < groups.size() && !islandFound; i++) {
-			// determine if geometry is next to a islands else add
-			// geometry as a new islands.
-			if (pipeFlow.getGeometry().distance(groups.get(i).getGeometry()) <= density) {
-				// TODO test it with points
-				groups.get(i).setGeometry(groups.get(i).getGeometry().union(pipeFlow.getGeometry()));
-				groups.get(i).merge(pipeFlow);
-				islandFound = true;
+		flows.add(pipeFlow);
+	}
+
+	@Override
+	protected void groupingComplete() {
+		int size = flows.size();
+		int[] parent = new int[size];
+		int[] rank = new int[size];
+		STRtree tree = new STRtree();
+		for (int i = 0; i < size; i++) {
+			parent[i] = i;
+			tree.insert(flows.get(i).getEnvelope(), i);
+		}
+
+		for (int i = 0; i < size; i++) {
+			Geometry geometry = flows.get(i).getGeometry();
+			Envelope reach = new Envelope(flows.get(i).getEnvelope());
+			reach.expandBy(density);
+			for (Object item : tree.query(reach)) {
+				int j = (Integer) item;
+				// every pair is found from both sides, so only test it once
+				if (j > i && find(parent, i) != find(parent, j)
+						&& geometry.isWithinDistance(flows.get(j).getGeometry(), density)) {
+					union(parent, rank, i, j);
+				}
+			}
+		}
+
+		LinkedHashMap<Integer, List<GeoPipeFlow>> islands = new LinkedHashMap<Integer, List<GeoPipeFlow>>();
+		for (int i = 0; i < size; i++) {
+			int root = find(parent, i);
+			List<GeoPipeFlow> island = islands.get(root);
+			if (island == null) {
+				island = new ArrayList<GeoPipeFlow>();
+				islands.put(root, island);
 			}
+			island.add(flows.get(i));
 		}
-			
-		if (!islandFound) {
-			groups.add(pipeFlow);
+		for (List<GeoPipeFlow> island : islands.values()) {
+			GeoPipeFlow first = island.get(0);
+			if (island.size() > 1) {
+				List<Geometry> geometries = new ArrayList<Geometry>(island.size());
+				for (GeoPipeFlow flow : island) {
+					geometries.add(flow.getGeometry());
+					if (flow != first) {
+						first.merge(flow);
+					}
+				}
+				first.setGeometry(CascadedUnion.union(geometries));
+			}
+			groups.add(first);
+		}
+		flows.clear();
+	}
+
+	private static int find(int[] parent, int i) {
+		while (parent[i] != i) {
+			parent[i] = parent[parent[i]];
+			i = parent[i];
+		}
+		return i;
+	}
+
+	private static void union(int[] parent, int[] rank, int a, int b) {
+		int rootA = find(parent, a);
+		int rootB = find(parent, b);
+		if (rank[rootA] < rank[rootB]) {
+			parent[rootA] = rootB;
+		} else if (rank[rootA] > rank[rootB]) {
+			parent[rootB] = rootA;
+		} else {
+			parent[rootB] = rootA;
+			rank[rootA]++;
 		}
 	}
-}
\ No newline at end of file
+}
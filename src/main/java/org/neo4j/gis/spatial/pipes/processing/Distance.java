@@ -20,6 +20,7 @@
 package org.neo4j.gis.spatial.pipes.processing;
 
 import org.neo4j.gis.spatial.pipes.AbstractGeoPipe;
+import org.neo4j.gis.spatial.pipes.StatelessGeoPipe;
 import org.neo4j.gis.spatial.pipes.GeoPipeFlow;
 
 import com.vividsolutions.jts.geom.Geometry;
@@ -28,7 +29,7 @@ import com.vividsolutions.jts.geom.Geometry;
 /**
  * Calculates distance between the given geometry and item geometry for each item in the pipeline.
  */
-public class Distance extends AbstractGeoPipe {
+public class Distance extends AbstractGeoPipe implements StatelessGeoPipe {
 
 	private Geometry reference;
 	
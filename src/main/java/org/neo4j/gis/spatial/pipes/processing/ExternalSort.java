@@ -0,0 +1,321 @@
+/**
+ * Copyright (c) 2010-2013 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.gis.spatial.pipes.processing;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+import org.neo4j.gis.spatial.Layer;
+import org.neo4j.gis.spatial.SpatialDatabaseException;
+import org.neo4j.gis.spatial.SpatialDatabaseRecord;
+import org.neo4j.gis.spatial.pipes.AbstractGeoPipe;
+import org.neo4j.gis.spatial.pipes.GeoPipeFlow;
+
+/**
+ * Sort items in the pipeline comparing values of the given property, without
+ * holding the items in memory. Only the geometry node id and the sort key of
+ * each item are kept. When more than bufferSize keys have been read, they are
+ * sorted and written to a temporary file as a sorted run. The runs are merged
+ * lazily as items are read from the pipe, and each item is only decoded from
+ * the database again when it is emitted.
+ * <p>
+ * This is meant for sorting the records of a layer, for example before an
+ * export. The emitted items have the geometry stored in the database and the
+ * sort property only, so geometries and other properties computed by
+ * earlier pipes are not carried through the sort. Items comparing equal keep
+ * their upstream order. Sort keys must be Serializable.
+ */
+public class ExternalSort extends AbstractGeoPipe {
+
+	public static final int DEFAULT_BUFFER_SIZE = 100000;
+
+	private final String property;
+	private final Comparator<Entry> comparator;
+	private final int bufferSize;
+	private File spillDirectory;
+	private Layer layer;
+	private Iterator<Entry> entries;
+
+	public ExternalSort(String property, boolean asc) {
+		this(property, asc, DEFAULT_BUFFER_SIZE);
+	}
+
+	/**
+	 * @param bufferSize the number of sort keys to hold in memory before
+	 *            writing a sorted run to disk
+	 */
+	public ExternalSort(String property, boolean asc, int bufferSize) {
+		this(property, Sort.naturalOrder(asc), bufferSize);
+	}
+
+	public ExternalSort(String property, final Comparator<Object> propertyComparator, int bufferSize) {
+		if (bufferSize < 1) {
+			throw new IllegalArgumentException("Buffer size must be positive: " + bufferSize);
+		}
+		this.property = property;
+		this.bufferSize = bufferSize;
+		this.comparator = new Comparator<Entry>() {
+			@Override
+			public int compare(Entry o1, Entry o2) {
+				int result;
+				if (o1.key == null && o2.key == null) {
+					result = 0;
+				} else if (o1.key == null) {
+					result = -1;
+				} else if (o2.key == null) {
+					result = 1;
+				} else {
+					result = propertyComparator.compare(o1.key, o2.key);
+				}
+				return result != 0 ? result : Long.compare(o1.position, o2.position);
+			}
+		};
+	}
+
+	/**
+	 * Set the directory for the sorted runs. If this is not set, the system
+	 * temporary directory is used.
+	 */
+	public void setSpillDirectory(File spillDirectory) {
+		this.spillDirectory = spillDirectory;
+	}
+
+	@Override
+	public GeoPipeFlow processNextStart() {
+		if (entries == null) {
+			entries = sortEntries();
+		}
+
+		Entry entry = entries.next();
+		GeoPipeFlow flow = new GeoPipeFlow(new SpatialDatabaseRecord(layer, layer.getSpatialDatabase().getDatabase()
+				.getNodeById(entry.nodeId)));
+		if (entry.key != null) {
+			flow.getProperties().put(property, entry.key);
+		}
+		return flow;
+	}
+
+	private Iterator<Entry> sortEntries() {
+		ArrayList<Entry> buffer = new ArrayList<Entry>(Math.min(bufferSize, 1024));
+		List<RunReader> runs = new ArrayList<RunReader>();
+		long position = 0;
+		try {
+			try {
+				while (true) {
+					GeoPipeFlow flow = (GeoPipeFlow) starts.next();
+					if (flow.countRecords() != 1) {
+						throw new SpatialDatabaseException("ExternalSort can only sort items of a single record, found "
+								+ flow.countRecords() + " records in item " + flow.getId());
+					}
+					if (layer == null) {
+						layer = flow.getRecord().getLayer();
+					}
+					buffer.add(new Entry(flow.getRecord().getNodeId(), flow.getProperties().get(property), position++));
+					if (buffer.size() >= bufferSize) {
+						runs.add(writeRun(buffer));
+						buffer.clear();
+					}
+				}
+			} catch (NoSuchElementException e) {
+			}
+
+			Collections.sort(buffer, comparator);
+			if (runs.isEmpty()) {
+				return buffer.iterator();
+			}
+			List<Iterator<Entry>> sources = new ArrayList<Iterator<Entry>>(runs);
+			sources.add(buffer.iterator());
+			return new MergeIterator(sources);
+		} catch (IOException e) {
+			for (RunReader run : runs) {
+				run.close();
+			}
+			throw new SpatialDatabaseException("Failed to write sorted run: " + e.getMessage(), e);
+		}
+	}
+
+	private RunReader writeRun(List<Entry> buffer) throws IOException {
+		Collections.sort(buffer, comparator);
+		if (spillDirectory != null && !spillDirectory.exists()) {
+			spillDirectory.mkdirs();
+		}
+		File file = File.createTempFile("geopipe-sort", ".run", spillDirectory);
+		file.deleteOnExit();
+		try (ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+			int count = 0;
+			for (Entry entry : buffer) {
+				out.writeLong(entry.nodeId);
+				out.writeLong(entry.position);
+				out.writeObject(entry.key);
+				// drop the back references, they would keep every key in memory
+				if (++count % 1000 == 0) {
+					out.reset();
+				}
+			}
+		} catch (IOException e) {
+			file.delete();
+			throw e;
+		}
+		return new RunReader(file, buffer.size());
+	}
+
+	private static class Entry {
+		private final long nodeId;
+		private final Object key;
+		private final long position;
+
+		private Entry(long nodeId, Object key, long position) {
+			this.nodeId = nodeId;
+			this.key = key;
+			this.position = position;
+		}
+	}
+
+	/**
+	 * Reads back a sorted run, and deletes the file when it is exhausted.
+	 */
+	private static class RunReader implements Iterator<Entry> {
+		private final File file;
+		private int remaining;
+		private ObjectInputStream in;
+
+		private RunReader(File file, int size) {
+			this.file = file;
+			this.remaining = size;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return remaining > 0;
+		}
+
+		@Override
+		public Entry next() {
+			if (remaining <= 0) {
+				throw new NoSuchElementException();
+			}
+			try {
+				if (in == null) {
+					in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(file)));
+				}
+				long nodeId = in.readLong();
+				long position = in.readLong();
+				Entry entry = new Entry(nodeId, in.readObject(), position);
+				if (--remaining == 0) {
+					close();
+				}
+				return entry;
+			} catch (EOFException e) {
+				close();
+				throw new SpatialDatabaseException("Sorted run ended early: " + file);
+			} catch (IOException | ClassNotFoundException e) {
+				close();
+				throw new SpatialDatabaseException("Failed to read sorted run " + file + ": " + e.getMessage(), e);
+			}
+		}
+
+		private void close() {
+			remaining = 0;
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+					// the file is deleted anyway
+				}
+				in = null;
+			}
+			file.delete();
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	/**
+	 * Merges sorted sources by keeping the next entry of each source in a
+	 * heap.
+	 */
+	private class MergeIterator implements Iterator<Entry> {
+		private final PriorityQueue<Head> heads;
+
+		private MergeIterator(List<Iterator<Entry>> sources) {
+			heads = new PriorityQueue<Head>(sources.size(), new Comparator<Head>() {
+				@Override
+				public int compare(Head o1, Head o2) {
+					return comparator.compare(o1.entry, o2.entry);
+				}
+			});
+			for (Iterator<Entry> source : sources) {
+				if (source.hasNext()) {
+					heads.add(new Head(source.next(), source));
+				}
+			}
+		}
+
+		@Override
+		public boolean hasNext() {
+			return !heads.isEmpty();
+		}
+
+		@Override
+		public Entry next() {
+			Head head = heads.poll();
+			if (head == null) {
+				throw new NoSuchElementException();
+			}
+			Entry entry = head.entry;
+			if (head.source.hasNext()) {
+				heads.add(new Head(head.source.next(), head.source));
+			}
+			return entry;
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	private static class Head {
+		private final Entry entry;
+		private final Iterator<Entry> source;
+
+		private Head(Entry entry, Iterator<Entry> source) {
+			this.entry = entry;
+			this.source = source;
+		}
+	}
+}
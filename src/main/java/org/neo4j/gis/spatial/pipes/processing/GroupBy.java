@@ -0,0 +1,612 @@
+/**
+ * Copyright (c) 2010-2013 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.gis.spatial.pipes.processing;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import org.neo4j.gis.spatial.Layer;
+import org.neo4j.gis.spatial.SpatialDatabaseException;
+import org.neo4j.gis.spatial.SpatialDatabaseRecord;
+import org.neo4j.gis.spatial.pipes.AbstractGeoPipe;
+import org.neo4j.gis.spatial.pipes.GeoPipeFlow;
+import org.neo4j.gis.spatial.utilities.CascadedUnion;
+
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+
+/**
+ * Groups items by the value of the given property and aggregates each group,
+ * like a SQL GROUP BY. Every group is kept as a compact accumulator holding
+ * the geometry node id of its first item and the running state of each
+ * aggregation, so the items themselves are not retained.
+ * <p>
+ * One item is emitted per group, in order of first appearance. It has the
+ * record of the first item of the group, the group property and one property
+ * per aggregation. Its geometry is the union of the group if a union is
+ * aggregated, else the extent of the group if an extent is aggregated, else
+ * the geometry of the first item.
+ * <p>
+ * When a maximum number of groups in memory is set and exceeded, items of
+ * further groups are written to temporary partition files by the hash of
+ * their group value, and each partition is aggregated after the groups in
+ * memory have been emitted. Group values and aggregated values must then be
+ * Serializable.
+ */
+public class GroupBy extends AbstractGeoPipe {
+
+	public static final int UNLIMITED = -1;
+	
+	private static final int PARTITIONS = 16;
+	private static final int PARTITION_BITS = 4;
+	private static final int UNION_BATCH_SIZE = 1000;
+	
+	public enum Function {
+		COUNT, SUM, MIN, MAX, AVG, EXTENT, UNION
+	}
+	
+	/**
+	 * An aggregation computed for every group.
+	 */
+	public static class Aggregation {
+		private final Function function;
+		private final String property;
+		private final String name;
+		
+		private Aggregation(Function function, String property, String name) {
+			this.function = function;
+			this.property = property;
+			this.name = name;
+		}
+		
+		/**
+		 * @return this aggregation with the given result property name
+		 */
+		public Aggregation as(String name) {
+			return new Aggregation(function, property, name);
+		}
+		
+		public Function getFunction() {
+			return function;
+		}
+		
+		public String getProperty() {
+			return property;
+		}
+		
+		public String getName() {
+			return name;
+		}
+	}
+
+	/**
+	 * Counts the items of each group, as property "count".
+	 */
+	public static Aggregation count() {
+		return new Aggregation(Function.COUNT, null, "count");
+	}
+
+	/**
+	 * Sums the numeric values of the given property, as property "sum(property)".
+	 */
+	public static Aggregation sum(String property) {
+		return new Aggregation(Function.SUM, property, "sum(" + property + ")");
+	}
+
+	/**
+	 * Finds the smallest value of the given property, as property "min(property)".
+	 */
+	public static Aggregation min(String property) {
+		return new Aggregation(Function.MIN, property, "min(" + property + ")");
+	}
+
+	/**
+	 * Finds the largest value of the given property, as property "max(property)".
+	 */
+	public static Aggregation max(String property) {
+		return new Aggregation(Function.MAX, property, "max(" + property + ")");
+	}
+
+	/**
+	 * Averages the numeric values of the given property, as property "avg(property)".
+	 */
+	public static Aggregation avg(String property) {
+		return new Aggregation(Function.AVG, property, "avg(" + property + ")");
+	}
+
+	/**
+	 * Computes the envelope of the item geometries, as property "extent".
+	 */
+	public static Aggregation extent() {
+		return new Aggregation(Function.EXTENT, null, "extent");
+	}
+
+	/**
+	 * Unites the item geometries with a cascaded union, which becomes the geometry of the group.
+	 */
+	public static Aggregation union() {
+		return new Aggregation(Function.UNION, null, "union");
+	}
+	
+	private final String property;
+	private final Aggregation[] aggregations;
+	// offset of each aggregation in the numbers or in the objects of a group
+	private final int[] offsets;
+	private final int numbersSize;
+	private final int objectsSize;
+	private int maxGroups = UNLIMITED;
+	private File spillDirectory;
+	private Layer layer;
+	private Iterator<Group> groups;
+
+	public GroupBy(String property, Aggregation... aggregations) {
+		this.property = property;
+		this.aggregations = aggregations;
+		this.offsets = new int[aggregations.length];
+		int numbers = 0;
+		int objects = 0;
+		for (int i = 0; i < aggregations.length; i++) {
+			switch (aggregations[i].function) {
+			case COUNT:
+			case SUM:
+				offsets[i] = numbers;
+				numbers += 1;
+				break;
+			case AVG:
+				offsets[i] = numbers;
+				numbers += 2;
+				break;
+			case EXTENT:
+				offsets[i] = numbers;
+				numbers += 4;
+				break;
+			default:
+				offsets[i] = objects;
+				objects += 1;
+			}
+		}
+		this.numbersSize = numbers;
+		this.objectsSize = objects;
+	}
+	
+	/**
+	 * Sets the number of groups kept in memory before items of new groups
+	 * are spilled to disk, or UNLIMITED, which is the default.
+	 */
+	public void setMaxGroupsInMemory(int maxGroups) {
+		if (maxGroups != UNLIMITED && maxGroups < 1) {
+			throw new IllegalArgumentException("Maximum number of groups must be positive: " + maxGroups);
+		}
+		this.maxGroups = maxGroups;
+	}
+	
+	/**
+	 * Set the directory for the partition files. If this is not set, the
+	 * system temporary directory is used.
+	 */
+	public void setSpillDirectory(File spillDirectory) {
+		this.spillDirectory = spillDirectory;
+	}
+
+	@Override
+	public GeoPipeFlow processNextStart() {
+		if (groups == null) {
+			groups = aggregate(new FlowSource(), 0);
+		}
+		
+		return emit(groups.next());
+	}
+
+	/**
+	 * Aggregates the items of the source, spilling items of new groups to
+	 * partitions once maxGroups are in memory. The groups in memory are
+	 * returned first, followed by the groups of each partition.
+	 */
+	private Iterator<Group> aggregate(ItemSource source, int level) {
+		Map<Object,Group> groups = new LinkedHashMap<Object,Group>();
+		Partitions partitions = null;
+		try {
+			while (source.next()) {
+				Group group = groups.get(source.key);
+				if (group == null) {
+					if (maxGroups != UNLIMITED && groups.size() >= maxGroups && level * PARTITION_BITS < Integer.SIZE) {
+						if (partitions == null) {
+							partitions = new Partitions(level);
+						}
+						partitions.write(source);
+						continue;
+					}
+					group = new Group(source.key, source.nodeId);
+					groups.put(source.key, group);
+				}
+				accumulate(group, source.inputs);
+			}
+		} catch (IOException e) {
+			if (partitions != null) {
+				partitions.delete();
+			}
+			throw new SpatialDatabaseException("Failed to spill groups: " + e.getMessage(), e);
+		} finally {
+			source.close();
+		}
+		
+		if (partitions == null) {
+			return groups.values().iterator();
+		}
+		
+		final Iterator<Group> inMemory = groups.values().iterator();
+		final List<File> files = partitions.close();
+		final int nextLevel = level + 1;
+		return new Iterator<Group>() {
+			private Iterator<Group> current = inMemory;
+			
+			@Override
+			public boolean hasNext() {
+				while (!current.hasNext()) {
+					if (files.isEmpty()) {
+						return false;
+					}
+					current = aggregate(new PartitionSource(files.remove(0)), nextLevel);
+				}
+				return true;
+			}
+
+			@Override
+			public Group next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				return current.next();
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+	
+	private Object[] extractInputs(GeoPipeFlow flow) {
+		Object[] inputs = new Object[aggregations.length];
+		for (int i = 0; i < aggregations.length; i++) {
+			switch (aggregations[i].function) {
+			case COUNT:
+				break;
+			case EXTENT:
+				inputs[i] = flow.getEnvelope();
+				break;
+			case UNION:
+				inputs[i] = flow.getGeometry();
+				break;
+			default:
+				inputs[i] = flow.getProperties().get(aggregations[i].property);
+			}
+		}
+		return inputs;
+	}
+	
+	@SuppressWarnings("unchecked")
+	private void accumulate(Group group, Object[] inputs) {
+		for (int i = 0; i < aggregations.length; i++) {
+			int offset = offsets[i];
+			Object input = inputs[i];
+			switch (aggregations[i].function) {
+			case COUNT:
+				group.numbers[offset]++;
+				break;
+			case SUM:
+				if (input instanceof Number) {
+					group.numbers[offset] += ((Number) input).doubleValue();
+				}
+				break;
+			case AVG:
+				if (input instanceof Number) {
+					group.numbers[offset] += ((Number) input).doubleValue();
+					group.numbers[offset + 1]++;
+				}
+				break;
+			case MIN:
+				if (input != null && (group.objects[offset] == null || compare(input, group.objects[offset]) < 0)) {
+					group.objects[offset] = input;
+				}
+				break;
+			case MAX:
+				if (input != null && (group.objects[offset] == null || compare(input, group.objects[offset]) > 0)) {
+					group.objects[offset] = input;
+				}
+				break;
+			case EXTENT:
+				Envelope envelope = (Envelope) input;
+				if (envelope != null && !envelope.isNull()) {
+					group.numbers[offset] = Math.min(group.numbers[offset], envelope.getMinX());
+					group.numbers[offset + 1] = Math.max(group.numbers[offset + 1], envelope.getMaxX());
+					group.numbers[offset + 2] = Math.min(group.numbers[offset + 2], envelope.getMinY());
+					group.numbers[offset + 3] = Math.max(group.numbers[offset + 3], envelope.getMaxY());
+				}
+				break;
+			case UNION:
+				if (input != null) {
+					List<Geometry> geometries = (List<Geometry>) group.objects[offset];
+					if (geometries == null) {
+						geometries = new ArrayList<Geometry>();
+						group.objects[offset] = geometries;
+					}
+					geometries.add((Geometry) input);
+					// keep the memory bounded for large groups
+					if (geometries.size() >= UNION_BATCH_SIZE) {
+						Geometry union = CascadedUnion.union(geometries);
+						geometries.clear();
+						geometries.add(union);
+					}
+				}
+				break;
+			}
+		}
+	}
+	
+	@SuppressWarnings("unchecked")
+	private static int compare(Object left, Object right) {
+		if (left instanceof Number && right instanceof Number) {
+			return Double.compare(((Number) left).doubleValue(), ((Number) right).doubleValue());
+		}
+		return ((Comparable<Object>) left).compareTo(right);
+	}
+	
+	@SuppressWarnings("unchecked")
+	private GeoPipeFlow emit(Group group) {
+		GeoPipeFlow flow = new GeoPipeFlow(new SpatialDatabaseRecord(layer, layer.getSpatialDatabase().getDatabase()
+				.getNodeById(group.nodeId)));
+		flow.getProperties().put(property, group.key);
+		
+		Geometry extent = null;
+		Geometry union = null;
+		for (int i = 0; i < aggregations.length; i++) {
+			int offset = offsets[i];
+			Object result = null;
+			switch (aggregations[i].function) {
+			case COUNT:
+				result = (long) group.numbers[offset];
+				break;
+			case SUM:
+				result = group.numbers[offset];
+				break;
+			case AVG:
+				if (group.numbers[offset + 1] > 0) {
+					result = group.numbers[offset] / group.numbers[offset + 1];
+				}
+				break;
+			case MIN:
+			case MAX:
+				result = group.objects[offset];
+				break;
+			case EXTENT:
+				if (group.numbers[offset] <= group.numbers[offset + 1]) {
+					Envelope envelope = new Envelope(group.numbers[offset], group.numbers[offset + 1],
+							group.numbers[offset + 2], group.numbers[offset + 3]);
+					extent = layer.getGeometryFactory().toGeometry(envelope);
+					result = envelope;
+				}
+				break;
+			case UNION:
+				List<Geometry> geometries = (List<Geometry>) group.objects[offset];
+				if (geometries != null) {
+					union = geometries.size() == 1 ? geometries.get(0) : CascadedUnion.union(geometries);
+				}
+				break;
+			}
+			if (result != null) {
+				flow.getProperties().put(aggregations[i].name, result);
+			}
+		}
+		
+		if (union != null) {
+			flow.setGeometry(union);
+		} else if (extent != null) {
+			flow.setGeometry(extent);
+		}
+		return flow;
+	}
+	
+	private class Group {
+		private final Object key;
+		private final long nodeId;
+		private final double[] numbers;
+		private final Object[] objects;
+		
+		private Group(Object key, long nodeId) {
+			this.key = key;
+			this.nodeId = nodeId;
+			this.numbers = new double[numbersSize];
+			this.objects = new Object[objectsSize];
+			for (int i = 0; i < aggregations.length; i++) {
+				if (aggregations[i].function == Function.EXTENT) {
+					numbers[offsets[i]] = Double.POSITIVE_INFINITY;
+					numbers[offsets[i] + 1] = Double.NEGATIVE_INFINITY;
+					numbers[offsets[i] + 2] = Double.POSITIVE_INFINITY;
+					numbers[offsets[i] + 3] = Double.NEGATIVE_INFINITY;
+				}
+			}
+		}
+	}
+	
+	/**
+	 * The items to aggregate, read one at a time into key, nodeId and inputs.
+	 */
+	private abstract static class ItemSource {
+		protected Object key;
+		protected long nodeId;
+		protected Object[] inputs;
+		
+		abstract boolean next() throws IOException;
+		
+		void close() {
+		}
+	}
+	
+	private class FlowSource extends ItemSource {
+		@Override
+		boolean next() {
+			if (!starts.hasNext()) {
+				return false;
+			}
+			GeoPipeFlow flow = (GeoPipeFlow) starts.next();
+			if (layer == null) {
+				layer = flow.getRecord().getLayer();
+			}
+			key = flow.getProperties().get(property);
+			nodeId = flow.getRecord().getNodeId();
+			inputs = extractInputs(flow);
+			return true;
+		}
+	}
+	
+	/**
+	 * Reads back the items of a partition, and deletes the file when done.
+	 */
+	private static class PartitionSource extends ItemSource {
+		private final File file;
+		private ObjectInputStream in;
+		
+		private PartitionSource(File file) {
+			this.file = file;
+		}
+		
+		@Override
+		boolean next() throws IOException {
+			try {
+				if (in == null) {
+					in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(file)));
+				}
+				if (!in.readBoolean()) {
+					return false;
+				}
+				key = in.readObject();
+				nodeId = in.readLong();
+				inputs = (Object[]) in.readObject();
+				return true;
+			} catch (EOFException e) {
+				throw new SpatialDatabaseException("Group partition ended early: " + file);
+			} catch (ClassNotFoundException e) {
+				throw new SpatialDatabaseException("Failed to read group partition " + file + ": " + e.getMessage(), e);
+			}
+		}
+		
+		@Override
+		void close() {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+					// the file is deleted anyway
+				}
+				in = null;
+			}
+			file.delete();
+		}
+	}
+	
+	/**
+	 * Partition files of the items spilled at one level. Each level uses
+	 * different bits of the hash of the group value.
+	 */
+	private class Partitions {
+		private final int level;
+		private final File[] files = new File[PARTITIONS];
+		private final ObjectOutputStream[] outs = new ObjectOutputStream[PARTITIONS];
+		private final int[] counts = new int[PARTITIONS];
+		
+		private Partitions(int level) {
+			this.level = level;
+		}
+		
+		private void write(ItemSource item) throws IOException {
+			int hash = item.key == null ? 0 : item.key.hashCode();
+			hash ^= (hash >>> 16) * 0x45d9f3b;
+			int partition = (hash >>> (level * PARTITION_BITS)) & (PARTITIONS - 1);
+			if (outs[partition] == null) {
+				if (spillDirectory != null && !spillDirectory.exists()) {
+					spillDirectory.mkdirs();
+				}
+				files[partition] = File.createTempFile("geopipe-group", ".part", spillDirectory);
+				files[partition].deleteOnExit();
+				outs[partition] = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(files[partition])));
+			}
+			ObjectOutputStream out = outs[partition];
+			out.writeBoolean(true);
+			out.writeObject(item.key);
+			out.writeLong(item.nodeId);
+			out.writeObject(item.inputs);
+			// drop the back references, they would keep every item in memory
+			if (++counts[partition] % 1000 == 0) {
+				out.reset();
+			}
+		}
+		
+		/**
+		 * @return the partition files written
+		 */
+		private List<File> close() {
+			List<File> written = new ArrayList<File>();
+			try {
+				for (int i = 0; i < PARTITIONS; i++) {
+					if (outs[i] != null) {
+						outs[i].writeBoolean(false);
+						outs[i].close();
+						outs[i] = null;
+						written.add(files[i]);
+					}
+				}
+			} catch (IOException e) {
+				delete();
+				throw new SpatialDatabaseException("Failed to write group partition: " + e.getMessage(), e);
+			}
+			return written;
+		}
+		
+		private void delete() {
+			for (int i = 0; i < PARTITIONS; i++) {
+				if (outs[i] != null) {
+					try {
+						outs[i].close();
+					} catch (IOException e) {
+						// the file is deleted anyway
+					}
+					outs[i] = null;
+				}
+				if (files[i] != null) {
+					files[i].delete();
+				}
+			}
+		}
+	}
+}
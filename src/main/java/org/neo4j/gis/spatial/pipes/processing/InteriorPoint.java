@@ -20,6 +20,7 @@
 package org.neo4j.gis.spatial.pipes.processing;
 
 import org.neo4j.gis.spatial.pipes.AbstractGeoPipe;
+import org.neo4j.gis.spatial.pipes.StatelessGeoPipe;
 import org.neo4j.gis.spatial.pipes.GeoPipeFlow;
 
 /**
@@ -28,7 +29,7 @@ import org.neo4j.gis.spatial.pipes.GeoPipeFlow;
  * Otherwise, the point may lie on the boundary of the geometry.
  * Item geometry is replaced by pipe output unless an alternative property name is given in the constructor.
  */
-public class InteriorPoint extends AbstractGeoPipe {
+public class InteriorPoint extends AbstractGeoPipe implements StatelessGeoPipe {
 	
 	public InteriorPoint() {
 	}		
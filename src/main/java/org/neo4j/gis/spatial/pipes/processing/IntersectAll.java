@@ -35,7 +35,14 @@ public class IntersectAll extends AbstractGroupGeoPipe {
 			groups.add(flow);
 		} else {
 			GeoPipeFlow result = groups.get(0);
-			result.setGeometry(result.getGeometry().intersection(flow.getGeometry()));
+			// once the intersection is empty it stays empty, so skip the overlay
+			if (!result.getGeometry().isEmpty()) {
+				if (result.getEnvelope().intersects(flow.getEnvelope())) {
+					result.setGeometry(result.getGeometry().intersection(flow.getGeometry()));
+				} else {
+					result.setGeometry(result.getGeometry().getFactory().createGeometryCollection(null));
+				}
+			}
 			result.merge(flow);
 		}
 	}
@@ -20,13 +20,14 @@
 package org.neo4j.gis.spatial.pipes.processing;
 
 import org.neo4j.gis.spatial.pipes.AbstractGeoPipe;
+import org.neo4j.gis.spatial.pipes.StatelessGeoPipe;
 import org.neo4j.gis.spatial.pipes.GeoPipeFlow;
 
 
 /**
  * Calculates geometry length for each item in the pipeline.
  */
-public class Length extends AbstractGeoPipe {
+public class Length extends AbstractGeoPipe implements StatelessGeoPipe {
 
 	public Length() {
 	}		
@@ -20,6 +20,7 @@
 package org.neo4j.gis.spatial.pipes.processing;
 
 import org.neo4j.gis.spatial.pipes.AbstractGeoPipe;
+import org.neo4j.gis.spatial.pipes.StatelessGeoPipe;
 import org.neo4j.gis.spatial.pipes.GeoPipeFlow;
 
 import com.vividsolutions.jts.geom.Coordinate;
@@ -32,7 +33,7 @@ import com.vividsolutions.jts.geom.Envelope;
  * 
  * Algorithm reference: http://www.movable-type.co.uk/scripts/latlong-db.html
  */
-public class OrthodromicDistance extends AbstractGeoPipe {
+public class OrthodromicDistance extends AbstractGeoPipe implements StatelessGeoPipe {
 
 	private Coordinate reference;
 	public static final double earthRadiusInKm = 6371;	
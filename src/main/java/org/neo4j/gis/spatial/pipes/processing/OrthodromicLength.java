@@ -21,6 +21,7 @@ package org.neo4j.gis.spatial.pipes.processing;
 
 import org.geotools.referencing.GeodeticCalculator;
 import org.neo4j.gis.spatial.pipes.AbstractGeoPipe;
+import org.neo4j.gis.spatial.pipes.StatelessGeoPipe;
 import org.neo4j.gis.spatial.pipes.GeoPipeFlow;
 import org.opengis.referencing.crs.CoordinateReferenceSystem;
 
@@ -32,7 +33,7 @@ import com.vividsolutions.jts.geom.Geometry;
  * Calculates geometry length for each item in the pipeline.
  * This pipe assume Layer contains geometries with Latitude / Longitude coordinates in degrees. 
  */
-public class OrthodromicLength extends AbstractGeoPipe {
+public class OrthodromicLength extends AbstractGeoPipe implements StatelessGeoPipe {
 
 	protected CoordinateReferenceSystem crs;
 	
@@ -20,6 +20,7 @@
 package org.neo4j.gis.spatial.pipes.processing;
 
 import org.neo4j.gis.spatial.pipes.AbstractGeoPipe;
+import org.neo4j.gis.spatial.pipes.StatelessGeoPipe;
 import org.neo4j.gis.spatial.pipes.GeoPipeFlow;
 
 import com.vividsolutions.jts.simplify.TopologyPreservingSimplifier;
@@ -28,7 +29,7 @@ import com.vividsolutions.jts.simplify.TopologyPreservingSimplifier;
  * Simplifies geometry for every item in the pipeline, using an algorithm that preserves geometry topology.
  * Item geometry is replaced by pipe output unless an alternative property name is given in the constructor.
  */
-public class SimplifyPreservingTopology extends AbstractGeoPipe {
+public class SimplifyPreservingTopology extends AbstractGeoPipe implements StatelessGeoPipe {
 	
 	private double distanceTolerance;
 	
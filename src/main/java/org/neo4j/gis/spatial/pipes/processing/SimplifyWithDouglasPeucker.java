@@ -20,6 +20,7 @@
 package org.neo4j.gis.spatial.pipes.processing;
 
 import org.neo4j.gis.spatial.pipes.AbstractGeoPipe;
+import org.neo4j.gis.spatial.pipes.StatelessGeoPipe;
 import org.neo4j.gis.spatial.pipes.GeoPipeFlow;
 
 import com.vividsolutions.jts.simplify.DouglasPeuckerSimplifier;
@@ -29,7 +30,7 @@ import com.vividsolutions.jts.simplify.DouglasPeuckerSimplifier;
  * Simplifies geometry for every item in the pipeline, using Douglas Peucker algorithm.
  * Item geometry is replaced by pipe output unless an alternative property name is given in the constructor.
  */
-public class SimplifyWithDouglasPeucker extends AbstractGeoPipe {
+public class SimplifyWithDouglasPeucker extends AbstractGeoPipe implements StatelessGeoPipe {
 	
 	private double distanceTolerance;
 	
@@ -25,21 +25,35 @@ import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
 
 import org.neo4j.gis.spatial.pipes.AbstractGeoPipe;
 import org.neo4j.gis.spatial.pipes.GeoPipeFlow;
 
 /**
  * Sort items in the pipeline comparing values of the given property.
+ * <p>
+ * When only the first items are needed, a limit can be given, either
+ * directly or by following the sort with a range in the GeoPipeline. The sort
+ * then only keeps the best items seen so far in a bounded heap, instead of
+ * holding the whole upstream in memory. Items comparing equal keep their
+ * upstream order, so the result is the same as the head of a full sort.
  */
 public class Sort extends AbstractGeoPipe {
 
-	private List<GeoPipeFlow> sortedFlow;
 	private Comparator<GeoPipeFlow> comparator;
+	private int limit;
 	private Iterator<GeoPipeFlow> flowIterator;
 	
 	public Sort(final String property, final Comparator<Object> propertyComparator) {
-		this.sortedFlow = new ArrayList<GeoPipeFlow>();
+		this(property, propertyComparator, -1);
+	}
+
+	/**
+	 * @param limit the maximum number of items to emit, or -1 for all items
+	 */
+	public Sort(final String property, final Comparator<Object> propertyComparator, int limit) {
+		this.limit = limit;
 		this.comparator = new Comparator<GeoPipeFlow>() {
 			@Override
 			public int compare(GeoPipeFlow o1, GeoPipeFlow o2) {
@@ -60,7 +74,18 @@ public class Sort extends AbstractGeoPipe {
 	}
 	
 	public Sort(String property, final boolean asc) {
-		this(property, new Comparator<Object>() {
+		this(property, asc, -1);
+	}
+
+	/**
+	 * @param limit the maximum number of items to emit, or -1 for all items
+	 */
+	public Sort(String property, final boolean asc, int limit) {
+		this(property, naturalOrder(asc), limit);
+	}
+
+	static Comparator<Object> naturalOrder(final boolean asc) {
+		return new Comparator<Object>() {
 			@SuppressWarnings({ "unchecked", "rawtypes" })
 			@Override
 			public int compare(Object o1, Object o2) {
@@ -70,24 +95,95 @@ public class Sort extends AbstractGeoPipe {
 				}
 				return result;
 			}			
-		});
+		};
+	}
+
+	/**
+	 * Limit the number of items emitted by this pipe. This only has an effect
+	 * before the first item has been read.
+	 * 
+	 * @param limit the maximum number of items to emit, or -1 for all items
+	 */
+	public void setLimit(int limit) {
+		this.limit = limit;
+	}
+
+	public int getLimit() {
+		return limit;
 	}
 	
 	@Override
 	public GeoPipeFlow processNextStart() {
 		if (flowIterator == null) {
-			try {
-				while (true) {
-					sortedFlow.add((GeoPipeFlow) starts.next());
-				}
-			} catch (NoSuchElementException e) {
-		    }
-			
-			Collections.sort(sortedFlow, comparator);
-			flowIterator = sortedFlow.iterator();
+			flowIterator = limit < 0 ? sortAll() : sortTop(limit);
 		}
 		
 		return flowIterator.next();
 	}
 
-}
\ No newline at end of file
+	private Iterator<GeoPipeFlow> sortAll() {
+		List<GeoPipeFlow> sortedFlow = new ArrayList<GeoPipeFlow>();
+		try {
+			while (true) {
+				sortedFlow.add((GeoPipeFlow) starts.next());
+			}
+		} catch (NoSuchElementException e) {
+		}
+
+		Collections.sort(sortedFlow, comparator);
+		return sortedFlow.iterator();
+	}
+
+	/**
+	 * Keep the best k items in a heap with the worst of them at the head.
+	 * Each item is tagged with its upstream position, and an item only
+	 * replaces the head if it is strictly better, so ties are resolved in
+	 * upstream order like the stable full sort.
+	 */
+	private Iterator<GeoPipeFlow> sortTop(int k) {
+		if (k == 0) {
+			return Collections.<GeoPipeFlow> emptyList().iterator();
+		}
+		final Comparator<Ranked> ranking = new Comparator<Ranked>() {
+			@Override
+			public int compare(Ranked o1, Ranked o2) {
+				int result = comparator.compare(o1.flow, o2.flow);
+				return result != 0 ? result : Long.compare(o1.position, o2.position);
+			}
+		};
+		PriorityQueue<Ranked> heap = new PriorityQueue<Ranked>(k, Collections.reverseOrder(ranking));
+		long position = 0;
+		try {
+			while (true) {
+				GeoPipeFlow flow = (GeoPipeFlow) starts.next();
+				if (heap.size() < k) {
+					heap.add(new Ranked(flow, position));
+				} else if (comparator.compare(flow, heap.peek().flow) < 0) {
+					heap.poll();
+					heap.add(new Ranked(flow, position));
+				}
+				position++;
+			}
+		} catch (NoSuchElementException e) {
+		}
+
+		ArrayList<Ranked> top = new ArrayList<Ranked>(heap);
+		Collections.sort(top, ranking);
+		List<GeoPipeFlow> sortedFlow = new ArrayList<GeoPipeFlow>(top.size());
+		for (Ranked ranked : top) {
+			sortedFlow.add(ranked.flow);
+		}
+		return sortedFlow.iterator();
+	}
+
+	private static class Ranked {
+		private final GeoPipeFlow flow;
+		private final long position;
+
+		private Ranked(GeoPipeFlow flow, long position) {
+			this.flow = flow;
+			this.position = position;
+		}
+	}
+
+}
@@ -20,6 +20,7 @@
 package org.neo4j.gis.spatial.pipes.processing;
 
 import org.neo4j.gis.spatial.pipes.AbstractGeoPipe;
+import org.neo4j.gis.spatial.pipes.StatelessGeoPipe;
 import org.neo4j.gis.spatial.pipes.GeoPipeFlow;
 
 import com.vividsolutions.jts.geom.Geometry;
@@ -28,7 +29,7 @@ import com.vividsolutions.jts.geom.Geometry;
  * Computes the symmetric difference of the given geometry with item geometry.
  * Item geometry is replaced by pipe output unless an alternative property name is given in the constructor.
  */
-public class SymDifference extends AbstractGeoPipe {
+public class SymDifference extends AbstractGeoPipe implements StatelessGeoPipe {
 	
 	private Geometry other;
 	
@@ -19,25 +19,55 @@
  */
 package org.neo4j.gis.spatial.pipes.processing;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import org.neo4j.gis.spatial.pipes.AbstractGroupGeoPipe;
 import org.neo4j.gis.spatial.pipes.GeoPipeFlow;
+import org.neo4j.gis.spatial.utilities.CascadedUnion;
+
+import com.vividsolutions.jts.geom.Geometry;
 
 /**
  * Unites geometries of every item contained in the pipeline.
  * This pipe groups every item in the pipeline in a single item containing the geometry output
  * of the union.
+ * <p>
+ * The geometries are collected and united at the end with a cascaded union,
+ * see {@link CascadedUnion}, which can use several threads.
  */
 public class UnionAll extends AbstractGroupGeoPipe {
 
+	private List<Geometry> geometries = new ArrayList<Geometry>();
+	private int threads;
+
+	public UnionAll() {
+		this(1);
+	}
+
+	/**
+	 * @param threads number of threads to unite the geometries with
+	 */
+	public UnionAll(int threads) {
+		this.threads = threads;
+	}
+
 	@Override	
 	protected void group(GeoPipeFlow flow) {
 		if (groups.size() == 0) {
 			groups.add(flow);
 		} else {
-			GeoPipeFlow result = groups.get(0);
-			result.setGeometry(result.getGeometry().union(flow.getGeometry()));
-			result.merge(flow);
+			groups.get(0).merge(flow);
+		}
+		geometries.add(flow.getGeometry());
+	}
+
+	@Override
+	protected void groupingComplete() {
+		if (geometries.size() > 1) {
+			groups.get(0).setGeometry(CascadedUnion.union(geometries, threads));
 		}
+		geometries.clear();
 	}
 
-}
\ No newline at end of file
+}
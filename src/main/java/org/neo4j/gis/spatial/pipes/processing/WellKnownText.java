@@ -20,6 +20,7 @@
 package org.neo4j.gis.spatial.pipes.processing;
 
 import org.neo4j.gis.spatial.pipes.AbstractGeoPipe;
+import org.neo4j.gis.spatial.pipes.StatelessGeoPipe;
 import org.neo4j.gis.spatial.pipes.GeoPipeFlow;
 
 import com.vividsolutions.jts.io.WKTWriter;
@@ -27,7 +28,7 @@ import com.vividsolutions.jts.io.WKTWriter;
 /**
  * Encodes item geometry to Well Known Text (WKT).
  */
-public class WellKnownText extends AbstractGeoPipe {
+public class WellKnownText extends AbstractGeoPipe implements StatelessGeoPipe {
 
 	public WellKnownText() {
 	}		
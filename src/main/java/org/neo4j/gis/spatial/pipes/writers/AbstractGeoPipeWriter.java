@@ -0,0 +1,162 @@
+/**
+ * Copyright (c) 2010-2013 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.gis.spatial.pipes.writers;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.Iterator;
+
+import org.neo4j.gis.spatial.pipes.GeoPipeFlow;
+
+import com.vividsolutions.jts.geom.CoordinateSequence;
+
+
+/**
+ * Base class for writers that stream the items of a GeoPipeline to an
+ * OutputStream. Geometries are written straight from their coordinate
+ * sequences into a buffered writer, without building a string per item.
+ */
+public abstract class AbstractGeoPipeWriter {
+
+	/**
+	 * Precision that writes coordinates the way Double.toString does.
+	 */
+	public static final int FULL_PRECISION = -1;
+	
+	private static final int MAX_PRECISION = 15;
+	private static final int BUFFER_SIZE = 64 * 1024;
+	private static final long[] POWERS_OF_TEN = new long[MAX_PRECISION + 1];
+	static {
+		POWERS_OF_TEN[0] = 1;
+		for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+			POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+		}
+	}
+	
+	protected final Writer out;
+	private final int precision;
+	private final long scale;
+	private final double maxScaled;
+	private final char[] digits = new char[20];
+	
+	/**
+	 * @param stream the stream to write to, it's flushed but not closed by this writer
+	 * @param precision number of decimals of the coordinates, or FULL_PRECISION
+	 */
+	protected AbstractGeoPipeWriter(OutputStream stream, int precision) {
+		if (precision < FULL_PRECISION || precision > MAX_PRECISION) {
+			throw new IllegalArgumentException("Precision must be between 0 and " + MAX_PRECISION + ", or " + FULL_PRECISION + ", not " + precision);
+		}
+		this.out = new BufferedWriter(new OutputStreamWriter(stream, Charset.forName("UTF-8")), BUFFER_SIZE);
+		this.precision = precision;
+		this.scale = precision == FULL_PRECISION ? 1 : POWERS_OF_TEN[precision];
+		this.maxScaled = (double) (Long.MAX_VALUE / 2) / scale;
+	}
+
+	/**
+	 * Writes all the items and flushes the stream.
+	 * 
+	 * @return the number of items written
+	 */
+	public int write(Iterator<GeoPipeFlow> flows) throws IOException {
+		int count = 0;
+		writeHeader();
+		while (flows.hasNext()) {
+			writeFlow(flows.next(), count++);
+		}
+		writeFooter();
+		out.flush();
+		return count;
+	}
+	
+	protected abstract void writeHeader() throws IOException;
+
+	/**
+	 * @param index position of the item in the output, starting from 0
+	 */
+	protected abstract void writeFlow(GeoPipeFlow flow, int index) throws IOException;
+	
+	protected abstract void writeFooter() throws IOException;
+
+	/**
+	 * Writes an ordinate with the configured precision, dropping trailing zeros.
+	 */
+	protected void writeOrdinate(double value) throws IOException {
+		if (precision == FULL_PRECISION || Double.isNaN(value) || Double.isInfinite(value) || Math.abs(value) >= maxScaled) {
+			out.write(Double.toString(value));
+			return;
+		}
+		
+		long scaled = Math.round(value * scale);
+		if (scaled < 0) {
+			out.write('-');
+			scaled = -scaled;
+		}
+		writeLong(scaled / scale);
+		
+		long fraction = scaled % scale;
+		if (fraction != 0) {
+			int fractionDigits = precision;
+			while (fraction % 10 == 0) {
+				fraction /= 10;
+				fractionDigits--;
+			}
+			out.write('.');
+			for (long i = fraction * 10; i < POWERS_OF_TEN[fractionDigits]; i *= 10) {
+				out.write('0');
+			}
+			writeLong(fraction);
+		}
+	}
+	
+	/**
+	 * Writes a non negative number without creating a string.
+	 */
+	protected void writeLong(long value) throws IOException {
+		int position = digits.length;
+		do {
+			digits[--position] = (char) ('0' + (value % 10));
+			value /= 10;
+		} while (value > 0);
+		out.write(digits, position, digits.length - position);
+	}
+	
+	/**
+	 * Writes a coordinate, with its z ordinate if there is one.
+	 * 
+	 * @param separator written between the ordinates
+	 */
+	protected void writeCoordinate(CoordinateSequence sequence, int index, char separator) throws IOException {
+		writeOrdinate(sequence.getX(index));
+		out.write(separator);
+		writeOrdinate(sequence.getY(index));
+		if (sequence.getDimension() > 2) {
+			double z = sequence.getOrdinate(index, CoordinateSequence.Z);
+			if (!Double.isNaN(z)) {
+				out.write(separator);
+				writeOrdinate(z);
+			}
+		}
+	}
+}
@@ -0,0 +1,223 @@
+/**
+ * Copyright (c) 2010-2013 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.gis.spatial.pipes.writers;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Array;
+import java.util.Map;
+
+import org.neo4j.gis.spatial.pipes.GeoPipeFlow;
+
+import com.vividsolutions.jts.geom.CoordinateSequence;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryCollection;
+import com.vividsolutions.jts.geom.LineString;
+import com.vividsolutions.jts.geom.Point;
+import com.vividsolutions.jts.geom.Polygon;
+
+
+/**
+ * Writes items as a GeoJSON FeatureCollection. Each item becomes a Feature
+ * with the item id, its geometry and its properties.
+ */
+public class GeoJSONWriter extends AbstractGeoPipeWriter {
+
+	public GeoJSONWriter(OutputStream stream) {
+		this(stream, FULL_PRECISION);
+	}
+	
+	public GeoJSONWriter(OutputStream stream, int precision) {
+		super(stream, precision);
+	}
+
+	@Override
+	protected void writeHeader() throws IOException {
+		out.write("{\"type\":\"FeatureCollection\",\"features\":[");
+	}
+
+	@Override
+	protected void writeFlow(GeoPipeFlow flow, int index) throws IOException {
+		if (index > 0) {
+			out.write(',');
+		}
+		out.write("\n{\"type\":\"Feature\",\"id\":");
+		writeString(flow.getId());
+		out.write(",\"geometry\":");
+		writeGeometry(flow.getGeometry());
+		out.write(",\"properties\":{");
+		boolean first = true;
+		for (Map.Entry<String,Object> property : flow.getProperties().entrySet()) {
+			if (!first) {
+				out.write(',');
+			}
+			first = false;
+			writeString(property.getKey());
+			out.write(':');
+			writeValue(property.getValue());
+		}
+		out.write("}}");
+	}
+
+	@Override
+	protected void writeFooter() throws IOException {
+		out.write("\n]}\n");
+	}
+	
+	private void writeGeometry(Geometry geometry) throws IOException {
+		if (geometry == null) {
+			out.write("null");
+			return;
+		}
+		
+		out.write("{\"type\":\"");
+		if (geometry instanceof LineString) {
+			// linear rings aren't a GeoJSON type
+			out.write("LineString");
+		} else {
+			out.write(geometry.getGeometryType());
+		}
+		if (geometry.getClass() == GeometryCollection.class) {
+			out.write("\",\"geometries\":[");
+			for (int i = 0; i < geometry.getNumGeometries(); i++) {
+				if (i > 0) {
+					out.write(',');
+				}
+				writeGeometry(geometry.getGeometryN(i));
+			}
+			out.write("]}");
+		} else {
+			out.write("\",\"coordinates\":");
+			writeCoordinates(geometry);
+			out.write('}');
+		}
+	}
+	
+	private void writeCoordinates(Geometry geometry) throws IOException {
+		if (geometry instanceof Point) {
+			CoordinateSequence sequence = ((Point) geometry).getCoordinateSequence();
+			if (sequence.size() == 0) {
+				out.write("[]");
+			} else {
+				writePosition(sequence, 0);
+			}
+		} else if (geometry instanceof LineString) {
+			writeSequence(((LineString) geometry).getCoordinateSequence());
+		} else if (geometry instanceof Polygon) {
+			Polygon polygon = (Polygon) geometry;
+			out.write('[');
+			if (!polygon.isEmpty()) {
+				writeSequence(polygon.getExteriorRing().getCoordinateSequence());
+				for (int i = 0; i < polygon.getNumInteriorRing(); i++) {
+					out.write(',');
+					writeSequence(polygon.getInteriorRingN(i).getCoordinateSequence());
+				}
+			}
+			out.write(']');
+		} else {
+			out.write('[');
+			for (int i = 0; i < geometry.getNumGeometries(); i++) {
+				if (i > 0) {
+					out.write(',');
+				}
+				writeCoordinates(geometry.getGeometryN(i));
+			}
+			out.write(']');
+		}
+	}
+	
+	private void writeSequence(CoordinateSequence sequence) throws IOException {
+		out.write('[');
+		for (int i = 0; i < sequence.size(); i++) {
+			if (i > 0) {
+				out.write(',');
+			}
+			writePosition(sequence, i);
+		}
+		out.write(']');
+	}
+	
+	private void writePosition(CoordinateSequence sequence, int index) throws IOException {
+		out.write('[');
+		writeCoordinate(sequence, index, ',');
+		out.write(']');
+	}
+	
+	private void writeValue(Object value) throws IOException {
+		if (value == null) {
+			out.write("null");
+		} else if (value instanceof Double || value instanceof Float) {
+			double number = ((Number) value).doubleValue();
+			if (Double.isNaN(number) || Double.isInfinite(number)) {
+				out.write("null");
+			} else {
+				out.write(value.toString());
+			}
+		} else if (value instanceof Number || value instanceof Boolean) {
+			out.write(value.toString());
+		} else if (value instanceof Geometry) {
+			writeGeometry((Geometry) value);
+		} else if (value.getClass().isArray()) {
+			out.write('[');
+			for (int i = 0; i < Array.getLength(value); i++) {
+				if (i > 0) {
+					out.write(',');
+				}
+				writeValue(Array.get(value, i));
+			}
+			out.write(']');
+		} else {
+			writeString(value.toString());
+		}
+	}
+	
+	private void writeString(String value) throws IOException {
+		out.write('"');
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			switch (c) {
+			case '"':
+				out.write("\\\"");
+				break;
+			case '\\':
+				out.write("\\\\");
+				break;
+			case '\n':
+				out.write("\\n");
+				break;
+			case '\r':
+				out.write("\\r");
+				break;
+			case '\t':
+				out.write("\\t");
+				break;
+			default:
+				if (c < 0x20) {
+					out.write("\\u00");
+					out.write(Character.forDigit(c >> 4, 16));
+					out.write(Character.forDigit(c & 0xf, 16));
+				} else {
+					out.write(c);
+				}
+			}
+		}
+		out.write('"');
+	}
+}
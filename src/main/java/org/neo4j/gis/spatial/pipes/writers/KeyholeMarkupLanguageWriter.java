@@ -0,0 +1,164 @@
+/**
+ * Copyright (c) 2010-2013 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.gis.spatial.pipes.writers;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Array;
+import java.util.Map;
+
+import org.neo4j.gis.spatial.pipes.GeoPipeFlow;
+
+import com.vividsolutions.jts.geom.CoordinateSequence;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.LineString;
+import com.vividsolutions.jts.geom.LinearRing;
+import com.vividsolutions.jts.geom.Point;
+import com.vividsolutions.jts.geom.Polygon;
+
+
+/**
+ * Writes items as a Keyhole Markup Language (KML) document. Each item becomes
+ * a Placemark named after the item id, with its properties as ExtendedData.
+ */
+public class KeyholeMarkupLanguageWriter extends AbstractGeoPipeWriter {
+
+	public KeyholeMarkupLanguageWriter(OutputStream stream) {
+		this(stream, FULL_PRECISION);
+	}
+	
+	public KeyholeMarkupLanguageWriter(OutputStream stream, int precision) {
+		super(stream, precision);
+	}
+
+	@Override
+	protected void writeHeader() throws IOException {
+		out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+		out.write("<kml xmlns=\"http://www.opengis.net/kml/2.2\"><Document>");
+	}
+
+	@Override
+	protected void writeFlow(GeoPipeFlow flow, int index) throws IOException {
+		out.write("\n<Placemark><name>");
+		writeText(flow.getId());
+		out.write("</name>");
+		if (!flow.getProperties().isEmpty()) {
+			out.write("<ExtendedData>");
+			for (Map.Entry<String,Object> property : flow.getProperties().entrySet()) {
+				out.write("<Data name=\"");
+				writeText(property.getKey());
+				out.write("\"><value>");
+				writeValue(property.getValue());
+				out.write("</value></Data>");
+			}
+			out.write("</ExtendedData>");
+		}
+		writeGeometry(flow.getGeometry());
+		out.write("</Placemark>");
+	}
+
+	@Override
+	protected void writeFooter() throws IOException {
+		out.write("\n</Document></kml>\n");
+	}
+	
+	private void writeGeometry(Geometry geometry) throws IOException {
+		if (geometry instanceof Point) {
+			out.write("<Point>");
+			writeCoordinates(((Point) geometry).getCoordinateSequence());
+			out.write("</Point>");
+		} else if (geometry instanceof LinearRing) {
+			writeRing((LinearRing) geometry);
+		} else if (geometry instanceof LineString) {
+			out.write("<LineString>");
+			writeCoordinates(((LineString) geometry).getCoordinateSequence());
+			out.write("</LineString>");
+		} else if (geometry instanceof Polygon) {
+			Polygon polygon = (Polygon) geometry;
+			out.write("<Polygon><outerBoundaryIs>");
+			writeRing(polygon.getExteriorRing());
+			out.write("</outerBoundaryIs>");
+			for (int i = 0; i < polygon.getNumInteriorRing(); i++) {
+				out.write("<innerBoundaryIs>");
+				writeRing(polygon.getInteriorRingN(i));
+				out.write("</innerBoundaryIs>");
+			}
+			out.write("</Polygon>");
+		} else if (geometry != null) {
+			out.write("<MultiGeometry>");
+			for (int i = 0; i < geometry.getNumGeometries(); i++) {
+				writeGeometry(geometry.getGeometryN(i));
+			}
+			out.write("</MultiGeometry>");
+		}
+	}
+	
+	private void writeRing(LineString ring) throws IOException {
+		out.write("<LinearRing>");
+		writeCoordinates(ring.getCoordinateSequence());
+		out.write("</LinearRing>");
+	}
+	
+	private void writeCoordinates(CoordinateSequence sequence) throws IOException {
+		out.write("<coordinates>");
+		for (int i = 0; i < sequence.size(); i++) {
+			if (i > 0) {
+				out.write(' ');
+			}
+			writeCoordinate(sequence, i, ',');
+		}
+		out.write("</coordinates>");
+	}
+	
+	private void writeValue(Object value) throws IOException {
+		if (value != null && value.getClass().isArray()) {
+			for (int i = 0; i < Array.getLength(value); i++) {
+				if (i > 0) {
+					out.write(',');
+				}
+				writeValue(Array.get(value, i));
+			}
+		} else if (value != null) {
+			writeText(value.toString());
+		}
+	}
+	
+	private void writeText(String text) throws IOException {
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			switch (c) {
+			case '<':
+				out.write("&lt;");
+				break;
+			case '>':
+				out.write("&gt;");
+				break;
+			case '&':
+				out.write("&amp;");
+				break;
+			case '"':
+				out.write("&quot;");
+				break;
+			default:
+				out.write(c);
+			}
+		}
+	}
+}
@@ -0,0 +1,120 @@
+/**
+ * Copyright (c) 2010-2013 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.gis.spatial.pipes.writers;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.neo4j.gis.spatial.pipes.GeoPipeFlow;
+
+import com.vividsolutions.jts.geom.CoordinateSequence;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryCollection;
+import com.vividsolutions.jts.geom.LineString;
+import com.vividsolutions.jts.geom.Point;
+import com.vividsolutions.jts.geom.Polygon;
+
+
+/**
+ * Writes item geometries as Well Known Text (WKT), one geometry per line.
+ * Items without a geometry are written as empty lines, so each line still
+ * belongs to the item at the same position.
+ */
+public class WellKnownTextWriter extends AbstractGeoPipeWriter {
+
+	public WellKnownTextWriter(OutputStream stream) {
+		this(stream, FULL_PRECISION);
+	}
+	
+	public WellKnownTextWriter(OutputStream stream, int precision) {
+		super(stream, precision);
+	}
+
+	@Override
+	protected void writeHeader() throws IOException {
+	}
+
+	@Override
+	protected void writeFlow(GeoPipeFlow flow, int index) throws IOException {
+		Geometry geometry = flow.getGeometry();
+		if (geometry != null) {
+			writeGeometry(geometry);
+		}
+		out.write('\n');
+	}
+
+	@Override
+	protected void writeFooter() throws IOException {
+	}
+	
+	private void writeGeometry(Geometry geometry) throws IOException {
+		out.write(geometry.getGeometryType().toUpperCase());
+		out.write(' ');
+		writeText(geometry);
+	}
+	
+	private void writeText(Geometry geometry) throws IOException {
+		if (geometry.isEmpty()) {
+			out.write("EMPTY");
+		} else if (geometry instanceof Point) {
+			out.write('(');
+			writeCoordinate(((Point) geometry).getCoordinateSequence(), 0, ' ');
+			out.write(')');
+		} else if (geometry instanceof LineString) {
+			writeSequence(((LineString) geometry).getCoordinateSequence());
+		} else if (geometry instanceof Polygon) {
+			Polygon polygon = (Polygon) geometry;
+			out.write('(');
+			writeSequence(polygon.getExteriorRing().getCoordinateSequence());
+			for (int i = 0; i < polygon.getNumInteriorRing(); i++) {
+				out.write(", ");
+				writeSequence(polygon.getInteriorRingN(i).getCoordinateSequence());
+			}
+			out.write(')');
+		} else {
+			// collection members are written with their type only in mixed
+			// collections, so multi points come out as MULTIPOINT ((x y), (x y))
+			boolean typed = geometry.getClass() == GeometryCollection.class;
+			out.write('(');
+			for (int i = 0; i < geometry.getNumGeometries(); i++) {
+				if (i > 0) {
+					out.write(", ");
+				}
+				if (typed) {
+					writeGeometry(geometry.getGeometryN(i));
+				} else {
+					writeText(geometry.getGeometryN(i));
+				}
+			}
+			out.write(')');
+		}
+	}
+	
+	private void writeSequence(CoordinateSequence sequence) throws IOException {
+		out.write('(');
+		for (int i = 0; i < sequence.size(); i++) {
+			if (i > 0) {
+				out.write(", ");
+			}
+			writeCoordinate(sequence, i, ' ');
+		}
+		out.write(')');
+	}
+}
@@ -34,6 +34,7 @@ import org.neo4j.gis.spatial.osm.OSMGeometryEncoder;
 import org.neo4j.gis.spatial.osm.OSMImporter;
 import org.neo4j.gis.spatial.pipes.GeoPipeFlow;
 import org.neo4j.gis.spatial.pipes.GeoPipeline;
+import org.neo4j.gis.spatial.pipes.GeoPipelineProfile;
 import org.neo4j.gis.spatial.rtree.ProgressLoggingListener;
 import org.neo4j.graphdb.GraphDatabaseService;
 import org.neo4j.graphdb.Node;
@@ -118,6 +119,24 @@ public class SpatialProcedures {
         }
     }
 
+    public static class ProfileResult {
+        public final String stage;
+        public final long itemsIn;
+        public final long itemsOut;
+        public final long nanos;
+        public final long allocatedBytes;
+        public final Map<String, Object> details;
+
+        public ProfileResult(String stage, long itemsIn, long itemsOut, long nanos, long allocatedBytes, Map<String, Object> details) {
+            this.stage = stage;
+            this.itemsIn = itemsIn;
+            this.itemsOut = itemsOut;
+            this.nanos = nanos;
+            this.allocatedBytes = allocatedBytes;
+            this.details = details;
+        }
+    }
+
     public static class CountResult {
         public final long count;
 
@@ -432,6 +451,26 @@ public class SpatialProcedures {
         return importer.reIndex( db, commitInterval );
     }
 
+    @Procedure("spatial.importGeoJSON")
+    @PerformsWrites
+    public Stream<CountResult> importGeoJSON(
+            @Name("layerName") String name,
+            @Name("uri") String uri) throws IOException {
+        StreamingFeatureImporter importer = new StreamingFeatureImporter(db, new ProgressLoggingListener("Importing " + uri, log.debugLogger()), 1000);
+        return Stream.of(new CountResult(importer.importGeoJSON(uri, name)));
+    }
+
+    @Procedure("spatial.importCSV")
+    @PerformsWrites
+    public Stream<CountResult> importCSV(
+            @Name("layerName") String name,
+            @Name("uri") String uri,
+            @Name("wktColumn") String wktColumn) throws IOException {
+        StreamingFeatureImporter importer = new StreamingFeatureImporter(db, new ProgressLoggingListener("Importing " + uri, log.debugLogger()), 1000);
+        importer.setWKTColumn(wktColumn);
+        return Stream.of(new CountResult(importer.importCSV(uri, name)));
+    }
+
     @Procedure("spatial.bbox")
     @PerformsWrites // TODO FIX
     public Stream<NodeResult> findGeometriesInBBox(
@@ -439,11 +478,14 @@ public class SpatialProcedures {
             @Name("min") Object min,
             @Name("max") Object max) {
         Layer layer = getLayerOrThrow(name);
+        return bboxPipeline(layer, min, max)
+                .stream().map(GeoPipeFlow::getGeomNode).map(NodeResult::new);
+    }
+
+    private GeoPipeline bboxPipeline(Layer layer, Object min, Object max) {
         // TODO why a SearchWithin and not a SearchIntersectWindow?
         Envelope envelope = new Envelope(toCoordinate(min),toCoordinate(max));
-        return GeoPipeline
-                .startWithinSearch(layer, layer.getGeometryFactory().toGeometry(envelope))
-                .stream().map(GeoPipeFlow::getGeomNode).map(NodeResult::new);
+        return GeoPipeline.startWithinSearch(layer, layer.getGeometryFactory().toGeometry(envelope));
     }
 
 
@@ -469,15 +511,19 @@ public class SpatialProcedures {
             @Name("distanceInKm") double distanceInKm) {
 
         Layer layer = getLayerOrThrow(name);
-        return GeoPipeline
-                .startNearestNeighborLatLonSearch(layer, toCoordinate(coordinate), distanceInKm)
-                .sort(DISTANCE)
+        return withinDistancePipeline(layer, coordinate, distanceInKm)
                 .stream().map(r -> {
                     double distance = r.hasProperty(DISTANCE) ? ((Number) r.getProperty(DISTANCE)).doubleValue() : -1;
                     return new NodeDistanceResult(r.getGeomNode(), distance);
                 });
     }
 
+    private GeoPipeline withinDistancePipeline(Layer layer, Object coordinate, double distanceInKm) {
+        return GeoPipeline
+                .startNearestNeighborLatLonSearch(layer, toCoordinate(coordinate), distanceInKm)
+                .sort(DISTANCE);
+    }
+
     @Procedure("spatial.decodeGeometry")
     // TODO: This currently returns an internal Cypher type, in order to be able to pass back into
     // other procedures that only accept internal cypher types due to a bug in Neo4j 3.0
@@ -517,11 +563,53 @@ public class SpatialProcedures {
             @Name("geometry") Object geometry) {
 
         Layer layer = getLayerOrThrow(name);
-        return GeoPipeline
-                .startIntersectSearch(layer, toJTSGeometry(layer, geometry))
+        return intersectsPipeline(layer, geometry)
                 .stream().map(GeoPipeFlow::getGeomNode).map(NodeResult::new);
     }
 
+    private GeoPipeline intersectsPipeline(Layer layer, Object geometry) {
+        return GeoPipeline.startIntersectSearch(layer, toJTSGeometry(layer, geometry));
+    }
+
+    @Procedure("spatial.profile")
+    @PerformsWrites // TODO FIX
+    public Stream<ProfileResult> profile(
+            @Name("layerName") String name,
+            @Name("procedure") String procedure,
+            @Name("arguments") Map<String, Object> arguments) {
+
+        Layer layer = getLayerOrThrow(name);
+        GeoPipeline pipeline;
+        switch (procedure) {
+            case "spatial.bbox":
+                pipeline = bboxPipeline(layer, arguments.get("min"), arguments.get("max"));
+                break;
+            case "spatial.intersects":
+                pipeline = intersectsPipeline(layer, arguments.get("geometry"));
+                break;
+            case "spatial.withinDistance":
+                pipeline = withinDistancePipeline(layer, arguments.get("coordinate"), ((Number) arguments.get("distanceInKm")).doubleValue());
+                break;
+            default:
+                throw new IllegalArgumentException("Can't profile '" + procedure + "', only spatial.bbox, spatial.intersects and spatial.withinDistance");
+        }
+
+        pipeline.profile().iterate();
+        GeoPipelineProfile profile = pipeline.getProfile();
+        List<ProfileResult> results = new ArrayList<>();
+        for (GeoPipelineProfile.Stage stage : profile.getStages()) {
+            Map<String, Object> details = new LinkedHashMap<>();
+            if (results.isEmpty()) {
+                details.put("indexNodesVisited", profile.getIndexNodesVisited());
+                details.put("leavesTested", profile.getLeavesTested());
+                details.put("geometriesDecoded", profile.getGeometriesDecoded());
+                details.put("falsePositives", profile.getFalsePositives());
+            }
+            results.add(new ProfileResult(stage.getName(), stage.getItemsIn(), stage.getItemsOut(), stage.getNanos(), stage.getAllocatedBytes(), details));
+        }
+        return results.stream();
+    }
+
     private Geometry toJTSGeometry(Layer layer, Object value) {
         GeometryFactory factory = layer.getGeometryFactory();
         if (value instanceof org.neo4j.graphdb.spatial.Point) {
@@ -32,4 +32,14 @@ public interface Listener {
 
 	void done();
 
+	/**
+	 * Pipelined operations, like the multi-threaded OSM import, run several
+	 * stages at once. Each stage reports how many items it has processed, its
+	 * throughput and the number of batches waiting in its input queue. A
+	 * stage with a full queue is slower than the stage feeding it. Listeners
+	 * that are not interested in this can ignore it.
+	 */
+	default void stageProgress(String stage, long processed, double perSecond, int queueDepth) {
+	}
+
 }
\ No newline at end of file
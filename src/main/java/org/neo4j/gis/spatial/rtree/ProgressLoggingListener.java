@@ -21,6 +21,7 @@ package org.neo4j.gis.spatial.rtree;
 
 import org.neo4j.logging.Logger;
 import java.io.PrintStream;
+import java.util.LinkedHashMap;
 
 /**
  * This listener logs percentage progress to the specified PrintStream or Logger based on a timer,
@@ -35,6 +36,7 @@ public class ProgressLoggingListener implements Listener {
     private int workedSoFar = 0;
     private boolean enabled = false;
     private long timeWait = 1000;
+    private final LinkedHashMap<String, String> stages = new LinkedHashMap<>();
 
     public interface ProgressLog {
         void log(String line);
@@ -60,6 +62,7 @@ public class ProgressLoggingListener implements Listener {
         this.totalUnits = unitsOfWork;
         this.workedSoFar = 0;
         this.lastLogTime = 0L;
+        this.stages.clear();
         try {
             this.enabled = true;
             out.log("Starting " + name);
@@ -82,6 +85,11 @@ public class ProgressLoggingListener implements Listener {
         logNoMoreThanOnceASecond("Completed");
     }
 
+    @Override
+    public void stageProgress(String stage, long processed, double perSecond, int queueDepth) {
+        stages.put(stage, String.format("%s: %d (%.0f/s, queue %d)", stage, processed, perSecond, queueDepth));
+    }
+
     private void logNoMoreThanOnceASecond(String action) {
         long now = System.currentTimeMillis();
         if (enabled && now - lastLogTime > timeWait) {
@@ -90,6 +98,9 @@ public class ProgressLoggingListener implements Listener {
             } else {
                 out.log(action + " " + name);
             }
+            for (String stage : stages.values()) {
+                out.log("\t" + stage);
+            }
             this.lastLogTime = now;
         }
     }
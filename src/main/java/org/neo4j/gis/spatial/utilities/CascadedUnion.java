@@ -0,0 +1,129 @@
+/**
+ * Copyright (c) 2010-2013 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.gis.spatial.utilities;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.index.strtree.STRtree;
+import com.vividsolutions.jts.operation.union.UnaryUnionOp;
+
+/**
+ * Union of many geometries at once. Folding geometries one by one into an
+ * accumulated result makes every step as expensive as the result so far,
+ * which is quadratic overall. Instead the geometries are loaded into an
+ * STR-tree, and each tree node is united from the unions of its children,
+ * so every union combines a few geometries that are close to each other and
+ * of similar size. With more than one thread the subtrees near the root are
+ * united in parallel.
+ */
+public class CascadedUnion {
+
+	private static final int NODE_CAPACITY = 4;
+
+	/**
+	 * Subtrees are only forked down to this depth, giving at most
+	 * NODE_CAPACITY^FORK_DEPTH tasks, which is enough to keep a pool busy
+	 * without spending more time on scheduling than on unions.
+	 */
+	private static final int FORK_DEPTH = 4;
+
+	public static Geometry union(Collection<Geometry> geometries) {
+		return union(geometries, 1);
+	}
+
+	/**
+	 * @param geometries the geometries to unite
+	 * @param threads number of threads to unite subtrees with
+	 * @return the union, or null if there are no geometries
+	 */
+	public static Geometry union(Collection<Geometry> geometries, int threads) {
+		if (geometries.isEmpty()) {
+			return null;
+		} else if (geometries.size() == 1) {
+			return geometries.iterator().next();
+		}
+		STRtree tree = new STRtree(NODE_CAPACITY);
+		for (Geometry geometry : geometries) {
+			tree.insert(geometry.getEnvelopeInternal(), geometry);
+		}
+		List<?> items = tree.itemsTree();
+		if (threads <= 1) {
+			return unionTree(items);
+		}
+		ForkJoinPool pool = new ForkJoinPool(threads);
+		try {
+			return pool.invoke(new UnionTask(items, 0));
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	private static Geometry unionTree(List<?> node) {
+		List<Geometry> parts = new ArrayList<Geometry>(node.size());
+		for (Object child : node) {
+			addPart(parts, child instanceof List ? unionTree((List<?>) child) : (Geometry) child);
+		}
+		return UnaryUnionOp.union(parts);
+	}
+
+	private static void addPart(List<Geometry> parts, Geometry part) {
+		if (part != null) {
+			parts.add(part);
+		}
+	}
+
+	private static class UnionTask extends RecursiveTask<Geometry> {
+		private static final long serialVersionUID = 1L;
+		private final List<?> node;
+		private final int depth;
+
+		private UnionTask(List<?> node, int depth) {
+			this.node = node;
+			this.depth = depth;
+		}
+
+		@Override
+		protected Geometry compute() {
+			if (depth >= FORK_DEPTH) {
+				return unionTree(node);
+			}
+			List<Geometry> parts = new ArrayList<Geometry>(node.size());
+			List<UnionTask> subtrees = new ArrayList<UnionTask>(node.size());
+			for (Object child : node) {
+				if (child instanceof List) {
+					UnionTask subtree = new UnionTask((List<?>) child, depth + 1);
+					subtree.fork();
+					subtrees.add(subtree);
+				} else {
+					addPart(parts, (Geometry) child);
+				}
+			}
+			for (UnionTask subtree : subtrees) {
+				addPart(parts, subtree.join());
+			}
+			return UnaryUnionOp.union(parts);
+		}
+	}
+}
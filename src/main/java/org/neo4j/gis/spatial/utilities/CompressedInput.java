@@ -0,0 +1,226 @@
+/**
+ * Copyright (c) 2010-2013 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.gis.spatial.utilities;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
+
+/**
+ * Helpers for reading import files that are compressed with gzip or bzip2,
+ * chosen by the file name suffix, without decompressing them to disk first.
+ * Concatenated gzip members and bzip2 streams, as written by parallel
+ * compressors like pigz and pbzip2, are read as one stream.
+ */
+public class CompressedInput {
+
+	private static final int BLOCK_SIZE = 64 * 1024;
+	private static final int QUEUE_SIZE = 16;
+
+	public static boolean isCompressed(String path) {
+		return isGzip(path) || isBzip2(path);
+	}
+
+	private static boolean isGzip(String path) {
+		String name = path.toLowerCase();
+		return name.endsWith(".gz") || name.endsWith(".gzip");
+	}
+
+	private static boolean isBzip2(String path) {
+		String name = path.toLowerCase();
+		return name.endsWith(".bz2") || name.endsWith(".bzip2");
+	}
+
+	/**
+	 * Wrap the raw file stream in the decompressor matching the file name, or
+	 * return it unchanged if the file is not compressed.
+	 */
+	public static InputStream decompress(InputStream raw, String path) throws IOException {
+		if (isGzip(path)) {
+			return new GZIPInputStream(raw, BLOCK_SIZE);
+		} else if (isBzip2(path)) {
+			return new BZip2CompressorInputStream(raw, true);
+		} else {
+			return raw;
+		}
+	}
+
+	/**
+	 * Like {@link #decompress(InputStream, String)}, but compressed input is
+	 * decompressed on a separate thread, which hands blocks of decompressed
+	 * data to the reader through a bounded queue, so decompression and
+	 * parsing run in parallel.
+	 */
+	public static InputStream open(InputStream raw, String path) throws IOException {
+		if (isCompressed(path)) {
+			return new ReadAheadInputStream(decompress(raw, path), "decompress-" + path);
+		} else {
+			return raw;
+		}
+	}
+
+	/**
+	 * Counts the bytes read from the underlying stream. Placed between the
+	 * file and the decompressor, it measures progress through the compressed
+	 * file. The count may be read from another thread.
+	 */
+	public static class CountingInputStream extends FilterInputStream {
+		private volatile long count = 0;
+
+		public CountingInputStream(InputStream in) {
+			super(in);
+		}
+
+		public long getCount() {
+			return count;
+		}
+
+		public int read() throws IOException {
+			int b = super.read();
+			if (b >= 0) {
+				count++;
+			}
+			return b;
+		}
+
+		public int read(byte[] b, int off, int len) throws IOException {
+			int read = super.read(b, off, len);
+			if (read > 0) {
+				count += read;
+			}
+			return read;
+		}
+
+		public long skip(long n) throws IOException {
+			long skipped = super.skip(n);
+			count += skipped;
+			return skipped;
+		}
+
+		public boolean markSupported() {
+			return false;
+		}
+	}
+
+	private static class ReadAheadInputStream extends InputStream {
+		private static final byte[] END_OF_STREAM = new byte[0];
+
+		private final InputStream source;
+		private final BlockingQueue<byte[]> blocks = new ArrayBlockingQueue<byte[]>(QUEUE_SIZE);
+		private final Thread reader;
+		private volatile IOException failure = null;
+		private volatile boolean closed = false;
+		private byte[] current = null;
+		private int position = 0;
+
+		private ReadAheadInputStream(InputStream source, String name) {
+			this.source = source;
+			this.reader = new Thread(this::readBlocks, name);
+			this.reader.setDaemon(true);
+			this.reader.start();
+		}
+
+		private void readBlocks() {
+			try {
+				while (!closed) {
+					byte[] block = new byte[BLOCK_SIZE];
+					int count = 0;
+					while (count < block.length) {
+						int read = source.read(block, count, block.length - count);
+						if (read < 0) {
+							break;
+						}
+						count += read;
+					}
+					if (count > 0) {
+						blocks.put(count == block.length ? block : Arrays.copyOf(block, count));
+					}
+					if (count < block.length) {
+						break;
+					}
+				}
+			} catch (IOException e) {
+				failure = e;
+			} catch (InterruptedException e) {
+				return;
+			}
+			try {
+				blocks.put(END_OF_STREAM);
+			} catch (InterruptedException e) {
+				// closed while waiting for the reader
+			}
+		}
+
+		private boolean nextBlock() throws IOException {
+			if (current == END_OF_STREAM) {
+				return false;
+			}
+			if (current == null || position >= current.length) {
+				try {
+					current = blocks.take();
+				} catch (InterruptedException e) {
+					throw new InterruptedIOException("Interrupted while waiting for decompressed data");
+				}
+				position = 0;
+				if (current == END_OF_STREAM) {
+					if (failure != null) {
+						throw failure;
+					}
+					return false;
+				}
+			}
+			return true;
+		}
+
+		public int read() throws IOException {
+			return nextBlock() ? current[position++] & 0xff : -1;
+		}
+
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			if (!nextBlock()) {
+				return -1;
+			}
+			int count = Math.min(len, current.length - position);
+			System.arraycopy(current, position, b, off, count);
+			position += count;
+			return count;
+		}
+
+		public int available() {
+			return current == null || current == END_OF_STREAM ? 0 : current.length - position;
+		}
+
+		public void close() throws IOException {
+			closed = true;
+			reader.interrupt();
+			source.close();
+		}
+	}
+}
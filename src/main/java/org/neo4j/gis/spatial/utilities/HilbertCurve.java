@@ -0,0 +1,82 @@
+/**
+ * Copyright (c) 2010-2013 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.gis.spatial.utilities;
+
+/**
+ * Maps points to their distance along a Hilbert curve over a bounding box.
+ * Points that are close on the curve are close in space, so creating
+ * geometries sorted by this value keeps spatially adjacent features close
+ * together in the store.
+ */
+public class HilbertCurve {
+
+	/**
+	 * Number of bits per axis, giving a 65536 x 65536 grid.
+	 */
+	public static final int DEFAULT_ORDER = 16;
+
+	/**
+	 * Return the Hilbert curve index of the point in the grid of the default
+	 * order covering the given bounds. Points outside the bounds are clamped
+	 * to the nearest edge.
+	 */
+	public static long index(double x, double y, double minX, double minY, double maxX, double maxY) {
+		return index(DEFAULT_ORDER, x, y, minX, minY, maxX, maxY);
+	}
+
+	public static long index(int order, double x, double y, double minX, double minY, double maxX, double maxY) {
+		if (order < 1 || order > 31) {
+			throw new IllegalArgumentException("Hilbert curve order must be between 1 and 31: " + order);
+		}
+		long n = 1L << order;
+		return index(n, cell(x, minX, maxX, n), cell(y, minY, maxY, n));
+	}
+
+	private static long cell(double value, double min, double max, long n) {
+		if (max <= min || Double.isNaN(value)) {
+			return 0;
+		}
+		long cell = (long) ((value - min) / (max - min) * n);
+		return Math.max(0, Math.min(n - 1, cell));
+	}
+
+	/**
+	 * The classic iterative conversion from grid cell to curve distance,
+	 * rotating the quadrant at each level.
+	 */
+	private static long index(long n, long x, long y) {
+		long d = 0;
+		for (long s = n / 2; s > 0; s /= 2) {
+			long rx = (x & s) > 0 ? 1 : 0;
+			long ry = (y & s) > 0 ? 1 : 0;
+			d += s * s * ((3 * rx) ^ ry);
+			if (ry == 0) {
+				if (rx == 1) {
+					x = s - 1 - x;
+					y = s - 1 - y;
+				}
+				long t = x;
+				x = y;
+				y = t;
+			}
+		}
+		return d;
+	}
+}
@@ -0,0 +1,84 @@
+/**
+ * Copyright (c) 2010-2013 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.gis.spatial.utilities;
+
+import java.io.File;
+import java.util.ArrayList;
+
+import org.neo4j.gis.spatial.SpatialDatabaseException;
+import org.neo4j.graphdb.PropertyContainer;
+
+/**
+ * Helpers for the checkpoints written by resumable imports. A checkpoint is a
+ * set of properties, all prefixed with "checkpoint_", stored on the dataset
+ * or layer node in the same transaction as the data it describes. It always
+ * includes a fingerprint of the source file, so an import is only resumed
+ * from the same unchanged file.
+ */
+public class ImportCheckpoint {
+
+	public static final String PREFIX = "checkpoint_";
+	public static final String PROP_SOURCE = PREFIX + "source";
+	public static final String PROP_POSITION = PREFIX + "position";
+
+	/**
+	 * Identify a source file by name, size and modification time.
+	 */
+	public static String fingerprint(File file) {
+		return file.getName() + ":" + file.length() + ":" + file.lastModified();
+	}
+
+	/**
+	 * Return the position recorded for the given source, or 0 if there is no
+	 * checkpoint. If the checkpoint belongs to another source we cannot resume
+	 * and refuse to start over on top of a partial import.
+	 */
+	public static long getPosition(PropertyContainer container, String source) {
+		String checkpointSource = (String) container.getProperty(PROP_SOURCE, null);
+		if (checkpointSource == null) {
+			return 0;
+		}
+		if (!checkpointSource.equals(source)) {
+			throw new SpatialDatabaseException("Cannot resume import of '" + source + "', the existing checkpoint is for '"
+					+ checkpointSource + "'");
+		}
+		return ((Number) container.getProperty(PROP_POSITION, 0L)).longValue();
+	}
+
+	public static void setPosition(PropertyContainer container, String source, long position) {
+		container.setProperty(PROP_SOURCE, source);
+		container.setProperty(PROP_POSITION, position);
+	}
+
+	/**
+	 * Remove all checkpoint properties, once the import has completed.
+	 */
+	public static void clear(PropertyContainer container) {
+		ArrayList<String> keys = new ArrayList<String>();
+		for (String key : container.getPropertyKeys()) {
+			if (key.startsWith(PREFIX)) {
+				keys.add(key);
+			}
+		}
+		for (String key : keys) {
+			container.removeProperty(key);
+		}
+	}
+}
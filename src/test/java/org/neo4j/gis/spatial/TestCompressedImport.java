@@ -0,0 +1,147 @@
+/**
+ * Copyright (c) 2010-2013 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.gis.spatial;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorOutputStream;
+import org.junit.Test;
+import org.neo4j.gis.spatial.osm.OSMDataset;
+import org.neo4j.gis.spatial.osm.OSMGeometryEncoder;
+import org.neo4j.gis.spatial.osm.OSMImporter;
+import org.neo4j.gis.spatial.osm.OSMLayer;
+import org.neo4j.gis.spatial.rtree.NullListener;
+import org.neo4j.gis.spatial.utilities.CompressedInput;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
+
+public class TestCompressedImport extends Neo4jTestCase {
+
+	@Test
+	public void testImportCompressedOSM() throws Exception {
+		File plain = new File("map.osm");
+		File gzipped = new File("target/map.osm.gz");
+		File bzipped = new File("target/map.osm.bz2");
+		gzipped.getParentFile().mkdirs();
+		try (OutputStream out = new GZIPOutputStream(new FileOutputStream(gzipped))) {
+			Files.copy(plain.toPath(), out);
+		}
+		try (OutputStream out = new BZip2CompressorOutputStream(new FileOutputStream(bzipped))) {
+			Files.copy(plain.toPath(), out);
+		}
+		int[] expected = importAndCount("plain", plain.getPath());
+		assertTrue("Should have imported some ways", expected[1] > 0);
+		assertArrayEquals(expected, importAndCount("gzip", gzipped.getPath()));
+		assertArrayEquals(expected, importAndCount("bzip2", bzipped.getPath()));
+	}
+
+	@Test
+	public void testConcatenatedGzipMembers() throws Exception {
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+		for (String member : new String[] { "first ", "second ", "third" }) {
+			try (OutputStream out = new GZIPOutputStream(new NonClosingOutputStream(compressed))) {
+				out.write(member.getBytes("UTF-8"));
+			}
+		}
+		CompressedInput.CountingInputStream counted = new CompressedInput.CountingInputStream(new ByteArrayInputStream(
+				compressed.toByteArray()));
+		ByteArrayOutputStream result = new ByteArrayOutputStream();
+		try (InputStream in = CompressedInput.open(counted, "members.gz")) {
+			byte[] buffer = new byte[3];
+			int read;
+			while ((read = in.read(buffer)) >= 0) {
+				result.write(buffer, 0, read);
+			}
+		}
+		assertEquals("first second third", result.toString("UTF-8"));
+		assertEquals("All compressed bytes should be consumed", compressed.size(), counted.getCount());
+	}
+
+	@Test
+	public void testImportZippedShapefile() throws Exception {
+		File zipped = new File("target/highway.zip");
+		zipped.getParentFile().mkdirs();
+		try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(zipped))) {
+			for (String extension : new String[] { ".shp", ".shx", ".dbf", ".prj" }) {
+				out.putNextEntry(new ZipEntry("highway/highway" + extension));
+				Files.copy(new File("shp", "highway" + extension).toPath(), out);
+				out.closeEntry();
+			}
+		}
+		ShapefileImporter importer = new ShapefileImporter(graphDb(), new NullListener(), 100);
+		List<Node> expected = importer.importFile("shp" + File.separator + "highway", "highway_plain",
+				Charset.forName("UTF-8"));
+		List<Node> imported = importer.importFile(zipped.getPath(), "highway_zipped", Charset.forName("UTF-8"));
+		assertTrue("Should have imported some geometries", expected.size() > 0);
+		assertEquals("Should import every geometry from the archive", expected.size(), imported.size());
+		try (Transaction tx = graphDb().beginTx()) {
+			SpatialDatabaseService spatialService = new SpatialDatabaseService(graphDb());
+			Layer layer = spatialService.getLayer("highway_zipped");
+			assertEquals("Should index every geometry", expected.size(), layer.getIndex().count());
+			assertEquals("Should read the projection from the archive",
+					spatialService.getLayer("highway_plain").getCoordinateReferenceSystem(),
+					layer.getCoordinateReferenceSystem());
+			assertEquals(expected.get(0).getProperty("highway", null), imported.get(0).getProperty("highway", null));
+			tx.success();
+		}
+	}
+
+	private int[] importAndCount(String layerName, String path) throws Exception {
+		OSMImporter importer = new OSMImporter(layerName);
+		importer.setCharset(Charset.forName("UTF-8"));
+		importer.importFile(graphDb(), path, false, 1000, true);
+		importer.reIndex(graphDb(), 1000);
+		try (Transaction tx = graphDb().beginTx()) {
+			SpatialDatabaseService spatialService = new SpatialDatabaseService(graphDb());
+			OSMLayer layer = (OSMLayer) spatialService.getOrCreateLayer(layerName, OSMGeometryEncoder.class, OSMLayer.class);
+			OSMDataset dataset = (OSMDataset) layer.getDataset();
+			int[] counts = new int[] { dataset.getNodeCount(), dataset.getWayCount(), layer.getIndex().count() };
+			tx.success();
+			return counts;
+		}
+	}
+
+	private static void assertArrayEquals(int[] expected, int[] actual) {
+		assertEquals(Arrays.toString(expected), Arrays.toString(actual));
+	}
+
+	private static class NonClosingOutputStream extends FilterOutputStream {
+		NonClosingOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		public void close() {
+			// keep the shared stream open for the next member
+		}
+	}
+}
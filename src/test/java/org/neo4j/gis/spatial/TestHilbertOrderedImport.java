@@ -0,0 +1,108 @@
+/**
+ * Copyright (c) 2010-2013 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.gis.spatial;
+
+import java.io.File;
+import java.nio.charset.Charset;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.junit.Test;
+import org.neo4j.gis.spatial.osm.OSMGeometryEncoder;
+import org.neo4j.gis.spatial.osm.OSMImporter;
+import org.neo4j.gis.spatial.osm.OSMLayer;
+import org.neo4j.gis.spatial.rtree.NullListener;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
+
+public class TestHilbertOrderedImport extends Neo4jTestCase {
+
+	@Test
+	public void testHilbertOrderedShapefile() throws Exception {
+		String shpPath = "shp" + File.separator + "highway";
+		ShapefileImporter importer = new ShapefileImporter(graphDb(), new NullListener(), 100);
+		importer.importFile(shpPath, "highway_file_order", Charset.forName("UTF-8"));
+		importer.setHilbertOrder(1000);
+		importer.importFile(shpPath, "highway_hilbert_order", Charset.forName("UTF-8"));
+		TreeMap<Integer, Node> expected = readById("highway_file_order");
+		TreeMap<Integer, Node> actual = readById("highway_hilbert_order");
+		assertEquals("Should import the same records", expected.keySet(), actual.keySet());
+		boolean reordered = false;
+		Node previous = null;
+		try (Transaction tx = graphDb().beginTx()) {
+			for (Map.Entry<Integer, Node> entry : actual.entrySet()) {
+				Node node = entry.getValue();
+				assertEquals("Attributes of record " + entry.getKey() + " should be preserved",
+						expected.get(entry.getKey()).getAllProperties().keySet(), node.getAllProperties().keySet());
+				assertEquals("Name of record " + entry.getKey() + " should be preserved",
+						expected.get(entry.getKey()).getProperty("name", null), node.getProperty("name", null));
+				if (previous != null && previous.getId() > node.getId()) {
+					reordered = true;
+				}
+				previous = node;
+			}
+			tx.success();
+		}
+		assertTrue("Geometry nodes should not be created in file order", reordered);
+	}
+
+	@Test
+	public void testHilbertOrderedOSM() throws Exception {
+		String osm = "map.osm";
+		long[] expected = importOSM(osm, 0);
+		reActivateDatabase(true, false, false);
+		long[] actual = importOSM(osm, 100);
+		assertEquals("Should index the same number of geometries", expected[0], actual[0]);
+		assertEquals("Should create the same number of relation geometries", expected[1], actual[1]);
+	}
+
+	private TreeMap<Integer, Node> readById(String layerName) {
+		TreeMap<Integer, Node> nodes = new TreeMap<Integer, Node>();
+		try (Transaction tx = graphDb().beginTx()) {
+			Layer layer = new SpatialDatabaseService(graphDb()).getLayer(layerName);
+			for (Node node : layer.getIndex().getAllIndexedNodes()) {
+				nodes.put((Integer) node.getProperty("ID"), node);
+			}
+			tx.success();
+		}
+		return nodes;
+	}
+
+	private long[] importOSM(String layerName, int hilbertBufferSize) throws Exception {
+		OSMImporter importer = new OSMImporter(layerName, new NullListener());
+		importer.setCharset(Charset.forName("UTF-8"));
+		importer.setHilbertOrder(hilbertBufferSize);
+		importer.importFile(graphDb(), layerName, false, 1000, true);
+		importer.reIndex(graphDb(), 1000);
+		try (Transaction tx = graphDb().beginTx()) {
+			OSMLayer layer = (OSMLayer) new SpatialDatabaseService(graphDb()).getOrCreateLayer(layerName,
+					OSMGeometryEncoder.class, OSMLayer.class);
+			long relations = 0;
+			for (Node geomNode : layer.getIndex().getAllIndexedNodes()) {
+				if (OSMGeometryEncoder.getOSMNodeFromGeometryNode(geomNode).hasProperty("relation_osm_id")) {
+					relations++;
+				}
+			}
+			long[] counts = new long[] { layer.getIndex().count(), relations };
+			tx.success();
+			return counts;
+		}
+	}
+}
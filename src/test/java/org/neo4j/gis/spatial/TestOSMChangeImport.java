@@ -0,0 +1,127 @@
+/**
+ * Copyright (c) 2010-2013 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.gis.spatial;
+
+import java.nio.charset.Charset;
+import java.util.List;
+
+import org.junit.Test;
+import org.neo4j.gis.spatial.osm.OSMChangeImporter;
+import org.neo4j.gis.spatial.osm.OSMDataset;
+import org.neo4j.gis.spatial.osm.OSMGeometryEncoder;
+import org.neo4j.gis.spatial.osm.OSMImporter;
+import org.neo4j.gis.spatial.osm.OSMLayer;
+import org.neo4j.gis.spatial.osm.OSMRelation;
+import org.neo4j.gis.spatial.pipes.GeoPipeline;
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
+
+import com.vividsolutions.jts.geom.Envelope;
+
+public class TestOSMChangeImport extends Neo4jTestCase {
+
+	@Test
+	public void testApplyChangeFile() throws Exception {
+		String layerName = "map.osm";
+		OSMImporter importer = new OSMImporter(layerName);
+		importer.setCharset(Charset.forName("UTF-8"));
+		importer.importFile(graphDb(), layerName, false, 1000, true);
+		importer.reIndex(graphDb(), 1000);
+		int[] before = countAll(layerName);
+		OSMGeometryEncoder.AttributeReader names;
+		try (Transaction tx = graphDb().beginTx()) {
+			// cache the name of the way modified below
+			names = ((OSMGeometryEncoder) getLayer(layerName).getGeometryEncoder()).newAttributeReader("name");
+			assertFalse("Nya Storgatan".equals(names.getAttribute(getGeometry(findWay(71946419L)), "name")));
+			tx.success();
+		}
+
+		OSMChangeImporter changes = new OSMChangeImporter(layerName);
+		changes.setCharset(Charset.forName("UTF-8"));
+		changes.applyChanges(graphDb(), "map.osc");
+		assertEquals("Created elements", 3, changes.getCreateCount());
+		assertEquals("Modified elements", 2, changes.getModifyCount());
+		assertEquals("Deleted elements", 1, changes.getDeleteCount());
+		assertTrue("Should only re-index the changed geometries", changes.getReIndexCount() < 10);
+
+		int[] after = countAll(layerName);
+		assertEquals("Nodes", before[0] + 2, after[0]);
+		assertEquals("Ways", before[1], after[1]);
+		// one way deleted, one way and one point of interest created
+		assertEquals("Index entries", before[2] + 1, after[2]);
+
+		try (Transaction tx = graphDb().beginTx()) {
+			OSMLayer layer = getLayer(layerName);
+			assertNull("Deleted way should be gone", findWay(51892828L));
+
+			Node created = findWay(9000000010L);
+			assertNotNull("Created way should exist", created);
+			assertEquals("Testgatan", created.getProperty("name"));
+			assertBBox(created, 13.05, 13.052, 56.1, 56.101);
+			List<SpatialDatabaseRecord> results = GeoPipeline
+					.startIntersectWindowSearch(layer, new Envelope(13.049, 13.053, 56.099, 56.102)).toSpatialDatabaseRecordList();
+			assertEquals("Should find the created way and point of interest", 2, results.size());
+
+			Node modified = findWay(71946419L);
+			assertNotNull("Modified way should exist", modified);
+			assertEquals("Nya Storgatan", modified.getProperty("name"));
+			assertEquals("Cached attributes should be cleared after the changes", "Nya Storgatan",
+					names.getAttribute(getGeometry(modified), "name"));
+			assertTrue("Modified way should be indexed", layer.containsGeometryNode(getGeometry(modified)));
+
+			Node moved = findWay(68083519L);
+			assertBBox(moved, 12.9771005, 12.98, 56.0572556, 56.06);
+			assertTrue("Way with moved node should be indexed", layer.containsGeometryNode(getGeometry(moved)));
+			tx.success();
+		}
+	}
+
+	private Node findWay(long osmId) {
+		return graphDb().index().forNodes(OSMImporter.INDEX_NAME_WAY).get("way_osm_id", osmId).getSingle();
+	}
+
+	private static Node getGeometry(Node way) {
+		return way.getSingleRelationship(OSMRelation.GEOM, Direction.OUTGOING).getEndNode();
+	}
+
+	private static void assertBBox(Node way, double minx, double maxx, double miny, double maxy) {
+		double[] bbox = (double[]) getGeometry(way).getProperty(Constants.PROP_BBOX);
+		assertEquals(minx, bbox[0], 0.0001);
+		assertEquals(maxx, bbox[1], 0.0001);
+		assertEquals(miny, bbox[2], 0.0001);
+		assertEquals(maxy, bbox[3], 0.0001);
+	}
+
+	private OSMLayer getLayer(String layerName) {
+		SpatialDatabaseService spatialService = new SpatialDatabaseService(graphDb());
+		return (OSMLayer) spatialService.getOrCreateLayer(layerName, OSMGeometryEncoder.class, OSMLayer.class);
+	}
+
+	private int[] countAll(String layerName) {
+		try (Transaction tx = graphDb().beginTx()) {
+			OSMLayer layer = getLayer(layerName);
+			OSMDataset dataset = (OSMDataset) layer.getDataset();
+			int[] counts = new int[] { dataset.getNodeCount(), dataset.getWayCount(), layer.getIndex().count() };
+			tx.success();
+			return counts;
+		}
+	}
+}
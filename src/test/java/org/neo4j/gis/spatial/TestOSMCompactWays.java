@@ -0,0 +1,175 @@
+/**
+ * Copyright (c) 2010-2013 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.gis.spatial;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+
+import org.junit.Test;
+import org.neo4j.gis.spatial.osm.OSMChangeImporter;
+import org.neo4j.gis.spatial.osm.OSMDataset;
+import org.neo4j.gis.spatial.osm.OSMGeometryEncoder;
+import org.neo4j.gis.spatial.osm.OSMImporter;
+import org.neo4j.gis.spatial.osm.OSMLayer;
+import org.neo4j.gis.spatial.osm.OSMRelation;
+import org.neo4j.gis.spatial.pipes.GeoPipeline;
+import org.neo4j.gis.spatial.rtree.ProgressLoggingListener;
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.Transaction;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+
+public class TestOSMCompactWays extends Neo4jTestCase {
+
+	@Test
+	public void testCompactWaysMatchProxyWays() throws Exception {
+		String osm = "map.osm";
+		HashMap<Long, String> expectedGeometries = new HashMap<Long, String>();
+		HashMap<Long, ArrayList<Long>> expectedWayNodes = new HashMap<Long, ArrayList<Long>>();
+		long proxyCount = importAndRead(osm, false, expectedGeometries, expectedWayNodes);
+		reActivateDatabase(true, false, false);
+		HashMap<Long, String> geometries = new HashMap<Long, String>();
+		HashMap<Long, ArrayList<Long>> wayNodes = new HashMap<Long, ArrayList<Long>>();
+		long compactCount = importAndRead(osm, true, geometries, wayNodes);
+		assertTrue("Should have imported some ways from " + osm, expectedGeometries.size() > 0);
+		assertEquals("Number of ways should match", expectedGeometries.size(), geometries.size());
+		for (Long wayId : expectedGeometries.keySet()) {
+			assertEquals("Geometry of way " + wayId + " should match", expectedGeometries.get(wayId), geometries.get(wayId));
+			assertEquals("Nodes of way " + wayId + " should match", expectedWayNodes.get(wayId), wayNodes.get(wayId));
+		}
+		assertTrue("Compact ways should need fewer graph nodes: " + compactCount + " >= " + proxyCount, compactCount < proxyCount);
+	}
+
+	@Test
+	public void testMoveNodesOfCompactWay() throws Exception {
+		String layerName = "map.osm";
+		OSMImporter importer = new OSMImporter(layerName);
+		importer.setCharset(Charset.forName("UTF-8"));
+		importer.setCompactWays(true);
+		importer.importFile(graphDb(), layerName, false, 1000, true);
+		importer.reIndex(graphDb(), 1000);
+
+		// moves the last node of way 68083519, which is linked to the way
+		OSMChangeImporter changes = new OSMChangeImporter(layerName);
+		changes.setCharset(Charset.forName("UTF-8"));
+		changes.applyChanges(graphDb(), "map.osc");
+		assertWayVertex(layerName, 3, 12.98, 56.06);
+
+		// moves the second node, which is only known from the way node ids
+		File moveFile = new File("target/compact-move.osc");
+		moveFile.getParentFile().mkdirs();
+		try (Writer out = new OutputStreamWriter(new FileOutputStream(moveFile), "UTF-8")) {
+			out.write("<?xml version='1.0' encoding='UTF-8'?>\n<osmChange version=\"0.6\">\n <modify>\n");
+			out.write("  <node id=\"820872418\" lat=\"56.07\" lon=\"12.99\" version=\"2\" changeset=\"9000001\"/>\n");
+			out.write(" </modify>\n</osmChange>\n");
+		}
+		changes.applyChanges(graphDb(), moveFile.getPath());
+		assertEquals("Modified elements", 1, changes.getModifyCount());
+		assertWayVertex(layerName, 1, 12.99, 56.07);
+		assertWayVertex(layerName, 3, 12.98, 56.06);
+
+		try (Transaction tx = graphDb().beginTx()) {
+			Node way = findWay(68083519L);
+			double[] bbox = (double[]) getGeometry(way).getProperty(Constants.PROP_BBOX);
+			assertEquals(12.9771005, bbox[0], 0.0001);
+			assertEquals(12.99, bbox[1], 0.0001);
+			assertEquals(56.0572556, bbox[2], 0.0001);
+			assertEquals(56.07, bbox[3], 0.0001);
+			SpatialDatabaseService spatialService = new SpatialDatabaseService(graphDb());
+			Layer layer = spatialService.getLayer(layerName);
+			boolean found = false;
+			for (SpatialDatabaseRecord record : GeoPipeline.startIntersectWindowSearch(layer,
+					new Envelope(12.989, 12.991, 56.069, 56.071)).toSpatialDatabaseRecordList()) {
+				found |= record.getGeomNode().equals(getGeometry(way));
+			}
+			assertTrue("Way should be indexed at the moved node", found);
+			tx.success();
+		}
+	}
+
+	private void assertWayVertex(String layerName, int index, double lon, double lat) {
+		try (Transaction tx = graphDb().beginTx()) {
+			Node way = findWay(68083519L);
+			assertTrue("Way should still be compact", OSMGeometryEncoder.isCompactWay(way));
+			double[] coordinates = (double[]) way.getProperty(OSMGeometryEncoder.PROP_WAY_COORDINATES);
+			assertEquals(lon, coordinates[index * 2], 0.0000001);
+			assertEquals(lat, coordinates[index * 2 + 1], 0.0000001);
+			SpatialDatabaseService spatialService = new SpatialDatabaseService(graphDb());
+			Geometry geometry = spatialService.getLayer(layerName).getGeometryEncoder().decodeGeometry(getGeometry(way));
+			assertEquals("Decoded geometry should use the moved node", new Coordinate(lon, lat), geometry.getCoordinates()[index]);
+			tx.success();
+		}
+	}
+
+	private Node findWay(long osmId) {
+		return graphDb().index().forNodes(OSMImporter.INDEX_NAME_WAY).get("way_osm_id", osmId).getSingle();
+	}
+
+	private static Node getGeometry(Node way) {
+		return way.getSingleRelationship(OSMRelation.GEOM, Direction.OUTGOING).getEndNode();
+	}
+
+	private long importAndRead(String layerName, boolean compact, HashMap<Long, String> geometries,
+			HashMap<Long, ArrayList<Long>> wayNodes) throws Exception {
+		OSMImporter importer = new OSMImporter(layerName, new ProgressLoggingListener("Importing " + layerName, System.out));
+		importer.setCharset(Charset.forName("UTF-8"));
+		importer.setCompactWays(compact);
+		importer.importFile(graphDb(), layerName, false, 1000, true);
+		importer.reIndex(graphDb(), 1000);
+		try (Transaction tx = graphDb().beginTx()) {
+			SpatialDatabaseService spatialService = new SpatialDatabaseService(graphDb());
+			OSMLayer layer = (OSMLayer) spatialService.getOrCreateLayer(layerName, OSMGeometryEncoder.class, OSMLayer.class);
+			OSMDataset dataset = (OSMDataset) layer.getDataset();
+			GeometryEncoder encoder = layer.getGeometryEncoder();
+			for (Node way : dataset.getAllWayNodes()) {
+				assertEquals("Way should use the requested model", compact, OSMGeometryEncoder.isCompactWay(way));
+				long wayId = (Long) way.getProperty("way_osm_id");
+				Relationship geomRel = way.getSingleRelationship(OSMRelation.GEOM, Direction.OUTGOING);
+				if (geomRel != null) {
+					Geometry geometry = encoder.decodeGeometry(geomRel.getEndNode());
+					geometries.put(wayId, geometry == null ? null : geometry.toText());
+				}
+				ArrayList<Long> nodes = new ArrayList<Long>();
+				for (Node node : dataset.getWayNodes(way)) {
+					nodes.add((Long) node.getProperty("node_osm_id"));
+				}
+				// the depth first traversal of the proxy chain does not guarantee way order
+				Collections.sort(nodes);
+				wayNodes.put(wayId, nodes);
+			}
+			long count = 0;
+			for (@SuppressWarnings("unused") Node node : graphDb().getAllNodes()) {
+				count++;
+			}
+			tx.success();
+			return count;
+		}
+	}
+}
@@ -135,10 +135,36 @@ public class TestOSMImport extends Neo4jTestCase {
             checkIndexAndFeatureCount(layer);
             checkChangesetsAndUsers(layer);
             checkOSMSearch(layer);
+            checkAttributeProjection(layer);
             tx.success();
         }
     }
 
+    public static void checkAttributeProjection(OSMLayer layer) {
+        OSMGeometryEncoder encoder = (OSMGeometryEncoder) layer.getGeometryEncoder();
+        String[] names = new String[]{"name", "highway", "changeset", "user"};
+        ArrayList<Node> geomNodes = new ArrayList<Node>();
+        for (Node geomNode : layer.getAllGeometryNodes()) {
+            geomNodes.add(geomNode);
+            if (geomNodes.size() > 100)
+                break;
+        }
+        ArrayList<Object> expected = new ArrayList<Object>();
+        for (Node geomNode : geomNodes) {
+            for (String name : names) {
+                expected.add(encoder.getAttribute(geomNode, name));
+            }
+        }
+        OSMGeometryEncoder.AttributeReader reader = encoder.newAttributeReader("name", "changeset");
+        int index = 0;
+        for (Node geomNode : geomNodes) {
+            for (String name : names) {
+                assertEquals("Projected attribute '" + name + "' should match for " + geomNode, expected.get(index++),
+                        reader.getAttribute(geomNode, name));
+            }
+        }
+    }
+
     public static void checkOSMSearch(OSMLayer layer) throws IOException {
         OSMDataset osm = (OSMDataset) layer.getDataset();
         Way way = null;
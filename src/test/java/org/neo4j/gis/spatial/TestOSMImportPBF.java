@@ -0,0 +1,71 @@
+/**
+ * Copyright (c) 2010-2013 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.gis.spatial;
+
+import java.nio.charset.Charset;
+
+import org.junit.Test;
+import org.neo4j.gis.spatial.osm.OSMDataset;
+import org.neo4j.gis.spatial.osm.OSMGeometryEncoder;
+import org.neo4j.gis.spatial.osm.OSMImporter;
+import org.neo4j.gis.spatial.osm.OSMLayer;
+import org.neo4j.graphdb.Transaction;
+
+public class TestOSMImportPBF extends Neo4jTestCase {
+
+	@Test
+	public void testImportSmallPBF() throws Exception {
+		assertSameAsXML("two-street.osm");
+	}
+
+	@Test
+	public void testImportPBFWithRelations() throws Exception {
+		assertSameAsXML("map.osm");
+	}
+
+	private void assertSameAsXML(String osm) throws Exception {
+		int[] xmlCounts = importAndCount(osm, osm);
+		// Use a fresh database, since the importer finds existing changesets, users and members through the indexes
+		reActivateDatabase(true, false, false);
+		int[] pbfCounts = importAndCount(osm, osm + ".pbf");
+		String[] names = new String[] { "nodes", "ways", "relations", "changesets", "users", "index entries" };
+		for (int i = 0; i < names.length; i++) {
+			assertEquals("Number of " + names[i] + " imported from PBF should match XML for " + osm, xmlCounts[i], pbfCounts[i]);
+		}
+		assertTrue("Should have imported some ways from " + osm, pbfCounts[1] > 0);
+	}
+
+	private int[] importAndCount(String layerName, String path) throws Exception {
+		OSMImporter importer = new OSMImporter(layerName);
+		importer.setCharset(Charset.forName("UTF-8"));
+		importer.setPBFThreads(2);
+		importer.importFile(graphDb(), path, false, 1000, true);
+		importer.reIndex(graphDb(), 1000);
+		try (Transaction tx = graphDb().beginTx()) {
+			SpatialDatabaseService spatialService = new SpatialDatabaseService(graphDb());
+			OSMLayer layer = (OSMLayer) spatialService.getOrCreateLayer(layerName, OSMGeometryEncoder.class, OSMLayer.class);
+			OSMDataset dataset = (OSMDataset) layer.getDataset();
+			int[] counts = new int[] { dataset.getNodeCount(), dataset.getWayCount(), dataset.getRelationCount(),
+					dataset.getChangesetCount(), dataset.getUserCount(), layer.getIndex().count() };
+			tx.success();
+			return counts;
+		}
+	}
+}
@@ -0,0 +1,80 @@
+/**
+ * Copyright (c) 2010-2013 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.gis.spatial;
+
+import java.nio.charset.Charset;
+import java.util.Map;
+
+import org.junit.Test;
+import org.neo4j.gis.spatial.osm.OSMDataset;
+import org.neo4j.gis.spatial.osm.OSMGeometryEncoder;
+import org.neo4j.gis.spatial.osm.OSMImporter;
+import org.neo4j.gis.spatial.osm.OSMLayer;
+import org.neo4j.gis.spatial.rtree.ProgressLoggingListener;
+import org.neo4j.graphdb.Result;
+import org.neo4j.graphdb.Transaction;
+
+public class TestOSMImportPipeline extends Neo4jTestCase {
+
+	@Test
+	public void testImportPipelinedSmall() throws Exception {
+		assertSameAsSingleThreaded("two-street.osm");
+	}
+
+	@Test
+	public void testImportPipelinedWithRelations() throws Exception {
+		assertSameAsSingleThreaded("map.osm");
+	}
+
+	private void assertSameAsSingleThreaded(String osm) throws Exception {
+		double[] expected = importAndCount(osm, false);
+		// Use a fresh database, since the importer finds existing changesets, users and members through the indexes
+		reActivateDatabase(true, false, false);
+		double[] actual = importAndCount(osm, true);
+		String[] names = new String[] { "nodes", "ways", "relations", "changesets", "users", "index entries",
+				"way segments" };
+		for (int i = 0; i < names.length; i++) {
+			assertEquals("Number of " + names[i] + " imported by the pipeline should match for " + osm, expected[i], actual[i], 0.0);
+		}
+		assertEquals("Total way length imported by the pipeline should match for " + osm, expected[7], actual[7], 0.001);
+		assertTrue("Should have imported some ways from " + osm, actual[1] > 0);
+	}
+
+	private double[] importAndCount(String layerName, boolean pipelined) throws Exception {
+		OSMImporter importer = new OSMImporter(layerName, new ProgressLoggingListener("Importing " + layerName, System.out));
+		importer.setCharset(Charset.forName("UTF-8"));
+		importer.setPipelined(pipelined);
+		importer.importFile(graphDb(), layerName, false, 1000, true);
+		importer.reIndex(graphDb(), 1000);
+		try (Transaction tx = graphDb().beginTx()) {
+			SpatialDatabaseService spatialService = new SpatialDatabaseService(graphDb());
+			OSMLayer layer = (OSMLayer) spatialService.getOrCreateLayer(layerName, OSMGeometryEncoder.class, OSMLayer.class);
+			OSMDataset dataset = (OSMDataset) layer.getDataset();
+			Result result = graphDb().execute("MATCH ()-[r:NEXT]->() WHERE exists(r.length) RETURN count(r) AS segments, sum(r.length) AS length");
+			Map<String, Object> row = result.next();
+			double[] counts = new double[] { dataset.getNodeCount(), dataset.getWayCount(), dataset.getRelationCount(),
+					dataset.getChangesetCount(), dataset.getUserCount(), layer.getIndex().count(),
+					((Number) row.get("segments")).doubleValue(), ((Number) row.get("length")).doubleValue() };
+			result.close();
+			tx.success();
+			return counts;
+		}
+	}
+}
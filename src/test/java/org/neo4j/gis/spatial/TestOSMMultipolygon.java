@@ -0,0 +1,123 @@
+/**
+ * Copyright (c) 2010-2013 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.gis.spatial;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.nio.charset.Charset;
+
+import org.junit.Test;
+import org.neo4j.gis.spatial.osm.OSMDataset;
+import org.neo4j.gis.spatial.osm.OSMGeometryEncoder;
+import org.neo4j.gis.spatial.osm.OSMImporter;
+import org.neo4j.gis.spatial.osm.OSMLayer;
+import org.neo4j.gis.spatial.osm.OSMRelation;
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
+
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.MultiPolygon;
+import com.vividsolutions.jts.geom.Polygon;
+
+public class TestOSMMultipolygon extends Neo4jTestCase {
+
+	@Test
+	public void testStitchedMultipolygon() throws Exception {
+		File osmFile = writeMultipolygon(new File("target/multipolygon.osm"));
+		String layerName = "multipolygon";
+		OSMImporter importer = new OSMImporter(layerName);
+		importer.setCharset(Charset.forName("UTF-8"));
+		importer.importFile(graphDb(), osmFile.getPath(), false, 1000, true);
+		importer.reIndex(graphDb(), 1000);
+
+		try (Transaction tx = graphDb().beginTx()) {
+			SpatialDatabaseService spatialService = new SpatialDatabaseService(graphDb());
+			OSMLayer layer = (OSMLayer) spatialService.getOrCreateLayer(layerName, OSMGeometryEncoder.class, OSMLayer.class);
+			OSMDataset dataset = (OSMDataset) layer.getDataset();
+			Node relation = dataset.getAllRelationNodes().iterator().next();
+			Node geomNode = relation.getSingleRelationship(OSMRelation.GEOM, Direction.OUTGOING).getEndNode();
+			assertTrue("Assembled geometry should be cached", geomNode.hasProperty(OSMGeometryEncoder.PROP_ASSEMBLED_GEOMETRY));
+
+			Geometry geometry = layer.getGeometryEncoder().decodeGeometry(geomNode);
+			assertTrue("Two outer rings should make a MultiPolygon: " + geometry, geometry instanceof MultiPolygon);
+			assertEquals("Number of polygons", 2, geometry.getNumGeometries());
+			Polygon stitched = (Polygon) geometry.getGeometryN(0);
+			Polygon closed = (Polygon) geometry.getGeometryN(1);
+			if (stitched.getNumInteriorRing() == 0) {
+				Polygon swap = stitched;
+				stitched = closed;
+				closed = swap;
+			}
+			assertEquals("Hole should be assigned to the containing shell", 1, stitched.getNumInteriorRing());
+			assertEquals("Other shell should have no holes", 0, closed.getNumInteriorRing());
+			assertTrue("Stitched polygon should be valid", stitched.isValid());
+			assertEquals("Stitched ring should contain all outer vertices", 5, stitched.getExteriorRing().getNumPoints());
+			assertEquals(0.0099, stitched.getArea(), 0.00001);
+
+			// decoding without the cache must give the same result
+			geomNode.removeProperty(OSMGeometryEncoder.PROP_ASSEMBLED_GEOMETRY);
+			assertTrue("Assembled geometry should match the cache",
+					geometry.equalsExact(layer.getGeometryEncoder().decodeGeometry(geomNode)));
+			tx.failure();
+		}
+	}
+
+	/**
+	 * The outer ring of the first polygon is split over two ways, the second
+	 * of which runs backwards, and it has a hole in a single closed way. The
+	 * second polygon is a single closed way.
+	 */
+	private static File writeMultipolygon(File file) throws Exception {
+		file.getParentFile().mkdirs();
+		try (PrintWriter out = new PrintWriter(file, "UTF-8")) {
+			out.println("<?xml version='1.0' encoding='UTF-8'?>");
+			out.println("<osm version='0.6' generator='test'>");
+			double[][] nodes = new double[][] { { 13.0, 56.0 }, { 13.1, 56.0 }, { 13.1, 56.1 }, { 13.0, 56.1 },
+					{ 13.04, 56.04 }, { 13.05, 56.04 }, { 13.05, 56.05 }, { 13.04, 56.05 }, { 13.2, 56.0 }, { 13.3, 56.0 },
+					{ 13.3, 56.1 } };
+			for (int i = 0; i < nodes.length; i++) {
+				out.println("  <node id='" + (i + 1) + "' lat='" + nodes[i][1] + "' lon='" + nodes[i][0]
+						+ "' version='1' changeset='1' user='test' uid='1' visible='true' timestamp='2016-01-01T00:00:00Z'/>");
+			}
+			writeWay(out, 101, 1, 2, 3);
+			writeWay(out, 102, 1, 4, 3);
+			writeWay(out, 103, 5, 6, 7, 8, 5);
+			writeWay(out, 104, 9, 10, 11, 9);
+			out.println("  <relation id='201' version='1' changeset='1' user='test' uid='1' visible='true' timestamp='2016-01-01T00:00:00Z'>");
+			out.println("    <member type='way' ref='101' role='outer'/>");
+			out.println("    <member type='way' ref='102' role='outer'/>");
+			out.println("    <member type='way' ref='103' role='inner'/>");
+			out.println("    <member type='way' ref='104' role='outer'/>");
+			out.println("    <tag k='type' v='multipolygon'/>");
+			out.println("  </relation>");
+			out.println("</osm>");
+		}
+		return file;
+	}
+
+	private static void writeWay(PrintWriter out, long id, long... nodes) {
+		out.println("  <way id='" + id + "' version='1' changeset='1' user='test' uid='1' visible='true' timestamp='2016-01-01T00:00:00Z'>");
+		for (long node : nodes) {
+			out.println("    <nd ref='" + node + "'/>");
+		}
+		out.println("  </way>");
+	}
+}
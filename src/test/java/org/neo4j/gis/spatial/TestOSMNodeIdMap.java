@@ -0,0 +1,143 @@
+/**
+ * Copyright (c) 2010-2013 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.gis.spatial;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.junit.Test;
+import org.neo4j.gis.spatial.osm.OSMGeometryEncoder;
+import org.neo4j.gis.spatial.osm.OSMImporter;
+import org.neo4j.gis.spatial.osm.OSMLayer;
+import org.neo4j.gis.spatial.osm.OSMNodeIdMap;
+import org.neo4j.gis.spatial.rtree.NullListener;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
+
+import com.vividsolutions.jts.geom.Geometry;
+
+public class TestOSMNodeIdMap extends Neo4jTestCase {
+
+	@Test
+	public void testNodeIdMapMatchesIndexLookups() throws Exception {
+		String osm = "map.osm";
+		Map<String, Geometry> expected = importAndRead(osm, osm, false);
+		reActivateDatabase(true, false, false);
+		Map<String, Geometry> actual = importAndRead(osm, osm, true);
+		assertTrue("Should have imported some ways from " + osm, expected.size() > 0);
+		assertEquals("Number of geometries should match", expected.size(), actual.size());
+		for (String element : expected.keySet()) {
+			assertTrue("Geometry of " + element + " should match",
+					expected.get(element).equalsExact(actual.get(element)));
+		}
+	}
+
+	@Test
+	public void testNodesOfEarlierImportsAreFound() throws Exception {
+		File first = writeOSM("target/node-id-map-1.osm",
+				"<node id=\"1\" lat=\"56.0\" lon=\"13.0\" user=\"a\" uid=\"1\" visible=\"true\" version=\"1\" changeset=\"1\" timestamp=\"2010-08-12T16:14:59Z\"/>",
+				"<node id=\"2\" lat=\"56.1\" lon=\"13.1\" user=\"a\" uid=\"1\" visible=\"true\" version=\"1\" changeset=\"1\" timestamp=\"2010-08-12T16:14:59Z\"/>");
+		File second = writeOSM("target/node-id-map-2.osm",
+				"<node id=\"3\" lat=\"56.2\" lon=\"13.2\" user=\"b\" uid=\"2\" visible=\"true\" version=\"1\" changeset=\"2\" timestamp=\"2010-08-13T16:14:59Z\"/>",
+				"<way id=\"10\" user=\"b\" uid=\"2\" visible=\"true\" version=\"1\" changeset=\"2\" timestamp=\"2010-08-13T16:14:59Z\">",
+				"<nd ref=\"1\"/><nd ref=\"2\"/><nd ref=\"3\"/><tag k=\"highway\" v=\"residential\"/></way>");
+		String layerName = "node-id-map";
+		importAndRead(layerName, first.getPath(), true);
+		Map<String, Geometry> geometries = importAndRead(layerName, second.getPath(), true);
+		Geometry way = geometries.get("way_osm_id:10");
+		assertNotNull("The way should have been imported", way);
+		assertEquals("The way should include the nodes of the first import", 3, way.getNumPoints());
+	}
+
+	@Test
+	public void testOutOfOrderIdsBetweenLookups() throws IOException {
+		Random random = new Random(7);
+		TreeMap<Long, Long> expected = new TreeMap<Long, Long>();
+		try (OSMNodeIdMap map = new OSMNodeIdMap(null)) {
+			long osmId = 0;
+			for (long graphId = 0; graphId < 10000; graphId++) {
+				// mostly ascending ids, with some stragglers
+				long id = random.nextInt(10) == 0 ? random.nextInt(100000) : (osmId += 1 + random.nextInt(20));
+				if (expected.containsKey(id)) {
+					continue;
+				}
+				expected.put(id, graphId);
+				map.put(id, graphId, id / 1000.0, -id / 1000.0);
+				if (random.nextInt(50) == 0) {
+					assertTrue("Should find a node added before", map.find(expected.firstKey()) >= 0);
+				}
+			}
+			assertEquals(expected.size(), map.size());
+			for (Map.Entry<Long, Long> entry : expected.entrySet()) {
+				long index = map.find(entry.getKey());
+				assertTrue("Should find node " + entry.getKey(), index >= 0);
+				assertEquals(entry.getValue().longValue(), map.getGraphId(index));
+				assertEquals(entry.getKey() / 1000.0, map.getLon(index), 0);
+			}
+			assertEquals(-1, map.find(-5));
+		}
+	}
+
+	private Map<String, Geometry> importAndRead(String layerName, String osmPath, boolean useNodeIdMap) throws Exception {
+		OSMImporter importer = new OSMImporter(layerName, new NullListener());
+		importer.setCharset(Charset.forName("UTF-8"));
+		if (useNodeIdMap) {
+			importer.setNodeIdMap(new File("target/node-id-maps"));
+		}
+		importer.importFile(graphDb(), osmPath, false, 1000, true);
+		importer.reIndex(graphDb(), 1000);
+		HashMap<String, Geometry> geometries = new HashMap<String, Geometry>();
+		try (Transaction tx = graphDb().beginTx()) {
+			SpatialDatabaseService spatialService = new SpatialDatabaseService(graphDb());
+			OSMLayer layer = (OSMLayer) spatialService.getOrCreateLayer(layerName, OSMGeometryEncoder.class, OSMLayer.class);
+			for (Node geomNode : layer.getIndex().getAllIndexedNodes()) {
+				Node element = OSMGeometryEncoder.getOSMNodeFromGeometryNode(geomNode);
+				for (OSMGeometryEncoder.OSMId id : OSMGeometryEncoder.OSMId.values()) {
+					if (element.hasProperty(id.toString())) {
+						geometries.put(id + ":" + element.getProperty(id.toString()),
+								layer.getGeometryEncoder().decodeGeometry(geomNode));
+					}
+				}
+			}
+			tx.success();
+		}
+		return geometries;
+	}
+
+	private static File writeOSM(String path, String... elements) throws IOException {
+		File file = new File(path);
+		file.getParentFile().mkdirs();
+		StringBuilder osm = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<osm version=\"0.6\">\n");
+		for (String element : elements) {
+			osm.append(' ').append(element).append('\n');
+		}
+		osm.append("</osm>\n");
+		Files.write(file.toPath(), Arrays.asList(osm.toString()), StandardCharsets.UTF_8);
+		return file;
+	}
+}
@@ -0,0 +1,99 @@
+/**
+ * Copyright (c) 2010-2013 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.gis.spatial;
+
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+import org.junit.Test;
+import org.neo4j.gis.spatial.osm.OSMGeometryEncoder;
+import org.neo4j.gis.spatial.osm.OSMImporter;
+import org.neo4j.gis.spatial.osm.OSMLayer;
+import org.neo4j.gis.spatial.osm.OSMRelation;
+import org.neo4j.gis.spatial.rtree.ProgressLoggingListener;
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.Transaction;
+
+public class TestOSMSharedTags extends Neo4jTestCase {
+
+	@Test
+	public void testSharedTagsMatchSeparateTags() throws Exception {
+		String osm = "map.osm";
+		HashMap<String, Map<String, Object>> expected = new HashMap<String, Map<String, Object>>();
+		int separateTagsNodes = importAndRead(osm, 0, expected);
+		reActivateDatabase(true, false, false);
+		HashMap<String, Map<String, Object>> actual = new HashMap<String, Map<String, Object>>();
+		int sharedTagsNodes = importAndRead(osm, 1000, actual);
+		assertTrue("Should have imported some tagged geometries from " + osm, expected.size() > 0);
+		assertEquals("Number of tagged geometries should match", expected.size(), actual.size());
+		for (String element : expected.keySet()) {
+			assertEquals("Tags of " + element + " should match", expected.get(element), actual.get(element));
+		}
+		assertTrue("Shared tags should need fewer tags nodes: " + sharedTagsNodes + " >= " + separateTagsNodes,
+				sharedTagsNodes < separateTagsNodes);
+	}
+
+	private int importAndRead(String layerName, int sharedTags, HashMap<String, Map<String, Object>> tagsByElement)
+			throws Exception {
+		OSMImporter importer = new OSMImporter(layerName, new ProgressLoggingListener("Importing " + layerName, System.out));
+		importer.setCharset(Charset.forName("UTF-8"));
+		importer.setSharedTags(sharedTags);
+		importer.importFile(graphDb(), layerName, false, 1000, true);
+		importer.reIndex(graphDb(), 1000);
+		try (Transaction tx = graphDb().beginTx()) {
+			SpatialDatabaseService spatialService = new SpatialDatabaseService(graphDb());
+			OSMLayer layer = (OSMLayer) spatialService.getOrCreateLayer(layerName, OSMGeometryEncoder.class, OSMLayer.class);
+			OSMGeometryEncoder encoder = (OSMGeometryEncoder) layer.getGeometryEncoder();
+			HashSet<Node> tagsNodes = new HashSet<Node>();
+			for (Node geomNode : layer.getIndex().getAllIndexedNodes()) {
+				Node element = OSMGeometryEncoder.getOSMNodeFromGeometryNode(geomNode);
+				Relationship tagsRel = element.getSingleRelationship(OSMRelation.TAGS, Direction.OUTGOING);
+				if (tagsRel != null) {
+					Map<String, Object> tags = tagsRel.getEndNode().getAllProperties();
+					for (String key : tags.keySet()) {
+						if (element.hasProperty(key)) {
+							// properties copied to the element, like oneway, win over the tags
+							continue;
+						}
+						assertEquals("Attribute " + key + " should be read through the encoder", tags.get(key),
+								encoder.getAttribute(geomNode, key));
+					}
+					tagsByElement.put(getOSMId(element), tags);
+					tagsNodes.add(tagsRel.getEndNode());
+				}
+			}
+			tx.success();
+			return tagsNodes.size();
+		}
+	}
+
+	private static String getOSMId(Node element) {
+		for (OSMGeometryEncoder.OSMId id : OSMGeometryEncoder.OSMId.values()) {
+			if (element.hasProperty(id.toString())) {
+				return id + ":" + element.getProperty(id.toString());
+			}
+		}
+		return element.toString();
+	}
+}
@@ -0,0 +1,122 @@
+/**
+ * Copyright (c) 2010-2013 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.gis.spatial;
+
+import java.io.File;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+
+import org.junit.Test;
+import org.neo4j.gis.spatial.pipes.GeoPipeline;
+import org.neo4j.gis.spatial.rtree.NullListener;
+import org.neo4j.gis.spatial.rtree.RTreeIndex;
+import org.neo4j.gis.spatial.rtree.RTreeRelationshipTypes;
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.Transaction;
+
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+
+public class TestPipelinedShapefileImport extends Neo4jTestCase {
+
+	@Test
+	public void testPipelinedImportMatchesSequential() throws Exception {
+		String shpPath = "shp" + File.separator + "highway";
+		ShapefileImporter importer = new ShapefileImporter(graphDb(), new NullListener(), 100);
+		List<Node> sequential = importer.importFile(shpPath, "highway_sequential", Charset.forName("UTF-8"));
+
+		importer.setImportThreads(4);
+		ArrayList<Node> streamed = new ArrayList<Node>();
+		int count = importer.importFile(shpPath, "highway_pipelined", Charset.forName("UTF-8"), streamed::add);
+		assertEquals("Should report every node passed to the callback", streamed.size(), count);
+		assertEquals("Should import the same number of geometries", sequential.size(), count);
+
+		TreeMap<Integer, Node> expected = readById("highway_sequential");
+		TreeMap<Integer, Node> actual = readById("highway_pipelined");
+		assertEquals("Should index the same records", expected.keySet(), actual.keySet());
+		try (Transaction tx = graphDb().beginTx()) {
+			SpatialDatabaseService spatialService = new SpatialDatabaseService(graphDb());
+			Layer layer = spatialService.getLayer("highway_pipelined");
+			GeometryEncoder sequentialEncoder = spatialService.getLayer("highway_sequential").getGeometryEncoder();
+			for (Map.Entry<Integer, Node> entry : actual.entrySet()) {
+				Node node = entry.getValue();
+				Node original = expected.get(entry.getKey());
+				Map<String, Object> properties = node.getAllProperties();
+				Map<String, Object> originalProperties = original.getAllProperties();
+				assertEquals("Properties of record " + entry.getKey() + " should match",
+						originalProperties.keySet(), properties.keySet());
+				for (String key : properties.keySet()) {
+					assertTrue("Property " + key + " of record " + entry.getKey() + " should match",
+							Objects.deepEquals(originalProperties.get(key), properties.get(key)));
+				}
+				Geometry geometry = layer.getGeometryEncoder().decodeGeometry(node);
+				Geometry originalGeometry = sequentialEncoder.decodeGeometry(original);
+				assertTrue("Geometry of record " + entry.getKey() + " should match",
+						originalGeometry.equalsExact(geometry));
+			}
+			assertEquals("Should index every batch", count, layer.getIndex().count());
+			// Sort-Tile-Recursive packing fills every leaf but the last, while
+			// adding nodes to a non-empty tree splits leaves in two
+			ArrayList<Integer> leafSizes = new ArrayList<Integer>();
+			collectLeafSizes(((RTreeIndex) layer.getIndex()).getIndexRoot(), leafSizes);
+			assertEquals("Should bulk load all nodes into full leaves", (count + 99) / 100, leafSizes.size());
+			assertEquals("Should bulk load all nodes into full leaves", count / 100,
+					leafSizes.stream().filter(size -> size == 100).count());
+			org.neo4j.gis.spatial.rtree.Envelope bounds = layer.getIndex().getBoundingBox();
+			Envelope window = new Envelope(bounds.getMinX(), (bounds.getMinX() + bounds.getMaxX()) / 2, bounds.getMinY(),
+					(bounds.getMinY() + bounds.getMaxY()) / 2);
+			assertEquals("Bulk loaded index should answer window queries like the incremental one",
+					GeoPipeline.startIntersectWindowSearch(spatialService.getLayer("highway_sequential"), window).count(),
+					GeoPipeline.startIntersectWindowSearch(layer, window).count());
+			tx.success();
+		}
+	}
+
+	private static void collectLeafSizes(Node indexNode, List<Integer> leafSizes) {
+		int references = 0;
+		for (Relationship rel : indexNode.getRelationships(RTreeRelationshipTypes.RTREE_REFERENCE, Direction.OUTGOING)) {
+			references++;
+		}
+		if (references > 0) {
+			leafSizes.add(references);
+		}
+		for (Relationship rel : indexNode.getRelationships(RTreeRelationshipTypes.RTREE_CHILD, Direction.OUTGOING)) {
+			collectLeafSizes(rel.getEndNode(), leafSizes);
+		}
+	}
+
+	private TreeMap<Integer, Node> readById(String layerName) {
+		TreeMap<Integer, Node> nodes = new TreeMap<Integer, Node>();
+		try (Transaction tx = graphDb().beginTx()) {
+			Layer layer = new SpatialDatabaseService(graphDb()).getLayer(layerName);
+			for (Node node : layer.getIndex().getAllIndexedNodes()) {
+				nodes.put((Integer) node.getProperty("ID"), node);
+			}
+			tx.success();
+		}
+		return nodes;
+	}
+}
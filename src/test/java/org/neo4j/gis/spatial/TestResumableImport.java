@@ -0,0 +1,240 @@
+/**
+ * Copyright (c) 2010-2013 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.gis.spatial;
+
+import java.io.File;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+import org.neo4j.gis.spatial.osm.OSMDataset;
+import org.neo4j.gis.spatial.osm.OSMGeometryEncoder;
+import org.neo4j.gis.spatial.osm.OSMImporter;
+import org.neo4j.gis.spatial.osm.OSMLayer;
+import org.neo4j.gis.spatial.osm.OSMRelation;
+import org.neo4j.gis.spatial.rtree.NullListener;
+import org.neo4j.gis.spatial.utilities.ImportCheckpoint;
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.RelationshipType;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.graphdb.event.PropertyEntry;
+import org.neo4j.graphdb.event.TransactionData;
+import org.neo4j.graphdb.event.TransactionEventHandler;
+
+public class TestResumableImport extends Neo4jTestCase {
+
+	private static final String SHP_DIR = "shp";
+
+	@Test
+	public void testResumeShapefileImport() throws Exception {
+		String shpPath = SHP_DIR + File.separator + "highway";
+		ShapefileImporter importer = new ShapefileImporter(graphDb(), new NullListener(), 100);
+		importer.setResumable(true);
+		importer.importFile(shpPath, "highway_full", Charset.forName("UTF-8"));
+		long total = countAndCheckCleared("highway_full");
+
+		// Simulate a crash after the first 100 records were committed
+		try (Transaction tx = graphDb().beginTx()) {
+			SpatialDatabaseService spatialService = new SpatialDatabaseService(graphDb());
+			Layer layer = spatialService.getOrCreateLayer("highway_resumed", WKBGeometryEncoder.class, EditableLayerImpl.class);
+			ImportCheckpoint.setPosition(layer.getLayerNode(), ImportCheckpoint.fingerprint(new File(shpPath + ".shp")), 100);
+			tx.success();
+		}
+		importer.importFile(shpPath, "highway_resumed", Charset.forName("UTF-8"));
+		assertEquals("Resumed import should skip the checkpointed records", total - 100, countAndCheckCleared("highway_resumed"));
+	}
+
+	@Test
+	public void testResumableOSMImport() throws Exception {
+		String osm = "map.osm";
+		OSMImporter importer = new OSMImporter(osm, new NullListener());
+		importer.setCharset(Charset.forName("UTF-8"));
+		importer.setResumable(true);
+		importer.importFile(graphDb(), osm, false, 100, true);
+		importer.reIndex(graphDb(), 1000);
+		try (Transaction tx = graphDb().beginTx()) {
+			SpatialDatabaseService spatialService = new SpatialDatabaseService(graphDb());
+			OSMLayer layer = (OSMLayer) spatialService.getOrCreateLayer(osm, OSMGeometryEncoder.class, OSMLayer.class);
+			OSMDataset dataset = (OSMDataset) layer.getDataset();
+			assertTrue("Should have imported some ways", dataset.getWayCount() > 0);
+			assertTrue("Should have indexed some geometries", layer.getIndex().count() > 0);
+			Node datasetNode = layer.getLayerNode().getSingleRelationship(SpatialRelationshipTypes.LAYERS, Direction.INCOMING)
+					.getStartNode();
+			assertFalse("Completed import should remove the checkpoint", datasetNode.hasProperty(ImportCheckpoint.PROP_SOURCE));
+			// Pretend an import of another file was interrupted
+			ImportCheckpoint.setPosition(datasetNode, "other.osm:1:1", 10L);
+			tx.success();
+		}
+		try {
+			importer.importFile(graphDb(), osm, false, 100, true);
+			fail("Should not resume from the checkpoint of another file");
+		} catch (SpatialDatabaseException e) {
+			assertTrue(e.getMessage().contains("other.osm"));
+		}
+	}
+
+	@Test
+	public void testResumeInterruptedOSMImport() throws Exception {
+		resumeInterruptedOSMImport(false);
+	}
+
+	@Test
+	public void testResumeInterruptedOSMImportWithNodeIdMap() throws Exception {
+		// The skipped nodes before the checkpoint refill the node id map, so
+		// the ways after it still find their nodes
+		resumeInterruptedOSMImport(true);
+	}
+
+	private void resumeInterruptedOSMImport(boolean useNodeIdMap) throws Exception {
+		String osm = "map.osm";
+		OSMImporter importer = new OSMImporter(osm, new NullListener());
+		importer.setCharset(Charset.forName("UTF-8"));
+		importer.importFile(graphDb(), osm, false, 100, true);
+		List<Object> expected = describeOSMImport(osm);
+
+		reActivateDatabase(true, false, false);
+		// Crash while committing the second checkpoint that includes ways, so
+		// the last checkpoint that made it is in the middle of the ways
+		FailingCheckpoint crash = new FailingCheckpoint(2);
+		graphDb().registerTransactionEventHandler(crash);
+		importer = new OSMImporter(osm, new NullListener());
+		importer.setCharset(Charset.forName("UTF-8"));
+		importer.setResumable(true);
+		if (useNodeIdMap) {
+			importer.setNodeIdMap(new File("target/node-id-maps"));
+		}
+		try {
+			importer.importFile(graphDb(), osm, false, 100, true);
+			fail("The import should have been interrupted");
+		} catch (Exception e) {
+			assertTrue("The import should have been interrupted by the failing checkpoint", crash.failed);
+		} finally {
+			graphDb().unregisterTransactionEventHandler(crash);
+		}
+		try (Transaction tx = graphDb().beginTx()) {
+			Node datasetNode = getDatasetNode(osm);
+			assertTrue("The interrupted import should have left a checkpoint", datasetNode.hasProperty(ImportCheckpoint.PROP_SOURCE));
+			int[] counts = (int[]) datasetNode.getProperty("checkpoint_counts");
+			assertTrue("The checkpoint should be in the middle of the ways", counts[2] > 0 && counts[2] < (Integer) expected.get(2));
+			tx.success();
+		}
+
+		// Restart the import with a new importer, as after a restart of the application
+		importer = new OSMImporter(osm, new NullListener());
+		importer.setCharset(Charset.forName("UTF-8"));
+		importer.setResumable(true);
+		if (useNodeIdMap) {
+			importer.setNodeIdMap(new File("target/node-id-maps"));
+		}
+		importer.importFile(graphDb(), osm, false, 100, true);
+		assertEquals("Resumed import should match a single pass import", expected, describeOSMImport(osm));
+	}
+
+	/**
+	 * Fails the commit of the given checkpoint, counting only checkpoints
+	 * written after the first way was imported.
+	 */
+	private static class FailingCheckpoint extends TransactionEventHandler.Adapter<Object> {
+		private final int failAt;
+		private int wayCheckpoints = 0;
+		private boolean failed = false;
+
+		private FailingCheckpoint(int failAt) {
+			this.failAt = failAt;
+		}
+
+		@Override
+		public Object beforeCommit(TransactionData data) throws Exception {
+			for (PropertyEntry<Node> entry : data.assignedNodeProperties()) {
+				if (entry.key().equals("checkpoint_counts") && ((int[]) entry.value())[2] > 0 && ++wayCheckpoints == failAt) {
+					failed = true;
+					throw new SpatialDatabaseException("Simulated crash at checkpoint " + entry.entity().getProperty(ImportCheckpoint.PROP_POSITION));
+				}
+			}
+			return null;
+		}
+	}
+
+	private Node getDatasetNode(String layerName) {
+		SpatialDatabaseService spatialService = new SpatialDatabaseService(graphDb());
+		Layer layer = spatialService.getLayer(layerName);
+		return layer.getLayerNode().getSingleRelationship(SpatialRelationshipTypes.LAYERS, Direction.INCOMING).getStartNode();
+	}
+
+	/**
+	 * The dataset counts, the number of indexed geometries, the OSM ids
+	 * along the ways and relations chains and the number of vertices of each
+	 * way.
+	 */
+	private List<Object> describeOSMImport(String layerName) {
+		try (Transaction tx = graphDb().beginTx()) {
+			SpatialDatabaseService spatialService = new SpatialDatabaseService(graphDb());
+			OSMLayer layer = (OSMLayer) spatialService.getLayer(layerName);
+			OSMDataset dataset = (OSMDataset) layer.getDataset();
+			Node datasetNode = getDatasetNode(layerName);
+			assertFalse("Completed import should remove the checkpoint", datasetNode.hasProperty(ImportCheckpoint.PROP_SOURCE));
+			List<Object> description = new ArrayList<Object>(Arrays.asList(dataset.getNodeCount(), dataset.getPoiCount(),
+					dataset.getWayCount(), dataset.getRelationCount(), dataset.getChangesetCount(), layer.getIndex().count()));
+			description.add(getChain(datasetNode, OSMRelation.WAYS, "way_osm_id"));
+			description.add(getChain(datasetNode, OSMRelation.RELATIONS, "relation_osm_id"));
+			description.add(getWayVertices(datasetNode));
+			tx.success();
+			return description;
+		}
+	}
+
+	private List<Object> getChain(Node datasetNode, RelationshipType first, String idKey) {
+		List<Object> ids = new ArrayList<Object>();
+		Relationship rel = datasetNode.getSingleRelationship(first, Direction.OUTGOING);
+		while (rel != null) {
+			Node element = rel.getEndNode();
+			ids.add(element.getProperty(idKey));
+			rel = element.getSingleRelationship(OSMRelation.NEXT, Direction.OUTGOING);
+		}
+		return ids;
+	}
+
+	private List<Object> getWayVertices(Node datasetNode) {
+		List<Object> vertices = new ArrayList<Object>();
+		Relationship rel = datasetNode.getSingleRelationship(OSMRelation.WAYS, Direction.OUTGOING);
+		while (rel != null) {
+			Node way = rel.getEndNode();
+			Relationship geom = way.getSingleRelationship(OSMRelation.GEOM, Direction.OUTGOING);
+			vertices.add(geom == null ? 0 : geom.getEndNode().getProperty("vertices"));
+			rel = way.getSingleRelationship(OSMRelation.NEXT, Direction.OUTGOING);
+		}
+		return vertices;
+	}
+
+	private long countAndCheckCleared(String layerName) {
+		try (Transaction tx = graphDb().beginTx()) {
+			SpatialDatabaseService spatialService = new SpatialDatabaseService(graphDb());
+			Layer layer = spatialService.getLayer(layerName);
+			assertFalse("Completed import should remove the checkpoint", layer.getLayerNode().hasProperty(ImportCheckpoint.PROP_SOURCE));
+			long count = layer.getIndex().count();
+			tx.success();
+			return count;
+		}
+	}
+}
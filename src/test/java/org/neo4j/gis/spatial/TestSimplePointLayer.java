@@ -257,6 +257,38 @@ public class TestSimplePointLayer extends Neo4jTestCase {
         }
 	}
 
+	@Test
+	public void testBulkLoadedDensePointLayer() {
+		SpatialDatabaseService db = new SpatialDatabaseService(graphDb());
+		SimplePointLayer layer = db.createSimplePointLayer("neo-dense-bulk", "lon", "lat");
+		List<Node> nodes = new ArrayList<Node>();
+		try (Transaction tx = graphDb().beginTx()) {
+			for (Coordinate coordinate : makeDensePointData()) {
+				Node node = graphDb().createNode();
+				layer.getGeometryEncoder().encodeGeometry(layer.getGeometryFactory().createPoint(coordinate), node);
+				nodes.add(node);
+			}
+			tx.success();
+		}
+		layer.index.add(nodes);
+		assertEquals(nodes.size(), layer.getIndex().count());
+
+		try (Transaction tx = graphDb().beginTx()) {
+			Envelope bbox = layer.getIndex().getBoundingBox();
+			double[] centre = bbox.centre();
+			List<SpatialDatabaseRecord> results = GeoPipeline
+				.startNearestNeighborLatLonSearch(layer, new Coordinate(centre[0], centre[1]), 10.0)
+				.toSpatialDatabaseRecordList();
+			// same data and search as testDensePointLayer, which adds one point at a time
+			assertEquals(456, results.size());
+
+			// the index is no longer empty, so these are added one at a time
+			layer.add(layer.getGeometryFactory().createPoint(new Coordinate(centre[0], centre[1])));
+			tx.success();
+		}
+		assertEquals(nodes.size() + 1, layer.getIndex().count());
+	}
+
 	private void saveLayerAsImage(Layer layer, int width, int height) {
 		ShapefileExporter shpExporter = new ShapefileExporter(graphDb());
 		shpExporter.setExportDir("target/export/SimplePointTests");
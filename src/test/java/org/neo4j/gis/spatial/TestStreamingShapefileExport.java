@@ -0,0 +1,156 @@
+/**
+ * Copyright (c) 2010-2013 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.gis.spatial;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.nio.charset.Charset;
+import java.util.List;
+
+import org.geotools.data.shapefile.dbf.DbaseFileHeader;
+import org.geotools.data.shapefile.dbf.DbaseFileReader;
+import org.junit.Test;
+import org.neo4j.gis.spatial.pipes.GeoPipeline;
+import org.neo4j.gis.spatial.rtree.NullListener;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+
+public class TestStreamingShapefileExport extends Neo4jTestCase {
+
+	@Test
+	public void testExportWholeLayer() throws Exception {
+		ShapefileImporter importer = new ShapefileImporter(graphDb(), new NullListener(), 100);
+		List<Node> imported = importer.importFile("shp" + File.separator + "highway", "highway",
+				Charset.forName("UTF-8"));
+
+		StreamingShapefileExporter exporter = new StreamingShapefileExporter(graphDb(), 4);
+		exporter.setExportDir("target/export/streaming");
+		File file = exporter.exportLayer("highway");
+		assertTrue("Should create a spatial index", new File(file.getPath().replace(".shp", ".qix")).exists());
+
+		List<Node> reimported = importer.importFile(file.getPath().replace(".shp", ""), "highway_exported",
+				Charset.forName("UTF-8"));
+		assertEquals("Should export every geometry", imported.size(), reimported.size());
+		try (Transaction tx = graphDb().beginTx()) {
+			for (Node node : reimported) {
+				Node original = graphDb().getNodeById(((Number) node.getProperty("NODE_ID")).longValue());
+				assertEquals("Should export the attributes", original.getProperty("highway", ""),
+						node.getProperty("highway", ""));
+			}
+			tx.success();
+		}
+	}
+
+	@Test
+	public void testExportRegion() throws Exception {
+		ShapefileImporter importer = new ShapefileImporter(graphDb(), new NullListener(), 100);
+		importer.importFile("shp" + File.separator + "highway", "highway", Charset.forName("UTF-8"));
+
+		Envelope window;
+		int expected;
+		int residential = 0;
+		try (Transaction tx = graphDb().beginTx()) {
+			Layer layer = new SpatialDatabaseService(graphDb()).getLayer("highway");
+			org.neo4j.gis.spatial.rtree.Envelope bounds = layer.getIndex().getBoundingBox();
+			window = new Envelope(bounds.getMinX(), (bounds.getMinX() + bounds.getMaxX()) / 2, bounds.getMinY(),
+					(bounds.getMinY() + bounds.getMaxY()) / 2);
+			expected = GeoPipeline.startIntersectWindowSearch(layer, window).count();
+			for (Node node : layer.getIndex().getAllIndexedNodes()) {
+				if ("residential".equals(node.getProperty("highway", null))) {
+					residential++;
+				}
+			}
+			tx.success();
+		}
+		assertTrue("Test window should not contain the whole layer", expected > 0 && expected < 143);
+
+		StreamingShapefileExporter exporter = new StreamingShapefileExporter(graphDb(), 2);
+		exporter.setExportDir("target/export/streaming");
+		File file = exporter.exportLayer("highway", new File("highway-window.shp"), window);
+		assertEquals("Should only export geometries in the window", expected,
+				importer.importFile(file.getPath().replace(".shp", ""), "highway_window", Charset.forName("UTF-8"))
+						.size());
+
+		file = exporter.exportLayer("highway", new File("highway-residential.shp"), "highway = 'residential'");
+		assertEquals("Should only export geometries matching the filter", residential,
+				importer.importFile(file.getPath().replace(".shp", ""), "highway_residential",
+						Charset.forName("UTF-8")).size());
+	}
+
+	@Test
+	public void testExportTypedAttributes() throws Exception {
+		String[] names = new String[] { "count", "population", "area", "paved", "name" };
+		try (Transaction tx = graphDb().beginTx()) {
+			EditableLayer layer = new SpatialDatabaseService(graphDb()).getOrCreateEditableLayer("typed");
+			layer.setExtraPropertyNames(names);
+			for (int i = 0; i < 20; i++) {
+				layer.add(layer.getGeometryFactory().createPoint(new Coordinate(i, i)), names, new Object[] { i,
+						10000000000L + i, i * 1.25 + 0.001, i % 2 == 0, "road " + i });
+			}
+			tx.success();
+		}
+
+		StreamingShapefileExporter exporter = new StreamingShapefileExporter(graphDb(), 2);
+		exporter.setExportDir("target/export/streaming");
+		File file = exporter.exportLayer("typed");
+
+		File dbfFile = new File(file.getPath().replace(".shp", ".dbf"));
+		DbaseFileReader dbf = new DbaseFileReader(new FileInputStream(dbfFile).getChannel(), false,
+				Charset.forName("UTF-8"));
+		try (Transaction tx = graphDb().beginTx()) {
+			DbaseFileHeader header = dbf.getHeader();
+			assertEquals(names.length + 1, header.getNumFields());
+			assertEquals(20, header.getNumRecords());
+			assertColumn(header, 1, "count", 'N', 2, 0);
+			assertColumn(header, 2, "population", 'N', 11, 0);
+			assertEquals("area", header.getFieldName(3));
+			assertEquals('N', header.getFieldType(3));
+			assertTrue("Decimal numbers should keep their decimals", header.getDecimalCount(3) > 0);
+			assertColumn(header, 4, "paved", 'L', 1, 0);
+			assertColumn(header, 5, "name", 'C', 7, 0);
+			int rows = 0;
+			while (dbf.hasNext()) {
+				Object[] values = dbf.readEntry();
+				Node node = graphDb().getNodeById(((Number) values[0]).longValue());
+				assertEquals(node.getProperty("count"), ((Number) values[1]).intValue());
+				assertEquals(node.getProperty("population"), ((Number) values[2]).longValue());
+				assertEquals((Double) node.getProperty("area"), ((Number) values[3]).doubleValue(), 0.0000001);
+				assertEquals(node.getProperty("paved"), values[4]);
+				assertEquals(node.getProperty("name"), values[5]);
+				rows++;
+			}
+			assertEquals("Should export every geometry", 20, rows);
+			tx.success();
+		} finally {
+			dbf.close();
+		}
+	}
+
+	private static void assertColumn(DbaseFileHeader header, int field, String name, char type, int length,
+			int decimals) {
+		assertEquals(name, header.getFieldName(field));
+		assertEquals("Type of " + name, type, header.getFieldType(field));
+		assertEquals("Width of " + name, length, header.getFieldLength(field));
+		assertEquals("Decimals of " + name, decimals, header.getDecimalCount(field));
+	}
+}
@@ -25,10 +25,16 @@ import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import java.awt.Color;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.Set;
 
 import org.geotools.data.neo4j.Neo4jFeatureBuilder;
 import org.geotools.data.neo4j.StyledImageExporter;
@@ -52,6 +58,10 @@ import org.neo4j.gis.spatial.filter.SearchIntersectWindow;
 import org.neo4j.gis.spatial.osm.OSMImporter;
 import org.neo4j.gis.spatial.pipes.filtering.FilterCQL;
 import org.neo4j.gis.spatial.pipes.osm.OSMGeoPipeline;
+import org.neo4j.gis.spatial.pipes.processing.GroupBy;
+import org.neo4j.gis.spatial.pipes.processing.Sort;
+import org.neo4j.gis.spatial.pipes.writers.GeoJSONWriter;
+import org.neo4j.gis.spatial.pipes.writers.WellKnownTextWriter;
 import org.neo4j.graphdb.Transaction;
 import org.neo4j.kernel.impl.annotations.Documented;
 import org.neo4j.test.TestData.Title;
@@ -126,7 +136,154 @@ public class GeoPipesTest extends AbstractJavaDocTestBase
                 GeoPipeline.start( osmLayer ).windowIntersectionFilter( 10, 40, 20,
                         56.0583531 ).count() );
     }
-    
+
+    @Test
+    public void read_envelopes_before_decoding_geometries()
+    {
+        int count = 0;
+        for ( GeoPipeFlow flow : GeoPipeline.start( boxesLayer ).copyDatabaseRecordProperties() )
+        {
+            // the envelope comes from the stored bounding box
+            Envelope stored = flow.getEnvelope();
+            assertEquals( flow.getGeometry().getEnvelopeInternal(), stored );
+            count++;
+        }
+        assertEquals( 2, count );
+    }
+
+    @Test
+    public void stream_geojson_wkt_and_kml() throws IOException, ParseException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals( 2, GeoPipeline.start( boxesLayer ).copyDatabaseRecordProperties( "name" ).writeGeoJSON( out, 2 ) );
+        String json = out.toString( "UTF-8" );
+        assertTrue( json, json.startsWith( "{\"type\":\"FeatureCollection\",\"features\":[" ) );
+        assertTrue( json, json.contains( "\"geometry\":{\"type\":\"Polygon\",\"coordinates\":[[[12,26],[12,27],[13,27],[13,26],[12,26]]]}" ) );
+        assertTrue( json, json.contains( "\"properties\":{\"name\":\"B\"}" ) );
+
+        out = new ByteArrayOutputStream();
+        GeoPipeline.start( boxesLayer ).toCentroid().writeGeoJSON( out, 0 );
+        assertTrue( out.toString( "UTF-8" ).contains( "\"coordinates\":[4,4]" ) );
+
+        out = new ByteArrayOutputStream();
+        GeoPipeline.start( boxesLayer ).writeWKT( out );
+        WKTReader reader = new WKTReader();
+        List<GeoPipeFlow> flows = GeoPipeline.start( boxesLayer ).toList();
+        String[] lines = out.toString( "UTF-8" ).split( "\n" );
+        assertEquals( flows.size(), lines.length );
+        for ( int i = 0; i < lines.length; i++ )
+        {
+            assertTrue( lines[i], flows.get( i ).getGeometry().equalsExact( reader.read( lines[i] ) ) );
+        }
+
+        out = new ByteArrayOutputStream();
+        GeoPipeline.start( boxesLayer ).copyDatabaseRecordProperties( "name" ).writeKML( out, 1 );
+        String kml = out.toString( "UTF-8" );
+        assertTrue( kml, kml.contains( "<Data name=\"name\"><value>A</value></Data><Polygon><outerBoundaryIs><LinearRing><coordinates>12,26 12,27 13,27 13,26 12,26</coordinates></LinearRing></outerBoundaryIs></Polygon>" ) );
+        assertTrue( kml, kml.endsWith( "</Document></kml>\n" ) );
+    }
+
+    @Test
+    public void stream_items_without_geometry() throws IOException, ParseException
+    {
+        List<GeoPipeFlow> flows = GeoPipeline.start( boxesLayer ).toList();
+        assertEquals( 2, flows.size() );
+        flows.get( 0 ).setGeometry( null );
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals( 2, new WellKnownTextWriter( out ).write( flows.iterator() ) );
+        String[] lines = out.toString( "UTF-8" ).split( "\n", -1 );
+        assertEquals( 3, lines.length );
+        assertEquals( "", lines[0] );
+        assertTrue( lines[1], flows.get( 1 ).getGeometry().equalsExact( new WKTReader().read( lines[1] ) ) );
+
+        out = new ByteArrayOutputStream();
+        assertEquals( 2, new GeoJSONWriter( out ).write( flows.iterator() ) );
+        assertTrue( out.toString( "UTF-8" ).contains( "\"geometry\":null" ) );
+    }
+
+    @Test
+    public void profile_pipeline()
+    {
+        GeoPipeline pipeline = GeoPipeline.startIntersectSearch( boxesLayer,
+                boxesLayer.getGeometryFactory().toGeometry( new Envelope( 0, 10, 0, 10 ) ) )
+        	.calculateArea()
+        	.profile();
+        assertEquals( 1, pipeline.count() );
+
+        GeoPipelineProfile profile = pipeline.getProfile();
+        assertEquals( 2, profile.getLeavesTested() );
+        assertEquals( 1, profile.getGeometriesDecoded() );
+        assertEquals( 0, profile.getFalsePositives() );
+
+        List<GeoPipelineProfile.Stage> stages = profile.getStages();
+        assertEquals( 3, stages.size() );
+        assertEquals( "IndexSearch", stages.get( 0 ).getName() );
+        assertEquals( 2, stages.get( 0 ).getItemsIn() );
+        assertEquals( 1, stages.get( 0 ).getItemsOut() );
+        assertEquals( "FilterIntersect", stages.get( 1 ).getName() );
+        assertEquals( 1, stages.get( 1 ).getItemsIn() );
+        assertEquals( 1, stages.get( 1 ).getItemsOut() );
+        assertEquals( "Area", stages.get( 2 ).getName() );
+        assertEquals( 1, stages.get( 2 ).getItemsOut() );
+        for ( GeoPipelineProfile.Stage stage : stages )
+        {
+            assertTrue( stage.toString(), stage.getNanos() >= 0 );
+        }
+    }
+
+    @Test
+    public void fold_leading_filters_into_index_search()
+    {
+        GeoPipeline pipeline = GeoPipeline.start( osmLayer )
+        	.windowIntersectionFilter( 10, 40, 20, 56.0583531 )
+        	.copyDatabaseRecordProperties( "name" )
+        	.propertyFilter( "name", "Storgatan" )
+        	.createWellKnownText();
+
+        String plan = pipeline.explain();
+        assertTrue( plan, plan.startsWith( "IndexSearch" ) );
+        assertTrue( plan, plan.contains( "from [FilterIntersectWindow]" ) );
+        assertTrue( plan, plan.contains( "before decoding: [FilterProperty (name EQUAL Storgatan)]" ) );
+        assertTrue( plan, plan.contains( "-> FilterIntersectWindow" ) );
+        assertFalse( plan, plan.contains( "-> FilterProperty" ) );
+
+        // the same pipeline started from search results isn't rewritten
+        GeoPipeline unplanned = GeoPipeline.start( osmLayer, osmLayer.getIndex().search( new SearchAll() ) )
+        	.windowIntersectionFilter( 10, 40, 20, 56.0583531 )
+        	.copyDatabaseRecordProperties( "name" )
+        	.propertyFilter( "name", "Storgatan" )
+        	.createWellKnownText();
+
+        List<GeoPipeFlow> expected = unplanned.toList();
+        List<GeoPipeFlow> actual = pipeline.toList();
+        assertEquals( expected.size(), actual.size() );
+        for ( int i = 0; i < expected.size(); i++ )
+        {
+            assertEquals( expected.get( i ).getId(), actual.get( i ).getId() );
+            assertEquals( expected.get( i ).getProperties(), actual.get( i ).getProperties() );
+        }
+        assertFalse( pipeline.explain().contains( "-> FilterProperty" ) );
+    }
+
+    @Test
+    public void fold_disjoint_filter_windows_into_index_search()
+    {
+        // the line crosses both windows, although the windows don't overlap
+        GeoPipeline pipeline = GeoPipeline.start( linesLayer )
+        	.windowIntersectionFilter( 11, 25, 13, 27 )
+        	.windowIntersectionFilter( 19, 36, 21, 39 );
+
+        String plan = pipeline.explain();
+        assertTrue( plan, plan.contains( "from [FilterIntersectWindow, FilterIntersectWindow]" ) );
+        assertEquals( 1, pipeline.count() );
+
+        assertEquals( 0, GeoPipeline.start( linesLayer )
+        	.windowIntersectionFilter( 11, 25, 13, 27 )
+        	.windowIntersectionFilter( 30, 36, 31, 39 )
+        	.count() );
+    }
+
     /**
      * This pipe is filtering according to a CQL Bounding Box description.
      * 
@@ -276,6 +433,214 @@ public class GeoPipesTest extends AbstractJavaDocTestBase
                 12.0, 0 );
     }
 
+    @Test
+    public void sort_top_k()
+    {
+        GeoPipeline pipeline = GeoPipeline.start( intersectionLayer ).calculateArea().sort(
+                "Area", 2 );
+
+        assertEquals( (Double) pipeline.next().getProperties().get( "Area" ),
+                16.0, 0 );
+        assertEquals( (Double) pipeline.next().getProperties().get( "Area" ),
+                25.0, 0 );
+        assertFalse( pipeline.hasNext() );
+
+        pipeline = GeoPipeline.start( intersectionLayer ).calculateArea().sort(
+                "Area", false ).range( 0, 1 );
+        Sort sort = (Sort) pipeline.get( pipeline.size() - 2 );
+        assertEquals( 2, sort.getLimit() );
+        assertEquals( (Double) pipeline.next().getProperties().get( "Area" ),
+                36.0, 0 );
+        assertEquals( (Double) pipeline.next().getProperties().get( "Area" ),
+                25.0, 0 );
+        assertFalse( pipeline.hasNext() );
+    }
+
+    @Test
+    public void external_sort()
+    {
+        GeoPipeline pipeline = GeoPipeline.start( intersectionLayer ).calculateArea().externalSort(
+                "Area", true, 1 );
+
+        GeoPipeFlow flow = pipeline.next();
+        assertEquals( (Double) flow.getProperties().get( "Area" ), 16.0, 0 );
+        assertEquals( 16.0, flow.getGeometry().getArea(), 0 );
+        assertEquals( (Double) pipeline.next().getProperties().get( "Area" ),
+                25.0, 0 );
+        assertEquals( (Double) pipeline.next().getProperties().get( "Area" ),
+                36.0, 0 );
+        assertFalse( pipeline.hasNext() );
+    }
+
+    @Test
+    public void group_by_property()
+    {
+        GeoPipeline pipeline = GeoPipeline.start( intersectionLayer ).getGeometryType().calculateArea().groupBy(
+                "GeometryType", GroupBy.count(), GroupBy.sum( "Area" ), GroupBy.min( "Area" ),
+                GroupBy.max( "Area" ).as( "largest" ), GroupBy.avg( "Area" ), GroupBy.extent(), GroupBy.union() );
+
+        GeoPipeFlow flow = pipeline.next();
+        assertFalse( pipeline.hasNext() );
+        assertEquals( "Polygon", flow.getProperties().get( "GeometryType" ) );
+        assertEquals( 3L, flow.getProperties().get( "count" ) );
+        assertEquals( 77.0, (Double) flow.getProperties().get( "sum(Area)" ), 0 );
+        assertEquals( 16.0, (Double) flow.getProperties().get( "min(Area)" ), 0 );
+        assertEquals( 36.0, (Double) flow.getProperties().get( "largest" ), 0 );
+        assertEquals( 77.0 / 3, (Double) flow.getProperties().get( "avg(Area)" ), 0.000001 );
+        assertEquals( new Envelope( 0, 10, 0, 10 ), flow.getProperties().get( "extent" ) );
+        assertEquals( 64.0, flow.getGeometry().getArea(), 0.000001 );
+    }
+
+    @Test
+    public void group_by_property_spilling_to_disk()
+    {
+        // five keys of eight points each, interleaved so that every key but
+        // the first is spilled several times
+        String[] names = new String[] { "name", "value" };
+        EditableLayerImpl groupsLayer = (EditableLayerImpl) new SpatialDatabaseService( db )
+                .getOrCreateEditableLayer( "groups" );
+        groupsLayer.setExtraPropertyNames( names );
+        for ( int i = 0; i < 40; i++ )
+        {
+            groupsLayer.add( groupsLayer.getGeometryFactory().createPoint( new Coordinate( i, i % 7 ) ), names,
+                    new Object[] { "k" + ( i % 5 ), (double) i } );
+        }
+
+        Map<Object, GeoPipeFlow> expected = groupByName( GeoPipeline.start( groupsLayer )
+                .copyDatabaseRecordProperties( names )
+                .groupBy( "name", GroupBy.count(), GroupBy.sum( "value" ), GroupBy.extent() ) );
+        Map<Object, GeoPipeFlow> spilled = groupByName( GeoPipeline.start( groupsLayer )
+                .copyDatabaseRecordProperties( names )
+                .groupBy( "name", 1, GroupBy.count(), GroupBy.sum( "value" ), GroupBy.extent() ) );
+
+        assertEquals( 5, expected.size() );
+        assertEquals( expected.keySet(), spilled.keySet() );
+        for ( Object name : expected.keySet() )
+        {
+            Map<String, Object> properties = spilled.get( name ).getProperties();
+            assertEquals( 8L, properties.get( "count" ) );
+            assertEquals( expected.get( name ).getProperties().get( "count" ), properties.get( "count" ) );
+            assertEquals( (Double) expected.get( name ).getProperties().get( "sum(value)" ),
+                    (Double) properties.get( "sum(value)" ), 0 );
+            assertEquals( expected.get( name ).getProperties().get( "extent" ), properties.get( "extent" ) );
+            assertEquals( expected.get( name ).getGeometry(), spilled.get( name ).getGeometry() );
+        }
+    }
+
+    private static Map<Object, GeoPipeFlow> groupByName( GeoPipeline pipeline )
+    {
+        Map<Object, GeoPipeFlow> groups = new HashMap<Object, GeoPipeFlow>();
+        for ( GeoPipeFlow flow : pipeline )
+        {
+            assertTrue( "Each key should be emitted once", groups.put( flow.getProperties().get( "name" ), flow ) == null );
+        }
+        return groups;
+    }
+
+    @Test
+    public void parallel_buffer_and_area()
+    {
+        List<GeoPipeFlow> expected = GeoPipeline.start( intersectionLayer ).toBuffer( 0.5 ).calculateArea().toList();
+
+        GeoPipeline pipeline = GeoPipeline.start( intersectionLayer ).parallel( 3 ).toBuffer( 0.5 ).calculateArea()
+                .sort( "Area" ).toBuffer( 1.0 );
+        assertTrue( pipeline.get( 1 ) instanceof ParallelGeoPipe );
+        assertEquals( 2, ( (ParallelGeoPipe) pipeline.get( 1 ) ).getPipes().size() );
+        assertTrue( pipeline.get( 2 ) instanceof Sort );
+        assertTrue( pipeline.get( 3 ) instanceof ParallelGeoPipe );
+        assertEquals( 3, pipeline.count() );
+
+        List<GeoPipeFlow> actual = GeoPipeline.start( intersectionLayer ).toBuffer( 0.5 ).calculateArea()
+                .parallel( 2 ).toList();
+        assertEquals( expected.size(), actual.size() );
+        for ( int i = 0; i < expected.size(); i++ )
+        {
+            assertEquals( expected.get( i ).getId(), actual.get( i ).getId() );
+            assertEquals( (Double) expected.get( i ).getProperty( "Area" ),
+                    (Double) actual.get( i ).getProperty( "Area" ), 0 );
+        }
+    }
+
+    @Test
+    public void parallel_pipeline_stopped_early_releases_workers() throws InterruptedException
+    {
+        Set<Thread> before = Thread.getAllStackTraces().keySet();
+        GeoPipeline pipeline = GeoPipeline.start( intersectionLayer ).parallel( 2 ).toBuffer( 0.5 ).calculateArea();
+        assertEquals( 1, pipeline.next( 1 ).size() );
+        assertTrue( pipeline.hasNext() );
+
+        long deadline = System.currentTimeMillis() + 10 * ParallelGeoPipe.IDLE_TIMEOUT_MILLIS;
+        while ( countWorkersStartedSince( before ) > 0 && System.currentTimeMillis() < deadline )
+        {
+            Thread.sleep( 100 );
+        }
+        assertEquals( "Idle workers should time out", 0, countWorkersStartedSince( before ) );
+    }
+
+    @Test
+    public void parallel_flows_are_decoded_before_leaving_the_workers()
+    {
+        List<Double> expected = new ArrayList<Double>();
+        for ( GeoPipeFlow flow : GeoPipeline.start( intersectionLayer ).toList() )
+        {
+            expected.add( flow.getGeometry().getArea() );
+        }
+
+        // the copy pipe does not touch the geometry, so only the worker decodes it
+        GeoPipeline pipeline = GeoPipeline.start( intersectionLayer ).parallel( 2 ).addPipe( new CopyNodeId() );
+        assertTrue( pipeline.get( 1 ) instanceof ParallelGeoPipe );
+        List<GeoPipeFlow> flows = pipeline.toList();
+        tx.success();
+        tx.close();
+        tx = null;
+
+        assertEquals( expected.size(), flows.size() );
+        for ( int i = 0; i < expected.size(); i++ )
+        {
+            GeoPipeFlow flow = flows.get( i );
+            assertEquals( flow.getRecord().getNodeId(), flow.getProperties().get( "node" ) );
+            assertEquals( expected.get( i ), flow.getGeometry().getArea(), 0 );
+            assertEquals( flow.getGeometry().getEnvelopeInternal(), flow.getEnvelope() );
+        }
+    }
+
+    private static class CopyNodeId extends AbstractGeoPipe implements StatelessGeoPipe
+    {
+        @Override
+        protected GeoPipeFlow process( GeoPipeFlow flow )
+        {
+            flow.getProperties().put( "node", flow.getRecord().getNodeId() );
+            return flow;
+        }
+    }
+
+    private static int countWorkersStartedSince( Set<Thread> before )
+    {
+        int count = 0;
+        for ( Thread thread : Thread.getAllStackTraces().keySet() )
+        {
+            if ( thread.getName().equals( "geopipe-worker" ) && thread.isAlive() && !before.contains( thread ) )
+            {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Test
+    public void density_islands_merge_bridged_islands()
+    {
+        // the centroids are (2.5 2.5), (7 7) and (4 4): the first and the
+        // second are only connected through the third
+        GeoPipeline pipeline = GeoPipeline.start( intersectionLayer ).toCentroid().groupByDensityIslands( 4.3 );
+        GeoPipeFlow island = pipeline.next();
+        assertEquals( 3, island.countRecords() );
+        assertEquals( 3, island.getGeometry().getNumGeometries() );
+        assertFalse( pipeline.hasNext() );
+
+        assertEquals( 2, GeoPipeline.start( intersectionLayer ).toCentroid().groupByDensityIslands( 2.2 ).count() );
+    }
+
     @Test
     public void get_boundary_length()
     {
@@ -801,9 +1166,10 @@ public class GeoPipesTest extends AbstractJavaDocTestBase
 	    	.unionAll()
 	    	.createWellKnownText();
         
+        // the cascaded union may start the ring at a different vertex
         assertEquals(
-                "POLYGON ((0 0, 0 5, 2 5, 2 6, 4 6, 4 10, 10 10, 10 4, 6 4, 6 2, 5 2, 5 0, 0 0))",
-                pipeline.next().getProperty( "WellKnownText" ) );
+                normalizedWkt( "POLYGON ((0 0, 0 5, 2 5, 2 6, 4 6, 4 10, 10 10, 10 4, 6 4, 6 2, 5 2, 5 0, 0 0))" ),
+                normalizedWkt( (String) pipeline.next().getProperty( "WellKnownText" ) ) );
 
         try
         {
@@ -813,6 +1179,11 @@ public class GeoPipesTest extends AbstractJavaDocTestBase
         catch ( NoSuchElementException e )
         {
         }
+
+        pipeline = GeoPipeline.start( intersectionLayer ).unionAll( 4 ).createWellKnownText();
+        assertEquals(
+                normalizedWkt( "POLYGON ((0 0, 0 5, 2 5, 2 6, 4 6, 4 10, 10 10, 10 4, 6 4, 6 2, 5 2, 5 0, 0 0))" ),
+                normalizedWkt( (String) pipeline.next().getProperty( "WellKnownText" ) ) );
     }
     
     /**
@@ -1216,6 +1587,20 @@ public class GeoPipesTest extends AbstractJavaDocTestBase
         exporter.setExportDir( "target/docs/images/" );
     }
 
+    private String normalizedWkt( String wkt )
+    {
+        try
+        {
+            Geometry geometry = new WKTReader().read( wkt );
+            geometry.normalize();
+            return geometry.toText();
+        }
+        catch ( ParseException e )
+        {
+            throw new RuntimeException( e );
+        }
+    }
+
     private GeoPipeFlow print( GeoPipeFlow pipeFlow )
     {
         System.out.println( "GeoPipeFlow:" );
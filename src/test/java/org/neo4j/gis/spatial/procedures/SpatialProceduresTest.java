@@ -28,6 +28,11 @@ import org.neo4j.kernel.impl.proc.Procedures;
 import org.neo4j.kernel.internal.GraphDatabaseAPI;
 import org.neo4j.test.TestGraphDatabaseFactory;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
 import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.function.Consumer;
@@ -501,6 +506,61 @@ public class SpatialProceduresTest {
         testCallCount(db, "CALL spatial.layers()", null, 1);
     }
 
+    @Test
+    public void import_geojson() throws Exception {
+        File file = writeFile("target/features.geojson",
+                "{\"type\": \"FeatureCollection\", \"features\": [",
+                "  {\"type\": \"Feature\", \"id\": 1, \"geometry\": {\"type\": \"Point\", \"coordinates\": [15.3, 56.2]},",
+                "   \"properties\": {\"name\": \"a\", \"tags\": [\"x\", \"y\"]}},",
+                "  {\"type\": \"Feature\", \"geometry\": {\"type\": \"LineString\", \"coordinates\": [[15.0, 56.0], [15.1, 56.1]]},",
+                "   \"properties\": {\"name\": \"b\", \"lanes\": 2}},",
+                "  {\"type\": \"Feature\", \"geometry\": null, \"properties\": {}}",
+                "]}");
+        testCountQuery("importGeoJSON", "CALL spatial.importGeoJSON('features','" + file.getPath() + "')", 2, "count", null);
+        testCallCount(db, "CALL spatial.bbox('features',{lon:15.2,lat:56.1},{lon:15.4,lat:56.3})", null, 1);
+    }
+
+    @Test
+    public void import_newline_delimited_geojson() throws Exception {
+        File file = writeFile("target/features.geojsonl",
+                "{\"type\": \"Feature\", \"geometry\": {\"type\": \"Point\", \"coordinates\": [15.3, 56.2]}, \"properties\": {\"name\": \"a\"}}",
+                "",
+                "{\"type\": \"Feature\", \"geometry\": {\"type\": \"Point\", \"coordinates\": [15.4, 56.3]}, \"properties\": {\"name\": \"b\"}}");
+        testCountQuery("importGeoJSON", "CALL spatial.importGeoJSON('features','" + file.getPath() + "')", 2, "count", null);
+    }
+
+    @Test
+    public void import_minified_geojson() throws Exception {
+        // a whole FeatureCollection on one line, with the features before the type
+        File file = writeFile("target/features.min.geojson",
+                "{\"features\":[{\"type\":\"Feature\",\"geometry\":{\"type\":\"Point\",\"coordinates\":[15.3,56.2]},\"properties\":{\"name\":\"a\"}},"
+                        + "{\"type\":\"Feature\",\"geometry\":{\"type\":\"Point\",\"coordinates\":[15.4,56.3]},\"properties\":{\"name\":\"b\"}}],"
+                        + "\"type\":\"FeatureCollection\"}");
+        testCountQuery("importGeoJSON", "CALL spatial.importGeoJSON('features','" + file.getPath() + "')", 2, "count", null);
+        testCallCount(db, "CALL spatial.bbox('features',{lon:15.2,lat:56.1},{lon:15.45,lat:56.35})", null, 2);
+    }
+
+    @Test
+    public void import_csv() throws Exception {
+        File file = writeFile("target/features.csv",
+                "name,geometry,zip",
+                "a,POINT (15.3 56.2),01234",
+                "\"b, with comma\",\"LINESTRING (15.0 56.0, 15.1 56.1)\",12345",
+                "c,not wkt,0");
+        testCountQuery("importCSV", "CALL spatial.importCSV('features','" + file.getPath() + "','geometry')", 2, "count", null);
+        testResult(db, "CALL spatial.bbox('features',{lon:15.2,lat:56.1},{lon:15.4,lat:56.3}) YIELD node RETURN node.zip AS zip", res -> {
+            assertTrue("Expected a result", res.hasNext());
+            assertEquals("Leading zeros should be kept", "01234", res.next().get("zip"));
+        });
+    }
+
+    private static File writeFile(String path, String... lines) throws IOException {
+        File file = new File(path);
+        file.getParentFile().mkdirs();
+        Files.write(file.toPath(), Arrays.asList(lines), StandardCharsets.UTF_8);
+        return file;
+    }
+
     private void testCountQuery(String name, String query, long count, String column, Map<String,Object> params) {
         Result results = db.execute("EXPLAIN " + query);
         results.close();
@@ -542,6 +602,25 @@ public class SpatialProceduresTest {
         testCall(db, "CALL spatial.intersects('geom','" + polygon + "') YIELD node RETURN node.name as name", r -> assertEquals("b", r.get("name")));
     }
 
+    @Test
+    public void profile_geometries_in_a_polygon() throws Exception {
+        execute("CALL spatial.addPointLayer('geom')");
+        ResourceIterator<Object> results = db.execute("UNWIND [{name:'a',latitude:60.1,longitude:15.2},{name:'b',latitude:60.3,longitude:15.5}] as point CREATE (n:Node) SET n += point WITH n CALL spatial.addNode('geom',n) YIELD node RETURN node.name as name").columnAs("name");
+        results.close();
+        String polygon = "POLYGON((15.3 60.2, 15.3 60.4, 15.7 60.4, 15.7 60.2, 15.3 60.2))";
+        testResult(db, "CALL spatial.profile('geom','spatial.intersects',{geometry:'" + polygon + "'})", res -> {
+            Map<String, Object> index = res.next();
+            assertEquals("IndexSearch", index.get("stage"));
+            assertEquals(2L, index.get("itemsIn"));
+            assertEquals(1L, index.get("itemsOut"));
+            assertEquals(2L, ((Map) index.get("details")).get("leavesTested"));
+            Map<String, Object> filter = res.next();
+            assertEquals("FilterIntersect", filter.get("stage"));
+            assertEquals(1L, filter.get("itemsOut"));
+            assertFalse(res.hasNext());
+        });
+    }
+
     @Test
     public void create_a_WKT_layer() throws Exception {
         testCall(db, "CALL spatial.addWKTLayer('geom','wkt')", r -> assertEquals("wkt",dump(((Node)r.get("node"))).getProperty("geomencoder_config")));